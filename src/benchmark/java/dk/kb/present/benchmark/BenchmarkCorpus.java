@@ -0,0 +1,172 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.benchmark;
+
+import dk.kb.license.model.v1.DrRightsCalculationOutputDto;
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import dk.kb.license.util.DsLicenseClient;
+import dk.kb.present.RightsCalculator;
+import dk.kb.present.View;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.Resolver;
+import dk.kb.util.yaml.YAML;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Sample records and views for the benchmarks.
+ * <p>
+ * Views are created from {@code conf/ds-present-kb-origins.yaml}. MODS records are taken from
+ * {@code src/test/resources/xml/copyright_extraction}, Preservica records from
+ * {@code src/test/resources/internal_test_files/preservica7}, which is only available after running {@code kb init}.
+ * <p>
+ * Calls to ds-license are replaced by a fixed answer, so that the benchmarks measure the work done by ds-present.
+ */
+public class BenchmarkCorpus {
+    public static final String MODS_FOLDER = "xml/copyright_extraction";
+    public static final String PRESERVICA_FOLDER = "internal_test_files/preservica7";
+    /**
+     * Origins with Preservica records. All other origins are expected to use MODS.
+     */
+    public static final Set<String> PRESERVICA_ORIGINS = Set.of("ds.radio", "ds.tv", "ds.radiotv");
+
+    private static boolean initialized = false;
+
+    /**
+     * Load the configuration and replace the ds-license client. Safe to call multiple times.
+     */
+    public static synchronized void initialize() throws IOException {
+        if (initialized) {
+            return;
+        }
+        ServiceConfig.initialize("conf/ds-present-behaviour.yaml", "conf/ds-present-kb-origins.yaml");
+        RightsCalculator.licenseClient = createLicenseClient();
+        initialized = true;
+    }
+
+    /**
+     * @param originID the ID of an origin in {@code ds-present-kb-origins.yaml}, e.g. {@code ds.radio}.
+     * @param viewID   the ID of a view for the origin, e.g. {@code SolrJSON}. Case insensitive.
+     * @return the view, created from configuration.
+     */
+    public static View getView(String originID, String viewID) throws IOException {
+        initialize();
+        YAML originConf = ServiceConfig.getConfig().getYAMLList(".origins").stream()
+                .filter(conf -> conf.keySet().contains(originID))
+                .map(conf -> conf.getSubMap("\"" + originID + "\""))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown origin '" + originID + "'"));
+        return originConf.getYAMLList("views").stream()
+                .map(viewConf -> new View(viewConf, originConf.getString("origin")))
+                .filter(view -> view.getId().equalsIgnoreCase(viewID))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(
+                        "Unknown view '" + viewID + "' for origin '" + originID + "'"));
+    }
+
+    /**
+     * @param originID the ID of an origin, used for selecting the format of the records.
+     * @return sample records in the format used by the origin.
+     */
+    public static List<DsRecordDto> getRecords(String originID) throws IOException {
+        String folder = PRESERVICA_ORIGINS.contains(originID) ? PRESERVICA_FOLDER : MODS_FOLDER;
+        return getContent(folder).stream()
+                .map(content -> new DsRecordDto()
+                        .id(originID + ":benchmark" + content.hashCode())
+                        .origin(originID)
+                        .mTime(1701261949625000L)
+                        .mTimeHuman("2023-11-29 13:45:49+0100")
+                        .data(content))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the content of the MODS sample records.
+     */
+    public static List<String> getModsContent() throws IOException {
+        return getContent(MODS_FOLDER);
+    }
+
+    /**
+     * @return the content of the Preservica sample records.
+     */
+    public static List<String> getPreservicaContent() throws IOException {
+        return getContent(PRESERVICA_FOLDER);
+    }
+
+    /**
+     * @return true if the Preservica sample records are available.
+     */
+    public static boolean hasPreservicaContent() {
+        return Resolver.getPathFromClasspath(PRESERVICA_FOLDER) != null;
+    }
+
+    /**
+     * @param folder a folder on the classpath.
+     * @return the content of all XML files in the folder, sorted by file name.
+     */
+    private static List<String> getContent(String folder) throws IOException {
+        Path path = Resolver.getPathFromClasspath(folder);
+        if (path == null) {
+            throw new IllegalStateException(
+                    "Sample records in '" + folder + "' are not available. For Preservica records, run 'kb init'");
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            List<Path> xmlFiles = files
+                    .filter(file -> file.getFileName().toString().endsWith(".xml"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            List<String> contents = new ArrayList<>(xmlFiles.size());
+            for (Path xmlFile: xmlFiles) {
+                contents.add(Files.readString(xmlFile, StandardCharsets.UTF_8));
+            }
+            return contents;
+        }
+    }
+
+    /**
+     * @return a ds-license client that grants rights without restrictions or holdback for all records.
+     */
+    private static DsLicenseClient createLicenseClient() {
+        DsLicenseClient client = mock(DsLicenseClient.class);
+        when(client.calculateRights(any(RightsCalculationInputDto.class))).thenAnswer(invocation -> {
+            DrRightsCalculationOutputDto dr = new DrRightsCalculationOutputDto();
+            dr.setDrIdRestricted(false);
+            dr.setDsIdRestricted(false);
+            dr.setTitleRestricted(false);
+            dr.setProductionCodeAllowed(true);
+            dr.setHoldbackName("Benchmark");
+            dr.setHoldbackExpiredDate("2000-01-01T00:00:00Z");
+            RightsCalculationOutputDto output = new RightsCalculationOutputDto();
+            output.setDr(dr);
+            return output;
+        });
+        return client;
+    }
+}
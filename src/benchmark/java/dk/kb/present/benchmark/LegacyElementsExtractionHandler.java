@@ -0,0 +1,276 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.benchmark;
+
+import dk.kb.present.util.DataCleanup;
+import dk.kb.present.util.ExtractedPreservicaValues;
+import org.apache.commons.lang3.StringUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Map;
+
+/**
+ * The implementation of {@link dk.kb.present.util.saxhandlers.ElementsExtractionHandler} before it was rebuilt
+ * with a trie of the extraction paths, used as baseline by {@link PreservicaExtractionBenchmark}.
+ * <p>
+ * The current path is maintained as a String, which is extended for each start element and cut for each end element,
+ * and all checks are lookups of the current path.
+ **/
+class LegacyElementsExtractionHandler extends DefaultHandler {
+    private static final String METADATA_PATH = "/XIP/Metadata";
+
+    private static final String START_TIME_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreInstantiation/pbcoreDateAvailable/dateAvailableStart";
+    private static final String END_TIME_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreInstantiation/pbcoreDateAvailable/dateAvailableEnd";
+
+    private static final String TVMETER_FORM_PATH = METADATA_PATH + "/Content/record/source/tvmeter/form";
+    private static final String TVMETER_CONTENT_PATH = METADATA_PATH + "/Content/record/source/tvmeter/contentsitem";
+    private static final String TVMETER_ORIGIN_PATH = METADATA_PATH + "/Content/record/source/tvmeter/origin";
+    private static final String TVMETER_ORIGIN_COUNTRY_PATH = METADATA_PATH + "/Content/record/source/tvmeter/productioncountry";
+    private static final String TVMETER_PURPOSE_PATH = METADATA_PATH + "/Content/record/source/tvmeter/intent";
+    private static final String TVMETER_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/source/tvmeter/internalidcode";
+
+    private static final String NIELSEN_FORM_PATH = METADATA_PATH + "/Content/record/source/nielsen/form";
+    // TODO: Is this still the correct path to extract from?
+    private static final String NIELSEN_CONTENT_PATH = METADATA_PATH + "/Content/record/source/nielsen/typology";
+    private static final String NIELSEN_ORIGIN_PATH = METADATA_PATH + "/Content/record/source/nielsen/origin";
+    private static final String NIELSEN_ORIGIN_COUNTRY_PATH = METADATA_PATH + "/Content/record/source/nielsen/origincountry";
+    private static final String NIELSEN_PURPOSE_PATH = METADATA_PATH + "/Content/record/source/nielsen/purpose";
+    private static final String NIELSEN_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/source/nielsen/internalidcode";
+
+    private static final String PBCORE_TITLE_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreTitle";
+    private static final String PBCORE_TITLE_VALUE_PATH = PBCORE_TITLE_PATH + "/title";
+    private static final String PBCORE_TITLE_TYPE_PATH = PBCORE_TITLE_PATH + "/titleType";
+
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/produktionsnummer";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_ORIGIN_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/egenproduktion_kode";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_HOLDBACK_CATEGORY_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/holdback_kategori";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_PURPOSE_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/intent_purpose";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_FORM_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/form";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_CONTENT_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/contentsitem_typology";
+    private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_ORIGIN_COUNTRY_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/productioncountry_origincountry";
+
+    private static final String FUZZY_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/tpro_pnr";
+    private static final String FUZZY_ORIGIN_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/origin";
+    private static final String FUZZY_HOLDBACK_CATEGORY_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/tpro_holdback";
+    private static final String FUZZY_PURPOSE_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/intent";
+    private static final String FUZZY_FORM_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/form";
+    private static final String FUZZY_CONTENT_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/contentsitem";
+    private static final String FUZZY_ORIGIN_COUNTRY_PATH = METADATA_PATH + "/Content/record/source/Tv_Internt_Digitaliseret_program_table_1973_2005/productioncountry";
+
+
+    private static final Map<String,String> PBCORE_EXTRACT_PATHS = Map.of(
+            START_TIME_PATH,ExtractedPreservicaValues.STARTTIME_KEY,
+            END_TIME_PATH,ExtractedPreservicaValues.ENDTIME_KEY
+    );
+
+    private static final Map<String,String> NIELSEN_EXTRACT_PATHS = Map.of(
+            NIELSEN_FORM_PATH,ExtractedPreservicaValues.FORM_KEY,
+            NIELSEN_CONTENT_PATH,ExtractedPreservicaValues.CONTENT_KEY,
+            NIELSEN_ORIGIN_PATH,ExtractedPreservicaValues.ORIGIN_KEY,
+            NIELSEN_ORIGIN_COUNTRY_PATH,ExtractedPreservicaValues.ORIGIN_COUNTRY_KEY,
+            NIELSEN_PURPOSE_PATH,ExtractedPreservicaValues.PURPOSE_KEY,
+            NIELSEN_PRODUCTION_ID_PATH,ExtractedPreservicaValues.PRODUCTION_ID_KEY
+    );
+
+    private static final Map<String,String> TVMETER_EXTRACT_PATHS = Map.of(
+            TVMETER_FORM_PATH,ExtractedPreservicaValues.FORM_KEY,
+            TVMETER_CONTENT_PATH,ExtractedPreservicaValues.CONTENT_KEY,
+            TVMETER_ORIGIN_PATH,ExtractedPreservicaValues.ORIGIN_KEY,
+            TVMETER_ORIGIN_COUNTRY_PATH,ExtractedPreservicaValues.ORIGIN_COUNTRY_KEY,
+            TVMETER_PURPOSE_PATH,ExtractedPreservicaValues.PURPOSE_KEY,
+            TVMETER_PRODUCTION_ID_PATH,ExtractedPreservicaValues.PRODUCTION_ID_KEY
+    );
+
+    private static final Map<String, String> DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS = Map.of(
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_FORM_PATH, ExtractedPreservicaValues.FORM_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_CONTENT_PATH, ExtractedPreservicaValues.CONTENT_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_ORIGIN_PATH, ExtractedPreservicaValues.ORIGIN_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_ORIGIN_COUNTRY_PATH, ExtractedPreservicaValues.ORIGIN_COUNTRY_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_PURPOSE_PATH, ExtractedPreservicaValues.PURPOSE_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_PRODUCTION_ID_PATH, ExtractedPreservicaValues.PRODUCTION_ID_KEY,
+            DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_HOLDBACK_CATEGORY_PATH, ExtractedPreservicaValues.HOLDBACK_CATEGORY_KEY
+    );
+
+    private static final Map<String,String> FUZZY_EXTRACT_PATHS = Map.of(
+            FUZZY_FORM_PATH,ExtractedPreservicaValues.FORM_KEY,
+            FUZZY_CONTENT_PATH,ExtractedPreservicaValues.CONTENT_KEY,
+            FUZZY_ORIGIN_PATH,ExtractedPreservicaValues.ORIGIN_KEY,
+            FUZZY_ORIGIN_COUNTRY_PATH,ExtractedPreservicaValues.ORIGIN_COUNTRY_KEY,
+            FUZZY_PURPOSE_PATH,ExtractedPreservicaValues.PURPOSE_KEY,
+            FUZZY_PRODUCTION_ID_PATH,ExtractedPreservicaValues.PRODUCTION_ID_KEY,
+            FUZZY_HOLDBACK_CATEGORY_PATH,ExtractedPreservicaValues.HOLDBACK_CATEGORY_KEY
+    );
+
+    private boolean hasNielsenData = false;
+    private boolean hasTvMetadata = false;
+    private boolean hasDrArchiveSupplementaryRightsMetadata = false;
+    private boolean hasFuzzyMetadata = false;
+
+    private boolean insideMetadata = false;
+    private String metadataType;
+
+    private boolean inPbCoreTitle = false;
+    private String pbCoreTitleValue;
+    private String pbCoreTitleType;
+
+    private String currentPath = "";
+    private StringBuilder capturedCharacters = new StringBuilder();
+
+    private ExtractedPreservicaValues extractedPreservicaValues;
+
+    public LegacyElementsExtractionHandler(String recordId) {
+        extractedPreservicaValues = new ExtractedPreservicaValues();
+        extractedPreservicaValues.setValue(ExtractedPreservicaValues.RECORD_ID_KEY, recordId);
+    }
+
+    /**
+     * Get all values extracted from the input XML as a {@link ExtractedPreservicaValues}-object.
+     */
+    public ExtractedPreservicaValues getDataValues() {
+        return extractedPreservicaValues;
+    }
+
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        String elementName = stripPrefix(qName);
+        // Update the current path
+        currentPath += "/" + elementName;
+        capturedCharacters.setLength(0);
+
+        if (!insideMetadata && METADATA_PATH.equals(currentPath)) {
+            insideMetadata = true;
+            metadataType = attributes.getValue("schemaUri");
+        }
+
+        if (PBCORE_TITLE_PATH.equals(currentPath)) {
+            inPbCoreTitle = true;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+
+        if (insideMetadata) {
+            if ("http://www.pbcore.org/PBCore/PBCoreNamespace.html".equals(metadataType)) {
+                if (PBCORE_EXTRACT_PATHS.containsKey(currentPath)) {
+                    String key = PBCORE_EXTRACT_PATHS.get(currentPath);
+                    if (ExtractedPreservicaValues.STARTTIME_KEY.equals(key) ||
+                            ExtractedPreservicaValues.ENDTIME_KEY.equals(key)) {
+                        String cleanedTime = DataCleanup.standardizeDateTimeToUtc(capturedCharacters.toString().trim());
+                        extractedPreservicaValues.setValue(key, cleanedTime);
+                    } else {
+                        extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                    }
+                }
+                if (PBCORE_TITLE_TYPE_PATH.equals(currentPath)) {
+                    pbCoreTitleType = capturedCharacters.toString().trim();
+                }
+                if (PBCORE_TITLE_VALUE_PATH.equals(currentPath)) {
+                    pbCoreTitleValue = capturedCharacters.toString().trim();
+                }
+            }
+            if ("http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata".equals(metadataType) && DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.containsKey(currentPath)) {
+                // We only want to map dr_archive_supplementary_rights_metadata fragment if it has values
+                if (!StringUtils.isBlank(capturedCharacters.toString().trim())) {
+                    hasDrArchiveSupplementaryRightsMetadata = true;
+                    String key = DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.get(currentPath);
+                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                }
+            }
+            if ("http://id.kb.dk/schemas/supplementary_tvmeter_metadata".equals(metadataType) && TVMETER_EXTRACT_PATHS.containsKey(currentPath)) {
+                if (!hasDrArchiveSupplementaryRightsMetadata && !hasNielsenData) {
+                    hasTvMetadata = true;
+                    String key = TVMETER_EXTRACT_PATHS.get(currentPath);
+                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                }
+            }
+            if ("http://id.kb.dk/schemas/supplementary_nielsen_metadata".equals(metadataType) && NIELSEN_EXTRACT_PATHS.containsKey(currentPath)) {
+                if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata) {
+                    hasNielsenData = true;
+                    String key = NIELSEN_EXTRACT_PATHS.get(currentPath);
+                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                }
+            }
+             if ("http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata".equals(metadataType) && FUZZY_EXTRACT_PATHS.containsKey(currentPath)) {
+                if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata && !hasNielsenData) {
+                    hasFuzzyMetadata = true;
+                    String key = FUZZY_EXTRACT_PATHS.get(currentPath);
+                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                }
+             }
+
+            if (PBCORE_TITLE_PATH.equals(currentPath)) {
+                switch (pbCoreTitleType) {
+                    case "titel" :
+                        extractedPreservicaValues.setValue(ExtractedPreservicaValues.TITLE_KEY, pbCoreTitleValue);
+                        break;
+                    case "originaltitel" :
+                        extractedPreservicaValues.setValue(ExtractedPreservicaValues.ORIGINAL_TITLE_KEY, pbCoreTitleValue);
+                        break;
+                }
+                inPbCoreTitle = false;
+            }
+
+            if (METADATA_PATH.equals(currentPath)) {
+                insideMetadata = false;
+                metadataType = null;
+            }
+        }
+
+        // Update the current path to continue traversal
+        currentPath = currentPath.substring(0, currentPath.lastIndexOf('/'));
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (shouldValueBeCaptured()) {
+            capturedCharacters.append(new String(ch, start, length));
+        }
+    }
+
+    private boolean shouldValueBeCaptured() {
+        if (insideMetadata) {
+            switch (metadataType) {
+                case "http://www.pbcore.org/PBCore/PBCoreNamespace.html":
+                    return PBCORE_EXTRACT_PATHS.containsKey(currentPath) ||
+                                    PBCORE_TITLE_TYPE_PATH.equals(currentPath) ||
+                                    PBCORE_TITLE_VALUE_PATH.equals(currentPath);
+                case "http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata":
+                    return DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.containsKey(currentPath);
+                case "http://id.kb.dk/schemas/supplementary_tvmeter_metadata":
+                    return TVMETER_EXTRACT_PATHS.containsKey(currentPath);
+                case "http://id.kb.dk/schemas/supplementary_nielsen_metadata":
+                    return NIELSEN_EXTRACT_PATHS.containsKey(currentPath);
+                case "http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata":
+                    return FUZZY_EXTRACT_PATHS.containsKey(currentPath);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ignore namespace prefixes while traversing.
+     */
+    private String stripPrefix(String qName) {
+        int colonIndex = qName.indexOf(':');
+        if (colonIndex != -1) {
+            return qName.substring(colonIndex + 1);
+        }
+        return qName;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.benchmark;
+
+import dk.kb.present.util.ExtractedPreservicaValues;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ExtractedPreservicaValues#extractValuesFromPreservicaContent(String, String)} with the previous
+ * implementation ({@link LegacyElementsExtractionHandler} with a new parser per record), for synthetic Preservica
+ * records of increasing size. Run with the GC profiler to get allocation per record:
+ * <pre>
+ * mvn -Pbenchmark -DskipTests verify -Djmh.args="PreservicaExtractionBenchmark -prof gc"
+ * </pre>
+ * The records have the structure of Preservica 7 records with PBCore and Nielsen metadata. Size is controlled by the
+ * number of elements that are not extracted: Representations before the metadata and descriptions in the PBCore
+ * metadata, as seen in large records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreservicaExtractionBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int fillerElements;
+
+    private String record;
+
+    @Setup
+    public void setup() {
+        record = createRecord(fillerElements);
+    }
+
+    @Benchmark
+    public ExtractedPreservicaValues current() throws Exception {
+        return ExtractedPreservicaValues.extractValuesFromPreservicaContent(record, "ds.tv:benchmark");
+    }
+
+    @Benchmark
+    public ExtractedPreservicaValues legacy() throws Exception {
+        try (InputStream xml = IOUtils.toInputStream(record, StandardCharsets.UTF_8)) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(false);
+            SAXParser saxParser = factory.newSAXParser();
+
+            LegacyElementsExtractionHandler handler = new LegacyElementsExtractionHandler("ds.tv:benchmark");
+            saxParser.parse(xml, handler);
+
+            return handler.getDataValues();
+        }
+    }
+
+    /**
+     * Create a Preservica record with the given number of elements that are not extracted.
+     */
+    static String createRecord(int fillerElements) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<xip:XIP xmlns:xip=\"http://preservica.com/XIP/v7.0\">\n")
+                .append("  <xip:InformationObject><xip:Ref>benchmark</xip:Ref><xip:Title>Benchmark</xip:Title>")
+                .append("</xip:InformationObject>\n");
+        int representations = fillerElements / 2;
+        for (int i = 0 ; i < representations / 2 ; i++) {
+            sb.append("  <xip:Representation><xip:Name>Preservation-").append(i).append("</xip:Name></xip:Representation>\n");
+        }
+        sb.append("  <xip:Metadata schemaUri=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n")
+                .append("    <xip:Ref>pbcore</xip:Ref>\n")
+                .append("    <xip:Content>\n")
+                .append("      <PBCoreDescriptionDocument xmlns=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n")
+                .append("        <pbcoreTitle><title>Benchmark</title><titleType>titel</titleType></pbcoreTitle>\n")
+                .append("        <pbcoreTitle><title>Original benchmark</title><titleType>originaltitel</titleType>")
+                .append("</pbcoreTitle>\n");
+        for (int i = 0 ; i < (fillerElements - representations) / 2 ; i++) {
+            sb.append("        <pbcoreDescription><description>Description number ").append(i)
+                    .append(" with some text that is not extracted</description></pbcoreDescription>\n");
+        }
+        sb.append("        <pbcoreInstantiation>\n")
+                .append("          <pbcoreDateAvailable>\n")
+                .append("            <dateAvailableStart>1987-05-04T16:45:00+02:00</dateAvailableStart>\n")
+                .append("            <dateAvailableEnd>1987-05-04T18:45:00+02:00</dateAvailableEnd>\n")
+                .append("          </pbcoreDateAvailable>\n")
+                .append("        </pbcoreInstantiation>\n")
+                .append("      </PBCoreDescriptionDocument>\n")
+                .append("    </xip:Content>\n")
+                .append("  </xip:Metadata>\n")
+                .append("  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_nielsen_metadata\">\n")
+                .append("    <xip:Content><record><source><nielsen>\n")
+                .append("      <form>1100</form><typology>2200</typology><origin>3300</origin>\n")
+                .append("      <origincountry>4400</origincountry><purpose>5500</purpose>\n")
+                .append("      <internalidcode>12345678900</internalidcode>\n")
+                .append("    </nielsen></source></record></xip:Content>\n")
+                .append("  </xip:Metadata>\n")
+                .append("</xip:XIP>\n");
+        return sb.toString();
+    }
+}
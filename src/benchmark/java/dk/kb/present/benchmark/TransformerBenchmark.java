@@ -0,0 +1,174 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.benchmark;
+
+import dk.kb.present.transform.ImageRightsExtractor;
+import dk.kb.present.transform.XSLTSolrFromSchemaTransformer;
+import dk.kb.present.transform.XSLTTransformer;
+import dk.kb.present.util.ExtractedPreservicaValues;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the individual building blocks of the views, with one operation being the processing of one record.
+ * Run with the GC profiler to get allocation per record.
+ * <p>
+ * The input for {@link XSLTSolrFromSchemaTransformer} is the schema.org JSON produced by {@code mods2schemaorg.xsl}
+ * and {@code preservica2schemaorg.xsl} from the sample records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformerBenchmark {
+    public static final String MODS2SCHEMAORG = "xslt/mods2schemaorg.xsl";
+    public static final String PRESERVICA2SCHEMAORG = "xslt/preservica2schemaorg.xsl";
+    public static final String SCHEMAORG2SOLR = "xslt/schemaorg2solr.xsl";
+
+    private List<String> mods;
+    private List<String> preservica;
+    private List<String> modsSchemaOrg;
+    private List<String> preservicaSchemaOrg;
+
+    private XSLTTransformer mods2schemaorg;
+    private XSLTTransformer preservica2schemaorg;
+    private XSLTSolrFromSchemaTransformer schemaorg2solr;
+    private ImageRightsExtractor imageRights;
+
+    private int nextMods = 0;
+    private int nextPreservica = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkCorpus.initialize();
+        mods = BenchmarkCorpus.getModsContent();
+        // Preservica records are only available after running 'kb init'. Without them, the MODS benchmarks still work
+        preservica = BenchmarkCorpus.hasPreservicaContent() ? BenchmarkCorpus.getPreservicaContent() : List.of();
+
+        mods2schemaorg = new XSLTTransformer(MODS2SCHEMAORG, Map.of("imageserver", "https://example.com/imageserver/"));
+        preservica2schemaorg = new XSLTTransformer(PRESERVICA2SCHEMAORG, null);
+        schemaorg2solr = new XSLTSolrFromSchemaTransformer(SCHEMAORG2SOLR, null);
+        imageRights = new ImageRightsExtractor();
+
+        modsSchemaOrg = new ArrayList<>(mods.size());
+        for (int i = 0 ; i < mods.size() ; i++) {
+            Map<String, String> metadata = modsMetadata(i);
+            imageRights.apply(mods.get(i), metadata);
+            modsSchemaOrg.add(mods2schemaorg.apply(mods.get(i), metadata));
+        }
+        preservicaSchemaOrg = new ArrayList<>(preservica.size());
+        for (int i = 0 ; i < preservica.size() ; i++) {
+            preservicaSchemaOrg.add(preservica2schemaorg.apply(preservica.get(i), preservicaMetadata(i)));
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> imageRightsExtractor() {
+        int index = nextMods();
+        Map<String, String> metadata = modsMetadata(index);
+        imageRights.apply(mods.get(index), metadata);
+        return metadata;
+    }
+
+    @Benchmark
+    public String mods2schemaorg() {
+        int index = nextMods();
+        Map<String, String> metadata = modsMetadata(index);
+        imageRights.apply(mods.get(index), metadata);
+        return mods2schemaorg.apply(mods.get(index), metadata);
+    }
+
+    @Benchmark
+    public String modsSchemaorg2solr() {
+        int index = nextMods();
+        return schemaorg2solr.apply(modsSchemaOrg.get(index), modsMetadata(index));
+    }
+
+    @Benchmark
+    public ExtractedPreservicaValues extractedPreservicaValues() throws Exception {
+        int index = nextPreservica();
+        return ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                preservica.get(index), "ds.radio:benchmark" + index);
+    }
+
+    @Benchmark
+    public String preservica2schemaorg() {
+        int index = nextPreservica();
+        return preservica2schemaorg.apply(preservica.get(index), preservicaMetadata(index));
+    }
+
+    @Benchmark
+    public String preservicaSchemaorg2solr() {
+        int index = nextPreservica();
+        return schemaorg2solr.apply(preservicaSchemaOrg.get(index), preservicaMetadata(index));
+    }
+
+    private int nextMods() {
+        int index = nextMods;
+        nextMods = nextMods == mods.size() - 1 ? 0 : nextMods + 1;
+        return index;
+    }
+
+    private int nextPreservica() {
+        if (preservica.isEmpty()) {
+            throw new IllegalStateException("No Preservica sample records available. Run 'kb init'");
+        }
+        int index = nextPreservica;
+        nextPreservica = nextPreservica == preservica.size() - 1 ? 0 : nextPreservica + 1;
+        return index;
+    }
+
+    private static Map<String, String> modsMetadata(int index) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("recordID", "ds.samlingsbilleder:benchmark" + index);
+        metadata.put("origin", "ds.samlingsbilleder");
+        metadata.put("mTime", "1701261949625000");
+        return metadata;
+    }
+
+    /**
+     * Metadata as produced by the DR strategy in {@link dk.kb.present.View}, with fixed rights.
+     */
+    private static Map<String, String> preservicaMetadata(int index) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("recordID", "ds.radio:benchmark" + index);
+        metadata.put("origin", "ds.radio");
+        metadata.put("mTime", "1701261949625000");
+        metadata.put("startTime", "1987-05-04T14:45:00Z");
+        metadata.put("endTime", "1987-05-04T16:45:00Z");
+        metadata.put("holdbackDate", "2000-01-01T00:00:00Z");
+        metadata.put("holdbackPurposeName", "Benchmark");
+        metadata.put("productionCodeAllowed", "true");
+        metadata.put("platform", "DRARKIV");
+        metadata.put("has_transcription", "false");
+        return metadata;
+    }
+}
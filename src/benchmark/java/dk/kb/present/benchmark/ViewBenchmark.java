@@ -0,0 +1,75 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.benchmark;
+
+import dk.kb.present.View;
+import dk.kb.storage.model.v1.DsRecordDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the views configured in {@code ds-present-kb-origins.yaml}, with one operation being the
+ * transformation of one record. Run with the GC profiler to get allocation per record.
+ * <p>
+ * The Preservica origins share their views, so only {@code ds.radio} is benchmarked for Preservica and
+ * {@code ds.samlingsbilleder} for MODS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewBenchmark {
+
+    /**
+     * {@code origin/view}.
+     */
+    @Param({"ds.radio/raw", "ds.radio/JSON-LD", "ds.radio/SolrJSON",
+            "ds.samlingsbilleder/raw", "ds.samlingsbilleder/MODS", "ds.samlingsbilleder/JSON-LD",
+            "ds.samlingsbilleder/SolrJSON"})
+    public String originView;
+
+    private View view;
+    private List<DsRecordDto> records;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] tokens = originView.split("/", 2);
+        view = BenchmarkCorpus.getView(tokens[0], tokens[1]);
+        records = BenchmarkCorpus.getRecords(tokens[0]);
+    }
+
+    @Benchmark
+    public String transform() {
+        DsRecordDto record = records.get(next);
+        next = next == records.size() - 1 ? 0 : next + 1;
+        return view.apply(record);
+    }
+}
@@ -18,6 +18,10 @@ import dk.kb.present.config.ServiceConfig;
 import dk.kb.present.model.v1.FormatDto;
 import dk.kb.present.storage.Storage;
 import dk.kb.present.transform.RuntimeTransformerException;
+import dk.kb.present.transform.XSLTProfile;
+import dk.kb.present.util.AdaptiveBatchSizer;
+import dk.kb.present.util.CallerToken;
+import dk.kb.present.util.PrefetchStage;
 import dk.kb.util.webservice.stream.ErrorList;
 import dk.kb.util.webservice.stream.ErrorRecord;
 import dk.kb.storage.model.v1.DsRecordDto;
@@ -25,7 +29,6 @@ import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
 import dk.kb.storage.model.v1.TranscriptionDto;
 import dk.kb.util.Timing;
-import dk.kb.util.other.ExtractionUtils;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
@@ -36,10 +39,16 @@ import dk.kb.util.yaml.YAML;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
@@ -62,11 +71,15 @@ public class DSOrigin {
     private static final String ORIGIN_KEY = "origin";
     private static final String VIEWS_KEY = "views";
     private static final String RECORDREQUESTTYPE_KEY = "recordRequestType";
+    private static final String TRANSFORM_THREADS_KEY = "transformThreads";
+    private static final int DEFAULT_TRANSFORM_THREADS = 1;
 
     // General properties
     public static final String STOP_ON_ERROR_KEY = "records.errorHandling.stop";
-
-    private static final int LICENSE_BATCH_SIZE = 500;
+    public static final String PIPELINE_LOOKAHEAD_KEY = "records.pipeline.lookahead";
+    public static final String PIPELINE_IDLE_TIMEOUT_KEY = "records.pipeline.idleTimeout";
+    private static final int DEFAULT_PIPELINE_LOOKAHEAD = 1;
+    private static final int DEFAULT_PIPELINE_IDLE_TIMEOUT = 600; // Seconds
 
     /**
      * The ID of the origin, primarily used for debugging and configuration.
@@ -118,6 +131,36 @@ public class DSOrigin {
      */
     private final boolean stopOnError;
 
+    /**
+     * The number of threads used for transforming records during records-export. If 1, records are transformed
+     * sequentially by the thread delivering the records. If more than 1, the transformations are performed in
+     * parallel, with the records delivered in the original order. See {@link OrderedParallelView}.
+     */
+    private final int transformThreads;
+
+    /**
+     * Executor for parallel transformations. Created on first use.
+     */
+    private ExecutorService transformExecutor = null;
+
+    /**
+     * The number of batches that are fetched and access checked ahead of the transformation stage during
+     * records-export. If 0, the stages are performed serially by the thread delivering the records.
+     */
+    private final int pipelineLookahead;
+
+    /**
+     * If the receiver of a records-export has not requested records for this amount of milliseconds, background
+     * stages are stopped.
+     */
+    private final long pipelineIdleTimeoutMS;
+
+    /**
+     * Decides the number of records in the batches for access filtering and transformation during records-export,
+     * from the observed latency of the access filter and the size of the records.
+     */
+    private final AdaptiveBatchSizer batchSizer;
+
     /**
      * Create an origin based on the given conf. The storageHandler is expected to be initialized and should contain
      * the storage specified for the origin.
@@ -136,6 +179,7 @@ public class DSOrigin {
             description = conf.getString(DESCRIPTION_KEY, null);
             recordRequestType = RecordTypeDto.valueOf(conf.getString(RECORDREQUESTTYPE_KEY));
             storage = storageHandler.getStorage(conf.getString(STORAGE_KEY, null)); // null means default storage
+            transformThreads = Math.max(1, conf.getInteger(TRANSFORM_THREADS_KEY, DEFAULT_TRANSFORM_THREADS));
 
             views = conf.getYAMLList(VIEWS_KEY)
                     .stream()
@@ -144,6 +188,11 @@ public class DSOrigin {
 
             // Note: stopOnError is set at the outer level, not specifically for each origin
             stopOnError = ServiceConfig.getConfig().getBoolean(STOP_ON_ERROR_KEY, true);
+            pipelineLookahead = ServiceConfig.getConfig().getInteger(
+                    PIPELINE_LOOKAHEAD_KEY, DEFAULT_PIPELINE_LOOKAHEAD);
+            pipelineIdleTimeoutMS = 1000L * ServiceConfig.getConfig().getInteger(
+                    PIPELINE_IDLE_TIMEOUT_KEY, DEFAULT_PIPELINE_IDLE_TIMEOUT);
+            batchSizer = AdaptiveBatchSizer.create("records_" + id);
         } catch (NotFoundException e) {
             throw new IllegalArgumentException(
                     "Mandatory property '" + e.getPath() + "' not present for Origin '" + id + "'");
@@ -153,24 +202,52 @@ public class DSOrigin {
 
     /**
      * Retrieve the record with the given id and transform it to the given format before delivery.
+     * Transformed records are cached, see {@link RecordCache}.
      * @param recordID an ID for a record.
      * @param format the format of the record. See {@link #getViews()} for available formats.
      * @return the record with the given id in the given format.
      * @throws ServiceException if the record could not be retrieved or transformed.
      */
     public String getRecord(String recordID, FormatDto format) throws ServiceException {
+        return getRecord(recordID, format, null);
+    }
+
+    /**
+     * Transform the record with the given id to the given format before delivery, using a retrieval of the record
+     * that has been started in advance, if available.
+     * Transformed records are cached, see {@link RecordCache}.
+     * @param recordID an ID for a record.
+     * @param format the format of the record. See {@link #getViews()} for available formats.
+     * @param retrieval the retrieval of the record from {@link #startRetrieval(String)} or null if the record should
+     *                  be retrieved here.
+     * @return the record with the given id in the given format.
+     * @throws ServiceException if the record could not be retrieved or transformed.
+     */
+    public String getRecord(String recordID, FormatDto format, SpeculativeRetrieval.Retrieval retrieval)
+            throws ServiceException {
         Timing timing = Stats.getViewTimer(id, format.getValue().toLowerCase(Locale.ROOT));
 
-        // Timing is both overall and with sub-timings for retrieval and transformation
+        // Timing is both overall and with sub-timings for retrieval and transformation.
+        // For retrievals started in advance, only the remaining wait is measured
         return timing.measure(() -> {
             DsRecordDto record = timing.getChild("retrieve").measure(() ->
-                    storage.getDSRecord(recordID));
+                    retrieval == null ? storage.getDSRecord(recordID) : retrieval.get());
+            View view = getView(format);
             return timing.getChild("transform").measure(() ->
-                    getView(format).apply(record));
+                    RecordCache.get(id, record, view, () -> view.apply(record)));
         });
     }
 
-    
+    /**
+     * Start retrieval of the record with the given ID from storage in the background, before access to the record
+     * has been checked. See {@link SpeculativeRetrieval}.
+     * @param recordID an ID for a record.
+     * @return the retrieval in progress or null if speculative retrieval is disabled or not possible right now.
+     */
+    public SpeculativeRetrieval.Retrieval startRetrieval(String recordID) {
+        return SpeculativeRetrieval.startIfEnabled(recordID, storage::getDSRecord);
+    }
+
     /**
      * Retrieve a record with the given ID in ds-storage record format.
      * Storages that are not {@link dk.kb.present.storage.DSStorage} will deliver best-effort {@link DsRecordDto}s,
@@ -202,8 +279,11 @@ public class DSOrigin {
      * <p>
      * The logic is complicated by the need to check for access to the IDs:
      * The raw stream of records is split into batches in order to lower the amount of external calls to ds-license.
-     * The {@code flatMap(accessFilter)} processes such a batch (a list of {@code DsRecordDto}s) and flattens the
-     * result to a regular stream of {@code DsRecordDto}s.
+     * The {@code accessFilter} processes such a batch (a list of {@code DsRecordDto}s), after which the allowed
+     * records in the batch are transformed using {@link View#forBatch(List)} and flattened to a regular stream of
+     * {@code DsRecordDto}s. If {@code transformThreads} is configured for the origin, the records in each batch are
+     * transformed in parallel, preserving the order of the records. Retrieval and access filtering of the following
+     * batches are performed in the background while a batch is being transformed.
      * @param mTime        point in time (epoch * 1000) for the records to deliver, exclusive.
      * @param maxRecords   the maximum number of records to deliver. -1 means no limit.
      * @param format       the format of the record. See {@link #getViews()} for available formats.
@@ -221,12 +301,7 @@ public class DSOrigin {
             // splitToLists creates new streams so this cannot be a single long stream chain
             ContinuationStream<DsRecordDto, Long> allRecords =
                     storage.getDSRecordsByRecordTypeLocalTree(origin, recordRequestType, mTime, maxRecords);
-            Stream<DsRecordDto> filteredRecords =  ExtractionUtils.splitToLists(allRecords, LICENSE_BATCH_SIZE)
-                    // Apply access filter
-                    .flatMap(accessFilter)
-                    // Transform records.
-                    .map(safeView(format, view, stopOnError(), errorList))
-                    .filter(Objects::nonNull);
+            Stream<DsRecordDto> filteredRecords = transformRecords(allRecords, format, view, accessFilter, errorList);
 
             return new ContinuationStream<>(filteredRecords, allRecords.getContinuationToken(), allRecords.hasMore(), allRecords.getRecordCount());
         } catch (Exception e) {
@@ -245,8 +320,11 @@ public class DSOrigin {
      * <p>
      * The logic is complicated by the need to check for access to the IDs:
      * The raw stream of records is split into batches in order to lower the amount of external calls to ds-license.
-     * The {@code flatMap(accessFilter)} processes such a batch (a list of {@code DsRecordDto}s) and flattens the
-     * result to a regular stream of {@code DsRecordDto}s.
+     * The {@code accessFilter} processes such a batch (a list of {@code DsRecordDto}s), after which the allowed
+     * records in the batch are transformed using {@link View#forBatch(List)} and flattened to a regular stream of
+     * {@code DsRecordDto}s. If {@code transformThreads} is configured for the origin, the records in each batch are
+     * transformed in parallel, preserving the order of the records. Retrieval and access filtering of the following
+     * batches are performed in the background while a batch is being transformed.
      * @param mTime        point in time (epoch * 1000) for the records to deliver, exclusive.
      * @param maxRecords   the maximum number of records to deliver. -1 means no limit.
      * @param format       the format of the record. See {@link #getViews()} for available formats.
@@ -265,8 +343,11 @@ public class DSOrigin {
      * <p>
      * The logic is complicated by the need to check for access to the IDs:
      * The raw stream of records is split into batches in order to lower the amount of external calls to ds-license.
-     * The {@code flatMap(accessFilter)} processes such a batch (a list of {@code DsRecordDto}s) and flattens the
-     * result to a regular stream of {@code DsRecordDto}s.
+     * The {@code accessFilter} processes such a batch (a list of {@code DsRecordDto}s), after which the allowed
+     * records in the batch are transformed using {@link View#forBatch(List)} and flattened to a regular stream of
+     * {@code DsRecordDto}s. If {@code transformThreads} is configured for the origin, the records in each batch are
+     * transformed in parallel, preserving the order of the records. Retrieval and access filtering of the following
+     * batches are performed in the background while a batch is being transformed.
      * @param mTime  starting point in time (epoch * 1000) for the records to deliver, exclusive.
      * @param maxRecords the maximum number of records to deliver. -1 means no limit.
      * @param format the format of the record. See {@link #getViews()} for available formats.
@@ -282,12 +363,8 @@ public class DSOrigin {
                 origin, mTime, maxRecords);
         try {
             ContinuationStream<DsRecordDto, Long> allRecords = storage.getDSRecords(origin, mTime, maxRecords);
-            Stream<DsRecordDto> filteredRecords = ExtractionUtils.splitToLists(allRecords, LICENSE_BATCH_SIZE)
-                    // Apply license filter
-                    .flatMap(accessFilter)
-                    // Transform records. No errorList is provided.
-                    .map(safeView(format, view, stopOnError(), null))
-                    .filter(Objects::nonNull);
+            // No errorList is provided
+            Stream<DsRecordDto> filteredRecords = transformRecords(allRecords, format, view, accessFilter, null);
 
             return new ContinuationStream<>(filteredRecords, allRecords.getContinuationToken(), allRecords.hasMore());
         } catch (Exception e) {
@@ -298,16 +375,211 @@ public class DSOrigin {
         }
     }
 
+    /**
+     * Retrieve the first records from storage, without access checks or transformation. Used for warm-up, see
+     * {@link WarmUp}.
+     * @param maxRecords the maximum number of records to retrieve.
+     * @return up to {@code maxRecords} records from the origin.
+     */
+    public List<DsRecordDto> getSampleRecords(long maxRecords) {
+        try (ContinuationStream<DsRecordDto, Long> records =
+                     storage.getDSRecordsByRecordTypeLocalTree(origin, recordRequestType, 0L, maxRecords)) {
+            return records.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Transform records from storage with a profiling version of the view for the given format and report the time
+     * spent in the templates and functions of the XSLT stylesheets for the view. See {@link XSLTProfile}.
+     * <p>
+     * Records are retrieved and transformed one at a time, bypassing access checks and caching. This is intended for
+     * administrative use when locating XSLT hot spots and does not affect normal transformations.
+     * @param mTime         point in time (epoch * 1000) for the records to profile, exclusive.
+     * @param maxRecords    the maximum number of records to profile.
+     * @param format        the format of the records, which determines the view to profile.
+     * @param maxComponents the maximum number of templates and functions to list in the report.
+     * @return a human readable report with templates and functions ordered by net time spent, highest first.
+     * @throws ServiceException if the records could not be retrieved or the view could not be profiled.
+     */
+    public String profileView(long mTime, long maxRecords, FormatDto format, int maxComponents) {
+        View view = getView(format);
+        XSLTProfile profile = new XSLTProfile();
+        View profilingView;
+        try {
+            profilingView = view.forProfiling(profile);
+        } catch (IOException e) {
+            log.warn("Unable to create profiling view for view '{}' for origin '{}'", view.getId(), id, e);
+            throw new InternalServiceException(
+                    "Unable to create profiling view for view '" + view.getId() + "' for origin '" + id + "'");
+        }
+
+        long startNS = System.nanoTime();
+        int transformed = 0;
+        int failed = 0;
+        try (ContinuationStream<DsRecordDto, Long> records =
+                     storage.getDSRecordsByRecordTypeLocalTree(origin, recordRequestType, mTime, maxRecords)) {
+            Iterator<DsRecordDto> iterator = records.iterator();
+            while (iterator.hasNext()) {
+                DsRecordDto record = iterator.next();
+                try {
+                    profilingView.apply(record);
+                    transformed++;
+                } catch (Exception e) {
+                    log.debug("Profiling of record '{}' with view '{}' failed", record.getId(), view.getId(), e);
+                    failed++;
+                }
+            }
+        }
+        long spentMS = (System.nanoTime() - startNS) / 1000000;
+        log.info("Profiled view '{}' for origin '{}' with {} records ({} failed) in {} ms",
+                 view.getId(), id, transformed, failed, spentMS);
+        return String.format(Locale.ROOT,
+                             "Profile for view '%s' for origin '%s': %d records transformed, %d failed, " +
+                             "%d XSLT transformations, %d ms including retrieval%n%n",
+                             view.getId(), id, transformed, failed, profile.getTransformations(), spentMS) +
+               profile.getReport(maxComponents);
+    }
+
+    /**
+     * Split the given records into batches, filter them using {@code accessFilter} and transform them using
+     * {@code view}.
+     * <p>
+     * This is performed as a pipeline of stages: Retrieval of records, access filtering with preparation of the
+     * batch by the view (e.g. rights calculation) and transformation. Retrieval and access filtering are performed by
+     * background threads, {@link #pipelineLookahead} batches ahead of the transformation, which is performed by
+     * the thread consuming the returned stream. The time spent in the stages is tracked by
+     * {@link Stats#getRecordsStageTimer(String, String, String)}, where {@code stall} is the time the transformation
+     * stage waits for batches. {@code fetch} and {@code stall} are only tracked when the lookahead is above 0.
+     * {@code transform} is the time spent transforming each record, measured by the thread performing the
+     * transformation, so that it is also correct when records are transformed in parallel.
+     * <p>
+     * The size of the batches is adjusted by {@link #batchSizer} from the time spent by {@code accessFilter}.
+     * @param records      the records to transform.
+     * @param format       the format of the records.
+     * @param view         the view used for transformation.
+     * @param accessFilter filters which records should be delivered.
+     * @param errorList    if errorList is not null and {@link #stopOnError} is false, then all records failing the
+     *                     transformation are added to this list.
+     * @return a stream of transformed records.
+     */
+    private Stream<DsRecordDto> transformRecords(
+            Stream<DsRecordDto> records, FormatDto format, View view,
+            Function<List<DsRecordDto>, Stream<DsRecordDto>> accessFilter, ErrorList errorList) {
+        Timing fetchTimer = Stats.getRecordsStageTimer(id, "fetch", "batches");
+        Timing accessTimer = Stats.getRecordsStageTimer(id, "access", "batches");
+        Timing prepareTimer = Stats.getRecordsStageTimer(id, "prepare", "batches");
+        Timing stallTimer = Stats.getRecordsStageTimer(id, "stall", "batches");
+        Timing transformTimer = Stats.getRecordsStageTimer(id, "transform", "records");
+
+        Stream<List<DsRecordDto>> batches = PrefetchStage.prefetch(
+                batchSizer.split(records),
+                pipelineLookahead, "fetch_" + id, fetchTimer, null, pipelineIdleTimeoutMS);
+        // Access filtering, batch preparation and transformation can call ds-license and ds-storage from other
+        // threads than the one processing the request, so the token of the caller is captured here
+        String callerToken = CallerToken.get();
+        Stream<PreparedBatch> prepared = PrefetchStage.prefetch(
+                batches
+                        // Apply access filter
+                        .map(batch -> CallerToken.withToken(callerToken, () -> accessTimer.measure(
+                                () -> batchSizer.measure(
+                                        batch, () -> accessFilter.apply(batch).collect(Collectors.toList())))))
+                        // The view prepares each batch, e.g. by calculating rights for all records
+                        .map(batch -> CallerToken.withToken(callerToken, () -> prepareTimer.measure(
+                                () -> new PreparedBatch(batch, view.forBatch(batch))))),
+                pipelineLookahead, "access_" + id, null, stallTimer, pipelineIdleTimeoutMS);
+
+        // The parallel view for the batch being delivered, so that its transformations can be cancelled on close
+        AtomicReference<OrderedParallelView> current = new AtomicReference<>();
+        return prepared
+                .flatMap(batch -> {
+                    Function<DsRecordDto, String> batchView =
+                            parallelize(batch.records, withToken(callerToken, timed(transformTimer, batch.view)));
+                    Stream<DsRecordDto> transformed =
+                            batch.records.stream().map(safeView(format, batchView, stopOnError(), errorList));
+                    if (batchView instanceof OrderedParallelView) {
+                        OrderedParallelView parallel = (OrderedParallelView) batchView;
+                        current.set(parallel);
+                        transformed = transformed.onClose(parallel::cancelPending);
+                    }
+                    return transformed;
+                })
+                .filter(Objects::nonNull)
+                .onClose(() -> {
+                    OrderedParallelView parallel = current.get();
+                    if (parallel != null) {
+                        parallel.cancelPending();
+                    }
+                });
+    }
+
+    /**
+     * @return a function that calls {@code view} with the given {@link CallerToken}.
+     */
+    private static Function<DsRecordDto, String> withToken(String token, Function<DsRecordDto, String> view) {
+        return record -> CallerToken.withToken(token, () -> view.apply(record));
+    }
+
+    /**
+     * @return a function that measures the time spent by {@code view} using {@code timer}.
+     */
+    private static Function<DsRecordDto, String> timed(Timing timer, Function<DsRecordDto, String> view) {
+        return record -> timer.measure(() -> view.apply(record));
+    }
+
+    /**
+     * A batch of access filtered records, together with the transformation prepared for the batch.
+     */
+    private static class PreparedBatch {
+        final List<DsRecordDto> records;
+        final Function<DsRecordDto, String> view;
+
+        PreparedBatch(List<DsRecordDto> records, Function<DsRecordDto, String> view) {
+            this.records = records;
+            this.view = view;
+        }
+    }
+
+    /**
+     * If {@link #transformThreads} is more than 1, wrap the given view in an {@link OrderedParallelView} for the batch,
+     * so that the records in the batch are transformed in parallel while being delivered in order.
+     * @param batch the records that will be transformed.
+     * @param view  the transformation to use for the records.
+     * @return a transformation for the records in the batch.
+     */
+    private Function<DsRecordDto, String> parallelize(List<DsRecordDto> batch, Function<DsRecordDto, String> view) {
+        if (transformThreads <= 1 || batch.size() < 2) {
+            return view;
+        }
+        // Twice the number of threads keeps all threads busy while the receiver processes delivered records
+        return new OrderedParallelView(batch, view, getTransformExecutor(), transformThreads * 2);
+    }
+
+    /**
+     * @return the executor used for parallel transformations for this origin.
+     */
+    private synchronized ExecutorService getTransformExecutor() {
+        if (transformExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger(0);
+            transformExecutor = Executors.newFixedThreadPool(transformThreads, runnable -> {
+                Thread thread = new Thread(runnable, "transform-" + id + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            log.info("Created executor for transformations for origin '{}' with {} threads", id, transformThreads);
+        }
+        return transformExecutor;
+    }
+
     /**
      * Applies the given view to record
      * @param format which the transformation is transforming to.
-     * @param view to apply to record.
+     * @param view to apply to record, typically a {@link View} or a batch preparation from {@link View#forBatch(List)}.
      * @param stopOnError representing how the program should handle errors. If true, then the program stops, otherwise it continues and handles errors based on the presence of
      *                    an errorList.
      * @param errorList if not null, all failing records are added to the list.
      * @return a transformed record, transformed with input view.
      */
-    private static UnaryOperator<DsRecordDto> safeView(FormatDto format, View view, boolean stopOnError, ErrorList errorList) {
+    private static UnaryOperator<DsRecordDto> safeView(FormatDto format, Function<DsRecordDto, String> view, boolean stopOnError, ErrorList errorList) {
         return record -> {
             try {
                 record.data(view.apply(record));
@@ -413,6 +685,7 @@ public class DSOrigin {
                ", recordtype= " + recordRequestType +
                ", views=" + views +
                ", stopOnError=" + stopOnError +
+               ", transformThreads=" + transformThreads +
                ')';
     }
 
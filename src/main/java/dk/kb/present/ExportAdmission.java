@@ -0,0 +1,392 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.webservice.exception.TooManyRequestsServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Admission control for streaming exports ({@code /records} and {@code /recordsraw}).
+ * <p>
+ * Each export holds a servlet thread, a stream from storage and transformation capacity for its full duration, so
+ * the number of concurrent exports is capped both globally and per origin. An export is also only admitted if the
+ * heap headroom (the fraction of the maximum heap that was not in use after the latest garbage collection) is at
+ * least {@code minHeapHeadroom}.
+ * <p>
+ * Requests that cannot be admitted wait for up to {@code maxWaitMS}, with at most {@code maxQueued} requests
+ * waiting. Requests are admitted in order of arrival, except that a request for an origin that has reached
+ * {@code maxPerOrigin} does not hold back requests for other origins. Requests that still cannot be admitted are rejected with a
+ * {@link TooManyRequestsServiceException}, which tells the caller to retry after {@code retryAfterSeconds}.
+ */
+public class ExportAdmission {
+    private static final Logger log = LoggerFactory.getLogger(ExportAdmission.class);
+
+    private static final String ENABLED_KEY = "records.admission.enabled";
+    private static final boolean DEFAULT_ENABLED = true;
+    private static final String MAX_CONCURRENT_KEY = "records.admission.maxConcurrent";
+    private static final int DEFAULT_MAX_CONCURRENT = 8;
+    private static final String MAX_PER_ORIGIN_KEY = "records.admission.maxPerOrigin";
+    private static final int DEFAULT_MAX_PER_ORIGIN = 4;
+    private static final String MAX_QUEUED_KEY = "records.admission.maxQueued";
+    private static final int DEFAULT_MAX_QUEUED = 16;
+    private static final String MAX_WAIT_KEY = "records.admission.maxWaitMS";
+    private static final long DEFAULT_MAX_WAIT = 10000;
+    private static final String MIN_HEAP_HEADROOM_KEY = "records.admission.minHeapHeadroom";
+    private static final double DEFAULT_MIN_HEAP_HEADROOM = 0.2;
+    private static final String RETRY_AFTER_KEY = "records.admission.retryAfterSeconds";
+    private static final long DEFAULT_RETRY_AFTER = 30;
+
+    // Heap usage is not signalled, so waiting requests re-check the heap with this interval
+    static final long HEAP_RECHECK_MS = 500;
+    private static final MemoryPoolMXBean TENURED_POOL = findTenuredPool();
+
+    private static volatile boolean initialized = false;
+    private static ExportAdmission instance = null;
+
+    private final int maxConcurrent;
+    private final int maxPerOrigin;
+    private final int maxQueued;
+    private final long maxWaitMS;
+    private final double minHeapHeadroom;
+    private final long retryAfterSeconds;
+    private final DoubleSupplier heapHeadroom;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition changed = lock.newCondition();
+    private int active = 0;
+    private int waiting = 0;
+    private final Map<String, Integer> activePerOrigin = new HashMap<>();
+    // Requests being admitted, in order of arrival
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Admit an export for the given origin using the shared admission controller, waiting if needed.
+     * The returned permit must be closed when the export has finished.
+     * @param originID the origin for the export.
+     * @return a permit for the export.
+     * @throws TooManyRequestsServiceException if the export could not be admitted.
+     */
+    public static Permit admitExport(String originID) {
+        ExportAdmission admission = getInstance();
+        return admission == null ? new Permit(null, originID) : admission.admit(originID);
+    }
+
+    /**
+     * @return the state of the shared admission controller in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        ExportAdmission admission = getInstance();
+        return admission == null ? "exportAdmission(disabled)" : admission.toString();
+    }
+
+    /**
+     * @param maxConcurrent     the maximum number of concurrent exports in total.
+     * @param maxPerOrigin      the maximum number of concurrent exports for a single origin.
+     * @param maxQueued         the maximum number of requests waiting to be admitted. Further requests are rejected
+     *                          immediately.
+     * @param maxWaitMS         the maximum time a request waits to be admitted before it is rejected.
+     * @param minHeapHeadroom   exports are only admitted if {@code heapHeadroom} is at least this fraction.
+     *                          0 disables the check.
+     * @param retryAfterSeconds the number of seconds rejected callers are asked to wait before retrying.
+     * @param heapHeadroom      delivers the fraction of the maximum heap that is not in use.
+     */
+    public ExportAdmission(int maxConcurrent, int maxPerOrigin, int maxQueued, long maxWaitMS,
+                           double minHeapHeadroom, long retryAfterSeconds, DoubleSupplier heapHeadroom) {
+        if (maxConcurrent < 1 || maxPerOrigin < 1) {
+            throw new IllegalArgumentException(
+                    "maxConcurrent and maxPerOrigin must be at least 1, but were " + maxConcurrent + " and " +
+                    maxPerOrigin);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerOrigin = maxPerOrigin;
+        this.maxQueued = maxQueued;
+        this.maxWaitMS = maxWaitMS;
+        this.minHeapHeadroom = minHeapHeadroom;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.heapHeadroom = heapHeadroom;
+    }
+
+    /**
+     * Admit an export for the given origin, waiting for up to {@code maxWaitMS} if the limits are reached.
+     * The returned permit must be closed when the export has finished.
+     * @param originID the origin for the export.
+     * @return a permit for the export.
+     * @throws TooManyRequestsServiceException if the export could not be admitted.
+     */
+    public Permit admit(String originID) {
+        long deadlineNS = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMS);
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(originID);
+            queue.addLast(ticket);
+            try {
+                if (!mayStart(ticket)) {
+                    if (waiting >= maxQueued) {
+                        throw reject(originID, waiting + " requests are already waiting");
+                    }
+                    waiting++;
+                    try {
+                        while (!mayStart(ticket)) {
+                            long remainingNS = deadlineNS - System.nanoTime();
+                            if (remainingNS <= 0) {
+                                throw reject(originID, "waited " + maxWaitMS + " ms");
+                            }
+                            changed.awaitNanos(
+                                    Math.min(remainingNS, TimeUnit.MILLISECONDS.toNanos(HEAP_RECHECK_MS)));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw reject(originID, "interrupted while waiting");
+                    } finally {
+                        waiting--;
+                    }
+                }
+            } finally {
+                queue.remove(ticket);
+                if (waiting > 0) {
+                    // Requests that arrived later may have been waiting for this one
+                    changed.signalAll();
+                }
+            }
+            active++;
+            activePerOrigin.merge(originID, 1, Integer::sum);
+            admitted.increment();
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Admitted export for origin '{}'. {}", originID, this);
+        return new Permit(this, originID);
+    }
+
+    /**
+     * Decide if the export for the given ticket may start. To keep the order of arrival, this is only the case if no
+     * request that arrived earlier may start. Must be called while holding {@link #lock}.
+     */
+    private boolean mayStart(Ticket ticket) {
+        if (active >= maxConcurrent || !hasHeapHeadroom()) {
+            return false;
+        }
+        for (Ticket earlier: queue) {
+            if (earlier == ticket) {
+                return mayStartForOrigin(ticket.originID);
+            }
+            if (mayStartForOrigin(earlier.originID)) {
+                return false;
+            }
+        }
+        throw new IllegalStateException("The ticket for origin '" + ticket.originID + "' is not in the queue");
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     * @return true if the number of active exports for the given origin is below the limit.
+     */
+    private boolean mayStartForOrigin(String originID) {
+        return activePerOrigin.getOrDefault(originID, 0) < maxPerOrigin;
+    }
+
+    private boolean hasHeapHeadroom() {
+        return minHeapHeadroom <= 0 || heapHeadroom.getAsDouble() >= minHeapHeadroom;
+    }
+
+    /**
+     * Count and log the rejection. Must be called while holding {@link #lock}.
+     */
+    private TooManyRequestsServiceException reject(String originID, String reason) {
+        rejected.increment();
+        String message = String.format(
+                Locale.ROOT, "Too many concurrent exports to admit export for origin '%s' (%s). " +
+                             "Active exports: %d/%d total, %d/%d for the origin, heap headroom %.2f (minimum %.2f). " +
+                             "Please retry after %d seconds",
+                originID, reason, active, maxConcurrent, activePerOrigin.getOrDefault(originID, 0), maxPerOrigin,
+                heapHeadroom.getAsDouble(), minHeapHeadroom, retryAfterSeconds);
+        log.info(message);
+        return new TooManyRequestsServiceException(message, retryAfterSeconds);
+    }
+
+    private void release(String originID) {
+        lock.lock();
+        try {
+            active--;
+            activePerOrigin.computeIfPresent(originID, (origin, count) -> count == 1 ? null : count - 1);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Released export for origin '{}'. {}", originID, this);
+    }
+
+    /**
+     * @return the number of exports currently running.
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests currently waiting to be admitted.
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Calculate the heap headroom from the occupancy of the tenured heap pool after the latest garbage collection,
+     * so that garbage that has not yet been collected does not count as used. If no tenured pool can be determined,
+     * the current heap usage is used.
+     * @return the fraction of the maximum heap that is not in use.
+     */
+    static double getHeapHeadroom() {
+        if (TENURED_POOL != null) {
+            MemoryUsage afterGC = TENURED_POOL.getCollectionUsage();
+            long max = afterGC.getMax() > 0 ? afterGC.getMax() : Runtime.getRuntime().maxMemory();
+            return 1.0 - (double) afterGC.getUsed() / max;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return 1.0 - (double) used / runtime.maxMemory();
+    }
+
+    /**
+     * Locate the heap pool holding long lived objects, which is the pool that matters for the headroom. This is the
+     * pool named as old or tenured or, for collectors without generations, the largest heap pool.
+     * @return the tenured heap pool or null if no heap pool reports its usage after garbage collection.
+     */
+    private static MemoryPoolMXBean findTenuredPool() {
+        MemoryPoolMXBean tenured = null;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid() || pool.getCollectionUsage() == null) {
+                continue;
+            }
+            String name = pool.getName().toLowerCase(Locale.ROOT);
+            if (name.contains("old") || name.contains("tenured")) {
+                return pool;
+            }
+            if (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax()) {
+                tenured = pool;
+            }
+        }
+        return tenured;
+    }
+
+    /**
+     * Create the shared admission controller if it has not already been created.
+     * @return the admission controller or null if admission control is disabled.
+     */
+    private static ExportAdmission getInstance() {
+        if (!initialized) {
+            synchronized (ExportAdmission.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static ExportAdmission createInstance() {
+        if (!ServiceConfig.getConfig().getBoolean(ENABLED_KEY, DEFAULT_ENABLED)) {
+            log.info("Admission control for exports is disabled");
+            return null;
+        }
+        ExportAdmission admission = new ExportAdmission(
+                ServiceConfig.getConfig().getInteger(MAX_CONCURRENT_KEY, DEFAULT_MAX_CONCURRENT),
+                ServiceConfig.getConfig().getInteger(MAX_PER_ORIGIN_KEY, DEFAULT_MAX_PER_ORIGIN),
+                ServiceConfig.getConfig().getInteger(MAX_QUEUED_KEY, DEFAULT_MAX_QUEUED),
+                ServiceConfig.getConfig().getLong(MAX_WAIT_KEY, DEFAULT_MAX_WAIT),
+                ServiceConfig.getConfig().getDouble(MIN_HEAP_HEADROOM_KEY, DEFAULT_MIN_HEAP_HEADROOM),
+                ServiceConfig.getConfig().getLong(RETRY_AFTER_KEY, DEFAULT_RETRY_AFTER),
+                ExportAdmission::getHeapHeadroom);
+        log.info("Created " + admission);
+        return admission;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format(Locale.ROOT,
+                                 "exportAdmission(active=%d/%d, perOrigin=%s (max %d), waiting=%d/%d, maxWaitMS=%d, " +
+                                 "heapHeadroom=%.2f (min %.2f), admitted=%d, rejected=%d)",
+                                 active, maxConcurrent, activePerOrigin, maxPerOrigin, waiting, maxQueued, maxWaitMS,
+                                 heapHeadroom.getAsDouble(), minHeapHeadroom, admitted.sum(), rejected.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request waiting to be admitted.
+     */
+    private static class Ticket {
+        private final String originID;
+
+        Ticket(String originID) {
+            this.originID = originID;
+        }
+    }
+
+    /**
+     * Represents an admitted export. Closing the permit ends the export. Closing more than once has no effect.
+     */
+    public static class Permit implements AutoCloseable {
+        private final ExportAdmission admission;
+        private final String originID;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Permit(ExportAdmission admission, String originID) {
+            this.admission = admission;
+            this.originID = originID;
+        }
+
+        @Override
+        public void close() {
+            if (admission != null && closed.compareAndSet(false, true)) {
+                admission.release(originID);
+            }
+        }
+    }
+}
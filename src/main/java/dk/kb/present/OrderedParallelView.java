@@ -0,0 +1,140 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Order preserving parallel transformation of a batch of records.
+ * <p>
+ * When the transformation of a record in the batch is requested, transformations for the following records are
+ * started in the background, up to {@code lookahead} records ahead. The result for the requested record is then
+ * awaited and returned, so that the caller sees the same results, in the same order, as with sequential
+ * transformation. Exceptions from the view are thrown when the result for the failing record is requested,
+ * which keeps error handling identical to sequential processing.
+ * <p>
+ * At most {@code lookahead} transformed records are held at any time and no transformations are started before
+ * records are requested, so a slow receiver of the records limits the amount of work done ahead of it.
+ * <p>
+ * Records are expected to be requested in batch order. Records not in the batch are transformed directly
+ * by the calling thread.
+ * <p>
+ * When a transformation fails, the transformations started ahead of it are cancelled and the following records are
+ * transformed on request. The owner of the view should call {@link #cancelPending()} if the delivery of records is
+ * stopped before the end of the batch. Transformations are performed with the {@link CallerToken} of the thread
+ * requesting the records.
+ */
+public class OrderedParallelView implements Function<DsRecordDto, String> {
+    private final List<DsRecordDto> batch;
+    private final Function<DsRecordDto, String> view;
+    private final ExecutorService executor;
+    private final int lookahead;
+
+    private final Map<DsRecordDto, Integer> positions;
+    private final List<Future<String>> results;
+
+    /**
+     * Create a parallel transformer for the given batch.
+     * @param batch     the records to transform.
+     * @param view      the transformation to perform, typically a {@link View} or the result of
+     *                  {@link View#forBatch(List)}. This must be thread safe.
+     * @param executor  the executor for the transformations.
+     * @param lookahead the maximum number of transformations that are started ahead of the requested record,
+     *                  including the requested record.
+     */
+    public OrderedParallelView(List<DsRecordDto> batch, Function<DsRecordDto, String> view,
+                               ExecutorService executor, int lookahead) {
+        this.batch = batch;
+        this.view = view;
+        this.executor = executor;
+        this.lookahead = Math.max(1, lookahead);
+        // Identity based as the map is only used for the exact record objects in the batch
+        positions = new IdentityHashMap<>(batch.size());
+        for (int i = 0 ; i < batch.size() ; i++) {
+            positions.put(batch.get(i), i);
+        }
+        results = new ArrayList<>(batch.size());
+    }
+
+    /**
+     * Transform the given record, starting transformations of the following records in the batch.
+     * @param record a record from the batch.
+     * @return the transformed record content.
+     */
+    @Override
+    public String apply(DsRecordDto record) {
+        Integer position = positions.get(record);
+        if (position == null) {
+            return view.apply(record);
+        }
+        Future<String> result;
+        synchronized (this) {
+            submitUntil(Math.min(batch.size(), position + lookahead));
+            result = results.set(position, null); // Release the result when it is delivered
+        }
+        if (result == null) {
+            // Happens if the record is requested more than once or if pending transformations were cancelled
+            return view.apply(record);
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelPending();
+            throw new InternalServiceException("Interrupted while transforming record '" + record.getId() + "'");
+        } catch (ExecutionException e) {
+            cancelPending();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new InternalServiceException(
+                    "Exception transforming record '" + record.getId() + "'", e.getCause());
+        }
+    }
+
+    /**
+     * Cancel all transformations that have been started but not delivered.
+     */
+    public synchronized void cancelPending() {
+        for (int i = 0 ; i < results.size() ; i++) {
+            Future<String> result = results.set(i, null);
+            if (result != null) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Ensure that transformations have been started for all records in the batch up to, but not including,
+     * the given position.
+     */
+    private void submitUntil(int position) {
+        while (results.size() < position) {
+            DsRecordDto record = batch.get(results.size());
+            results.add(executor.submit(CallerToken.propagate(() -> view.apply(record))::get));
+        }
+    }
+}
@@ -16,6 +16,7 @@ package dk.kb.present;
 
 import dk.kb.present.model.v1.FormatDto;
 import dk.kb.present.storage.Storage;
+import dk.kb.present.transform.StylesheetRegistry;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.NotFoundServiceException;
 import dk.kb.util.yaml.YAML;
@@ -59,6 +60,9 @@ public class OriginHandler {
             throw new RuntimeException(e);
         }
 
+        // Views share stylesheets, so the distinct stylesheets are compiled up front, in parallel, and reused
+        StylesheetRegistry.precompile(StylesheetRegistry.findStylesheets(conf.getList(ORIGINS_KEY)));
+
         storageHandler = new StorageHandler(conf);
         originsByPrefix = conf.getYAMLList(ORIGINS_KEY).stream()
                 .map(originConf -> new DSOrigin(originConf, storageHandler))
@@ -83,6 +87,17 @@ public class OriginHandler {
     }
 
     public String getRecord(String id, FormatDto format) throws NotFoundServiceException {
+        return getOriginForRecord(id).getRecord(id, format);
+    }
+
+    /**
+     * Resolve the origin for a record from the prefix of the record ID.
+     * @param id an ID for a record in any known origin.
+     * @return the origin for the record.
+     * @throws InvalidArgumentServiceException if the ID is malformed.
+     * @throws NotFoundServiceException if there is no origin for the prefix of the ID.
+     */
+    public DSOrigin getOriginForRecord(String id) throws NotFoundServiceException {
         Matcher matcher = recordIDPattern.matcher(id);
         if (!matcher.matches()) {
             throw new InvalidArgumentServiceException(
@@ -94,7 +109,7 @@ public class OriginHandler {
                     "A origin for IDs with prefix '" + matcher.group(1) + "' is not available. " +
                     "Full ID was '" + id + "'. Available origin-prefixess are " + originsByPrefix.keySet());
         }
-        return origin.getRecord(id, format);
+        return origin;
     }
 
     /**
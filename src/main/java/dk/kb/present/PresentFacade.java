@@ -22,6 +22,7 @@ import dk.kb.present.model.v1.ViewDto;
 import dk.kb.present.util.DataCleanup;
 import dk.kb.util.webservice.stream.ErrorList;
 import dk.kb.present.util.SolrDocumentationExtractor;
+import dk.kb.present.webservice.exception.TooManyRequestsServiceException;
 import dk.kb.util.webservice.stream.*;
 import dk.kb.storage.model.v1.DsRecordDto;
 
@@ -38,6 +39,7 @@ import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -53,10 +55,10 @@ public class PresentFacade {
     static FormatDto recordView = FormatDto.RAW; // View used when retrieving the full records
 
     /**
-     * Optional warmUp (initialization) for fail early.
+     * Optional warmUp (initialization) for fail early. Also starts {@link WarmUp} of the views in the background.
      */
     public static void warmUp() {
-        getOriginHandler();
+        WarmUp.start(getOriginHandler());
     }
 
     private static OriginHandler getOriginHandler() {
@@ -79,6 +81,43 @@ public class PresentFacade {
         return getOriginHandler().getRecord(recordID, format);
     }
 
+    /**
+     * Start retrieval of the record with the given ID from storage in the background, so that it overlaps with the
+     * access check for the record. See {@link SpeculativeRetrieval}.
+     * <p>
+     * Problems resolving the origin for the record are not reported here, but by
+     * {@link #getRecord(String, FormatDto, SpeculativeRetrieval.Retrieval)}, so that the access check is performed
+     * first as usual.
+     * @param recordID an ID for a record in any known origin.
+     * @return the retrieval in progress or null if speculative retrieval is disabled or not possible.
+     */
+    public static SpeculativeRetrieval.Retrieval startRetrieval(String recordID) {
+        DSOrigin origin;
+        try {
+            origin = getOriginHandler().getOriginForRecord(recordID);
+        } catch (Exception e) {
+            log.debug("Unable to resolve origin for '{}'. The record will not be retrieved speculatively", recordID);
+            return null;
+        }
+        return origin.startRetrieval(recordID);
+    }
+
+    /**
+     * Derived an origin from the recordID and requests the record from that, with the specified format, using a
+     * retrieval that has been started with {@link #startRetrieval(String)}.
+     * @param recordID an ID for a record in any known origin.
+     * @param format the wanted format (origin specific).
+     * @param retrieval the retrieval of the record or null if the record should be retrieved here.
+     * @return the record in the given format.
+     * @throws NotFoundServiceException if the record or the format was unknown.
+     */
+    public static String getRecord(String recordID, FormatDto format, SpeculativeRetrieval.Retrieval retrieval) {
+        if (retrieval == null) {
+            return getRecord(recordID, format);
+        }
+        return getOriginHandler().getOriginForRecord(recordID).getRecord(recordID, format, retrieval);
+    }
+
     /**
      * @param id ID for an origin.
      * @return the origin with the given ID.
@@ -129,6 +168,7 @@ public class PresentFacade {
      * {@code JSON-LD-LINES}, {@code MODS}, {@code STORAGERECORD} , {@code STORAGERECORD-LINES} and {@code SOLRJSON}.
      * @param accessChecker only IDs evaluating to {@link DsPresentApiServiceImpl.ACCESS#ok} are delivered.
      * @return a stream of serialized records.
+     * @throws TooManyRequestsServiceException if the export could not be admitted, see {@link ExportAdmission}.
      */
     public static StreamingOutput getRecords(
             HttpServletResponse httpServletResponse, String originID, Long mTime, Long maxRecords, FormatDto format,
@@ -136,7 +176,16 @@ public class PresentFacade {
         DSOrigin origin = originHandler.getOrigin(originID);
         Function<List<DsRecordDto>, Stream<DsRecordDto>> accessFilter = validateAccessForRecords(originID, accessChecker, origin);
 
+        return admitted(httpServletResponse, originID, () -> getRecords(
+                httpServletResponse, origin, mTime, maxRecords, format, accessFilter));
+    }
 
+    /**
+     * Deliver streaming output for serialized records from a given origin, after the export has been admitted.
+     */
+    private static StreamingOutput getRecords(
+            HttpServletResponse httpServletResponse, DSOrigin origin, Long mTime, Long maxRecords, FormatDto format,
+            Function<List<DsRecordDto>, Stream<DsRecordDto>> accessFilter) {
         switch (format) {
             case JSON_LD:
                 httpServletResponse.setContentType("application/json");
@@ -171,23 +220,102 @@ public class PresentFacade {
      * @param asJsonLines   boolean value that determines the JSON format of the result. If true the method returns
      *                      JSON Lines. If false normal JSON records are returned.
      * @return a stream of serialized records in raw JSON storage format.
+     * @throws TooManyRequestsServiceException if the export could not be admitted, see {@link ExportAdmission}.
      */
     public static StreamingOutput getRecordsRaw(HttpServletResponse httpServletResponse, String originID, Long mTime, Long maxRecords,
                                                 Function<List<String>, List<String>> accessChecker, Boolean asJsonLines){
         DSOrigin origin = originHandler.getOrigin(originID);
         Function<List<DsRecordDto>, Stream<DsRecordDto>> accessFilter = validateAccessForRecords(originID, accessChecker, origin);
 
-        if (asJsonLines == null){
-            asJsonLines = false;
+        ExportWriterFactory.FORMAT deliveryFormat = Boolean.TRUE.equals(asJsonLines) ?
+                ExportWriterFactory.FORMAT.jsonl :
+                ExportWriterFactory.FORMAT.json;
+
+        return admitted(httpServletResponse, originID, () -> getRecordsFull(
+                origin, mTime, maxRecords, httpServletResponse, deliveryFormat, accessFilter));
+    }
+
+    /**
+     * Admit an export through {@link ExportAdmission} and create it using {@code exporter}. The admission is released
+     * when the returned output has been written or if the export could not be created.
+     * @param httpServletResponse receives the {@code Retry-After} header if the export is rejected.
+     * @param originID the origin for the export.
+     * @param exporter creates the export.
+     * @return the output from {@code exporter}, wrapped so that the admission is released after writing.
+     * @throws TooManyRequestsServiceException if the export could not be admitted.
+     */
+    private static StreamingOutput admitted(
+            HttpServletResponse httpServletResponse, String originID, Supplier<StreamingOutput> exporter) {
+        ExportAdmission.Permit permit;
+        try {
+            permit = ExportAdmission.admitExport(originID);
+        } catch (TooManyRequestsServiceException e) {
+            if (httpServletResponse != null) {
+                httpServletResponse.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+            }
+            throw e;
+        }
+
+        StreamingOutput export;
+        try {
+            export = exporter.get();
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        return output -> {
+            try (permit) {
+                export.write(output);
+            }
+        };
+    }
+
+
+    /**
+     * Profile the XSLT stylesheets of a view for an origin. See {@link DSOrigin#profileView}.
+     * @param originID      the origin to retrieve records from.
+     * @param mTime         only records after this time (Epoch milliseconds) will be profiled.
+     * @param maxRecords    the maximum number of records to profile.
+     * @param format        the format of the records, which determines the view to profile.
+     * @param maxComponents the maximum number of templates and functions to list in the report.
+     * @return a human readable report with templates and functions ordered by net time spent, highest first.
+     * @throws NotFoundServiceException if the origin was not known.
+     */
+    public static String profileView(String originID, Long mTime, Long maxRecords, FormatDto format,
+                                     Integer maxComponents) {
+        DSOrigin origin = getOriginHandler().getOrigin(originID);
+        if (origin == null) {
+            throw new NotFoundServiceException("A origin with the id '" + originID + "' could not be located. " +
+                                               "Supported origins are " + getOriginHandler().getOriginIDs());
         }
+        return origin.profileView(mTime == null ? 0L : mTime, maxRecords == null ? 100L : maxRecords,
+                                  format == null ? FormatDto.SOLRJSON : format,
+                                  maxComponents == null ? 50 : maxComponents);
+    }
 
-        return asJsonLines ?
-                getRecordsFull(origin, mTime, maxRecords,
-                        httpServletResponse, ExportWriterFactory.FORMAT.jsonl, accessFilter) :
-                getRecordsFull(origin, mTime, maxRecords,
-                        httpServletResponse, ExportWriterFactory.FORMAT.json, accessFilter);
+    /**
+     * Clear the cache of rights calculated by ds-license. See {@link RightsCache#clear()}.
+     * @return the approximate number of cached rights that were removed.
+     */
+    public static long clearRightsCache() {
+        return RightsCache.clear();
     }
 
+    /**
+     * Remove all transformed records from {@link RecordCache} and invalidate all entries in
+     * {@link TransformedRecordStore}, as the transformed records contain rights that might have changed.
+     * Used together with {@link #clearRightsCache()}.
+     * @return the approximate number of transformed records that were removed from {@link RecordCache}.
+     * @throws IOException if the invalidation of {@link TransformedRecordStore} could not be stored.
+     */
+    public static long clearTransformedRecords() throws IOException {
+        long records = RecordCache.clear();
+        TransformedRecordStore store = TransformedRecordStore.getInstance();
+        if (store != null) {
+            store.invalidateAll();
+        }
+        return records;
+    }
 
     /**
      * Converts a raw solr schema to a human-readable version.
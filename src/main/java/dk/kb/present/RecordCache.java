@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Process wide cache for transformed records, as delivered by {@link DSOrigin#getRecord}.
+ * <p>
+ * Entries are keyed by origin, record ID, the {@code mTime} of the record, the view ID and the version of the view
+ * (see {@link View#getVersion()}). A change to the record or to the setup of the view thus results in a new key and
+ * the old entry will be evicted eventually.
+ * <p>
+ * As the transformed records can contain values that depend on the time of transformation, such as holdback status
+ * for DR material, entries expire after a configurable amount of time.
+ * <p>
+ * The cache is bounded by the approximate size of the cached records in bytes.
+ * <p>
+ * The keys also contain a generation, which is incremented by {@link #clear()}. A transformation that was started
+ * before a clear is thus added under a key that is never requested again, instead of surviving the clear.
+ */
+public class RecordCache {
+    private static final Logger log = LoggerFactory.getLogger(RecordCache.class);
+
+    private static final String MAX_BYTES_KEY = "record.cache.maxBytes";
+    private static final long DEFAULT_MAX_BYTES = 100 * 1024 * 1024L;
+    private static final String EXPIRE_KEY = "record.cache.expireSeconds";
+    private static final int DEFAULT_EXPIRE = 3600;
+
+    private static volatile boolean initialized = false;
+    private static Cache<String, String> cache = null;
+    private static long maxBytes = 0;
+    private static final AtomicLong generation = new AtomicLong(0);
+
+    /**
+     * Deliver the transformed record from the cache or transform it using {@code transformer} and add the result
+     * to the cache. Records without {@code mTime} are not cached as changes to them cannot be detected.
+     * @param originID    the ID of the origin for the record.
+     * @param record      the record to transform.
+     * @param view        the view used for the transformation.
+     * @param transformer provides the transformed record if it is not already in the cache.
+     * @return the transformed record.
+     */
+    public static String get(String originID, DsRecordDto record, View view, Supplier<String> transformer) {
+        Cache<String, String> cache = getCache();
+        if (cache == null || record.getmTime() == null || record.getId() == null || !view.isCacheable()) {
+            return transformer.get();
+        }
+        String key = createKey(generation.get(), originID, record, view);
+        String transformed = cache.getIfPresent(key);
+        if (transformed == null) {
+            // The transformation is not done as part of the cache lookup as it can be slow and would block other
+            // lookups in the cache
+            transformed = transformer.get();
+            cache.put(key, transformed);
+        }
+        return transformed;
+    }
+
+    /**
+     * Remove all entries from the cache.
+     * @return the approximate number of entries that were removed.
+     */
+    public static long clear() {
+        Cache<String, String> cache = getCache();
+        if (cache == null) {
+            return 0;
+        }
+        // Incremented before invalidation so that transformations in flight are added under outdated keys
+        generation.incrementAndGet();
+        long entries = cache.estimatedSize();
+        cache.invalidateAll();
+        return entries;
+    }
+
+    /**
+     * @return cache statistics in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        Cache<String, String> cache = getCache();
+        if (cache == null) {
+            return "recordCache(disabled)";
+        }
+        CacheStats stats = cache.stats();
+        long weight = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(-1)).orElse(-1L);
+        return String.format(Locale.ROOT,
+                "recordCache(entries=%d, bytes=%d, maxBytes=%d, hits=%d, misses=%d, hitRate=%.2f, evictions=%d)",
+                cache.estimatedSize(), weight, maxBytes, stats.hitCount(), stats.missCount(), stats.hitRate(),
+                stats.evictionCount());
+    }
+
+    /**
+     * @return a key uniquely identifying the given record transformed with the given view in the given generation.
+     */
+    static String createKey(long generation, String originID, DsRecordDto record, View view) {
+        return generation + "|" + originID + "|" + record.getId() + "|" + record.getmTime() + "|" + view.getId() + "|" +
+               view.getVersion();
+    }
+
+    /**
+     * Create the cache if it has not already been created.
+     * @return the cache or null if caching is disabled.
+     */
+    private static Cache<String, String> getCache() {
+        if (!initialized) {
+            synchronized (RecordCache.class) {
+                if (!initialized) {
+                    cache = createCache();
+                    initialized = true;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return a new cache, configured from {@link ServiceConfig}, or null if caching is disabled.
+     */
+    private static Cache<String, String> createCache() {
+        maxBytes = ServiceConfig.getConfig().getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+        int expireSeconds = ServiceConfig.getConfig().getInteger(EXPIRE_KEY, DEFAULT_EXPIRE);
+        if (maxBytes <= 0) {
+            log.info("Caching of transformed records is disabled as {}={}", MAX_BYTES_KEY, maxBytes);
+            return null;
+        }
+        log.info("Creating cache for transformed records with maxBytes={} and expireSeconds={}",
+                 maxBytes, expireSeconds);
+        return Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                // Java Strings use up to 2 bytes/character, plus overhead for the objects
+                .weigher((String key, String value) -> 2 * (key.length() + value.length()) + 100)
+                .expireAfterWrite(Duration.ofSeconds(expireSeconds))
+                .recordStats()
+                .build();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import dk.kb.license.model.v1.HoldbackCalculationInputDto;
+import dk.kb.license.model.v1.RestrictionsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import dk.kb.present.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide cache for rights calculated by ds-license, used by {@link RightsCalculator}.
+ * <p>
+ * Entries are keyed by all values in the {@link RightsCalculationInputDto}, including the record ID as the
+ * restrictions from ds-license can be specific for the record. Records that are not changed thus get the same key
+ * when they are transformed again.
+ * <p>
+ * The holdback status of a record changes when the holdback expires, so entries expire at the earliest of
+ * {@code expireSeconds} after they were added and the {@code holdbackExpiredDate} of the calculated rights.
+ * When the restriction lists in ds-license are changed, the cache should be cleared with {@link #clear()}.
+ * <p>
+ * The cache is bounded by the number of entries.
+ */
+public class RightsCache {
+    private static final Logger log = LoggerFactory.getLogger(RightsCache.class);
+
+    private static final String MAX_ENTRIES_KEY = "licensemodule.rights.cache.maxEntries";
+    private static final long DEFAULT_MAX_ENTRIES = 100000;
+    private static final String EXPIRE_KEY = "licensemodule.rights.cache.expireSeconds";
+    private static final int DEFAULT_EXPIRE = 3600;
+
+    private static volatile boolean initialized = false;
+    private static RightsCache instance = null;
+
+    private final Cache<String, RightsCalculationOutputDto> cache;
+    private final long maxEntries;
+    private final long expireNS;
+    private final LongSupplier epochMS;
+
+    /**
+     * @return the rights for the given input if they are in the shared cache, else null.
+     */
+    public static RightsCalculationOutputDto getIfPresent(RightsCalculationInputDto input) {
+        RightsCache cache = getInstance();
+        return cache == null ? null : cache.get(input);
+    }
+
+    /**
+     * Add the given rights to the shared cache. Nothing is added if {@code output} is null.
+     * @param input  the input for the rights calculation.
+     * @param output the rights calculated from {@code input}.
+     */
+    public static void putIfEnabled(RightsCalculationInputDto input, RightsCalculationOutputDto output) {
+        RightsCache cache = getInstance();
+        if (cache != null) {
+            cache.put(input, output);
+        }
+    }
+
+    /**
+     * Remove all entries from the shared cache. This should be called when the restriction lists in ds-license
+     * are changed.
+     * @return the number of entries removed (approximate).
+     */
+    public static long clear() {
+        RightsCache cache = getInstance();
+        if (cache == null) {
+            return 0;
+        }
+        long entries = cache.cache.estimatedSize();
+        cache.cache.invalidateAll();
+        log.info("Cleared rights cache with approximately {} entries", entries);
+        return entries;
+    }
+
+    /**
+     * @return cache statistics in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        RightsCache cache = getInstance();
+        return cache == null ? "rightsCache(disabled)" : cache.toString();
+    }
+
+    /**
+     * @param maxEntries    the maximum number of entries in the cache.
+     * @param expireSeconds the maximum number of seconds an entry is kept.
+     * @param epochMS       delivers the current time as Epoch milliseconds, used for holdback expiry.
+     * @param ticker        the time source for the cache.
+     */
+    RightsCache(long maxEntries, int expireSeconds, LongSupplier epochMS, Ticker ticker) {
+        this.maxEntries = maxEntries;
+        this.expireNS = TimeUnit.SECONDS.toNanos(expireSeconds);
+        this.epochMS = epochMS;
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new HoldbackExpiry())
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cached rights for the given input or null if they are not cached.
+     */
+    RightsCalculationOutputDto get(RightsCalculationInputDto input) {
+        return cache.getIfPresent(createKey(input));
+    }
+
+    /**
+     * Add the given rights to the cache. Nothing is added if {@code output} is null.
+     */
+    void put(RightsCalculationInputDto input, RightsCalculationOutputDto output) {
+        if (output != null) {
+            cache.put(createKey(input), output);
+        }
+    }
+
+    /**
+     * @return the approximate number of entries in the cache.
+     */
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Create a canonical representation of all values in the input. Fields are separated by a character that is
+     * not expected in the values.
+     */
+    static String createKey(RightsCalculationInputDto input) {
+        StringBuilder key = new StringBuilder(200);
+        add(key, input.getPlatform());
+        add(key, input.getRecordId());
+        add(key, input.getStartTime());
+        HoldbackCalculationInputDto holdback = input.getHoldbackInput();
+        if (holdback != null) {
+            add(key, holdback.getOrigin());
+            add(key, holdback.getHoldbackCategory());
+            add(key, holdback.getHensigt());
+            add(key, holdback.getForm());
+            add(key, holdback.getIndhold());
+            add(key, holdback.getProductionCountry());
+        } else {
+            key.append("\u001Fnoholdback");
+        }
+        RestrictionsCalculationInputDto restrictions = input.getRestrictionsInput();
+        if (restrictions != null) {
+            add(key, restrictions.getRecordId());
+            add(key, restrictions.getDrProductionId());
+            add(key, restrictions.getProductionCode());
+            add(key, restrictions.getTitle());
+        } else {
+            key.append("\u001Fnorestrictions");
+        }
+        return key.toString();
+    }
+
+    private static void add(StringBuilder key, Object value) {
+        // null and the empty String are different inputs for ds-license
+        key.append('\u001F').append(value == null ? "\u0000" : value);
+    }
+
+    /**
+     * Parse the holdback expiry date from ds-license.
+     * @param holdbackExpiredDate an ISO-8601 timestamp or date. Dates without time are interpreted as UTC.
+     * @return the holdback expiry as Epoch milliseconds or null if it is not present or could not be parsed.
+     */
+    static Long parseHoldbackDate(String holdbackExpiredDate) {
+        if (holdbackExpiredDate == null || holdbackExpiredDate.isBlank()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(holdbackExpiredDate).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Try the next format
+        }
+        try {
+            return Instant.parse(holdbackExpiredDate).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Try the next format
+        }
+        try {
+            return LocalDate.parse(holdbackExpiredDate).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.debug("Unable to parse holdbackExpiredDate '{}'. Only expireSeconds will be used for expiry",
+                      holdbackExpiredDate);
+            return null;
+        }
+    }
+
+    /**
+     * Entries expire at the earliest of {@link #expireNS} after they were created or updated and the holdback
+     * expiry of the rights, if that is in the future. Reads do not extend the lifetime.
+     */
+    private class HoldbackExpiry implements Expiry<String, RightsCalculationOutputDto> {
+        @Override
+        public long expireAfterCreate(String key, RightsCalculationOutputDto output, long currentTime) {
+            if (output.getDr() == null) {
+                return expireNS;
+            }
+            Long holdbackMS = parseHoldbackDate(output.getDr().getHoldbackExpiredDate());
+            if (holdbackMS == null) {
+                return expireNS;
+            }
+            long untilHoldbackMS = holdbackMS - epochMS.getAsLong();
+            // When the holdback has already expired, it cannot expire again
+            return untilHoldbackMS <= 0 ? expireNS : Math.min(expireNS, TimeUnit.MILLISECONDS.toNanos(untilHoldbackMS));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, RightsCalculationOutputDto output, long currentTime,
+                                      long currentDuration) {
+            return expireAfterCreate(key, output, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, RightsCalculationOutputDto output, long currentTime,
+                                    long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    /**
+     * Create the shared cache if it has not already been created.
+     * @return the cache or null if caching is disabled.
+     */
+    private static RightsCache getInstance() {
+        if (!initialized) {
+            synchronized (RightsCache.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a new cache, configured from {@link ServiceConfig}, or null if caching is disabled.
+     */
+    private static RightsCache createInstance() {
+        long maxEntries = ServiceConfig.getConfig().getLong(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+        int expireSeconds = ServiceConfig.getConfig().getInteger(EXPIRE_KEY, DEFAULT_EXPIRE);
+        if (maxEntries <= 0 || expireSeconds <= 0) {
+            log.info("Caching of rights is disabled as {}={} and {}={}",
+                     MAX_ENTRIES_KEY, maxEntries, EXPIRE_KEY, expireSeconds);
+            return null;
+        }
+        log.info("Creating cache for rights with maxEntries={} and expireSeconds={}", maxEntries, expireSeconds);
+        return new RightsCache(maxEntries, expireSeconds, System::currentTimeMillis, Ticker.systemTicker());
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format(Locale.ROOT,
+                "rightsCache(entries=%d, maxEntries=%d, expireSeconds=%d, hits=%d, misses=%d, hitRate=%.2f, " +
+                "evictions=%d)",
+                cache.estimatedSize(), maxEntries, TimeUnit.NANOSECONDS.toSeconds(expireNS), stats.hitCount(),
+                stats.missCount(), stats.hitRate(), stats.evictionCount());
+    }
+}
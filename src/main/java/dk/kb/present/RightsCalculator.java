@@ -0,0 +1,242 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import dk.kb.license.util.DsLicenseClient;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.util.AdaptiveLimiter;
+import dk.kb.present.util.CallerToken;
+import dk.kb.present.util.CallerTokenLicenseClient;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Rights calculation for DR material through ds-license, using a single shared {@link CallerTokenLicenseClient}.
+ * <p>
+ * Besides single record calculation, batches of inputs are supported: The calculations for a batch are issued
+ * concurrently through a bounded pool, so that the latency for a batch is roughly the latency of the slowest
+ * calls instead of the sum of all calls. The calls from the pool are made with the {@link CallerToken} of the
+ * thread requesting the batch.
+ * <p>
+ * All calls to ds-license, including access checks from {@link dk.kb.present.webservice.AccessUtil}, are passed
+ * through a shared {@link AdaptiveLimiter} by {@link #callLicense(AdaptiveLimiter.Lane, Supplier)}, so that calls
+ * for single records are not queued behind the calls from bulk exports.
+ * <p>
+ * Calculated rights are cached in {@link RightsCache}, so that unchanged records do not require new calls to
+ * ds-license when they are transformed again.
+ */
+public class RightsCalculator {
+    private static final Logger log = LoggerFactory.getLogger(RightsCalculator.class);
+
+    private static final String LICENSE_URL_KEY = "licensemodule.url";
+    private static final String RIGHTS_THREADS_KEY = "licensemodule.rights.threads";
+    private static final int DEFAULT_RIGHTS_THREADS = 4;
+    private static final int DEFAULT_LICENSE_MAX_LIMIT = 16;
+
+    public static DsLicenseClient licenseClient;     // Shared between instances, can be replaced in unit tests
+    private static ExecutorService executor;
+    private static AdaptiveLimiter licenseLimiter;
+    private static boolean licenseLimiterResolved = false;
+
+    /**
+     * Calculate rights for a single record in the {@link AdaptiveLimiter.Lane#INTERACTIVE} lane.
+     * @param input the values for the rights calculation.
+     * @return the rights for the record described by {@code input}.
+     * @throws InternalServiceException if the calculation failed.
+     */
+    public static RightsCalculationOutputDto calculateRights(RightsCalculationInputDto input) {
+        return calculateRights(input, AdaptiveLimiter.Lane.INTERACTIVE);
+    }
+
+    /**
+     * Calculate rights for a single record.
+     * @param input the values for the rights calculation.
+     * @param lane  the priority class for the call to ds-license.
+     * @return the rights for the record described by {@code input}.
+     * @throws InternalServiceException if the calculation failed.
+     */
+    public static RightsCalculationOutputDto calculateRights(RightsCalculationInputDto input, AdaptiveLimiter.Lane lane) {
+        RightsCalculationOutputDto cached = RightsCache.getIfPresent(input);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            RightsCalculationOutputDto output = callLicense(lane, () -> getLicenseClient().calculateRights(input));
+            RightsCache.putIfEnabled(input, output);
+            return output;
+        } catch (Exception e) {
+            String message = "Exception calculating rights for record '" + input.getRecordId() + "'";
+            log.warn(message, e);
+            throw new InternalServiceException(message, e);
+        }
+    }
+
+    /**
+     * Calculate rights for a batch of records in the {@link AdaptiveLimiter.Lane#BULK} lane.
+     * See {@link #calculateRights(List, AdaptiveLimiter.Lane)}.
+     * @param inputs the values for the rights calculations.
+     * @return the rights for the records described by {@code inputs}, in the same order as {@code inputs}.
+     */
+    public static List<RightsCalculationOutputDto> calculateRights(List<RightsCalculationInputDto> inputs) {
+        return calculateRights(inputs, AdaptiveLimiter.Lane.BULK);
+    }
+
+    /**
+     * Calculate rights for a batch of records. The result list is aligned with {@code inputs}.
+     * <p>
+     * Failing calculations are logged and represented as {@code null} in the result, so that the caller can decide
+     * how to handle the affected records without failing the whole batch.
+     * @param inputs the values for the rights calculations.
+     * @param lane   the priority class for the calls to ds-license.
+     * @return the rights for the records described by {@code inputs}, in the same order as {@code inputs}.
+     */
+    public static List<RightsCalculationOutputDto> calculateRights(
+            List<RightsCalculationInputDto> inputs, AdaptiveLimiter.Lane lane) {
+        List<RightsCalculationOutputDto> outputs = new ArrayList<>(inputs.size());
+        if (inputs.size() == 1) {
+            outputs.add(calculateRightsOrNull(inputs.get(0), lane));
+            return outputs;
+        }
+
+        List<Future<RightsCalculationOutputDto>> futures = new ArrayList<>(inputs.size());
+        for (RightsCalculationInputDto input: inputs) {
+            RightsCalculationOutputDto cached = RightsCache.getIfPresent(input);
+            futures.add(cached != null ?
+                                CompletableFuture.completedFuture(cached) :
+                                getExecutor().submit(CallerToken.propagate(() -> fetchRightsOrNull(input, lane))::get));
+        }
+        for (Future<RightsCalculationOutputDto> future: futures) {
+            try {
+                outputs.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new InternalServiceException("Interrupted while calculating rights for " + inputs.size() + " records");
+            } catch (ExecutionException e) {
+                // Should not happen as fetchRightsOrNull catches Exceptions
+                log.warn("Unexpected exception calculating rights", e);
+                outputs.add(null);
+            }
+        }
+        log.debug("Calculated rights for {} records", inputs.size());
+        return outputs;
+    }
+
+    /**
+     * Calculate rights for a single record, returning null if the calculation failed.
+     * @param input the values for the rights calculation.
+     * @param lane  the priority class for the call to ds-license.
+     * @return the rights for the record described by {@code input} or null if they could not be calculated.
+     */
+    private static RightsCalculationOutputDto calculateRightsOrNull(
+            RightsCalculationInputDto input, AdaptiveLimiter.Lane lane) {
+        RightsCalculationOutputDto cached = RightsCache.getIfPresent(input);
+        return cached != null ? cached : fetchRightsOrNull(input, lane);
+    }
+
+    /**
+     * Calculate rights for a single record with ds-license, without checking {@link RightsCache} first. The rights
+     * are added to the cache.
+     * @param input the values for the rights calculation.
+     * @param lane  the priority class for the call to ds-license.
+     * @return the rights for the record described by {@code input} or null if they could not be calculated.
+     */
+    private static RightsCalculationOutputDto fetchRightsOrNull(
+            RightsCalculationInputDto input, AdaptiveLimiter.Lane lane) {
+        try {
+            RightsCalculationOutputDto output = callLicense(lane, () -> getLicenseClient().calculateRights(input));
+            RightsCache.putIfEnabled(input, output);
+            return output;
+        } catch (Exception e) {
+            log.warn("Exception calculating rights for record '{}' as part of a batch", input.getRecordId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Perform a call to ds-license when the shared limiter for ds-license calls permits it. The call is performed by
+     * the current thread, so the shared client sends the {@link CallerToken} of the current thread. The time spent
+     * is added to {@link Stats#LICENSE}.
+     * @param lane the priority class for the call.
+     * @param call the call to ds-license.
+     * @return the result of the call.
+     */
+    public static <T> T callLicense(AdaptiveLimiter.Lane lane, Supplier<T> call) {
+        AdaptiveLimiter limiter = getLicenseLimiter();
+        return Stats.LICENSE.measure(() -> limiter == null ? call.get() : limiter.execute(lane, call));
+    }
+
+    /**
+     * The ds-license client is used for calculating rights for DR material.
+     * @return a ds-license client, ready for use.
+     */
+    static synchronized DsLicenseClient getLicenseClient() {
+        if (licenseClient != null) {
+            return licenseClient;
+        }
+
+        String dsLicenseUrl = ServiceConfig.getConfig().getString(LICENSE_URL_KEY, null);
+        if (dsLicenseUrl == null) {
+            throw new IllegalStateException("No ds-license URL specified at " + LICENSE_URL_KEY);
+        }
+        licenseClient = new CallerTokenLicenseClient(dsLicenseUrl);
+        log.info("Created rights calculation client for ds-license at URL '{}'", dsLicenseUrl);
+        return licenseClient;
+    }
+
+    /**
+     * @return the limiter for calls to ds-license or null if limiting is disabled.
+     */
+    private static synchronized AdaptiveLimiter getLicenseLimiter() {
+        if (!licenseLimiterResolved) {
+            // ds-license is a remote service, so the local CPU load is not relevant
+            licenseLimiter = AdaptiveLimiter.create(AdaptiveLimiter.LICENSE_CONF, "ds-license",
+                                                    DEFAULT_LICENSE_MAX_LIMIT, 1.0, Stats.LICENSE.getChild("queue"));
+            licenseLimiterResolved = true;
+        }
+        return licenseLimiter;
+    }
+
+    /**
+     * @return the executor used for concurrent rights calculations for batches.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        int threads = ServiceConfig.getConfig().getInteger(RIGHTS_THREADS_KEY, DEFAULT_RIGHTS_THREADS);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "rights-calculation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Created executor for rights calculations with {} threads", threads);
+        return executor;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Retrieval of a single record from storage, started before access to the record has been checked, so that the
+ * latencies of the access check and the retrieval overlap instead of adding up.
+ * <p>
+ * The retrieved record must only be used if access to the record is {@code ok}. Otherwise the retrieval must be
+ * {@link Retrieval#discard() discarded}, which cancels it if it is still in progress.
+ * <p>
+ * At most {@code record.speculativeRetrieval.threads} retrievals are in progress at a time. When all threads are
+ * busy, no retrieval is started and the record is retrieved after the access check as usual.
+ */
+public class SpeculativeRetrieval {
+    private static final Logger log = LoggerFactory.getLogger(SpeculativeRetrieval.class);
+
+    private static final String ENABLED_KEY = "record.speculativeRetrieval.enabled";
+    private static final boolean DEFAULT_ENABLED = false;
+    private static final String THREADS_KEY = "record.speculativeRetrieval.threads";
+    private static final int DEFAULT_THREADS = 16;
+
+    private static volatile boolean initialized = false;
+    private static SpeculativeRetrieval instance = null;
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder started = new LongAdder();
+    private final LongAdder used = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Start retrieval of the record with the given ID in the background with the shared executor, if speculative
+     * retrieval is enabled and there is capacity for it.
+     * @param recordID  the ID of the record to retrieve.
+     * @param retriever retrieves the record from storage.
+     * @return the retrieval in progress or null if it was not started.
+     */
+    public static Retrieval startIfEnabled(String recordID, Function<String, DsRecordDto> retriever) {
+        SpeculativeRetrieval speculative = getInstance();
+        return speculative == null ? null : speculative.start(recordID, retriever);
+    }
+
+    /**
+     * @return statistics for speculative retrieval in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        SpeculativeRetrieval speculative = getInstance();
+        return speculative == null ? "speculativeRetrieval(disabled)" : speculative.toString();
+    }
+
+    /**
+     * @param threads the maximum number of retrievals in progress at a time.
+     */
+    SpeculativeRetrieval(int threads) {
+        this.threads = threads;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        // No queue: When all threads are busy, retrievals are rejected and performed after the access check
+        executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "speculative-retrieval-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start retrieval of the record with the given ID in the background, if there is capacity for it.
+     * The retrieval is performed with the {@link CallerToken} of the calling thread.
+     * @param recordID  the ID of the record to retrieve.
+     * @param retriever retrieves the record from storage.
+     * @return the retrieval in progress or null if it was not started.
+     */
+    Retrieval start(String recordID, Function<String, DsRecordDto> retriever) {
+        // The retrieval is performed on behalf of the caller, so it must use the token of the caller
+        Function<String, DsRecordDto> callerRetriever = CallerToken.propagate(retriever);
+        try {
+            Retrieval retrieval = new Retrieval(recordID, executor.submit(() -> callerRetriever.apply(recordID)));
+            started.increment();
+            return retrieval;
+        } catch (RejectedExecutionException e) {
+            log.debug("All {} threads for speculative retrieval are busy. '{}' will be retrieved after the " +
+                      "access check", threads, recordID);
+            rejected.increment();
+            return null;
+        }
+    }
+
+    /**
+     * A retrieval in progress. Either {@link #get()} or {@link #discard()} must be called.
+     */
+    public class Retrieval {
+        private final String recordID;
+        private final Future<DsRecordDto> future;
+        private boolean done = false;
+
+        private Retrieval(String recordID, Future<DsRecordDto> future) {
+            this.recordID = recordID;
+            this.future = future;
+        }
+
+        /**
+         * Wait for the retrieval to finish and deliver the record. Must only be called when access to the record is
+         * {@code ok}.
+         * @return the retrieved record.
+         * @throws RuntimeException if the retrieval failed. Exceptions from storage, such as
+         *         {@link dk.kb.util.webservice.exception.NotFoundServiceException}, are passed on unchanged.
+         */
+        public DsRecordDto get() {
+            done = true;
+            used.increment();
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                throw new InternalServiceException("Interrupted while retrieving '" + recordID + "'");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new InternalServiceException("Exception retrieving '" + recordID + "'", e.getCause());
+            }
+        }
+
+        /**
+         * Discard the retrieval if the record has not been delivered with {@link #get()}, cancelling it if it is
+         * still in progress. Calling this after {@link #get()} has no effect.
+         */
+        public void discard() {
+            if (done) {
+                return;
+            }
+            done = true;
+            discarded.increment();
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Create the shared instance if it has not already been created.
+     * @return the shared instance or null if speculative retrieval is disabled.
+     */
+    private static SpeculativeRetrieval getInstance() {
+        if (!initialized) {
+            synchronized (SpeculativeRetrieval.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a new instance, configured from {@link ServiceConfig}, or null if speculative retrieval is disabled.
+     */
+    private static SpeculativeRetrieval createInstance() {
+        boolean enabled = ServiceConfig.getConfig().getBoolean(ENABLED_KEY, DEFAULT_ENABLED);
+        int threads = ServiceConfig.getConfig().getInteger(THREADS_KEY, DEFAULT_THREADS);
+        if (!enabled || threads <= 0) {
+            log.info("Speculative retrieval of records is disabled as {}={} and {}={}",
+                     ENABLED_KEY, enabled, THREADS_KEY, threads);
+            return null;
+        }
+        log.info("Enabling speculative retrieval of records with {} threads", threads);
+        return new SpeculativeRetrieval(threads);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "speculativeRetrieval(threads=%d, started=%d, used=%d, discarded=%d, rejected=%d)",
+                threads, started.sum(), used.sum(), discarded.sum(), rejected.sum());
+    }
+}
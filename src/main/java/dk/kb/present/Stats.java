@@ -15,6 +15,11 @@
 package dk.kb.present;
 
 import dk.kb.present.model.v1.FormatDto;
+import dk.kb.present.storage.StorageHttpClient;
+import dk.kb.present.storage.StorageRecordCache;
+import dk.kb.present.util.AdaptiveBatchSizer;
+import dk.kb.present.util.AdaptiveLimiter;
+import dk.kb.present.webservice.AccessCache;
 import dk.kb.util.Timing;
 
 /**
@@ -52,6 +57,136 @@ public class Stats {
     public static final Timing RECORD_ACCESS =
             GET_RECORD.getChild("access", null, "checks", DEFAULT_STATS);
 
+    /**
+     * Statistics for the stages of {@code /records} exports, with a child per origin and grandchildren per stage.
+     * See {@link DSOrigin#getDSRecords}.
+     */
+    public static final Timing RECORDS =
+            new Timing("records", null, null, EMPTY_STATS);
+
+    /**
+     * Statistics for the steps of views, with a child per origin, grandchildren per view and great-grandchildren per
+     * step (strategy phases and transformers). Covers all transformations, both for {@code getRecord} and
+     * {@code /records}. See {@link View}.
+     */
+    public static final Timing VIEWS =
+            new Timing("views", null, null, EMPTY_STATS);
+
+    /**
+     * Statistics for calls to ds-license, with a child {@code queue} for the time spent waiting for the limiter,
+     * which has grandchildren per {@link AdaptiveLimiter.Lane}. See {@link RightsCalculator#callLicense}.
+     */
+    public static final Timing LICENSE =
+            new Timing("license", null, "calls", DEFAULT_STATS);
+
+    /**
+     * Statistics for calls to ds-storage, with a child per storage URL and grandchildren per call type.
+     * See {@link dk.kb.present.storage.StorageHttpClient}.
+     */
+    public static final Timing STORAGE =
+            new Timing("storage", null, null, EMPTY_STATS);
+
+    /**
+     * Statistics for warm-up at startup, with a child per origin and grandchildren per view. See {@link WarmUp}.
+     */
+    public static final Timing WARMUP =
+            new Timing("warmup", null, null, EMPTY_STATS);
+
+    /**
+     * Compilation statistics for XSLT stylesheets, with a child per stylesheet.
+     * See {@link dk.kb.present.transform.StylesheetRegistry}.
+     */
+    public static final Timing XSLT_COMPILE =
+            new Timing("xsltCompile", null, "stylesheets", DEFAULT_STATS);
+
+    /**
+     * Deliver the {@link Timing} responsible for tracking compilation of the given stylesheet.
+     * @param stylesheet the stylesheet as stated in the configuration.
+     * @return a {@link Timing} for tracking compilation of the stylesheet. This is a child of {@link #XSLT_COMPILE}.
+     */
+    public static Timing getStylesheetCompileTimer(String stylesheet) {
+        return XSLT_COMPILE.getChild(stylesheet, null, "compilations", DEFAULT_STATS);
+    }
+
+    /**
+     * Deliver the {@link Timing} responsible for tracking a stage of {@code /records} exports for the given origin.
+     * @param origin {@link DSOrigin#getId()}.
+     * @param stage  the stage, e.g. {@code fetch} or {@code transform}.
+     * @param unit   the unit for the measurements, e.g. {@code batches} or {@code records}.
+     * @return a {@link Timing} for tracking the stage. This is a grandchild of {@link #RECORDS}.
+     */
+    public static Timing getRecordsStageTimer(String origin, String stage, String unit) {
+        return RECORDS.
+                getChild("origin_" + origin, null, null, EMPTY_STATS).
+                getChild(stage, null, unit, DEFAULT_STATS);
+    }
+
+    /**
+     * Deliver the {@link Timing} responsible for tracking a step of the given view for the given origin.
+     * @param origin  the origin for the view.
+     * @param view    {@link View#getId()}.
+     * @param step    the step, e.g. {@code rights} or {@code step1_xslt}.
+     * @param subject optional subject for the step, e.g. the stylesheet for an XSLT transformer. Can be null.
+     * @param unit    the unit for the measurements, e.g. {@code records} or {@code batches}.
+     * @return a {@link Timing} for tracking the step. This is a great-grandchild of {@link #VIEWS}.
+     */
+    public static Timing getViewStepTimer(String origin, String view, String step, String subject, String unit) {
+        return VIEWS.
+                getChild("origin_" + origin, null, null, EMPTY_STATS).
+                getChild(view, null, null, EMPTY_STATS).
+                getChild(step, subject, unit, DEFAULT_STATS);
+    }
+
+    /**
+     * Deliver the {@link Timing} responsible for tracking a type of call to ds-storage.
+     * @param storageUrl the URL for the ds-storage.
+     * @param call       the type of call, e.g. {@code record}.
+     * @return a {@link Timing} for tracking the calls. This is a grandchild of {@link #STORAGE}.
+     */
+    public static Timing getStorageCallTimer(String storageUrl, String call) {
+        return STORAGE.
+                getChild(storageUrl, null, null, EMPTY_STATS).
+                getChild(call, null, "calls", DEFAULT_STATS);
+    }
+
+    /**
+     * Deliver the {@link Timing} responsible for tracking warm-up rounds for the given origin and view.
+     * @param origin {@link DSOrigin#getId()}.
+     * @param view   {@link View#getId()}.
+     * @return a {@link Timing} for tracking warm-up rounds. This is a grandchild of {@link #WARMUP}.
+     */
+    public static Timing getWarmUpTimer(String origin, String view) {
+        return WARMUP.
+                getChild("origin_" + origin, null, null, EMPTY_STATS).
+                getChild(view, null, "rounds", DEFAULT_STATS);
+    }
+
+    /**
+     * @return all top level statistics in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        return WarmUp.getStatus() + "\n" +
+               GET_RECORD.toString((Timing.STATS[])null, true) + "\n" +
+               RECORDS.toString((Timing.STATS[])null, true) + "\n" +
+               AdaptiveBatchSizer.getStatus() + "\n" +
+               ExportAdmission.getStatus() + "\n" +
+               VIEWS.toString((Timing.STATS[])null, true) + "\n" +
+               LICENSE.toString((Timing.STATS[])null, true) + "\n" +
+               STORAGE.toString((Timing.STATS[])null, true) + "\n" +
+               StorageHttpClient.getStatus() + "\n" +
+               StorageRecordCache.getStatus() + "\n" +
+               RightsCache.getStatus() + "\n" +
+               AccessCache.getStatus() + "\n" +
+               SpeculativeRetrieval.getStatus() + "\n" +
+               TranscriptionLookup.getStatus() + "\n" +
+               AdaptiveLimiter.getStatus() + "\n" +
+               RecordCache.getStatus() + "\n" +
+               (TransformedRecordStore.getInstance() == null ? "transformedRecordStore(disabled)" :
+                       TransformedRecordStore.getInstance().getStatus()) + "\n" +
+               XSLT_COMPILE.toString((Timing.STATS[])null, true) + "\n" +
+               WARMUP.toString((Timing.STATS[])null, true);
+    }
+
     /**
      * Deliver the {@link Timing} responsible for tracting the specified origin with the specified view.
      * @param origin {@link DSOrigin#getId()}.
@@ -0,0 +1,313 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.storage.Storage;
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.TranscriptionDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Lookup of transcriptions for DR records in ds-storage. Stylesheets resolve transcriptions through
+ * {@link dk.kb.present.transform.TranscriptionFunction} when they need them, which is enabled by {@link View}
+ * when {@code index.useTransriptions} is enabled.
+ * <p>
+ * Most records do not have a transcription, so reference IDs that are known to have no transcription are kept in a
+ * bounded negative cache and are not looked up again until the entry expires.
+ * <p>
+ * ds-storage only delivers transcriptions one at a time, so transcriptions for a batch of records are looked up
+ * concurrently through a bounded pool with {@link #prefetch(Collection)}, making the latency for a batch roughly
+ * that of the slowest lookup. Prefetched transcriptions are held in a cache bounded by the total number of
+ * characters until they are requested or expire. They are only delivered once.
+ * <p>
+ * Transcriptions longer than {@code index.transcriptions.maxChars} are truncated.
+ */
+public class TranscriptionLookup {
+    private static final Logger log = LoggerFactory.getLogger(TranscriptionLookup.class);
+
+    private static final String THREADS_KEY = "index.transcriptions.threads";
+    private static final int DEFAULT_THREADS = 4;
+    private static final String NEGATIVE_MAX_ENTRIES_KEY = "index.transcriptions.negativeCache.maxEntries";
+    private static final long DEFAULT_NEGATIVE_MAX_ENTRIES = 1000000;
+    private static final String NEGATIVE_EXPIRE_KEY = "index.transcriptions.negativeCache.expireSeconds";
+    private static final int DEFAULT_NEGATIVE_EXPIRE = 3600;
+    private static final String PREFETCH_MAX_CHARS_KEY = "index.transcriptions.prefetch.maxChars";
+    private static final long DEFAULT_PREFETCH_MAX_CHARS = 50000000;
+    private static final String PREFETCH_EXPIRE_KEY = "index.transcriptions.prefetch.expireSeconds";
+    private static final int DEFAULT_PREFETCH_EXPIRE = 300;
+    private static final String MAX_CHARS_KEY = "index.transcriptions.maxChars";
+    private static final int DEFAULT_MAX_CHARS = 5000000;
+
+    private static volatile boolean initialized = false;
+    private static TranscriptionLookup instance = null;
+
+    private final Function<String, TranscriptionDto> fetcher;
+    // Reference IDs without transcription. Null if disabled
+    private final Cache<String, Boolean> noTranscription;
+    // Transcriptions looked up for a batch, waiting to be requested
+    private final Cache<String, String> prefetched;
+    private final int maxChars;
+    private final ExecutorService executor;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder found = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+
+    /**
+     * Get the transcription text for the given reference ID, using the shared lookup.
+     * @param referenceId the file ID for the presentation stream of a record.
+     * @return the transcription text or null if there is no transcription.
+     */
+    public static String getTranscriptionText(String referenceId) {
+        return getInstance().getText(referenceId);
+    }
+
+    /**
+     * Look up the transcriptions for the given reference IDs with the shared lookup, so that later calls to
+     * {@link #getTranscriptionText(String)} for the IDs are served without calling ds-storage.
+     * See {@link #prefetch(Collection)}.
+     * @param referenceIds the file IDs for the presentation streams of a batch of records.
+     * @return the number of prefetched transcriptions.
+     */
+    public static int prefetchTranscriptions(Collection<String> referenceIds) {
+        return getInstance().prefetch(referenceIds);
+    }
+
+    /**
+     * @return lookup statistics in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        // Avoid creating the storage for the status
+        TranscriptionLookup lookup = instance;
+        return lookup == null ? "transcriptionLookup(not used)" : lookup.toString();
+    }
+
+    /**
+     * @param fetcher                 delivers the transcription for a reference ID. The transcription text is null
+     *                                if there is no transcription.
+     * @param threads                 the number of concurrent lookups for batches.
+     * @param negativeMaxEntries      the maximum number of reference IDs without transcription to remember.
+     *                                0 disables the negative cache.
+     * @param negativeExpireSeconds   the number of seconds a reference ID without transcription is remembered.
+     * @param prefetchMaxChars        the maximum number of characters in prefetched transcriptions waiting to be
+     *                                requested.
+     * @param prefetchExpireSeconds   the number of seconds a prefetched transcription is held.
+     * @param maxChars                the maximum number of characters delivered for a transcription.
+     */
+    TranscriptionLookup(Function<String, TranscriptionDto> fetcher, int threads,
+                        long negativeMaxEntries, int negativeExpireSeconds,
+                        long prefetchMaxChars, int prefetchExpireSeconds, int maxChars) {
+        this.fetcher = fetcher;
+        this.maxChars = maxChars;
+        prefetched = Caffeine.newBuilder()
+                .maximumWeight(prefetchMaxChars)
+                .<String, String>weigher((referenceId, text) -> text.length())
+                .expireAfterWrite(Duration.ofSeconds(prefetchExpireSeconds))
+                .build();
+        noTranscription = negativeMaxEntries <= 0 ? null :
+                Caffeine.newBuilder()
+                        .maximumSize(negativeMaxEntries)
+                        .expireAfterWrite(Duration.ofSeconds(negativeExpireSeconds))
+                        .recordStats()
+                        .build();
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "transcription-lookup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the transcription text for the given reference ID.
+     * @param referenceId the file ID for the presentation stream of a record.
+     * @return the transcription text or null if there is no transcription.
+     */
+    String getText(String referenceId) {
+        String text = prefetched.asMap().remove(referenceId);
+        if (text != null) {
+            prefetchHits.increment();
+            return text;
+        }
+        if (noTranscription != null && noTranscription.getIfPresent(referenceId) != null) {
+            return null;
+        }
+        return fetch(referenceId);
+    }
+
+    /**
+     * Look up the transcriptions for the given reference IDs and hold them until they are requested with
+     * {@link #getText(String)}. IDs in the negative cache are skipped and the rest are looked up concurrently.
+     * @param referenceIds the file IDs for the presentation streams of a batch of records. Nulls are ignored.
+     * @return the number of prefetched transcriptions.
+     * @throws InternalServiceException if a lookup failed.
+     */
+    int prefetch(Collection<String> referenceIds) {
+        Map<String, String> texts = getTexts(referenceIds);
+        prefetched.putAll(texts);
+        return texts.size();
+    }
+
+    /**
+     * Get the transcription texts for the given reference IDs. IDs in the negative cache are skipped and the rest
+     * are looked up concurrently.
+     * @param referenceIds the file IDs for the presentation streams of a batch of records. Nulls are ignored.
+     * @return a map from reference ID to transcription text, only containing the IDs with a transcription.
+     * @throws InternalServiceException if a lookup failed.
+     */
+    private Map<String, String> getTexts(Collection<String> referenceIds) {
+        Set<String> toFetch = new LinkedHashSet<>(referenceIds.size());
+        for (String referenceId: referenceIds) {
+            if (referenceId != null &&
+                (noTranscription == null || noTranscription.getIfPresent(referenceId) == null)) {
+                toFetch.add(referenceId);
+            }
+        }
+        Map<String, String> texts = new HashMap<>();
+        if (toFetch.size() == 1) {
+            String referenceId = toFetch.iterator().next();
+            addIfPresent(texts, referenceId, fetch(referenceId));
+            return texts;
+        }
+
+        List<String> ids = new ArrayList<>(toFetch);
+        List<Future<String>> futures = new ArrayList<>(ids.size());
+        for (String referenceId: ids) {
+            // The lookups are made with the token of the caller
+            futures.add(executor.submit(CallerToken.propagate(() -> fetch(referenceId))::get));
+        }
+        for (int i = 0 ; i < ids.size() ; i++) {
+            try {
+                addIfPresent(texts, ids.get(i), futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new InternalServiceException(
+                        "Interrupted while looking up transcriptions for " + ids.size() + " records");
+            } catch (ExecutionException e) {
+                futures.forEach(f -> f.cancel(true));
+                throw new InternalServiceException(
+                        "Exception looking up transcription for reference ID '" + ids.get(i) + "'", e.getCause());
+            }
+        }
+        log.debug("Looked up transcriptions for {}/{} reference IDs, {} with transcription",
+                  ids.size(), referenceIds.size(), texts.size());
+        return texts;
+    }
+
+    private static void addIfPresent(Map<String, String> texts, String referenceId, String text) {
+        if (text != null) {
+            texts.put(referenceId, text);
+        }
+    }
+
+    /**
+     * Look up the transcription, remembering reference IDs without transcription.
+     * @return the transcription text or null if there is no transcription.
+     */
+    private String fetch(String referenceId) {
+        lookups.increment();
+        TranscriptionDto transcription = fetcher.apply(referenceId);
+        // ds-storage delivers an empty DTO if there is no transcription
+        String text = transcription == null ? null : transcription.getTranscription();
+        if (text == null) {
+            if (noTranscription != null) {
+                noTranscription.put(referenceId, Boolean.TRUE);
+            }
+            return null;
+        }
+        found.increment();
+        if (text.length() > maxChars) {
+            truncated.increment();
+            log.warn("Transcription for reference ID '{}' has {} characters. Only the first {} will be delivered",
+                     referenceId, text.length(), maxChars);
+            text = text.substring(0, maxChars);
+        }
+        return text;
+    }
+
+    /**
+     * Create the shared lookup if it has not already been created.
+     */
+    private static TranscriptionLookup getInstance() {
+        if (!initialized) {
+            synchronized (TranscriptionLookup.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a new lookup, configured from {@link ServiceConfig}, using the default storage.
+     */
+    private static TranscriptionLookup createInstance() {
+        Storage storage = new StorageHandler(ServiceConfig.getConfig()).getStorage(null); // Default storage
+        int threads = ServiceConfig.getConfig().getInteger(THREADS_KEY, DEFAULT_THREADS);
+        long negativeMaxEntries =
+                ServiceConfig.getConfig().getLong(NEGATIVE_MAX_ENTRIES_KEY, DEFAULT_NEGATIVE_MAX_ENTRIES);
+        int negativeExpireSeconds =
+                ServiceConfig.getConfig().getInteger(NEGATIVE_EXPIRE_KEY, DEFAULT_NEGATIVE_EXPIRE);
+        long prefetchMaxChars =
+                ServiceConfig.getConfig().getLong(PREFETCH_MAX_CHARS_KEY, DEFAULT_PREFETCH_MAX_CHARS);
+        int prefetchExpireSeconds = ServiceConfig.getConfig().getInteger(PREFETCH_EXPIRE_KEY, DEFAULT_PREFETCH_EXPIRE);
+        int maxChars = ServiceConfig.getConfig().getInteger(MAX_CHARS_KEY, DEFAULT_MAX_CHARS);
+        log.info("Creating transcription lookup with storage '{}', threads={}, negativeCache.maxEntries={}, " +
+                 "negativeCache.expireSeconds={}, prefetch.maxChars={}, prefetch.expireSeconds={} and maxChars={}",
+                 storage.getID(), threads, negativeMaxEntries, negativeExpireSeconds,
+                 prefetchMaxChars, prefetchExpireSeconds, maxChars);
+        return new TranscriptionLookup(storage::getTranscription, threads, negativeMaxEntries, negativeExpireSeconds,
+                                       prefetchMaxChars, prefetchExpireSeconds, maxChars);
+    }
+
+    @Override
+    public String toString() {
+        String base = String.format(Locale.ROOT,
+                "transcriptionLookup(lookups=%d, found=%d, truncated=%d, prefetch(waiting=%d, hits=%d), ",
+                lookups.sum(), found.sum(), truncated.sum(), prefetched.estimatedSize(), prefetchHits.sum());
+        if (noTranscription == null) {
+            return base + "negativeCache=disabled)";
+        }
+        CacheStats stats = noTranscription.stats();
+        return base + String.format(Locale.ROOT, "negativeCache(entries=%d, hits=%d, hitRate=%.2f))",
+                                    noTranscription.estimatedSize(), stats.hitCount(), stats.hitRate());
+    }
+}
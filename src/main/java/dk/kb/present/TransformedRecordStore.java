@@ -0,0 +1,517 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Persistent store for transformed records, used for skipping transformations of unchanged records, e.g. when
+ * performing a full reindex after a restart.
+ * <p>
+ * Transformed records are compressed and appended to segment files. The location of each record is stored in an
+ * index, which is a memory mapped open addressing hash table with a fixed number of slots. Each slot holds a 64 bit
+ * hash of the key and the location of the entry in the segments. As the full key is stored with the entry in the
+ * segment, hash collisions are detected on lookup and treated as misses.
+ * <p>
+ * The store is append only: Replaced entries are not removed from the segments, but the index is updated to point
+ * to the newest entry. When the index is full, no more entries are added. To reclaim space, stop the service and
+ * delete the folder for the store.
+ * <p>
+ * Entries older than {@code maxAgeSeconds} are ignored, as transformed records can contain values that depends on
+ * the time of transformation, such as holdback status for DR material. Entries written before the latest call to
+ * {@link #invalidateAll()} are also ignored. Transformations that were started before the invalidation but finished
+ * after it are not stored, as they can contain outdated values: Callers capture {@link #getGeneration()} before
+ * transforming and pass it to {@link #put(String, String, long)}.
+ * <p>
+ * The store is thread safe. Writes are serialized while reads are performed concurrently.
+ */
+public class TransformedRecordStore implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransformedRecordStore.class);
+
+    public static final String FOLDER_KEY = "transformations.store.folder";
+    public static final String MAX_ENTRIES_KEY = "transformations.store.maxEntries";
+    public static final String SEGMENT_BYTES_KEY = "transformations.store.segmentBytes";
+    public static final String MAX_AGE_KEY = "transformations.store.maxAgeSeconds";
+    private static final int DEFAULT_MAX_ENTRIES = 10_000_000;
+    private static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024 * 1024L;
+    private static final int DEFAULT_MAX_AGE = 86400;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String INVALIDATED_FILE = "invalidated.txt";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_POSTFIX = ".dat";
+    private static final long INDEX_MAGIC = 0x4B42545253544F31L; // KBTRSTO1
+    private static final int INDEX_HEADER_BYTES = 24; // magic + slot count + entry count
+    private static final int SLOT_BYTES = 16;          // hash + location
+    private static final int POSITION_BITS = 40;       // Segments are limited to 1TB
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    private static final int MAX_SLOTS = (Integer.MAX_VALUE - INDEX_HEADER_BYTES) / SLOT_BYTES;
+    private static final int ENTRY_HEADER_BYTES = 4 + 8 + 4; // key length, timestamp, data length
+
+    private static volatile boolean initialized = false;
+    private static TransformedRecordStore instance = null;
+
+    private final Path folder;
+    private final long segmentBytes;
+    private final long maxAgeMS;
+    private final int slots;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+    private long writePosition;
+    private boolean fullWarned = false;
+    // Entries written at or before this time are ignored, see invalidateAll()
+    private volatile long invalidatedMS;
+    // Incremented by invalidateAll(). Only used for rejecting stale puts, so it is not persisted
+    private volatile long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong writes = new AtomicLong(0);
+
+    /**
+     * Get the process wide store, as configured with {@link #FOLDER_KEY}.
+     * @return the store or null if no store is configured or if it could not be opened.
+     */
+    public static TransformedRecordStore getInstance() {
+        if (!initialized) {
+            synchronized (TransformedRecordStore.class) {
+                if (!initialized) {
+                    instance = createFromConfig();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a store created from {@link ServiceConfig} or null if no folder is configured.
+     */
+    private static TransformedRecordStore createFromConfig() {
+        String folder = ServiceConfig.getConfig().getString(FOLDER_KEY, "");
+        if (folder.isBlank()) {
+            log.info("No store for transformed records, as {} is not set", FOLDER_KEY);
+            return null;
+        }
+        try {
+            return new TransformedRecordStore(
+                    Path.of(folder),
+                    ServiceConfig.getConfig().getInteger(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES),
+                    ServiceConfig.getConfig().getLong(SEGMENT_BYTES_KEY, DEFAULT_SEGMENT_BYTES),
+                    ServiceConfig.getConfig().getInteger(MAX_AGE_KEY, DEFAULT_MAX_AGE));
+        } catch (Exception e) {
+            log.error("Unable to open store for transformed records at '{}'. Transformed records will not be stored",
+                      folder, e);
+            return null;
+        }
+    }
+
+    /**
+     * Open or create a store in the given folder.
+     * @param folder        the folder for the segments and the index.
+     * @param maxEntries    the maximum number of entries. Ignored if the store already exists.
+     *                      The index takes up {@code maxEntries*2*16} bytes on storage (sparse if supported).
+     * @param segmentBytes  the maximum size of each segment file.
+     * @param maxAgeSeconds entries older than this are ignored.
+     * @throws IOException if the store could not be opened or created.
+     */
+    public TransformedRecordStore(Path folder, int maxEntries, long segmentBytes, int maxAgeSeconds)
+            throws IOException {
+        this.folder = folder;
+        this.segmentBytes = Math.min(segmentBytes, POSITION_MASK);
+        this.maxAgeMS = maxAgeSeconds * 1000L;
+        Files.createDirectories(folder);
+
+        Path indexFile = folder.resolve(INDEX_FILE);
+        boolean existing = Files.exists(indexFile);
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        if (existing) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+            indexChannel.read(header, 0);
+            header.flip();
+            if (header.remaining() != INDEX_HEADER_BYTES || header.getLong() != INDEX_MAGIC) {
+                throw new IOException("The file '" + indexFile + "' is not an index for transformed records");
+            }
+            slots = (int) header.getLong();
+        } else {
+            // Twice the number of entries keeps probe sequences short. A single mapping is limited to 2GB
+            slots = (int) Math.max(16, Math.min(maxEntries * 2L, MAX_SLOTS));
+        }
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES + (long) slots * SLOT_BYTES);
+        if (!existing) {
+            index.putLong(0, INDEX_MAGIC);
+            index.putLong(8, slots);
+            index.putLong(16, 0);
+        }
+
+        Path invalidatedFile = folder.resolve(INVALIDATED_FILE);
+        invalidatedMS = Files.exists(invalidatedFile) ? Long.parseLong(Files.readString(invalidatedFile).trim()) : 0;
+
+        openSegments();
+        log.info("Opened {}", this);
+    }
+
+    /**
+     * Get the transformed record for the given key, if it is present and not older than {@code maxAgeSeconds}.
+     * @param key the key for the transformed record.
+     * @return the transformed record or null if it is not available.
+     */
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        try {
+            int slot = findSlot(hash);
+            long location = index.getLong(slotOffset(slot) + 8);
+            if (index.getLong(slotOffset(slot)) != hash || location == 0) {
+                misses.incrementAndGet();
+                return null;
+            }
+            String value = readEntry(location, keyBytes);
+            (value == null ? misses : hits).incrementAndGet();
+            return value;
+        } catch (Exception e) {
+            // Entries can be inconsistent after a crash during write. They are treated as misses
+            log.debug("Unable to read entry for key '{}'", key, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key for a transformed record.
+     * @return true if a transformed record for the key is available. This does not affect hit/miss statistics.
+     */
+    public boolean contains(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        try {
+            int slot = findSlot(hash);
+            long location = index.getLong(slotOffset(slot) + 8);
+            return index.getLong(slotOffset(slot)) == hash && location != 0 && matchesEntry(location, keyBytes);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the current generation of the store, which changes on {@link #invalidateAll()}. Capture this before
+     *         starting a transformation and pass it to {@link #put(String, String, long)}.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Add the transformed record to the store in the current generation. See {@link #put(String, String, long)}.
+     * @param key   the key for the transformed record.
+     * @param value the transformed record.
+     */
+    public void put(String key, String value) {
+        put(key, value, generation);
+    }
+
+    /**
+     * Add the transformed record to the store, if the store has not been invalidated since the given generation.
+     * If an entry with the same key exists, it is replaced. Problems writing the entry are logged and otherwise
+     * ignored.
+     * <p>
+     * The record is compressed before the lock for writing is acquired, so that concurrent callers only wait for
+     * each other while appending the entry and updating the index.
+     * @param key        the key for the transformed record.
+     * @param value      the transformed record.
+     * @param generation the {@link #getGeneration() generation} captured before the transformation was started.
+     */
+    public void put(String key, String value, long generation) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        byte[] data = compress(value);
+        synchronized (this) {
+            if (generation != this.generation) {
+                log.debug("Skipping store of transformed record for key '{}' as the store has been invalidated " +
+                          "since the transformation was started", key);
+                return;
+            }
+            try {
+                int slot = findSlot(hash);
+                if (slot == -1) {
+                    if (!fullWarned) {
+                        log.warn("The index for {} is full. No more transformed records will be stored", this);
+                        fullWarned = true;
+                    }
+                    return;
+                }
+                long location = appendEntry(keyBytes, data);
+                boolean newEntry = index.getLong(slotOffset(slot)) != hash;
+                // The location is written before the hash so that readers matching the hash will see a location
+                index.putLong(slotOffset(slot) + 8, location);
+                index.putLong(slotOffset(slot), hash);
+                writes.incrementAndGet();
+                if (newEntry) {
+                    index.putLong(16, index.getLong(16) + 1);
+                }
+            } catch (Exception e) {
+                log.warn("Unable to store transformed record for key '{}'", key, e);
+            }
+        }
+    }
+
+    /**
+     * Invalidate all entries in the store, e.g. because the rights used for the transformations have changed.
+     * The invalidation is persistent. The space used by the invalidated entries is not reclaimed.
+     * @throws IOException if the time of invalidation could not be stored.
+     */
+    public synchronized void invalidateAll() throws IOException {
+        long now = System.currentTimeMillis();
+        Files.writeString(folder.resolve(INVALIDATED_FILE), Long.toString(now), StandardCharsets.UTF_8);
+        invalidatedMS = now;
+        generation++;
+        log.info("Invalidated all entries in {}", this);
+    }
+
+    /**
+     * @return statistics for the store in human readable form, used by {@code /monitor/status}.
+     */
+    public String getStatus() {
+        return String.format(Locale.ROOT,
+                "transformedRecordStore(folder='%s', entries=%d, maxEntries=%d, segments=%d, bytes=%d, hits=%d, " +
+                "misses=%d, writes=%d)",
+                folder, index.getLong(16), slots / 2, segments.size(), getSegmentsBytes(), hits.get(), misses.get(),
+                writes.get());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        indexChannel.close();
+        for (FileChannel segment: segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Locate the slot in the index for the given hash using linear probing.
+     * @return the slot containing the hash or the first empty slot. -1 if the hash is not present and the index is full.
+     */
+    private int findSlot(long hash) {
+        int slot = (int) Long.remainderUnsigned(hash, slots);
+        for (int probes = 0 ; probes < slots ; probes++) {
+            long slotHash = index.getLong(slotOffset(slot));
+            if (slotHash == hash || slotHash == 0) {
+                return slot;
+            }
+            slot = slot + 1 == slots ? 0 : slot + 1;
+        }
+        return -1;
+    }
+
+    private static int slotOffset(int slot) {
+        return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    /**
+     * Read the entry at the given location and return the value if the key matches and the entry is not too old.
+     */
+    private String readEntry(long location, byte[] keyBytes) throws IOException, DataFormatException {
+        FileChannel segment = getSegment(location);
+        long position = location & POSITION_MASK;
+        ByteBuffer header = readFully(segment, position, ENTRY_HEADER_BYTES + keyBytes.length);
+        if (!matches(header, keyBytes)) {
+            return null;
+        }
+        int dataLength = header.getInt(4 + keyBytes.length + 8);
+        ByteBuffer data = readFully(segment, position + ENTRY_HEADER_BYTES + keyBytes.length, dataLength);
+        return decompress(data.array());
+    }
+
+    /**
+     * @return true if the entry at the given location has the given key and is not too old.
+     */
+    private boolean matchesEntry(long location, byte[] keyBytes) throws IOException {
+        return matches(readFully(getSegment(location), location & POSITION_MASK,
+                                 ENTRY_HEADER_BYTES + keyBytes.length), keyBytes);
+    }
+
+    /**
+     * @param header the start of an entry, containing at least the key and the timestamp.
+     * @return true if the key in the header matches the given key and the timestamp is not too old or invalidated.
+     */
+    private boolean matches(ByteBuffer header, byte[] keyBytes) {
+        if (header.getInt(0) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0 ; i < keyBytes.length ; i++) {
+            if (header.get(4 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        long timestamp = header.getLong(4 + keyBytes.length);
+        return timestamp > invalidatedMS && System.currentTimeMillis() - timestamp <= maxAgeMS;
+    }
+
+    /**
+     * Append an entry to the current segment, starting a new segment if needed.
+     * @return the location of the entry.
+     */
+    private long appendEntry(byte[] keyBytes, byte[] data) throws IOException {
+        int entryLength = ENTRY_HEADER_BYTES + keyBytes.length + data.length;
+        if (segments.isEmpty() || (writePosition > 0 && writePosition + entryLength > segmentBytes)) {
+            newSegment();
+        }
+        ByteBuffer entry = ByteBuffer.allocate(entryLength);
+        entry.putInt(keyBytes.length);
+        entry.put(keyBytes);
+        entry.putLong(System.currentTimeMillis());
+        entry.putInt(data.length);
+        entry.put(data);
+        entry.flip();
+
+        FileChannel segment = segments.get(segments.size() - 1);
+        long position = writePosition;
+        while (entry.hasRemaining()) {
+            segment.write(entry, position + entry.position());
+        }
+        writePosition += entryLength;
+        // Location 0 means empty, so segment numbers start at 1
+        return ((long) segments.size() << POSITION_BITS) | position;
+    }
+
+    private FileChannel getSegment(long location) throws IOException {
+        int segmentIndex = (int) (location >>> POSITION_BITS) - 1;
+        if (segmentIndex < 0 || segmentIndex >= segments.size()) {
+            throw new IOException("Invalid segment " + segmentIndex + " in location " + location);
+        }
+        return segments.get(segmentIndex);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment at position " + (position + buffer.position()));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Open existing segments. Writing continues at the end of the last segment.
+     */
+    private void openSegments() throws IOException {
+        for (int segment = 1 ; Files.exists(segmentPath(segment)) ; segment++) {
+            segments.add(FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        writePosition = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).size();
+    }
+
+    private void newSegment() throws IOException {
+        Path segmentPath = segmentPath(segments.size() + 1);
+        segments.add(FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE));
+        writePosition = 0;
+        log.debug("Started new segment '{}'", segmentPath);
+    }
+
+    private Path segmentPath(int segment) {
+        return folder.resolve(String.format(Locale.ROOT, "%s%05d%s", SEGMENT_PREFIX, segment, SEGMENT_POSTFIX));
+    }
+
+    private long getSegmentsBytes() {
+        long bytes = 0;
+        for (FileChannel segment: segments) {
+            try {
+                bytes += segment.size();
+            } catch (IOException e) {
+                // Ignore as this is only used for statistics
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] compress(String value) {
+        byte[] input = value.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String decompress(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated entry");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash. 0 is reserved for empty slots.
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b: bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    @Override
+    public String toString() {
+        return "TransformedRecordStore(folder='" + folder + "', slots=" + slots + ", segments=" + segments.size() +
+               ", segmentBytes=" + segmentBytes + ", maxAgeMS=" + maxAgeMS + ")";
+    }
+}
@@ -17,18 +17,26 @@ package dk.kb.present;
 import dk.kb.license.model.v1.PlatformEnumDto;
 import dk.kb.license.model.v1.RightsCalculationInputDto;
 import dk.kb.license.model.v1.RightsCalculationOutputDto;
-import dk.kb.license.util.DsLicenseClient;
 import dk.kb.present.config.ServiceConfig;
-import dk.kb.present.storage.Storage;
 import dk.kb.present.transform.DSTransformer;
 import dk.kb.present.transform.TransformerController;
+import dk.kb.present.transform.XSLTProfile;
+import dk.kb.present.transform.XSLTTransformer;
+import dk.kb.present.util.AdaptiveLimiter;
 import dk.kb.present.util.ExtractedPreservicaValues;
+import dk.kb.present.util.PreservicaTreeExtractor;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
-import dk.kb.storage.model.v1.TranscriptionDto;
 import dk.kb.storage.util.DsStorageClient;
+import dk.kb.util.BuildInfoManager;
+import dk.kb.util.Resolver;
+import dk.kb.util.Timing;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.yaml.YAML;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,16 +45,31 @@ import org.xml.sax.SAXException;
 import javax.ws.rs.core.MediaType;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -56,15 +79,34 @@ import java.util.function.Function;
 public class View extends ArrayList<DSTransformer> implements Function<DsRecordDto, String> {
     private static final Logger log = LoggerFactory.getLogger(View.class);
 
+    // xsl:import and xsl:include elements in a stylesheet, with the referenced stylesheet as group 1
+    private static final Pattern STYLESHEET_MODULE = Pattern.compile(
+            "<(?:[\\w.-]+:)?(?:import|include)\\s[^>]*?href\\s*=\\s*[\"']([^\"']+)[\"']");
+
     private static final String MIME_KEY = "mime";
     private static final String TRANSFORMERS_KEY = "transformers";
     private static final String STRATEGY_KEY = "strategy";
-    private static Storage storage =null;
-    
+    private static final String HANDOFF_KEY = "handoff";
+    private static final String PARSE_KEY = "parse";
     private final String id;
     private final String origin;
     private final MediaType mime;
     private final Strategy strategy;
+    private final Handoff handoff;
+    private final Parse parse;
+    private final String version;
+    // False for profiling views, which must perform all transformations
+    private final boolean useStore;
+    // Timings for the steps of the view, children of Stats.VIEWS
+    private final Timing extractTimer;
+    private final Timing rightsTimer;
+    private final Timing batchRightsTimer;
+    private final Timing batchTranscriptionTimer;
+    private final List<Timing> transformerTimers = new ArrayList<>();
+    // Limits concurrent transformations for the view. Null if disabled
+    private final AdaptiveLimiter limiter;
+    // Extracts strategy values from the parsed record for Parse.ONCE. Null if not used
+    private final PreservicaTreeExtractor treeExtractor;
 
     /**
      * Defines the strategy used to construct the wanted view of the resource.
@@ -91,6 +133,36 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
         MANIFESTATION
     }
 
+    /**
+     * Defines how the result of a transformer is passed to the next transformer in the view.
+     */
+    enum Handoff {
+        /**
+         * Default: The result of a transformer is passed as text to the next transformer.
+         */
+        STRING,
+        /**
+         * The results of XSLT transformers are passed as Saxon XDM values (trees, maps or arrays) to the next
+         * transformer and text is only produced by the last transformer. Requires all transformers to be XSLT based.
+         */
+        XDM
+    }
+
+    /**
+     * Defines how many times the content of a record is parsed.
+     */
+    enum Parse {
+        /**
+         * Default: The {@link Strategy} and each transformer parse the content independently.
+         */
+        PER_STEP,
+        /**
+         * The content is parsed once to a Saxon document, which is used both for extracting the values for the
+         * {@link Strategy} and as input for the first transformer. Requires the first transformer to be XSLT based.
+         */
+        ONCE
+    }
+
     /**
      * Creates a view from the given YAML. Expects the YAML to contain a single entry,
      * where the key is the ID for the view and the value is the configuration of the view.
@@ -110,6 +182,8 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
         String[] mimeTokens = conf.getString(MIME_KEY).split("/", 2);
         mime = new MediaType(mimeTokens[0], mimeTokens[1]);
         strategy = Strategy.valueOf(conf.getString(STRATEGY_KEY, "NONE"));
+        handoff = Handoff.valueOf(conf.getString(HANDOFF_KEY, "STRING").toUpperCase(Locale.ROOT));
+        parse = Parse.valueOf(conf.getString(PARSE_KEY, "PER_STEP").toUpperCase(Locale.ROOT));
         if (conf.isEmpty()) {
             throw new IllegalArgumentException("No transformer specified for view '" + id + "'");
         }
@@ -121,28 +195,307 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
             }
         }
 
+        if (handoff == Handoff.XDM && !stream().allMatch(transformer -> transformer instanceof XSLTTransformer)) {
+            throw new IllegalArgumentException(
+                    "The view '" + id + "' uses handoff " + handoff + ", which requires all transformers to be " +
+                    "XSLT based, but the transformers were " + super.toString());
+        }
+        if (parse == Parse.ONCE && (isEmpty() || !(get(0) instanceof XSLTTransformer))) {
+            throw new IllegalArgumentException(
+                    "The view '" + id + "' uses parse " + parse + ", which requires the first transformer to be " +
+                    "XSLT based, but the transformers were " + super.toString());
+        }
+        treeExtractor = createTreeExtractor();
+        version = calculateVersion();
+        useStore = true;
+
+        extractTimer = Stats.getViewStepTimer(origin, id, "extract", null, "records");
+        rightsTimer = Stats.getViewStepTimer(origin, id, "rights", null, "records");
+        batchRightsTimer = Stats.getViewStepTimer(origin, id, "batchRights", null, "batches");
+        batchTranscriptionTimer = Stats.getViewStepTimer(origin, id, "batchTranscription", null, "batches");
+        for (int i = 0 ; i < size() ; i++) {
+            transformerTimers.add(Stats.getViewStepTimer(
+                    origin, id, "step" + (i+1) + "_" + get(i).getID(), get(i).getStylesheet(), "records"));
+        }
+        limiter = AdaptiveLimiter.createForTransformations(origin + "/" + id, Stats.getViewStepTimer(origin, id, "queue", null, "records"));
+
         log.info("Created " + this);
     }
 
+    /**
+     * Create a profiling copy of the given view, where the XSLT transformers are replaced by
+     * {@link XSLTTransformer#profiled(XSLTProfile) profiling versions}. See {@link #forProfiling(XSLTProfile)}.
+     * @param original the view to copy.
+     * @param profile  receives the measurements for the XSLT transformers.
+     * @throws IOException if a stylesheet could not be resolved.
+     */
+    private View(View original, XSLTProfile profile) throws IOException {
+        super(original.size());
+        id = original.id;
+        origin = original.origin;
+        mime = original.mime;
+        strategy = original.strategy;
+        handoff = original.handoff;
+        parse = original.parse;
+        version = original.version;
+        useStore = false;
+        for (DSTransformer transformer: original) {
+            add(transformer instanceof XSLTTransformer ?
+                        ((XSLTTransformer) transformer).profiled(profile) :
+                        transformer);
+        }
+
+        // Profiling is slower than normal transformations, so the timings are kept out of Stats.VIEWS
+        extractTimer = new Timing("extract", null, "records", Stats.DEFAULT_STATS);
+        rightsTimer = new Timing("rights", null, "records", Stats.DEFAULT_STATS);
+        batchRightsTimer = new Timing("batchRights", null, "batches", Stats.DEFAULT_STATS);
+        batchTranscriptionTimer = new Timing("batchTranscription", null, "batches", Stats.DEFAULT_STATS);
+        for (int i = 0 ; i < size() ; i++) {
+            transformerTimers.add(new Timing(
+                    "step" + (i+1) + "_" + get(i).getID(), get(i).getStylesheet(), "records", Stats.DEFAULT_STATS));
+        }
+        // Traced transformations are slow and would skew the limit for the original view
+        limiter = null;
+        // The profiling transformers might not share the Saxon configuration with the original
+        treeExtractor = createTreeExtractor();
+    }
+
+    /**
+     * @return an extractor for the {@link Strategy} values if the view uses {@link Parse#ONCE} and a strategy
+     *         that extracts values, else null.
+     */
+    private PreservicaTreeExtractor createTreeExtractor() {
+        if (parse != Parse.ONCE || strategy == Strategy.NONE) {
+            return null;
+        }
+        return new PreservicaTreeExtractor(((XSLTTransformer) get(0)).getProcessor());
+    }
+
+    /**
+     * Create a copy of this view that measures the time spent in the templates and functions of its XSLT
+     * transformers. The copy does not use {@link TransformedRecordStore}, so all records are transformed.
+     * This view is not affected.
+     * @param profile receives the measurements for the XSLT transformers.
+     * @return a profiling copy of this view.
+     * @throws IOException if a stylesheet could not be resolved.
+     */
+    public View forProfiling(XSLTProfile profile) throws IOException {
+        return new View(this, profile);
+    }
+
     public String getId() {
         return id;
     }
 
+    /**
+     * The version changes if the setup of the view or the content of any of the stylesheets used by the view changes.
+     * It is used for caching transformed records, see {@link RecordCache}.
+     * @return a hash of the setup of the view, including the content of the stylesheets used.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Transformed records can be cached if the view does more than passing the record content through unchanged.
+     * @return true if records transformed by the view are relevant for caching.
+     */
+    public boolean isCacheable() {
+        return strategy != Strategy.NONE || stream().anyMatch(transformer -> transformer.getStylesheet() != null);
+    }
+
     public MediaType getMime() {
         return mime;
     }
 
     @Override
     public String apply(DsRecordDto record) {
+        return apply(record, null, AdaptiveLimiter.Lane.INTERACTIVE);
+    }
+
+    /**
+     * Transform the given record without consulting {@link TransformedRecordStore}. Used for warm-up, where
+     * performing the transformation is the purpose. The transformation is performed in the
+     * {@link AdaptiveLimiter.Lane#BULK} lane.
+     * @param record the record to transform.
+     * @return the transformed record content.
+     */
+    public String applyWithoutStore(DsRecordDto record) {
+        StringWriter out = new StringWriter();
+        transform(record, null, AdaptiveLimiter.Lane.BULK, out);
+        return out.toString();
+    }
+
+    /**
+     * Create a function for transforming the given batch of records. For views with the {@link Strategy#DR} strategy,
+     * values are extracted and rights are calculated for all records in the batch up front, which allows the
+     * rights calculations to be performed together instead of one at a time as part of each transformation.
+     * If {@code index.useTransriptions} is enabled, the transcriptions for the batch are prefetched together with
+     * {@link TranscriptionLookup} as well.
+     * <p>
+     * The returned function can be used for any record, but only the records in the given batch will benefit
+     * from the preparation. If preparation fails for a record, it is handled as a single record when transformed.
+     * <p>
+     * Batches are part of bulk exports, so the returned function and the rights calculation are performed in the
+     * {@link AdaptiveLimiter.Lane#BULK} lane, giving single record requests precedence.
+     * @param records a batch of records that will be transformed with the returned function.
+     * @return a function for transforming the records in the batch.
+     */
+    public Function<DsRecordDto, String> forBatch(List<DsRecordDto> records) {
+        if (strategy != Strategy.DR || records.size() < 2) {
+            return record -> apply(record, null, AdaptiveLimiter.Lane.BULK);
+        }
+
+        List<DsRecordDto> batchRecords = new ArrayList<>(records.size());
+        List<XdmNode> batchDocuments = new ArrayList<>(records.size());
+        List<ExtractedPreservicaValues> batchValues = new ArrayList<>(records.size());
+        List<RightsCalculationInputDto> batchInputs = new ArrayList<>(records.size());
+        for (DsRecordDto record: records) {
+            TransformedRecordStore store = getStore(record);
+            if (store != null && store.contains(getStoreKey(record))) {
+                // No need for rights as the transformed record will be delivered from the store
+                continue;
+            }
+            try {
+                // With Parse.ONCE the document is kept for the transformation, so the record is only parsed once
+                XdmNode document = parse == Parse.ONCE && record.getData() != null ?
+                        buildDocument(record, record.getData()) : null;
+                ExtractedPreservicaValues extractedValues = extractValues(record, record.getData(), document);
+                batchInputs.add(extractedValues.asRightsCalculationInputDto(PlatformEnumDto.DRARKIV, record.getOrigin()));
+                batchDocuments.add(document);
+                batchValues.add(extractedValues);
+                batchRecords.add(record);
+            } catch (Exception e) {
+                log.debug("Unable to prepare record '{}' for batch rights calculation. " +
+                          "The record will be processed individually", record.getId(), e);
+            }
+        }
+
+        long batchStartNS = System.nanoTime();
+        List<RightsCalculationOutputDto> batchOutputs = RightsCalculator.calculateRights(batchInputs, AdaptiveLimiter.Lane.BULK);
+        batchRightsTimer.addNS(System.nanoTime() - batchStartNS);
+
+        // Identity based as the map is only used for the exact record objects in the batch
+        Map<DsRecordDto, PreparedRights> prepared = new IdentityHashMap<>(batchRecords.size());
+        for (int i = 0 ; i < batchRecords.size() ; i++) {
+            if (batchOutputs.get(i) != null) {
+                prepared.put(batchRecords.get(i), new PreparedRights(
+                        batchDocuments.get(i), batchValues.get(i), batchOutputs.get(i)));
+            }
+        }
+        if (useTranscriptions()) {
+            prepareTranscriptions(prepared.keySet());
+        }
+        log.debug("Prepared rights for {}/{} records for view '{}'", prepared.size(), records.size(), id);
+        return record -> apply(record, prepared.get(record), AdaptiveLimiter.Lane.BULK);
+    }
+
+    /**
+     * Look up transcriptions for all the prepared records together, so that they are ready when the stylesheet
+     * requests them. If the lookup fails, the transcriptions are looked up individually when the records are
+     * transformed.
+     * @param records the prepared records in a batch.
+     */
+    private void prepareTranscriptions(Collection<DsRecordDto> records) {
+        List<String> referenceIds = new ArrayList<>(records.size());
+        for (DsRecordDto record: records) {
+            if (record.getReferenceId() != null) {
+                referenceIds.add(record.getReferenceId());
+            }
+        }
+        if (referenceIds.isEmpty()) {
+            return;
+        }
+        long startNS = System.nanoTime();
+        try {
+            int transcriptions = TranscriptionLookup.prefetchTranscriptions(referenceIds);
+            log.debug("Prefetched {} transcriptions for {} records for view '{}'",
+                      transcriptions, referenceIds.size(), id);
+        } catch (Exception e) {
+            log.warn("Unable to look up transcriptions for {} records for view '{}'. " +
+                     "Transcriptions will be looked up individually", referenceIds.size(), id, e);
+            return;
+        }
+        batchTranscriptionTimer.addNS(System.nanoTime() - startNS);
+    }
+
+    /**
+     * Transform the given record, optionally using values and rights prepared by {@link #forBatch(List)}.
+     * @param record the record to transform.
+     * @param preparedRights values and rights for the record or null if they should be resolved for the record.
+     * @param lane the priority class for the transformation.
+     * @return the transformed record content.
+     */
+    private String apply(DsRecordDto record, PreparedRights preparedRights, AdaptiveLimiter.Lane lane) {
+        StringWriter out = new StringWriter();
+        apply(record, preparedRights, lane, out);
+        return out.toString();
+    }
+
+    /**
+     * Transform the given record, optionally using values and rights prepared by {@link #forBatch(List)}, and write
+     * the result to {@code out}.
+     * @param record the record to transform.
+     * @param preparedRights values and rights for the record or null if they should be resolved for the record.
+     * @param lane the priority class for the transformation.
+     * @param out the destination for the transformed record content.
+     */
+    private void apply(DsRecordDto record, PreparedRights preparedRights, AdaptiveLimiter.Lane lane, Writer out) {
+        TransformedRecordStore store = getStore(record);
+        if (store == null) {
+            transform(record, preparedRights, lane, out);
+            return;
+        }
+
+        String key = getStoreKey(record);
+        long generation = store.getGeneration();
+        String transformed = store.get(key);
+        if (transformed == null) {
+            StringWriter buffer = new StringWriter();
+            transform(record, preparedRights, lane, buffer);
+            transformed = buffer.toString();
+            store.put(key, transformed, generation);
+        }
+        write(record, transformed, out);
+    }
+
+    /**
+     * @param record a record that will be transformed by this view.
+     * @return the store for transformed records, if one is configured and it is relevant for the record, else null.
+     */
+    private TransformedRecordStore getStore(DsRecordDto record) {
+        if (!useStore || record.getmTime() == null || record.getId() == null || !isCacheable()) {
+            return null;
+        }
+        return TransformedRecordStore.getInstance();
+    }
+
+    /**
+     * @return the key for the given record transformed with this view in {@link TransformedRecordStore}.
+     */
+    private String getStoreKey(DsRecordDto record) {
+        return origin + "|" + record.getId() + "|" + record.getmTime() + "|" + id + "|" + version;
+    }
+
+    /**
+     * Perform the transformation of the given record, without consulting {@link TransformedRecordStore}.
+     * @param record the record to transform.
+     * @param preparedRights values and rights for the record or null if they should be resolved for the record.
+     * @param lane the priority class for the transformation.
+     * @param out the destination for the transformed record content.
+     */
+    private void transform(DsRecordDto record, PreparedRights preparedRights, AdaptiveLimiter.Lane lane, Writer out) {
         final Map<String, String> metadata = createBasicMetadataMap(record);
         String content = record.getData();
+        XdmNode document = preparedRights != null && preparedRights.document != null ? preparedRights.document :
+                parse == Parse.ONCE && content != null ? buildDocument(record, content) : null;
 
         switch (strategy) {
             case DR:
-                applyDrStrategy(record, content, metadata);
+                applyDrStrategy(record, content, document, metadata, preparedRights, lane);
                 break;
             case MANIFESTATION:
-                applyManifestationStrategy(record, content, metadata);
+                applyManifestationStrategy(record, content, document, metadata);
                 break;
             case NONE:
                 break;
@@ -151,19 +504,176 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
                         "Allowed strategies are: '" + Arrays.toString(Strategy.values()) + "'.");
         }
 
+        if (isEmpty()) {
+            write(record, content, out);
+            return;
+        }
+
+        if (limiter == null) {
+            applyTransformers(record, content, document, metadata, out);
+        } else {
+            if (preparedRights == null) {
+                // Transcriptions for batches are prefetched in forBatch
+                prefetchTranscription(metadata);
+            }
+            limiter.execute(lane, () -> applyTransformers(record, content, document, metadata, out));
+        }
+    }
+
+    /**
+     * Look up the transcription for a record before the transformation is given a permit by the {@link #limiter},
+     * so that waiting for ds-storage neither holds a permit nor counts as latency for the transformation.
+     * If the lookup fails, the transcription is looked up when the stylesheet requests it.
+     * @param metadata the parameters for the transformation, holding the reference ID for the transcription if the
+     *                 record has one and transcriptions are enabled.
+     */
+    private void prefetchTranscription(Map<String, String> metadata) {
+        String referenceId = metadata.get("transcriptionReferenceId");
+        if (referenceId == null) {
+            return;
+        }
+        try {
+            TranscriptionLookup.prefetchTranscriptions(List.of(referenceId));
+        } catch (Exception e) {
+            log.debug("Unable to prefetch transcription for reference ID '{}' for view '{}'", referenceId, id, e);
+        }
+    }
+
+    /**
+     * Parse the content of the record for {@link Parse#ONCE}, measuring the time spent as part of extraction.
+     * @param record  the record with the content, used for logging.
+     * @param content XML.
+     * @return the parsed content.
+     * @throws InternalServiceException if the content could not be parsed.
+     */
+    private XdmNode buildDocument(DsRecordDto record, String content) {
+        long startNS = System.nanoTime();
+        try {
+            return ((XSLTTransformer) get(0)).buildDocument(content);
+        } catch (SaxonApiException e) {
+            log.error("Error parsing content for recordId: '{}'.", record.getId(), e);
+            throw new InternalServiceException("Error parsing content for record:" + record.getId(), e);
+        } finally {
+            extractTimer.addNS(System.nanoTime() - startNS);
+        }
+    }
 
-        for (DSTransformer transformer: this) {
+    /**
+     * Apply the transformers for the view to the content, after the strategy has been applied.
+     * @param record   the record to transform.
+     * @param content  the content of the record, after the strategy has been applied.
+     * @param document the parsed content for {@link Parse#ONCE}, else null.
+     * @param metadata map containing values that are to be used in the transformations.
+     * @param out      the destination for the transformed content.
+     */
+    private void applyTransformers(DsRecordDto record, String content, XdmNode document,
+                                   Map<String, String> metadata, Writer out) {
+        if (handoff == Handoff.XDM) {
+            applyXdmHandoff(record, document != null ? document : new XdmAtomicValue(content), metadata, out);
+            return;
+        }
+
+        int first = 0;
+        if (document != null) {
+            // The parsed content is passed directly to the first transformer
+            XSLTTransformer transformer = (XSLTTransformer) get(0);
+            long startNS = System.nanoTime();
+            try {
+                if (size() == 1) {
+                    transformer.applyXdm(document, metadata, out);
+                    return;
+                }
+                content = transformer.applyXdmToString(document, metadata);
+            } catch (Exception e) {
+                throw transformerException(transformer, record, metadata, e);
+            } finally {
+                transformerTimers.get(0).addNS(System.nanoTime() - startNS);
+            }
+            first = 1;
+        }
+
+        for (int i = first ; i < size() - 1 ; i++) {
+            DSTransformer transformer = get(i);
+            long startNS = System.nanoTime();
             try {
                 content = transformer.apply(content, metadata);
             } catch (Exception e) {
-                String message = String.format(
-                        Locale.ROOT, "Exception in View '%s' while calling %s with recordID '%s' and metadata %s",
-                        getId(), transformer, record.getId(), metadata);
-                log.warn(message, e);
-                throw new InternalServiceException(message);
+                throw transformerException(transformer, record, metadata, e);
+            } finally {
+                transformerTimers.get(i).addNS(System.nanoTime() - startNS);
             }
         }
-        return content;
+        DSTransformer last = get(size() - 1);
+        long startNS = System.nanoTime();
+        try {
+            last.apply(content, metadata, out);
+        } catch (Exception e) {
+            throw transformerException(last, record, metadata, e);
+        } finally {
+            transformerTimers.get(size() - 1).addNS(System.nanoTime() - startNS);
+        }
+    }
+
+    /**
+     * Apply the transformers, passing the XDM result of each transformer directly to the next, so that the content
+     * is only serialised by the last transformer. See {@link Handoff#XDM}.
+     * @param record   the record to transform.
+     * @param value    the content of the record, after the strategy has been applied, either as text or parsed.
+     * @param metadata map containing values that are to be used in the XSLT transformations.
+     * @param out      the destination for the transformed content.
+     */
+    private void applyXdmHandoff(DsRecordDto record, XdmValue value, Map<String, String> metadata, Writer out) {
+        for (int i = 0 ; i < size() - 1 ; i++) {
+            XSLTTransformer transformer = (XSLTTransformer) get(i);
+            long startNS = System.nanoTime();
+            try {
+                value = transformer.applyXdm(value, metadata);
+            } catch (Exception e) {
+                throw transformerException(transformer, record, metadata, e);
+            } finally {
+                transformerTimers.get(i).addNS(System.nanoTime() - startNS);
+            }
+        }
+        XSLTTransformer last = (XSLTTransformer) get(size() - 1);
+        long startNS = System.nanoTime();
+        try {
+            last.applyXdm(value, metadata, out);
+        } catch (Exception e) {
+            throw transformerException(last, record, metadata, e);
+        } finally {
+            transformerTimers.get(size() - 1).addNS(System.nanoTime() - startNS);
+        }
+    }
+
+    /**
+     * Write untransformed content to {@code out}. Nothing is written if the content is null.
+     */
+    private void write(DsRecordDto record, String content, Writer out) {
+        if (content == null) {
+            return;
+        }
+        try {
+            out.write(content);
+        } catch (IOException e) {
+            String message = String.format(
+                    Locale.ROOT, "Exception in View '%s' while writing content for recordID '%s'",
+                    getId(), record.getId());
+            log.warn(message, e);
+            throw new InternalServiceException(message);
+        }
+    }
+
+    /**
+     * Log the given exception from a transformer and create an exception for the caller.
+     * @return an exception describing the problem, ready for throwing.
+     */
+    private InternalServiceException transformerException(
+            DSTransformer transformer, DsRecordDto record, Map<String, String> metadata, Exception e) {
+        String message = String.format(
+                Locale.ROOT, "Exception in View '%s' while calling %s with recordID '%s' and metadata %s",
+                getId(), transformer, record.getId(), metadata);
+        log.warn(message, e);
+        return new InternalServiceException(message);
     }
 
     /**
@@ -176,24 +686,26 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
      * </ul>
      * @param record to apply the strategy to.
      * @param content of the record.
+     * @param document the parsed content for {@link Parse#ONCE}, else null.
      * @param metadata map containing values that are to be used in the XSLT transformation.
+     * @param preparedRights values and rights prepared for the record or null if they should be resolved here.
+     * @param lane the priority class for the rights calculation, if it is resolved here.
      */
-    private void applyDrStrategy(DsRecordDto record, String content, Map<String, String> metadata) {
+    private void applyDrStrategy(DsRecordDto record, String content, XdmNode document, Map<String, String> metadata,
+                                 PreparedRights preparedRights, AdaptiveLimiter.Lane lane) {
         ExtractedPreservicaValues extractedValues;
-      
-        try {
-            extractedValues = ExtractedPreservicaValues.extractValuesFromPreservicaContent(content, record.getId());
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            log.error("Error extracting values from Preservica content. recordId: '{}'.", record.getId(), e);
-            throw new InternalServiceException("Error extracting values from Preservica content for record:" + record.getId(), e);
-        }
+        RightsCalculationOutputDto rightsOutput;
 
-        String url = ServiceConfig.getConfig().getString("licensemodule.url");
-        DsLicenseClient licenseClient = new DsLicenseClient(url);
+        if (preparedRights != null) {
+            extractedValues = preparedRights.extractedValues;
+            rightsOutput = preparedRights.rightsOutput;
+        } else {
+            extractedValues = extractValues(record, content, document);
 
-        PlatformEnumDto platform = PlatformEnumDto.DRARKIV;
-        RightsCalculationInputDto rightsInputDto = extractedValues.asRightsCalculationInputDto(platform, record.getOrigin());
-        RightsCalculationOutputDto rightsOutput = licenseClient.calculateRights(rightsInputDto);
+            PlatformEnumDto platform = PlatformEnumDto.DRARKIV;
+            RightsCalculationInputDto rightsInputDto = extractedValues.asRightsCalculationInputDto(platform, record.getOrigin());
+            rightsOutput = rightsTimer.measure(() -> RightsCalculator.calculateRights(rightsInputDto, lane));
+        }
 
         extractStartAndEndDatesToMetadataMap(metadata, extractedValues);
         // The following three methods are all related to holdback and ownproduction calculations.
@@ -208,20 +720,13 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
             metadata.put("productionIdRestrictedDr", String.valueOf(rightsOutput.getDr().getDrIdRestricted()));
         }
 
-        boolean useTranscriptions=  ServiceConfig.getConfig().getBoolean("index.useTransriptions");
-        boolean hasTranscription=false;
-        //Transcription text.
-        String refrenceId = record.getReferenceId();        
-        if (refrenceId != null && useTranscriptions) {
-           String transcriptionText=getTranscriptionText(record.getReferenceId());
-           if (transcriptionText != null) {
-              log.debug("Found transcription text for fileId:"+refrenceId);
-              metadata.put("has_transcription", "true");
-              metadata.put("transcription", transcriptionText);
-              hasTranscription=true;
-           }                           
-        }        
-        metadata.put("has_transcription", ""+hasTranscription);               
+        // The transcription can be large, so it is not passed as a parameter. Instead the stylesheet resolves it
+        // from the reference ID with TranscriptionFunction, if it needs it
+        if (record.getReferenceId() != null && useTranscriptions()) {
+            metadata.put("transcriptionReferenceId", record.getReferenceId());
+        } else {
+            metadata.put("has_transcription", "false");
+        }
         metadata.put("platform", "DRARKIV");
 
         metadata.put("dsIdRestricted", String.valueOf(rightsOutput.getDr().getDsIdRestricted()));
@@ -236,17 +741,36 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
      * </ul>
      * @param record to apply the strategy to.
      * @param content of the record.
+     * @param document the parsed content for {@link Parse#ONCE}, else null.
      * @param metadata map containing values that are to be used in the XSLT transformation.
      */
-    private void applyManifestationStrategy(DsRecordDto record, String content, Map<String, String> metadata) {
-        ExtractedPreservicaValues extractedValues;
+    private void applyManifestationStrategy(DsRecordDto record, String content, XdmNode document,
+                                            Map<String, String> metadata) {
+        ExtractedPreservicaValues extractedValues = extractValues(record, content, document);
+        extractStartAndEndDatesToMetadataMap(metadata, extractedValues);
+    }
+
+    /**
+     * Extract values from Preservica content, measuring the time spent. If the content has already been parsed,
+     * the values are extracted from the parsed content.
+     * @param record   the record with the content, used for logging.
+     * @param content  Preservica XML.
+     * @param document the parsed content for {@link Parse#ONCE}, else null.
+     * @return the extracted values.
+     * @throws InternalServiceException if the values could not be extracted.
+     */
+    private ExtractedPreservicaValues extractValues(DsRecordDto record, String content, XdmNode document) {
+        long startNS = System.nanoTime();
         try {
-            extractedValues = ExtractedPreservicaValues.extractValuesFromPreservicaContent(content, record.getId());
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            return document != null ?
+                    treeExtractor.extract(document, record.getId()) :
+                    ExtractedPreservicaValues.extractValuesFromPreservicaContent(content, record.getId());
+        } catch (ParserConfigurationException | SAXException | IOException | SaxonApiException e) {
             log.error("Error extracting values from Preservica content. recordId: '{}'.", record.getId(), e);
             throw new InternalServiceException("Error extracting values from Preservica content for record:" + record.getId(), e);
+        } finally {
+            extractTimer.addNS(System.nanoTime() - startNS);
         }
-        extractStartAndEndDatesToMetadataMap(metadata, extractedValues);
     }
 
     /**
@@ -343,21 +867,13 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
         }
     }
 
-   private String getTranscriptionText(String fileId) {      
-      TranscriptionDto transcription = getStorage().getTranscription(fileId);
-      return transcription.getTranscription(); // can not be null. Will be empty DTO
+    /**
+     * @return true if transcriptions should be added to the metadata for DR records.
+     */
+    private static boolean useTranscriptions() {
+        return ServiceConfig.getConfig().getBoolean("index.useTransriptions");
     }
-    
-   private Storage getStorage() {
-       if (storage != null) {
-           log.debug("Init storage from View");
-           return storage;          
-       }
-      StorageHandler handler = new StorageHandler (ServiceConfig.getConfig());
-      storage= handler.getStorage(null);//Default storage
-      return storage;
-   }
-   
+
     /**
      * Add form and content values used for holdback calculation to the XSLT metadata map.
      * @param metadata map to add values to.
@@ -368,12 +884,85 @@ public class View extends ArrayList<DSTransformer> implements Function<DsRecordD
         metadata.put("holdbackContentValue", extractedValues.getContent());
     }
 
+    /**
+     * Values extracted from a record together with the rights calculated from them and, for {@link Parse#ONCE}, the
+     * parsed record that the values were extracted from.
+     */
+    private static class PreparedRights {
+        final XdmNode document;
+        final ExtractedPreservicaValues extractedValues;
+        final RightsCalculationOutputDto rightsOutput;
+
+        PreparedRights(XdmNode document, ExtractedPreservicaValues extractedValues,
+                       RightsCalculationOutputDto rightsOutput) {
+            this.document = document;
+            this.extractedValues = extractedValues;
+            this.rightsOutput = rightsOutput;
+        }
+    }
+
+    /**
+     * Calculate a hash from the build version of the application, the setup of the view and the content of the
+     * stylesheets used by the transformers, including all stylesheets imported or included from them.
+     * @return a hex representation of the hash.
+     */
+    private String calculateVersion() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((BuildInfoManager.getVersion() + "|" + BuildInfoManager.getBuildTime() + "|" +
+                           strategy + "|" + handoff + "|" + super.toString()).getBytes(StandardCharsets.UTF_8));
+            Set<String> visited = new HashSet<>();
+            for (DSTransformer transformer: this) {
+                if (transformer.getStylesheet() != null) {
+                    digestStylesheet(digest, transformer.getStylesheet(), visited);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 should always be available", e);
+        }
+    }
+
+    /**
+     * Add the content of the given stylesheet and the stylesheets it imports or includes to the digest.
+     * Stylesheets are resolved the same way as when they are compiled, see {@link XSLTTransformer}.
+     * @param digest     receives the content of the stylesheets.
+     * @param stylesheet the stylesheet as stated in the configuration or in {@code href} of an import or include.
+     * @param visited    stylesheets already added to the digest.
+     */
+    private void digestStylesheet(MessageDigest digest, String stylesheet, Set<String> visited) {
+        if (!visited.add(stylesheet)) {
+            return;
+        }
+        URL stylesheetURL = Resolver.resolveURL(stylesheet);
+        if (stylesheetURL == null) {
+            log.warn("Unable to resolve stylesheet '{}' for calculating the version of view '{}'", stylesheet, id);
+            return;
+        }
+        byte[] content;
+        try (InputStream is = stylesheetURL.openStream()) {
+            content = is.readAllBytes();
+        } catch (IOException e) {
+            log.warn("Unable to read stylesheet '{}' for calculating the version of view '{}'", stylesheet, id, e);
+            return;
+        }
+        digest.update(stylesheet.getBytes(StandardCharsets.UTF_8));
+        digest.update(content);
+        Matcher modules = STYLESHEET_MODULE.matcher(new String(content, StandardCharsets.UTF_8));
+        while (modules.find()) {
+            digestStylesheet(digest, modules.group(1), visited);
+        }
+    }
+
     @Override
     public String toString() {
         return "View(" +
                "id='" + id + '\'' +
                ", mime=" + mime +
                ", strategy=" + strategy +
+               ", handoff=" + handoff +
+               ", parse=" + parse +
+               ", version=" + version +
                ", origin=" + origin +
                ", transformers=" + super.toString() +
                ')';
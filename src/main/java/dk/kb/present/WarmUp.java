@@ -0,0 +1,216 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.Timing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Warm-up of the transformation pipeline at startup.
+ * <p>
+ * A configured corpus of sample records ({@code warmup.records}) is retrieved from storage and transformed with every
+ * {@link View} of the origins for the records, until the time spent per round of transformations stabilises or a
+ * limit is reached. If no sample records are configured, the first {@code warmup.sampleRecordsPerOrigin} records
+ * of each origin are used. This triggers JIT compilation and the lazy initialisation in Saxon before real requests
+ * arrive.
+ * <p>
+ * Until warm-up has finished, {@link #isReady()} returns false, which is reflected in the {@code health} of
+ * {@code /monitor/status}. Warm-up is performed by a background thread so that deployment is not blocked.
+ */
+public class WarmUp {
+    private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    public static final String ENABLED_KEY = "warmup.enabled";
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final String RECORDS_KEY = "warmup.records";
+    public static final String SAMPLE_RECORDS_KEY = "warmup.sampleRecordsPerOrigin";
+    public static final int DEFAULT_SAMPLE_RECORDS = 20;
+    public static final String MIN_ROUNDS_KEY = "warmup.minRounds";
+    public static final int DEFAULT_MIN_ROUNDS = 3;
+    public static final String MAX_ROUNDS_KEY = "warmup.maxRounds";
+    public static final int DEFAULT_MAX_ROUNDS = 50;
+    public static final String STABLE_FRACTION_KEY = "warmup.stableFraction";
+    public static final double DEFAULT_STABLE_FRACTION = 0.05;
+    public static final String MAX_SECONDS_KEY = "warmup.maxSeconds";
+    public static final int DEFAULT_MAX_SECONDS = 300;
+
+    public enum STATE { pending, running, done, failed }
+
+    private static volatile STATE state = STATE.pending;
+    private static volatile String summary = "";
+    private static volatile long startTime = -1;
+    private static volatile long endTime = -1;
+
+    /**
+     * Start warm-up in a background thread, if it has not already been started. If warm-up is disabled or there are
+     * neither configured sample records nor sampling from the origins, warm-up is marked as done immediately.
+     * @param originHandler used for resolving and retrieving the sample records.
+     */
+    public static synchronized void start(OriginHandler originHandler) {
+        if (state != STATE.pending) {
+            return;
+        }
+        boolean enabled = ServiceConfig.getConfig().getBoolean(ENABLED_KEY, DEFAULT_ENABLED);
+        List<String> recordIDs = ServiceConfig.getConfig().getList(RECORDS_KEY, Collections.emptyList());
+        int samplesPerOrigin = ServiceConfig.getConfig().getInteger(SAMPLE_RECORDS_KEY, DEFAULT_SAMPLE_RECORDS);
+        if (!enabled || (recordIDs.isEmpty() && samplesPerOrigin <= 0)) {
+            log.info("Warm-up skipped as {}={}, {} sample records are configured with {} and {}={}",
+                     ENABLED_KEY, enabled, recordIDs.size(), RECORDS_KEY, SAMPLE_RECORDS_KEY, samplesPerOrigin);
+            summary = "skipped";
+            state = STATE.done;
+            return;
+        }
+        state = STATE.running;
+        startTime = System.currentTimeMillis();
+        Thread warmer = new Thread(() -> run(originHandler, recordIDs, samplesPerOrigin), "warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * @return true if warm-up has finished (successfully or not) or was skipped.
+     */
+    public static boolean isReady() {
+        return state == STATE.done || state == STATE.failed;
+    }
+
+    /**
+     * @return the state of warm-up in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        long ms = startTime == -1 ? 0 : (endTime == -1 ? System.currentTimeMillis() : endTime) - startTime;
+        return String.format(Locale.ROOT, "warmup(state=%s, ms=%d, %s)", state, ms, summary);
+    }
+
+    /**
+     * Retrieve the sample records and transform them with all views for their origins.
+     * @param originHandler used for resolving and retrieving the sample records.
+     * @param recordIDs        IDs for the sample records.
+     * @param samplesPerOrigin the number of records to sample from each origin if {@code recordIDs} is empty.
+     */
+    private static void run(OriginHandler originHandler, List<String> recordIDs, int samplesPerOrigin) {
+        try {
+            long deadline = System.currentTimeMillis() + 1000L *
+                    ServiceConfig.getConfig().getInteger(MAX_SECONDS_KEY, DEFAULT_MAX_SECONDS);
+            Map<DSOrigin, List<DsRecordDto>> samples = recordIDs.isEmpty() ?
+                    sampleOrigins(originHandler, samplesPerOrigin) :
+                    retrieveSamples(originHandler, recordIDs);
+            int views = 0;
+            int rounds = 0;
+            for (Map.Entry<DSOrigin, List<DsRecordDto>> entry: samples.entrySet()) {
+                for (View view: entry.getKey().getViews().values()) {
+                    if (System.currentTimeMillis() > deadline) {
+                        log.warn("Warm-up reached the limit of {} seconds. Skipping remaining views",
+                                 ServiceConfig.getConfig().getInteger(MAX_SECONDS_KEY, DEFAULT_MAX_SECONDS));
+                        break;
+                    }
+                    rounds += warmView(entry.getKey().getId(), view, entry.getValue(), deadline);
+                    views++;
+                    summary = "views=" + views + ", rounds=" + rounds;
+                }
+            }
+            endTime = System.currentTimeMillis();
+            log.info("Warm-up finished in {} ms with {} sample records for {} views using {} rounds",
+                     endTime - startTime, samples.values().stream().mapToInt(List::size).sum(), views, rounds);
+            state = STATE.done;
+        } catch (Exception e) {
+            endTime = System.currentTimeMillis();
+            log.warn("Warm-up failed after {} ms. The service will be marked as ready anyway", endTime - startTime, e);
+            summary = summary + ", error='" + e.getMessage() + "'";
+            state = STATE.failed;
+        }
+    }
+
+    /**
+     * Retrieve the sample records, grouped by origin. Records that cannot be retrieved are logged and skipped.
+     */
+    private static Map<DSOrigin, List<DsRecordDto>> retrieveSamples(OriginHandler originHandler, List<String> recordIDs) {
+        Map<DSOrigin, List<DsRecordDto>> samples = new LinkedHashMap<>();
+        for (String recordID: recordIDs) {
+            try {
+                DSOrigin origin = originHandler.getOriginForRecord(recordID);
+                samples.computeIfAbsent(origin, o -> new ArrayList<>()).add(origin.getDSRecord(recordID));
+            } catch (Exception e) {
+                log.warn("Unable to retrieve warm-up record '{}'. The record will be skipped", recordID, e);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Retrieve the first records from each origin. Origins where records cannot be retrieved are logged and skipped.
+     */
+    private static Map<DSOrigin, List<DsRecordDto>> sampleOrigins(OriginHandler originHandler, int samplesPerOrigin) {
+        Map<DSOrigin, List<DsRecordDto>> samples = new LinkedHashMap<>();
+        for (DSOrigin origin: originHandler.getOrigins()) {
+            try {
+                List<DsRecordDto> records = origin.getSampleRecords(samplesPerOrigin);
+                if (!records.isEmpty()) {
+                    samples.put(origin, records);
+                }
+            } catch (Exception e) {
+                log.warn("Unable to retrieve warm-up records for origin '{}'. The origin will be skipped",
+                         origin.getId(), e);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Transform the sample records with the view in rounds until the time for a round is within
+     * {@code warmup.stableFraction} of the time for the previous round.
+     * @return the number of performed rounds.
+     */
+    private static int warmView(String originID, View view, List<DsRecordDto> records, long deadline) {
+        int minRounds = ServiceConfig.getConfig().getInteger(MIN_ROUNDS_KEY, DEFAULT_MIN_ROUNDS);
+        int maxRounds = ServiceConfig.getConfig().getInteger(MAX_ROUNDS_KEY, DEFAULT_MAX_ROUNDS);
+        double stableFraction = ServiceConfig.getConfig().getDouble(STABLE_FRACTION_KEY, DEFAULT_STABLE_FRACTION);
+        Timing timer = Stats.getWarmUpTimer(originID, view.getId());
+
+        long previousNS = -1;
+        int round = 0;
+        while (round < maxRounds && System.currentTimeMillis() < deadline) {
+            round++;
+            long roundNS = System.nanoTime();
+            for (DsRecordDto record: records) {
+                try {
+                    view.applyWithoutStore(record);
+                } catch (Exception e) {
+                    log.debug("Warm-up transformation of '{}' with view '{}' failed", record.getId(), view.getId(), e);
+                }
+            }
+            roundNS = System.nanoTime() - roundNS;
+            timer.addNS(roundNS);
+            if (round >= minRounds && previousNS > 0 &&
+                Math.abs(roundNS - previousNS) <= previousNS * stableFraction) {
+                break;
+            }
+            previousNS = roundNS;
+        }
+        log.debug("Warmed view '{}' for origin '{}' with {} rounds", view.getId(), originID, round);
+        return round;
+    }
+
+}
@@ -2,9 +2,11 @@ package dk.kb.present.api.v1.impl;
 
 import dk.kb.present.PresentFacade;
 import dk.kb.present.Stats;
+import dk.kb.present.SpeculativeRetrieval;
 import dk.kb.present.api.v1.DsPresentApi;
 import dk.kb.present.model.v1.FormatDto;
 import dk.kb.present.model.v1.OriginDto;
+import dk.kb.present.webservice.AccessCache;
 import dk.kb.present.webservice.AccessUtil;
 import dk.kb.util.webservice.exception.ForbiddenServiceException;
 import dk.kb.util.webservice.ImplBase;
@@ -116,14 +118,17 @@ public class DsPresentApiServiceImpl extends ImplBase implements DsPresentApi {
     @Override
     public String getRecord(String id, FormatDto format) throws ServiceException {
         long startNS = System.nanoTime();
+        SpeculativeRetrieval.Retrieval retrieval = null;
         try {
             log.debug("getRecord(id='{}', format='{}') called with groups {} and call details: {}",
                     id, format, AccessUtil.getGroups(httpHeaders), getCallDetails());
+            // The record is retrieved while access is checked, if enabled. It is only used if access is ok
+            retrieval = PresentFacade.startRetrieval(id);
             ACCESS access = Stats.RECORD_ACCESS.measure(() ->
                     AccessUtil.createAccessChecker(AccessUtil.getGroups(httpHeaders), RECORD_ACCESS_TYPE).apply(id));
             switch (access) {
                 case ok:
-                    return PresentFacade.getRecord(id, format);
+                    return PresentFacade.getRecord(id, format, retrieval);
                 case not_allowed:
                     // TODO: Log access tokens or roles when available
                     log.debug("getRecord(id='{}', format='{}'): User access not allowed", id, format);
@@ -137,6 +142,10 @@ public class DsPresentApiServiceImpl extends ImplBase implements DsPresentApi {
         } catch (Exception e){
             throw handleException(e);
         } finally {
+            if (retrieval != null) {
+                // Cancels the retrieval if access was not ok
+                retrieval.discard();
+            }
             Stats.GET_RECORD.addNS(System.nanoTime()-startNS);
             log.debug("getRecord(id='{}', format='{}') finished with stats {}",
                     id, format, Stats.GET_RECORD);
@@ -186,6 +195,41 @@ public class DsPresentApiServiceImpl extends ImplBase implements DsPresentApi {
         }
     }
 
+    @Override
+    public String profileXslt(String origin, Long mTime, Long maxRecords, FormatDto format, Integer maxComponents) {
+        log.debug("profileXslt(origin='{}', mTime={}, maxRecords={}, format='{}', maxComponents={}) called with " +
+                  "groups {} and call details: {}",
+                  origin, mTime, maxRecords, format, maxComponents, AccessUtil.getGroups(httpHeaders),
+                  getCallDetails());
+        try {
+            if (!AccessUtil.getGroups(httpHeaders).contains(AccessUtil.GROUP_ADMIN)) {
+                throw new ForbiddenServiceException("Profiling requires the role '" + AccessUtil.GROUP_ADMIN + "'");
+            }
+            return PresentFacade.profileView(origin, mTime, maxRecords, format, maxComponents);
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
+    @Override
+    public String clearRightsCache() {
+        log.debug("clearRightsCache() called with groups {} and call details: {}",
+                  AccessUtil.getGroups(httpHeaders), getCallDetails());
+        try {
+            if (!AccessUtil.getGroups(httpHeaders).contains(AccessUtil.GROUP_ADMIN)) {
+                throw new ForbiddenServiceException(
+                        "Clearing the rights cache requires the role '" + AccessUtil.GROUP_ADMIN + "'");
+            }
+            long rights = PresentFacade.clearRightsCache();
+            long access = AccessCache.clear();
+            long records = PresentFacade.clearTransformedRecords();
+            return "Removed " + rights + " cached rights, " + access + " cached access decisions and " + records +
+                   " cached transformed records. Stored transformed records were invalidated";
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
     @Override
     public String transformsolrschemaPost(String format, String rawSchema) {
         try {
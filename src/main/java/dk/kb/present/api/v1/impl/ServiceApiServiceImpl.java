@@ -1,13 +1,13 @@
 package dk.kb.present.api.v1.impl;
 
 import dk.kb.present.Stats;
+import dk.kb.present.WarmUp;
 import dk.kb.present.api.v1.ServiceApi;
 import dk.kb.present.model.v1.StatusDto;
 import dk.kb.present.model.v1.WhoamiDto;
 import dk.kb.present.model.v1.WhoamiTokenDto;
 import dk.kb.present.webservice.KBAuthorizationInterceptor;
 import dk.kb.util.BuildInfoManager;
-import dk.kb.util.Timing;
 import dk.kb.util.webservice.ImplBase;
 import dk.kb.util.webservice.exception.ServiceException;
 
@@ -85,8 +85,8 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
                 .gitBranch(BuildInfoManager.getGitBranch())
                 .gitClosestTag(BuildInfoManager.getGitClosestTag())
                 .gitCommitTime(BuildInfoManager.getGitCommitTime())
-                .health("ok")
-                .stats(Stats.GET_RECORD.toString((Timing.STATS[])null, true));
+                .health(WarmUp.isReady() ? "ok" : "warming up")
+                .stats(Stats.getStatus());
     }
 
     /**
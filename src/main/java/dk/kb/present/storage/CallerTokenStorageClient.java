@@ -0,0 +1,57 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.storage;
+
+import dk.kb.present.util.CallerToken;
+import dk.kb.present.util.ServiceExceptions;
+import dk.kb.storage.client.v1.DsStorageApi;
+import dk.kb.storage.invoker.v1.ApiClient;
+import dk.kb.storage.invoker.v1.ApiException;
+import dk.kb.storage.model.v1.TranscriptionDto;
+import dk.kb.storage.util.DsStorageClient;
+
+/**
+ * {@link DsStorageClient} that sends the token from {@link CallerToken#get()} for transcription lookups, which are
+ * performed by worker threads on behalf of a caller, see {@link dk.kb.present.TranscriptionLookup}.
+ * {@link DsStorageClient} only resolves the token for the request processed by the current thread.
+ * <p>
+ * Streaming exports are handled by {@link StorageHttpClient#getRecords}.
+ */
+public class CallerTokenStorageClient extends DsStorageClient {
+    private final String storageUrl;
+    private final DsStorageApi api;
+
+    /**
+     * @param storageUrl the full URL to the service, e.g. {@code http://localhost:9072/ds-storage/v1/}.
+     */
+    public CallerTokenStorageClient(String storageUrl) {
+        super(storageUrl);
+        this.storageUrl = storageUrl;
+        ApiClient apiClient = new ApiClient();
+        apiClient.updateBaseUri(storageUrl.replaceAll("/+$", ""));
+        apiClient.setRequestInterceptor(CallerToken::authorize);
+        api = new DsStorageApi(apiClient);
+    }
+
+    @Override
+    public TranscriptionDto getTranscription(String fileId) {
+        try {
+            return api.getTranscription(fileId);
+        } catch (ApiException e) {
+            throw ServiceExceptions.forStatus(
+                    e.getCode(), "Unable to retrieve transcription '" + fileId + "' from " + storageUrl, e);
+        }
+    }
+}
@@ -43,8 +43,10 @@ public class DSStorage implements Storage {
 
 
     private final boolean isDefault;
-    
-    private static DsStorageClient storageClient;
+
+    private final StorageHttpClient httpClient;
+    private final StorageRecordCache recordCache;
+    private final DsStorageClient storageClient;
 
     /**
      * Create a Storage connection to a ds-storage server.
@@ -59,6 +61,25 @@ public class DSStorage implements Storage {
     public DSStorage(String id, String origin,
                      String storageUrl,
                      int batchCount, boolean isDefault) {
+        this(id, origin, storageUrl, batchCount, isDefault, StorageHttpClient.getClient(storageUrl), null);
+    }
+
+    /**
+     * Create a Storage connection to a ds-storage server.
+     * @param id the ID for the storage, used for connecting origins to storages.
+     * @param origin the origin used for requests to {@link DsStorageApi#getRecordsModifiedAfter(String, RecordTypeDto, Long, Long)}.
+     * @param storageUrl The full url to the service. Example: http://localhost:9072/ds-storage/v1/
+     * @param batchCount the number of records to request in one call when paging using
+     *                   {@link DsStorageApi#getRecordsModifiedAfter(String, RecordTypeDto, Long, Long)}.
+     * @param isDefault if true, this is the default storage for origins.
+     * @param httpClient the shared client for {@code storageUrl}, see {@link StorageHttpClient#getClient}.
+     * @param recordCache cache for single records retrieved with {@code httpClient}. If null, records are not cached.
+     */
+    @SuppressWarnings("JavadocLinkAsPlainText")
+    public DSStorage(String id, String origin,
+                     String storageUrl,
+                     int batchCount, boolean isDefault, StorageHttpClient httpClient,
+                     StorageRecordCache recordCache) {
         this.id = id;
         
         this.storageUrl = storageUrl;
@@ -68,7 +89,9 @@ public class DSStorage implements Storage {
         this.isDefault = isDefault;
        
 
-        storageClient = getDsStorageApiClient(storageUrl);
+        this.httpClient = httpClient;
+        this.recordCache = recordCache;
+        storageClient = httpClient.getStorageClient();
         log.info("Created " + this);
     }
 
@@ -86,7 +109,7 @@ public class DSStorage implements Storage {
     public DsRecordDto getDSRecord(String id) throws ServiceException{
         log.debug("getDSRecord(id='{}') called", id);
         try {
-            return storageClient.getRecord(id,false);
+            return getRecord(id, false);
         } catch (ServiceException e) {
             log.debug("Unable to retrieve record '" + id + "' from " + storageUrl + "...", e);
            throw e;
@@ -110,7 +133,7 @@ public class DSStorage implements Storage {
     public DsRecordDto getDSRecordTreeLocal(String id) throws ServiceException{
         log.debug("getDSRecordTreeLocal(id='{}') called", id);
         try {
-            DsRecordDto record = storageClient.getRecord(id,true);
+            DsRecordDto record = getRecord(id, true);
             if (record.getRecordType() != RecordTypeDto.DELIVERABLEUNIT){
                 log.warn("Requests for anything else than deliverableUnits are not allowed.");
                 throw new IllegalArgumentException("Requests for anything else than deliverableUnits are not allowed.");
@@ -123,6 +146,15 @@ public class DSStorage implements Storage {
     }
 
 
+    /**
+     * Retrieve a single record using {@link #recordCache} if available.
+     */
+    private DsRecordDto getRecord(String id, boolean includeLocalTree) {
+        return recordCache == null ?
+                httpClient.getRecord(id, includeLocalTree) :
+                recordCache.getRecord(id, includeLocalTree);
+    }
+
     @Override
     public ContinuationStream<DsRecordDto, Long> getDSRecords(final String origin, long mTime, long maxRecords) {
         log.debug("getDSRecords(origin='{}', mTime={}, maxRecords={}) called", origin, mTime, maxRecords);
@@ -149,9 +181,10 @@ public class DSStorage implements Storage {
         }
 
         try {
-            return recordType == null ?
-                    storageClient.getRecordsModifiedAfterStream(finalOrigin, mTime, maxRecords) :
-                    storageClient.getRecordsByRecordTypeModifiedAfterLocalTreeStream(finalOrigin, recordType, mTime, maxRecords);
+            return httpClient.getRecords(finalOrigin, recordType, mTime, maxRecords);
+        } catch (ServiceException e) {
+            // Already describes the problem, e.g. an invalid request
+            throw e;
         } catch (Exception e) {
             String message = String.format(
                     Locale.ROOT,
@@ -163,17 +196,6 @@ public class DSStorage implements Storage {
         }
     }
 
-    private static DsStorageClient getDsStorageApiClient(String storageUrl) {
-        if (storageClient!= null) {            
-        	return storageClient;
-        }
-                                                 
-        storageClient = new DsStorageClient(storageUrl);               
-        log.info("Ds-storage client generated from url:"+storageUrl);
-        return storageClient;
-      }
-    
-    
     @Override
     public String getID() {
         return id;
@@ -197,6 +219,7 @@ public class DSStorage implements Storage {
                ", batchCount='" + batchCount + '\'' +
                ", origin='" + origin + '\'' +
                ", isDefault=" + isDefault +
+               ", recordCache=" + (recordCache != null) +
                ')';
     }
 }
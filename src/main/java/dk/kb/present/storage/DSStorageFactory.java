@@ -28,6 +28,15 @@ public class DSStorageFactory implements StorageFactory {
     private static final String DBSERVERURL_KEY = "url";
     public static final String BATCH_COUNT_KEY = "batch.count";
     public static final int BATCH_COUNT_DEFAULT = 100;
+    public static final String HTTP_MAX_CONNECTIONS_KEY = "http.maxConnections";
+    public static final String HTTP_KEEP_ALIVE_SECONDS_KEY = "http.keepAliveSeconds";
+    public static final String HTTP_CONNECT_TIMEOUT_KEY = "http.connectTimeoutMS";
+    public static final String HTTP_RESPONSE_TIMEOUT_KEY = "http.responseTimeoutMS";
+    public static final String HTTP_COMPRESSION_KEY = "http.compression";
+    public static final String CACHE_MAX_BYTES_KEY = "cache.maxBytes";
+    public static final String CACHE_REVALIDATE_AFTER_KEY = "cache.revalidateAfterMS";
+    public static final String CACHE_REVALIDATE_TIMEOUT_KEY = "cache.revalidateTimeoutMS";
+    public static final String CACHE_STALE_GRACE_KEY = "cache.staleGraceSeconds";
 
     @Override
     public String getStorageType() {
@@ -44,6 +53,21 @@ public class DSStorageFactory implements StorageFactory {
         
         int batchCount = conf.getInteger(BATCH_COUNT_KEY, BATCH_COUNT_DEFAULT);
 
-        return new DSStorage(id, origin, dbServerUrl, batchCount, isDefault);
+        StorageHttpClient httpClient = StorageHttpClient.getClient(
+                dbServerUrl,
+                conf.getInteger(HTTP_MAX_CONNECTIONS_KEY, StorageHttpClient.DEFAULT_MAX_CONNECTIONS),
+                conf.getInteger(HTTP_KEEP_ALIVE_SECONDS_KEY, StorageHttpClient.DEFAULT_KEEP_ALIVE_SECONDS),
+                conf.getInteger(HTTP_CONNECT_TIMEOUT_KEY, StorageHttpClient.DEFAULT_CONNECT_TIMEOUT_MS),
+                conf.getInteger(HTTP_RESPONSE_TIMEOUT_KEY, StorageHttpClient.DEFAULT_RESPONSE_TIMEOUT_MS),
+                conf.getBoolean(HTTP_COMPRESSION_KEY, StorageHttpClient.DEFAULT_COMPRESSION));
+
+        StorageRecordCache recordCache = StorageRecordCache.create(
+                httpClient,
+                conf.getLong(CACHE_MAX_BYTES_KEY, StorageRecordCache.DEFAULT_MAX_BYTES),
+                conf.getInteger(CACHE_REVALIDATE_AFTER_KEY, StorageRecordCache.DEFAULT_REVALIDATE_AFTER_MS),
+                conf.getInteger(CACHE_REVALIDATE_TIMEOUT_KEY, StorageRecordCache.DEFAULT_REVALIDATE_TIMEOUT_MS),
+                conf.getInteger(CACHE_STALE_GRACE_KEY, StorageRecordCache.DEFAULT_STALE_GRACE_SECONDS));
+
+        return new DSStorage(id, origin, dbServerUrl, batchCount, isDefault, httpClient, recordCache);
     }
 }
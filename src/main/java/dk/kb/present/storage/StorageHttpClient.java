@@ -0,0 +1,530 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.storage;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.kb.present.Stats;
+import dk.kb.present.util.CallerToken;
+import dk.kb.present.util.ServiceExceptions;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.util.DsStorageClient;
+import dk.kb.util.Timing;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.webservice.stream.ContinuationStream;
+import dk.kb.util.webservice.stream.ContinuationUtil;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * HTTP layer for a single ds-storage https://github.com/kb-dk/ds-storage instance.
+ * <p>
+ * There is one client per backend URL, shared by all {@link DSStorage}s using that URL. Single record lookups and
+ * streaming exports are performed with a pool of keep-alive connections, bounded by {@code maxConnections}, and with
+ * compressed transfers ({@code gzip} or {@code deflate}) if the server supports it, which reduces the transfer time
+ * for large Preservica XML records considerably.
+ * <p>
+ * Transcriptions are delegated to a {@link CallerTokenStorageClient} for the URL.
+ * <p>
+ * Latency per call type is tracked under {@code storage} in {@code /monitor/status}, where {@link #getStatus()}
+ * also shows the state of the connection pools.
+ */
+public class StorageHttpClient {
+    private static final Logger log = LoggerFactory.getLogger(StorageHttpClient.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_RESPONSE_TIMEOUT_MS = 60000;
+    public static final boolean DEFAULT_COMPRESSION = true;
+
+    // Connections that have been idle for this long are checked before they are used
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+    private static final Map<String, StorageHttpClient> clients = new ConcurrentHashMap<>();
+
+    // Aborts requests that exceed their deadline, see getRecord(String, boolean, RecordResponse, int)
+    private static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "storage-request-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final ObjectReader RECORD_READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(DsRecordDto.class);
+
+    private final String storageUrl;
+    private final URI baseURI;
+    private final int maxConnections;
+    private final int keepAliveSeconds;
+    private final boolean compression;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final RequestConfig requestConfig;
+    private final CloseableHttpClient httpClient;
+    private final DsStorageClient storageClient;
+    private final Timing recordTimer;
+    private final Timing recordsTimer;
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Get the shared client for the given URL, creating it with default settings if it does not exist.
+     * @param storageUrl the full URL to the service, e.g. {@code http://localhost:9072/ds-storage/v1/}.
+     * @return the client for the URL.
+     */
+    public static StorageHttpClient getClient(String storageUrl) {
+        return getClient(storageUrl, DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS,
+                         DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_RESPONSE_TIMEOUT_MS, DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Get the shared client for the given URL, creating it with the given settings if it does not exist.
+     * If the client already exists, the given settings are ignored.
+     * @param storageUrl        the full URL to the service, e.g. {@code http://localhost:9072/ds-storage/v1/}.
+     * @param maxConnections    the maximum number of connections to the service.
+     * @param keepAliveSeconds  the maximum number of seconds an idle connection is kept open.
+     * @param connectTimeoutMS  the maximum number of milliseconds for establishing a connection.
+     * @param responseTimeoutMS the maximum number of milliseconds between packets in the response.
+     * @param compression       if true, compressed responses are requested.
+     * @return the client for the URL.
+     */
+    public static StorageHttpClient getClient(String storageUrl, int maxConnections, int keepAliveSeconds,
+                                              int connectTimeoutMS, int responseTimeoutMS, boolean compression) {
+        StorageHttpClient client = clients.computeIfAbsent(storageUrl, url -> new StorageHttpClient(
+                url, maxConnections, keepAliveSeconds, connectTimeoutMS, responseTimeoutMS, compression));
+        if (client.maxConnections != maxConnections || client.keepAliveSeconds != keepAliveSeconds ||
+            client.compression != compression) {
+            log.warn("The client for '{}' already exists with different settings. The existing client {} is used",
+                     storageUrl, client);
+        }
+        return client;
+    }
+
+    /**
+     * @return the state of all clients in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        if (clients.isEmpty()) {
+            return "storageClients(none)";
+        }
+        return clients.values().stream()
+                .map(StorageHttpClient::toString)
+                .collect(Collectors.joining("\n", "storageClients(\n", "\n)"));
+    }
+
+    StorageHttpClient(String storageUrl, int maxConnections, int keepAliveSeconds,
+                      int connectTimeoutMS, int responseTimeoutMS, boolean compression) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException(
+                    "maxConnections must be at least 1 but was " + maxConnections + " for '" + storageUrl + "'");
+        }
+        this.storageUrl = storageUrl;
+        this.maxConnections = maxConnections;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.compression = compression;
+        try {
+            // URIBuilder.appendPathSegments does not collapse a trailing slash in the base path
+            baseURI = new URI(storageUrl.replaceAll("/+$", ""));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URL for ds-storage: '" + storageUrl + "'", e);
+        }
+
+        connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMS))
+                        .setSocketTimeout(Timeout.ofMilliseconds(responseTimeoutMS))
+                        .setValidateAfterInactivity(TimeValue.ofMilliseconds(VALIDATE_AFTER_INACTIVITY_MS))
+                        .build())
+                .build();
+        requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(responseTimeoutMS))
+                .setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMS))
+                .build();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofSeconds(keepAliveSeconds))
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(keepAliveSeconds))
+                .setDefaultRequestConfig(requestConfig);
+        if (!compression) {
+            builder.disableContentCompression();
+        }
+        httpClient = builder.build();
+        storageClient = new CallerTokenStorageClient(storageUrl);
+        recordTimer = Stats.getStorageCallTimer(storageUrl, "record");
+        recordsTimer = Stats.getStorageCallTimer(storageUrl, "records");
+        log.info("Created " + this);
+    }
+
+    /**
+     * Retrieve a single record.
+     * @param id               the ID of the record.
+     * @param includeLocalTree if true, the parent and children of the record are included.
+     * @return the record.
+     * @throws NotFoundServiceException if the record does not exist.
+     * @throws ServiceException matching the HTTP status if the record could not be retrieved.
+     */
+    public DsRecordDto getRecord(String id, boolean includeLocalTree) {
+        return getRecord(id, includeLocalTree, null, -1).getRecord();
+    }
+
+    /**
+     * Retrieve a single record. If {@code previous} is given, the request is conditional on the validators
+     * ({@code ETag} and {@code Last-Modified}) from the previous response, if the server delivered any.
+     * @param id                the ID of the record.
+     * @param includeLocalTree  if true, the parent and children of the record are included.
+     * @param previous          a previous response for the same request or null.
+     * @param responseTimeoutMS the maximum number of milliseconds for the full request, including waiting for a
+     *                          connection. The request is aborted if it takes longer. If -1, the timeouts for the
+     *                          client are used, which are per packet and not for the full request.
+     * @return the response. If the record has not changed since {@code previous}, the response holds the record
+     *         from {@code previous} and {@link RecordResponse#isNotModified()} is true.
+     * @throws NotFoundServiceException if the record does not exist.
+     * @throws ServiceException matching the HTTP status if the record could not be retrieved.
+     */
+    public RecordResponse getRecord(
+            String id, boolean includeLocalTree, RecordResponse previous, int responseTimeoutMS) {
+        URI uri;
+        try {
+            uri = new URIBuilder(baseURI)
+                    .appendPathSegments("record", id)
+                    .addParameter("includeLocalTree", Boolean.toString(includeLocalTree))
+                    .build();
+        } catch (URISyntaxException e) {
+            throw new InternalServiceException("Unable to construct URI for record '" + id + "'", e);
+        }
+        HttpGet get = new HttpGet(uri);
+        get.setHeader(HttpHeaders.ACCEPT, "application/json");
+        authorize(get);
+        if (previous != null && previous.etag != null) {
+            get.setHeader(HttpHeaders.IF_NONE_MATCH, previous.etag);
+        }
+        if (previous != null && previous.lastModified != null) {
+            get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified);
+        }
+        if (responseTimeoutMS < 0) {
+            return recordTimer.measure(() -> getRecord(id, uri, get, previous));
+        }
+
+        get.setConfig(RequestConfig.copy(requestConfig)
+                              .setConnectionRequestTimeout(Timeout.ofMilliseconds(responseTimeoutMS))
+                              .setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMS))
+                              .build());
+        // The timeouts in the request config are per packet, so a slow response could take much longer than
+        // responseTimeoutMS without the deadline
+        ScheduledFuture<?> deadline = deadlines.schedule(get::cancel, responseTimeoutMS, TimeUnit.MILLISECONDS);
+        try {
+            return recordTimer.measure(() -> getRecord(id, uri, get, previous));
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+
+    private RecordResponse getRecord(String id, URI uri, HttpGet get, RecordResponse previous) {
+        try {
+            RecordResponse recordResponse = httpClient.execute(get, response -> {
+                int status = response.getCode();
+                if (status == 404) {
+                    // Handled outside of the response handler so that the connection is kept alive
+                    return null;
+                }
+                if (status == 304 && previous != null) {
+                    notModified.increment();
+                    return new RecordResponse(previous.record, previous.bytes,
+                                              getHeader(response, HttpHeaders.ETAG, previous.etag),
+                                              getHeader(response, HttpHeaders.LAST_MODIFIED, previous.lastModified),
+                                              true);
+                }
+                HttpEntity entity = response.getEntity();
+                if (status < 200 || status > 299 || entity == null) {
+                    failed.increment();
+                    throw ServiceExceptions.forStatus(status, String.format(
+                            Locale.ROOT, "Unable to retrieve record '%s' from %s. Got HTTP status %d",
+                            id, storageUrl, status), null);
+                }
+                byte[] json = EntityUtils.toByteArray(entity);
+                return new RecordResponse(RECORD_READER.readValue(json), json.length,
+                                          getHeader(response, HttpHeaders.ETAG, null),
+                                          getHeader(response, HttpHeaders.LAST_MODIFIED, null),
+                                          false);
+            });
+            if (recordResponse == null) {
+                notFound.increment();
+                throw new NotFoundServiceException("Record '" + id + "' not found in " + storageUrl);
+            }
+            return recordResponse;
+        } catch (IOException e) {
+            failed.increment();
+            if (get.isCancelled()) {
+                throw new InternalServiceException(
+                        "Retrieval of record '" + id + "' from " + storageUrl + " was aborted at the deadline", e);
+            }
+            log.debug("IOException retrieving record '{}' from {}", id, uri, e);
+            throw new InternalServiceException("Unable to retrieve record '" + id + "' from " + storageUrl, e);
+        }
+    }
+
+    /**
+     * Export the records from an origin that has been modified after the given point in time, ordered by mTime.
+     * The export is read from the response as it is consumed and the stream must be closed after use, which
+     * returns the connection to the pool if the export has been fully read.
+     * @param origin     the origin to export records from.
+     * @param recordType if not null, only records of this type are exported, together with their local tree.
+     * @param mTime      only records modified after this point in time are exported.
+     * @param maxRecords the maximum number of records to export. -1 means no limit.
+     * @return the records, with the continuation token and has more marker for paging from ds-storage.
+     * @throws ServiceException matching the HTTP status if the export could not be started.
+     */
+    public ContinuationStream<DsRecordDto, Long> getRecords(
+            String origin, RecordTypeDto recordType, long mTime, long maxRecords) {
+        URI uri;
+        try {
+            URIBuilder builder = new URIBuilder(baseURI)
+                    .appendPathSegments(recordType == null ? "records" : "recordsByRecordTypeLocalTree")
+                    .addParameter("origin", origin);
+            if (recordType != null) {
+                builder.addParameter("recordType", recordType.toString());
+            }
+            uri = builder.addParameter("mTime", Long.toString(mTime))
+                    .addParameter("maxRecords", Long.toString(maxRecords))
+                    .build();
+        } catch (URISyntaxException e) {
+            throw new InternalServiceException("Unable to construct URI for records from origin '" + origin + "'", e);
+        }
+        HttpGet get = new HttpGet(uri);
+        get.setHeader(HttpHeaders.ACCEPT, "application/json");
+        authorize(get);
+
+        long startNS = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = httpClient.execute(get);
+        } catch (IOException e) {
+            failed.increment();
+            log.debug("IOException requesting records from {}", uri, e);
+            throw new InternalServiceException(
+                    "Unable to request records from origin '" + origin + "' at " + storageUrl, e);
+        } finally {
+            recordsTimer.addNS(System.nanoTime() - startNS);
+        }
+
+        try {
+            int status = response.getCode();
+            HttpEntity entity = response.getEntity();
+            if (status < 200 || status > 299 || entity == null) {
+                failed.increment();
+                EntityUtils.consume(entity);
+                response.close();
+                throw ServiceExceptions.forStatus(status, String.format(
+                        Locale.ROOT, "Unable to request records from origin '%s' at %s. Got HTTP status %d",
+                        origin, storageUrl, status), null);
+            }
+            String continuationToken = getHeader(response, ContinuationUtil.HEADER_PAGING_CONTINUATION_TOKEN, null);
+            String hasMore = getHeader(response, ContinuationUtil.HEADER_PAGING_HAS_MORE, null);
+            MappingIterator<DsRecordDto> records = RECORD_READER.readValues(entity.getContent());
+
+            // Only a fully read response leaves the connection usable for the next request
+            AtomicBoolean exhausted = new AtomicBoolean(false);
+            Iterator<DsRecordDto> iterator = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    boolean more = records.hasNext();
+                    if (!more) {
+                        exhausted.set(true);
+                    }
+                    return more;
+                }
+
+                @Override
+                public DsRecordDto next() {
+                    return records.next();
+                }
+            };
+            return new ContinuationStream<>(
+                    StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                            .onClose(() -> release(response, exhausted.get())),
+                    continuationToken == null ? null : Long.valueOf(continuationToken),
+                    hasMore == null ? null : Boolean.valueOf(hasMore));
+        } catch (IOException e) {
+            failed.increment();
+            release(response, false);
+            throw new InternalServiceException(
+                    "Unable to read records from origin '" + origin + "' at " + storageUrl, e);
+        }
+    }
+
+    /**
+     * Close the response. If {@code consume} is true, the rest of the response is read first so that the
+     * connection is returned to the pool instead of being closed.
+     */
+    private static void release(CloseableHttpResponse response, boolean consume) {
+        try {
+            if (consume) {
+                EntityUtils.consume(response.getEntity());
+            }
+            response.close();
+        } catch (IOException e) {
+            log.debug("Exception releasing response", e);
+        }
+    }
+
+    /**
+     * Add the token from {@link CallerToken#get()}, if any, to the request.
+     */
+    private static void authorize(HttpGet get) {
+        String token = CallerToken.get();
+        if (token != null) {
+            get.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        }
+    }
+
+    private static String getHeader(ClassicHttpResponse response, String name, String defaultValue) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? defaultValue : header.getValue();
+    }
+
+    /**
+     * A record retrieved from ds-storage, together with the validators for conditional requests.
+     */
+    public static final class RecordResponse {
+        private final DsRecordDto record;
+        private final long bytes;
+        private final String etag;
+        private final String lastModified;
+        private final boolean notModified;
+
+        RecordResponse(DsRecordDto record, long bytes, String etag, String lastModified, boolean notModified) {
+            this.record = record;
+            this.bytes = bytes;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.notModified = notModified;
+        }
+
+        /**
+         * @return the record.
+         */
+        public DsRecordDto getRecord() {
+            return record;
+        }
+
+        /**
+         * @return the size of the uncompressed JSON representation of the record.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the {@code ETag} header from the response or null if it was not present.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the {@code Last-Modified} header from the response or null if it was not present.
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return true if this is the response to a conditional request and the record has not changed.
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+    }
+
+    /**
+     * @return the URL for the ds-storage.
+     */
+    public String getStorageUrl() {
+        return storageUrl;
+    }
+
+    /**
+     * @return the client for transcriptions from the service.
+     */
+    public DsStorageClient getStorageClient() {
+        return storageClient;
+    }
+
+    /**
+     * @return statistics for the connection pool.
+     */
+    PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public String toString() {
+        PoolStats pool = connectionManager.getTotalStats();
+        return String.format(Locale.ROOT, "StorageHttpClient(url='%s', maxConnections=%d, keepAliveSeconds=%d, " +
+                                          "compression=%b, leased=%d, available=%d, pending=%d, notModified=%d, " +
+                                          "notFound=%d, failed=%d)",
+                             storageUrl, maxConnections, keepAliveSeconds, compression,
+                             pool.getLeased(), pool.getAvailable(), pool.getPending(), notModified.sum(),
+                             notFound.sum(), failed.sum());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Read-through cache for single records from a ds-storage, used by {@link DSStorage}.
+ * <p>
+ * Records are delivered from the cache without contacting ds-storage for {@code revalidateAfterMS} after they have
+ * been retrieved or revalidated, which covers requests for multiple views of the same record. After that, the record
+ * is revalidated with a conditional request. If ds-storage does not support conditional requests, the full record is
+ * retrieved and the cached record is kept if the {@code mTime} is unchanged.
+ * <p>
+ * If revalidation fails or takes more than {@code revalidateTimeoutMS}, the cached record is delivered, as long as
+ * it was validated less than {@code staleGraceSeconds} after it was due for revalidation. Older entries are removed.
+ * <p>
+ * The cache is bounded by the size of the uncompressed JSON representation of the records. Records delivered from
+ * the cache are shared and must not be modified.
+ */
+public class StorageRecordCache {
+    private static final Logger log = LoggerFactory.getLogger(StorageRecordCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 50_000_000L;
+    public static final int DEFAULT_REVALIDATE_AFTER_MS = 1000;
+    public static final int DEFAULT_REVALIDATE_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_STALE_GRACE_SECONDS = 300;
+
+    // Approximate overhead for an entry in addition to the JSON representation of the record
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private static final List<StorageRecordCache> caches = new CopyOnWriteArrayList<>();
+
+    private final StorageHttpClient client;
+    private final Cache<String, Entry> cache;
+    private final Ticker ticker;
+    private final long maxBytes;
+    private final long revalidateAfterNS;
+    private final int revalidateTimeoutMS;
+    private final long staleGraceNS;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+
+    /**
+     * Create a cache for the given client and register it for {@link #getStatus()}.
+     * @param client              the client used for retrieving and revalidating records.
+     * @param maxBytes            the maximum size of the cached records. If 0 or less, no cache is created.
+     * @param revalidateAfterMS   the number of milliseconds a record is delivered without revalidation.
+     * @param revalidateTimeoutMS the maximum number of milliseconds to wait for revalidation before the cached
+     *                            record is delivered.
+     * @param staleGraceSeconds   the number of seconds after {@code revalidateAfterMS} that the cached record may be
+     *                            delivered if revalidation fails.
+     * @return a cache or null if {@code maxBytes} is 0 or less.
+     */
+    public static StorageRecordCache create(StorageHttpClient client, long maxBytes, int revalidateAfterMS,
+                                            int revalidateTimeoutMS, int staleGraceSeconds) {
+        if (maxBytes <= 0) {
+            log.info("Caching of records from {} is disabled as maxBytes={}", client, maxBytes);
+            return null;
+        }
+        StorageRecordCache recordCache = new StorageRecordCache(
+                client, maxBytes, revalidateAfterMS, revalidateTimeoutMS, staleGraceSeconds, Ticker.systemTicker());
+        caches.add(recordCache);
+        return recordCache;
+    }
+
+    /**
+     * @return statistics for all caches created with {@link #create} in human readable form, used by
+     *         {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        if (caches.isEmpty()) {
+            return "storageRecordCaches(none)";
+        }
+        return caches.stream()
+                .map(StorageRecordCache::toString)
+                .collect(Collectors.joining("\n", "storageRecordCaches(\n", "\n)"));
+    }
+
+    StorageRecordCache(StorageHttpClient client, long maxBytes, int revalidateAfterMS, int revalidateTimeoutMS,
+                       int staleGraceSeconds, Ticker ticker) {
+        this.client = client;
+        this.maxBytes = maxBytes;
+        this.revalidateAfterNS = TimeUnit.MILLISECONDS.toNanos(revalidateAfterMS);
+        this.revalidateTimeoutMS = revalidateTimeoutMS;
+        this.staleGraceNS = TimeUnit.SECONDS.toNanos(staleGraceSeconds);
+        this.ticker = ticker;
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) ->
+                                 (int) Math.min(Integer.MAX_VALUE, entry.response.getBytes() + ENTRY_OVERHEAD))
+                // Entries that are neither fresh nor within the grace period cannot be used without revalidation
+                .expireAfterWrite(revalidateAfterNS + staleGraceNS, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Deliver the record from the cache, revalidating it if needed, or retrieve it from ds-storage if it is not
+     * cached.
+     * @param id               the ID of the record.
+     * @param includeLocalTree if true, the parent and children of the record are included.
+     * @return the record. This must not be modified.
+     * @throws NotFoundServiceException if the record does not exist. Any cached entry is removed.
+     * @throws dk.kb.util.webservice.exception.InternalServiceException if the record could not be retrieved and
+     *         no usable entry is cached.
+     */
+    public DsRecordDto getRecord(String id, boolean includeLocalTree) {
+        String key = (includeLocalTree ? "tree:" : "record:") + id;
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            misses.increment();
+            StorageHttpClient.RecordResponse response = client.getRecord(id, includeLocalTree, null, -1);
+            cache.put(key, new Entry(response, ticker.read()));
+            return response.getRecord();
+        }
+
+        long validatedNS = ticker.read();
+        if (validatedNS - entry.validatedNS < revalidateAfterNS) {
+            hits.increment();
+            return entry.response.getRecord();
+        }
+
+        StorageHttpClient.RecordResponse response;
+        try {
+            response = client.getRecord(id, includeLocalTree, entry.response, revalidateTimeoutMS);
+        } catch (NotFoundServiceException e) {
+            cache.invalidate(key);
+            throw e;
+        } catch (RuntimeException e) {
+            stale.increment();
+            log.warn("Unable to revalidate record '{}'. Delivering cached record validated {} seconds ago: {}",
+                     id, TimeUnit.NANOSECONDS.toSeconds(validatedNS - entry.validatedNS), e.getMessage());
+            return entry.response.getRecord();
+        }
+
+        if (response.isNotModified() || isUnchanged(entry.response.getRecord(), response.getRecord())) {
+            revalidated.increment();
+            // Keep the cached record, but with validators from the new response
+            response = new StorageHttpClient.RecordResponse(
+                    entry.response.getRecord(), entry.response.getBytes(),
+                    response.getEtag(), response.getLastModified(), false);
+        } else {
+            changed.increment();
+        }
+        cache.put(key, new Entry(response, validatedNS));
+        return response.getRecord();
+    }
+
+    /**
+     * @return true if the retrieved record has the same modification time as the cached record.
+     */
+    private static boolean isUnchanged(DsRecordDto cached, DsRecordDto retrieved) {
+        return cached.getmTime() != null && Objects.equals(cached.getmTime(), retrieved.getmTime());
+    }
+
+    /**
+     * @return the approximate number of entries in the cache.
+     */
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    private static final class Entry {
+        private final StorageHttpClient.RecordResponse response;
+        private final long validatedNS;
+
+        Entry(StorageHttpClient.RecordResponse response, long validatedNS) {
+            this.response = response;
+            this.validatedNS = validatedNS;
+        }
+    }
+
+    @Override
+    public String toString() {
+        long bytes = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        return String.format(Locale.ROOT,
+                "StorageRecordCache(client='%s', entries=%d, bytes=%d, maxBytes=%d, revalidateAfterMS=%d, " +
+                "revalidateTimeoutMS=%d, staleGraceSeconds=%d, hits=%d, misses=%d, revalidated=%d, changed=%d, " +
+                "stale=%d)",
+                client.getStorageUrl(), cache.estimatedSize(), bytes, maxBytes,
+                TimeUnit.NANOSECONDS.toMillis(revalidateAfterNS), revalidateTimeoutMS,
+                TimeUnit.NANOSECONDS.toSeconds(staleGraceNS),
+                hits.sum(), misses.sum(), revalidated.sum(), changed.sum(), stale.sum());
+    }
+}
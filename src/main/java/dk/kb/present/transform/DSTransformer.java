@@ -14,6 +14,8 @@
  */
 package dk.kb.present.transform;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 import java.util.function.BiFunction;
 
@@ -24,6 +26,10 @@ import java.util.function.BiFunction;
  * One example of chaining it to have one transformer resolve copyright rules, store them as key-values in the
  * metadata and pass the input unchanged, then having another transformer responsible for transforming to Solr-JSON
  * with extra fields added from the metadata delivered by the copyright extractor.
+ * <p>
+ * Besides returning the result as a String, transformers can write the result directly to a {@link Writer}
+ * through {@link #apply(String, Map, Writer)}. This is used for the last transformer in a chain, so that the
+ * result does not need to be held in an intermediate representation before being passed on.
  */
 public interface DSTransformer extends BiFunction<String, Map<String, String>, String> {
 
@@ -39,6 +45,20 @@ public interface DSTransformer extends BiFunction<String, Map<String, String>, S
         return null;
     };
 
+    /**
+     * Transform the input and write the result to {@code out}. The default implementation writes the result of
+     * {@link #apply(Object, Object)}. Implementations that are able to produce their result in a streaming
+     * manner should override this.
+     * <p>
+     * Note: If the transformation fails, partial output might have been written to {@code out}.
+     * @param input    the input for the transformation.
+     * @param metadata metadata for the transformation. See {@link #apply(Object, Object)}.
+     * @param out      the destination for the result of the transformation. This is not closed by the method.
+     * @throws IOException if the result could not be written to {@code out}.
+     */
+    default void apply(String input, Map<String, String> metadata, Writer out) throws IOException {
+        out.write(apply(input, metadata));
+    }
 
 
 }
@@ -0,0 +1,255 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.transform;
+
+import dk.kb.present.Stats;
+import dk.kb.util.Resolver;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.trace.TimingCodeInjector;
+import net.sf.saxon.trans.CompilerInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process wide registry of compiled XSLT stylesheets, ensuring that each stylesheet is only compiled once, even
+ * when it is used by multiple views and origins.
+ * <p>
+ * Stylesheets are keyed by their resolved URL. Injections are not part of the key as they are applied as parameters
+ * when a {@link javax.xml.transform.Transformer} is created from the shared {@link Templates}.
+ */
+public class StylesheetRegistry {
+    private static final Logger log = LoggerFactory.getLogger(StylesheetRegistry.class);
+
+    private static final Map<String, FutureTask<Templates>> templatesByURL = new ConcurrentHashMap<>();
+    // Profiling is rare, so traced stylesheets are simply compiled under lock
+    private static final Map<String, Templates> profilingTemplatesByURL = new HashMap<>();
+
+    /**
+     * Get the compiled version of the given stylesheet, compiling it if it has not already been compiled.
+     * If multiple threads requests the same stylesheet at the same time, it is only compiled once.
+     * @param stylesheet the stylesheet to compile. This can be be a file resolved relatively to the current
+     *                   folder, under the user.home or on the classpath.
+     * @return the compiled stylesheet, ready for creating {@link javax.xml.transform.Transformer}s.
+     * @throws IOException if the stylesheet could not be resolved.
+     * @throws IllegalStateException if the stylesheet could not be parsed.
+     */
+    public static Templates getTemplates(String stylesheet) throws IOException {
+        URL stylesheetURL = Resolver.resolveURL(stylesheet);
+        if (stylesheetURL == null) {
+            throw new FileNotFoundException("Unable to resolve stylesheet '" + stylesheet + "'");
+        }
+        String key = stylesheetURL.toString();
+
+        FutureTask<Templates> compileTask = new FutureTask<>(() -> compile(stylesheet, stylesheetURL));
+        FutureTask<Templates> existing = templatesByURL.putIfAbsent(key, compileTask);
+        if (existing == null) {
+            existing = compileTask;
+            compileTask.run();
+        } else {
+            log.debug("Reusing compiled stylesheet '{}' from '{}'", stylesheet, key);
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compilation of stylesheet '" + stylesheet + "'", e);
+        } catch (ExecutionException e) {
+            // Failed compilations are not kept, so that later requests will retry
+            templatesByURL.remove(key, existing);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Unable to compile stylesheet '" + stylesheet + "'", cause);
+        }
+    }
+
+    /**
+     * Get a version of the given stylesheet compiled with trace hooks for templates and functions, for use with
+     * {@link XSLTProfile}. The traced version is kept separate from the version delivered by
+     * {@link #getTemplates(String)}, so that normal transformations are not affected by the hooks.
+     * @param stylesheet the stylesheet to compile. This can be be a file resolved relatively to the current
+     *                   folder, under the user.home or on the classpath.
+     * @return the compiled stylesheet with trace hooks.
+     * @throws IOException if the stylesheet could not be resolved.
+     * @throws IllegalStateException if the stylesheet could not be parsed.
+     */
+    public static Templates getProfilingTemplates(String stylesheet) throws IOException {
+        URL stylesheetURL = Resolver.resolveURL(stylesheet);
+        if (stylesheetURL == null) {
+            throw new FileNotFoundException("Unable to resolve stylesheet '" + stylesheet + "'");
+        }
+        String key = stylesheetURL.toString();
+        synchronized (profilingTemplatesByURL) {
+            Templates templates = profilingTemplatesByURL.get(key);
+            if (templates == null) {
+                templates = compileProfiling(stylesheet, stylesheetURL);
+                profilingTemplatesByURL.put(key, templates);
+            }
+            return templates;
+        }
+    }
+
+    /**
+     * Compile the given stylesheets in parallel, so that later calls to {@link #getTemplates(String)} are served
+     * directly from the registry. Problems with compilation are logged, but otherwise ignored, as they will be
+     * reported when the stylesheet is requested through {@link #getTemplates(String)}.
+     * @param stylesheets the stylesheets to compile.
+     */
+    public static void precompile(Collection<String> stylesheets) {
+        if (stylesheets.isEmpty()) {
+            return;
+        }
+        long startNS = System.nanoTime();
+        int threads = Math.min(stylesheets.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> jobs = new ArrayList<>(stylesheets.size());
+            for (String stylesheet: stylesheets) {
+                jobs.add(executor.submit(() -> {
+                    try {
+                        getTemplates(stylesheet);
+                    } catch (Exception e) {
+                        log.warn("Unable to precompile stylesheet '{}'. The problem will be reported when the " +
+                                 "stylesheet is used", stylesheet, e);
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while precompiling {} stylesheets", stylesheets.size());
+        } catch (ExecutionException e) {
+            log.warn("Unexpected exception while precompiling stylesheets", e);
+        } finally {
+            executor.shutdown();
+        }
+        log.info("Precompiled {} stylesheets using {} threads in {} ms",
+                 stylesheets.size(), threads, (System.nanoTime()-startNS)/1000000);
+    }
+
+    /**
+     * Recursively locate all stylesheets stated with the key {@link XSLTFactory#STYLESHEET_KEY} in the given
+     * configuration structure of maps and lists, such as the {@code .origins} section of the setup.
+     * @param conf a configuration structure.
+     * @return the distinct stylesheets in the configuration, in order of appearance.
+     */
+    public static Set<String> findStylesheets(Object conf) {
+        Set<String> stylesheets = new LinkedHashSet<>();
+        collectStylesheets(conf, stylesheets);
+        return stylesheets;
+    }
+
+    private static void collectStylesheets(Object conf, Set<String> stylesheets) {
+        if (conf instanceof Map) {
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>) conf).entrySet()) {
+                if (XSLTFactory.STYLESHEET_KEY.equals(entry.getKey()) && entry.getValue() instanceof String) {
+                    stylesheets.add((String) entry.getValue());
+                } else {
+                    collectStylesheets(entry.getValue(), stylesheets);
+                }
+            }
+        } else if (conf instanceof Collection) {
+            for (Object element: (Collection<?>) conf) {
+                collectStylesheets(element, stylesheets);
+            }
+        }
+    }
+
+    /**
+     * @return the number of stylesheets in the registry.
+     */
+    public static int size() {
+        return templatesByURL.size();
+    }
+
+    /**
+     * Compile the stylesheet at the given URL and register the time spent in the statistics for the stylesheet.
+     * @param stylesheet the stylesheet as stated in the configuration.
+     * @param stylesheetURL the resolved location of the stylesheet.
+     * @return the compiled stylesheet.
+     * @throws IOException if the stylesheet could not be retrieved.
+     */
+    private static Templates compile(String stylesheet, URL stylesheetURL) throws IOException {
+        long startNS = System.nanoTime();
+        Templates templates;
+        try (InputStream is = stylesheetURL.openStream()) {
+            templates = XSLTTransformer.transformerFactory.newTemplates(new StreamSource(is));
+        } catch (IOException e) {
+            throw new IOException("Unable to retrieve stylesheet from '" + stylesheet + "'", e);
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Unable to parse stylesheet at '" + stylesheet + "'", e);
+        }
+        long spentNS = System.nanoTime()-startNS;
+        Stats.getStylesheetCompileTimer(stylesheet).addNS(spentNS);
+        log.info("Compiled stylesheet '{}' from '{}' in {} ms", stylesheet, stylesheetURL, spentNS/1000000);
+        return templates;
+    }
+
+    /**
+     * Compile the stylesheet at the given URL with trace hooks for templates and functions. The system IDs of the
+     * stylesheet and its included modules are set to their names as stated in the stylesheets, so that
+     * {@link XSLTProfile} can report where the components are defined.
+     * @param stylesheet the stylesheet as stated in the configuration.
+     * @param stylesheetURL the resolved location of the stylesheet.
+     * @return the compiled stylesheet with trace hooks.
+     * @throws IOException if the stylesheet could not be retrieved.
+     */
+    private static Templates compileProfiling(String stylesheet, URL stylesheetURL) throws IOException {
+        long startNS = System.nanoTime();
+        TransformerFactoryImpl factory = (TransformerFactoryImpl) XSLTTransformer.transformerFactory;
+        CompilerInfo info = new CompilerInfo(factory.getConfiguration().getDefaultXsltCompilerInfo());
+        info.setCodeInjector(new TimingCodeInjector());
+        info.setURIResolver((href, base) -> new StreamSource(Resolver.resolveStream(href), href));
+        Templates templates;
+        try (InputStream is = stylesheetURL.openStream()) {
+            templates = factory.newTemplates(new StreamSource(is, stylesheet), info);
+        } catch (IOException e) {
+            throw new IOException("Unable to retrieve stylesheet from '" + stylesheet + "'", e);
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Unable to parse stylesheet at '" + stylesheet + "'", e);
+        }
+        log.info("Compiled stylesheet '{}' from '{}' with trace hooks for profiling in {} ms",
+                 stylesheet, stylesheetURL, (System.nanoTime()-startNS)/1000000);
+        return templates;
+    }
+}
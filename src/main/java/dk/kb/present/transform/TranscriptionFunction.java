@@ -0,0 +1,102 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.transform;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+
+import java.util.function.Function;
+
+/**
+ * XSLT extension function delivering the transcription for a reference ID:
+ * {@code dsp:transcription($referenceId as xs:string?) as xs:string?} where the namespace for {@code dsp} is
+ * {@link #NAMESPACE}.
+ * <p>
+ * The transcription is only resolved when the stylesheet calls the function, instead of being passed as a string
+ * parameter to all transformations. Stylesheets should bind the result to a global variable, which Saxon evaluates
+ * at most once and only if it is used.
+ * <p>
+ * Transformations limited by an {@link dk.kb.present.util.AdaptiveLimiter} hold a permit while the function runs,
+ * so {@link dk.kb.present.View} looks up transcriptions before the transformation, letting the resolver deliver
+ * them from memory.
+ * <p>
+ * The empty sequence is returned if there is no transcription for the reference ID.
+ */
+public class TranscriptionFunction extends ExtensionFunctionDefinition {
+    public static final String NAMESPACE = "http://kb.dk/ds-present/functions";
+    public static final String NAME = "transcription";
+
+    private static final StructuredQName QNAME = new StructuredQName("dsp", NAMESPACE, NAME);
+
+    private final Function<String, String> resolver;
+
+    /**
+     * @param resolver delivers the transcription text for a reference ID or null if there is no transcription.
+     */
+    public TranscriptionFunction(Function<String, String> resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return QNAME;
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[]{SequenceType.OPTIONAL_STRING};
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+        return SequenceType.OPTIONAL_STRING;
+    }
+
+    @Override
+    public boolean hasSideEffects() {
+        // Transcriptions are looked up externally, so calls should not be moved or eliminated by the optimizer
+        return true;
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new ExtensionFunctionCall() {
+            @Override
+            public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+                Item referenceId = arguments[0].head();
+                if (referenceId == null || referenceId.getStringValue().isEmpty()) {
+                    return EmptySequence.getInstance();
+                }
+                String transcription;
+                try {
+                    transcription = resolver.apply(referenceId.getStringValue());
+                } catch (RuntimeException e) {
+                    throw new XPathException(
+                            "Unable to resolve transcription for reference ID '" + referenceId.getStringValue() + "'",
+                            e);
+                }
+                return transcription == null ? EmptySequence.getInstance() : new StringValue(transcription);
+            }
+        };
+    }
+}
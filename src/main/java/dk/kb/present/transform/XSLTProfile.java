@@ -0,0 +1,234 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.transform;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.trace.Traceable;
+import net.sf.saxon.trace.TraceableComponent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregated time spent in the templates and functions of XSLT stylesheets, collected by {@link TraceListener}s
+ * attached to transformers created with {@link XSLTTransformer#profiled(XSLTProfile)}.
+ * <p>
+ * For each component, the number of calls, the gross time (including called templates and functions) and the
+ * net time (excluding called templates and functions) is tracked. Net time is the relevant measure for locating
+ * hot spots, e.g. a slow helper function.
+ * <p>
+ * A profile can be shared between multiple transformers and threads.
+ */
+public class XSLTProfile {
+    private final Map<String, ComponentStats> components = new ConcurrentHashMap<>();
+    // Compiled components are fixed, so their designations are only constructed once
+    private final Map<Traceable, String> designations = new ConcurrentHashMap<>();
+    private final LongAdder transformations = new LongAdder();
+
+    /**
+     * Create a listener for a single transformation. The listener is not thread safe and must not be shared
+     * between transformations.
+     * @return a listener that adds measurements to this profile.
+     */
+    public TraceListener createListener() {
+        transformations.increment();
+        return new TimingListener();
+    }
+
+    /**
+     * @return the number of transformations that has been profiled.
+     */
+    public long getTransformations() {
+        return transformations.sum();
+    }
+
+    /**
+     * @return statistics for all components encountered during profiling, ordered by net time, highest first.
+     */
+    public List<ComponentStats> getRanked() {
+        List<ComponentStats> ranked = new ArrayList<>(components.values());
+        ranked.sort(Comparator.comparingLong(ComponentStats::getNetNS).reversed());
+        return ranked;
+    }
+
+    /**
+     * Produce a human readable report with the components ordered by net time, highest first.
+     * @param maxComponents the maximum number of components to list.
+     * @return a table with calls, net and gross time for the components.
+     */
+    public String getReport(int maxComponents) {
+        List<ComponentStats> ranked = getRanked();
+        long totalNetNS = ranked.stream().mapToLong(ComponentStats::getNetNS).sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%5s %10s %6s %10s %10s %12s  %s%n",
+                                "rank", "net_ms", "net_%", "gross_ms", "calls", "net_us/call", "component"));
+        for (int i = 0 ; i < Math.min(maxComponents, ranked.size()) ; i++) {
+            ComponentStats stats = ranked.get(i);
+            sb.append(String.format(Locale.ROOT, "%5d %10.1f %6.1f %10.1f %10d %12.1f  %s%n",
+                                    i+1, stats.getNetNS()/1000000.0,
+                                    totalNetNS == 0 ? 0.0 : stats.getNetNS()*100.0/totalNetNS,
+                                    stats.getGrossNS()/1000000.0, stats.getCalls(),
+                                    stats.getNetNS()/1000.0/stats.getCalls(), stats.getComponent()));
+        }
+        if (ranked.size() > maxComponents) {
+            sb.append(String.format(Locale.ROOT, "(%d more components not shown)%n", ranked.size()-maxComponents));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create a human readable designation of the given traced component, e.g.
+     * {@code xsl:function my:cleanDrChannel#1 (utils.xsl:42)} or
+     * {@code xsl:template match=mods:titleInfo (mods2schemaorg.xsl:117)}.
+     */
+    static String getDesignation(Traceable traceable, Map<String, Object> properties) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(traceable instanceof TraceableComponent ?
+                          ((TraceableComponent) traceable).getTracingTag() :
+                          traceable.getClass().getSimpleName());
+        if (traceable.getObjectName() != null) {
+            sb.append(" ").append(traceable.getObjectName().getDisplayName());
+            if (properties.get("arity") != null) {
+                sb.append("#").append(properties.get("arity"));
+            }
+        } else if (properties.get("match") != null) {
+            sb.append(" match=").append(properties.get("match"));
+        }
+        if (properties.get("mode") != null) {
+            sb.append(" mode=").append(properties.get("mode"));
+        }
+        Location location = traceable.getLocation();
+        if (location != null) {
+            String systemId = location.getSystemId() == null ? "?" : location.getSystemId();
+            // Only the file name is used as the path is an implementation detail of the setup
+            sb.append(" (").append(systemId.substring(systemId.lastIndexOf('/') + 1))
+                    .append(":").append(location.getLineNumber()).append(")");
+        }
+        return sb.toString();
+    }
+
+    private void add(String component, long grossNS, long netNS) {
+        components.computeIfAbsent(component, ComponentStats::new).add(grossNS, netNS);
+    }
+
+    /**
+     * Statistics for a single template or function.
+     */
+    public static class ComponentStats {
+        private final String component;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder grossNS = new LongAdder();
+        private final LongAdder netNS = new LongAdder();
+
+        ComponentStats(String component) {
+            this.component = component;
+        }
+
+        void add(long gross, long net) {
+            calls.increment();
+            grossNS.add(gross);
+            netNS.add(net);
+        }
+
+        /**
+         * @return human readable designation of the component, including stylesheet and line number.
+         */
+        public String getComponent() {
+            return component;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /**
+         * Gross time is the time from entering to leaving the component. For recursive components, the time for
+         * inner calls is counted multiple times.
+         * @return time spent in the component, including called components.
+         */
+        public long getGrossNS() {
+            return grossNS.sum();
+        }
+
+        /**
+         * @return time spent in the component, excluding called components.
+         */
+        public long getNetNS() {
+            return netNS.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "ComponentStats(component='" + component + "', calls=" + getCalls() +
+                   ", grossNS=" + getGrossNS() + ", netNS=" + getNetNS() + ")";
+        }
+    }
+
+    /**
+     * Tracks nested calls for a single transformation. Saxon guarantees that {@code enter} and {@code leave}
+     * calls are properly nested.
+     */
+    private class TimingListener implements TraceListener {
+        private final Deque<Frame> stack = new ArrayDeque<>();
+
+        @Override
+        public void open(Controller controller) {
+            stack.clear();
+        }
+
+        @Override
+        public void close() {
+            stack.clear();
+        }
+
+        @Override
+        public void enter(Traceable traceable, Map<String, Object> properties, XPathContext context) {
+            stack.push(new Frame(designations.computeIfAbsent(traceable, t -> getDesignation(t, properties))));
+        }
+
+        @Override
+        public void leave(Traceable traceable) {
+            Frame frame = stack.poll();
+            if (frame == null) {
+                return;
+            }
+            long grossNS = System.nanoTime() - frame.startNS;
+            if (!stack.isEmpty()) {
+                stack.peek().childNS += grossNS;
+            }
+            add(frame.component, grossNS, grossNS - frame.childNS);
+        }
+    }
+
+    private static class Frame {
+        final String component;
+        final long startNS = System.nanoTime();
+        long childNS = 0;
+
+        Frame(String component) {
+            this.component = component;
+        }
+    }
+}
@@ -1,19 +1,20 @@
 package dk.kb.present.transform;
 
-import dk.kb.present.config.ServiceConfig;
 import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.StringReader;
 import java.util.Map;
 
 public class XSLTSolrFromSchemaTransformer extends XSLTTransformer{
@@ -25,6 +26,8 @@ public class XSLTSolrFromSchemaTransformer extends XSLTTransformer{
      * build towards XSLT 1.0, and therefore it's not possible to transform JSON without using an empty placeholder XML.
      */
     private static final String placeholderXml = "<placeholder></placeholder>";
+    private static final QName SCHEMAORGJSON = new QName("schemaorgjson");
+    private static volatile XdmNode placeholderNode = null; // Parsed placeholderXml, used for XDM transformations
 
     public static final TransformerFactory transformerFactory;
 
@@ -55,10 +58,49 @@ public class XSLTSolrFromSchemaTransformer extends XSLTTransformer{
         super(stylesheet, fixedInjections);
     }
 
+    /**
+     * Construct a profiling copy of the given transformer. See {@link XSLTTransformer#profiled(XSLTProfile)}.
+     */
+    protected XSLTSolrFromSchemaTransformer(XSLTSolrFromSchemaTransformer original, XSLTProfile profile)
+            throws IOException {
+        super(original, profile);
+    }
+
+    @Override
+    public XSLTTransformer profiled(XSLTProfile profile) throws IOException {
+        return new XSLTSolrFromSchemaTransformer(this, profile);
+    }
+
+    /**
+     * The input is passed as the parameter {@code schemaorgjson}, either as JSON text or as an already parsed XDM map.
+     */
+    @Override
+    protected void addXdmParameters(Map<QName, XdmValue> parameters, XdmValue input) {
+        parameters.put(SCHEMAORGJSON, input);
+    }
+
+    /**
+     * As the input is passed as a parameter, the source is the {@link #placeholderXml}, which is only parsed once.
+     */
+    @Override
+    protected XdmNode getXdmSource(XdmValue input) throws SaxonApiException {
+        if (placeholderNode == null) {
+            placeholderNode = parseXml(placeholderXml);
+        }
+        return placeholderNode;
+    }
+
+    /**
+     * Perform the transformation with the given input as the parameter {@code schemaorgjson} and a placeholder
+     * document as source.
+     * @param s        JSON-LD in the schema.org format.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @param result   the destination for the result of the transformation.
+     */
     @Override
-    public String apply(String s, Map<String, String> metadata) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Transformer transformer = templates.newTransformer();
+    protected void transform(String s, Map<String, String> metadata, Result result) {
+        try {
+            Transformer transformer = newTransformer();
             if (fixedInjections != null) {
                 fixedInjections.forEach(transformer::setParameter);
             }
@@ -67,23 +109,10 @@ public class XSLTSolrFromSchemaTransformer extends XSLTTransformer{
                 if (name != null && value != null)
                     transformer.setParameter(name, value);
             });
-
-            if (ServiceConfig.getConfig().getInteger("transformations.threads",0) > 0) {
-                semaphore.acquire();
-            }
-            transformer.transform(new StreamSource(new ByteArrayInputStream(placeholderXml.getBytes(StandardCharsets.UTF_8))),
-                                  new StreamResult(out));
-
-            return out.toString(StandardCharsets.UTF_8);
-        } catch (IOException | TransformerException e) {
+            transformer.transform(new StreamSource(new StringReader(placeholderXml)), result);
+        } catch (TransformerException e) {
             throw new RuntimeTransformerException(
                     "Exception transforming with stylesheet '" + stylesheet + "' and metadata '" + metadata + "'", e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (ServiceConfig.getConfig().getInteger("transformations.threads",0) > 0) {
-                semaphore.release();
-            }
         }
     }
 }
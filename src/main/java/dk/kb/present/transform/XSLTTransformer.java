@@ -14,24 +14,43 @@
  */
 package dk.kb.present.transform;
 
-import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.TranscriptionLookup;
 import dk.kb.util.Resolver;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.jaxp.TemplatesImpl;
+import net.sf.saxon.jaxp.TransformerImpl;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.RawDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.value.StringValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.transform.*;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * XSLT transformer using Saxon HE 3.
@@ -40,24 +59,24 @@ import java.util.concurrent.Semaphore;
 public class XSLTTransformer implements DSTransformer {
     private static final Logger log = LoggerFactory.getLogger(XSLTTransformer.class);
     public static final String ID = "xslt";
+    private static final QName DELIVER_XDM = new QName("deliverXdm");
 
     public static final TransformerFactory transformerFactory;
 
-    protected static final Semaphore semaphore;
-    protected static final boolean useSemaphore;
-
     static {
         System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
         transformerFactory = TransformerFactory.newInstance();
         // Ignoring base as it is always null in the ds-present code
         transformerFactory.setURIResolver((href, base) -> new StreamSource(Resolver.resolveStream(href)));
-
-        useSemaphore =  ServiceConfig.getConfig().getInteger("transformations.threads",0) > 0;
-        semaphore = new Semaphore(ServiceConfig.getConfig().getInteger("transformations.threads",0));
+        // Must be registered before stylesheets calling the function are compiled
+        ((TransformerFactoryImpl) transformerFactory).getConfiguration().registerExtensionFunction(
+                new TranscriptionFunction(TranscriptionLookup::getTranscriptionText));
     }
     public final String stylesheet;
     public final Templates templates;
     public final Map<String, String> fixedInjections;
+    // Only set for transformers created with profiled(XSLTProfile)
+    protected final XSLTProfile profile;
 
     /**
      * Construct a transformer that uses Saxon to perform an XSLT transformation on its input.
@@ -68,24 +87,44 @@ public class XSLTTransformer implements DSTransformer {
      *                   If the same key is in both {@code injections} and {@code metadata}, {@code metadata} wins.
      *                   Ignored if null.
      * @throws IOException if the stylesheet could not be resolved.
+     * @throws IllegalStateException if the stylesheet could not be parsed.
      */
     public XSLTTransformer(String stylesheet, Map<String, String> fixedInjections) throws IOException {
         this.stylesheet = stylesheet;
         this.fixedInjections = fixedInjections;
-        URL stylesheetURL = Resolver.resolveURL(stylesheet);
-        if (stylesheetURL == null) {
-            throw new FileNotFoundException("Unable to resolve stylesheet '" + stylesheet + "'");
-        }
-        try (InputStream is = stylesheetURL.openStream()) {
-            templates = transformerFactory.newTemplates(new StreamSource(is));
-        } catch (IOException e) {
-            throw new IOException("Unable to retrieve stylesheet from '" + stylesheet + "'", e);
-        } catch (TransformerConfigurationException e) {
-            throw new IllegalStateException("Unable to parse stylesheet at '" + stylesheet + "'", e);
-        }
+        // Compiled stylesheets are shared between all transformers using the same stylesheet
+        templates = StylesheetRegistry.getTemplates(stylesheet);
+        profile = null;
         log.debug("Constructed " + this);
     }
 
+    /**
+     * Construct a copy of the given transformer, using a version of the stylesheet compiled with trace hooks.
+     * See {@link #profiled(XSLTProfile)}.
+     * @param original the transformer to copy.
+     * @param profile  receives the measurements for the templates and functions in the stylesheet.
+     * @throws IOException if the stylesheet could not be resolved.
+     * @throws IllegalStateException if the stylesheet could not be parsed.
+     */
+    protected XSLTTransformer(XSLTTransformer original, XSLTProfile profile) throws IOException {
+        this.stylesheet = original.stylesheet;
+        this.fixedInjections = original.fixedInjections;
+        this.templates = StylesheetRegistry.getProfilingTemplates(stylesheet);
+        this.profile = profile;
+        log.debug("Constructed profiling " + this);
+    }
+
+    /**
+     * Create a copy of this transformer that measures the time spent in the templates and functions of the stylesheet.
+     * The copy uses a separately compiled version of the stylesheet, so this transformer is not affected.
+     * @param profile receives the measurements for all transformations performed by the copy.
+     * @return a profiling copy of this transformer.
+     * @throws IOException if the stylesheet could not be resolved.
+     */
+    public XSLTTransformer profiled(XSLTProfile profile) throws IOException {
+        return new XSLTTransformer(this, profile);
+    }
+
     @Override
     public String getID() {
         return ID;
@@ -98,8 +137,32 @@ public class XSLTTransformer implements DSTransformer {
 
     @Override
     public String apply(String s, Map<String, String> metadata) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Transformer transformer = templates.newTransformer();
+        // Transforming directly to characters avoids encoding to and decoding from bytes
+        StringWriter out = new StringWriter();
+        transform(s, metadata, new StreamResult(out));
+        return out.toString();
+    }
+
+    /**
+     * Transform the input and write the result directly to {@code out}, without intermediate representations.
+     * @param s        the input for the transformation.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @param out      the destination for the serialised result of the transformation.
+     */
+    @Override
+    public void apply(String s, Map<String, String> metadata, Writer out) {
+        transform(s, metadata, new StreamResult(out));
+    }
+
+    /**
+     * Perform a transformation using the JAXP API.
+     * @param s        the input for the transformation.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @param result   the destination for the result of the transformation.
+     */
+    protected void transform(String s, Map<String, String> metadata, Result result) {
+        try {
+            Transformer transformer = newTransformer();
             try (Reader in = new StringReader(s)) {
                 if (fixedInjections != null) {
                     fixedInjections.forEach(transformer::setParameter);
@@ -109,28 +172,197 @@ public class XSLTTransformer implements DSTransformer {
                         transformer.setParameter(name, value);
                     }
                 });
-
-                if (useSemaphore) {
-                    semaphore.acquire();
-                }
-                transformer.transform(new StreamSource(in), new StreamResult(out));
+                transformer.transform(new StreamSource(in), result);
             }
-            return out.toString(StandardCharsets.UTF_8);
         } catch (IOException | TransformerException e) {
             throw new RuntimeTransformerException(
                     "Exception transforming with stylesheet '" + stylesheet + "' and metadata '" + metadata + "'", e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (useSemaphore) {
-                semaphore.release();
+        }
+    }
+
+    /**
+     * Create a JAXP transformer for the stylesheet. If this is a profiling transformer, a listener for
+     * {@link #profile} is attached.
+     * @return a transformer ready for use.
+     * @throws TransformerConfigurationException if the transformer could not be created.
+     */
+    protected Transformer newTransformer() throws TransformerConfigurationException {
+        Transformer transformer = templates.newTransformer();
+        if (profile != null) {
+            ((TransformerImpl) transformer).getUnderlyingController().setTraceListener(profile.createListener());
+        }
+        return transformer;
+    }
+
+    /**
+     * Transform the given input and deliver the result as XDM, without serialisation. This is used when the result
+     * is handed directly to another {@link XSLTTransformer}, avoiding serialisation and parsing between the steps.
+     * <p>
+     * Stylesheets declaring the boolean parameter {@code deliverXdm} receives {@code true()} for it and can use
+     * that to return maps or arrays instead of JSON text.
+     * @param input    the input for the transformation: Either a document node or a value that will be parsed as XML.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @return the raw result of the transformation.
+     */
+    public XdmValue applyXdm(XdmValue input, Map<String, String> metadata) {
+        RawDestination destination = new RawDestination();
+        transformXdm(input, metadata, true, transformer -> destination);
+        return destination.getXdmValue();
+    }
+
+    /**
+     * Transform the given input and serialise the result using the output settings of the stylesheet.
+     * This is used for the last step when the steps in a view hand off XDM values to each other.
+     * @param input    the input for the transformation: Either a document node or a value that will be parsed as XML.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @return the serialised result of the transformation.
+     */
+    public String applyXdmToString(XdmValue input, Map<String, String> metadata) {
+        StringWriter out = new StringWriter();
+        applyXdm(input, metadata, out);
+        return out.toString();
+    }
+
+    /**
+     * Transform the given input and serialise the result directly to {@code out}, using the output settings of the
+     * stylesheet. This is used for the last step when the steps in a view hand off XDM values to each other.
+     * @param input    the input for the transformation: Either a document node or a value that will be parsed as XML.
+     * @param metadata metadata for the transformation. See {@link #apply(String, Map)}.
+     * @param out      the destination for the serialised result of the transformation.
+     */
+    public void applyXdm(XdmValue input, Map<String, String> metadata, Writer out) {
+        transformXdm(input, metadata, false, transformer -> transformer.newSerializer(out));
+    }
+
+    /**
+     * Perform a transformation using the s9api from Saxon.
+     * @param input       the input for the transformation.
+     * @param metadata    metadata for the transformation.
+     * @param deliverXdm  if true, the stylesheet parameter {@code deliverXdm} is set to {@code true()}, if declared.
+     * @param destination provider of the destination for the result of the transformation.
+     */
+    private void transformXdm(XdmValue input, Map<String, String> metadata, boolean deliverXdm,
+                              Function<Xslt30Transformer, Destination> destination) {
+        try {
+            XsltExecutable executable = getExecutable();
+            Xslt30Transformer transformer = executable.load30();
+            if (profile != null) {
+                transformer.setTraceListener(profile.createListener());
             }
+            Set<QName> declared = executable.getGlobalParameters().keySet();
+
+            Map<QName, XdmValue> parameters = new HashMap<>();
+            // Strings are passed as untypedAtomic, mirroring the handling of String parameters in Saxon's JAXP layer
+            BiConsumer<String, String> addParameter = (name, value) -> {
+                QName qName = new QName(name);
+                if (name != null && value != null && declared.contains(qName)) {
+                    parameters.put(qName, new XdmAtomicValue(new StringValue(value, BuiltInAtomicType.UNTYPED_ATOMIC)));
+                }
+            };
+            if (fixedInjections != null) {
+                fixedInjections.forEach(addParameter);
+            }
+            metadata.forEach(addParameter);
+            if (deliverXdm && declared.contains(DELIVER_XDM)) {
+                parameters.put(DELIVER_XDM, new XdmAtomicValue(true));
+            }
+            addXdmParameters(parameters, input);
+
+            XdmNode source = getXdmSource(input);
+            transformer.setStylesheetParameters(parameters);
+            transformer.setGlobalContextItem(source);
+            transformer.applyTemplates(source, destination.apply(transformer));
+        } catch (SaxonApiException e) {
+            throw new RuntimeTransformerException(
+                    "Exception transforming with stylesheet '" + stylesheet + "' and metadata '" + metadata + "'", e);
+        }
+    }
+
+    /**
+     * Add transformer specific parameters for XDM based transformations.
+     * @param parameters the parameters for the transformation.
+     * @param input      the input for the transformation.
+     */
+    protected void addXdmParameters(Map<QName, XdmValue> parameters, XdmValue input) {
+        // No extra parameters by default
+    }
+
+    /**
+     * Provide the source document for XDM based transformations. Default is to use the input, parsed as XML if
+     * it is not already a document node.
+     * @param input the input for the transformation.
+     * @return the source document for the transformation.
+     * @throws SaxonApiException if the input could not be converted to a document.
+     */
+    protected XdmNode getXdmSource(XdmValue input) throws SaxonApiException {
+        if (input instanceof XdmNode && ((XdmNode) input).getNodeKind() == XdmNodeKind.DOCUMENT) {
+            return (XdmNode) input;
+        }
+        String xml;
+        if (input.stream().allMatch(item -> item.isAtomicValue() ||
+                                            (item instanceof XdmNode && ((XdmNode) item).getNodeKind() == XdmNodeKind.TEXT))) {
+            // Text, e.g. the result of a stylesheet with text output, is used verbatim
+            xml = input.stream().map(XdmItem::getStringValue).collect(Collectors.joining());
+        } else {
+            StringWriter out = new StringWriter();
+            Serializer serializer = getProcessor().newSerializer(out);
+            serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+            serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+            serializer.serializeXdmValue(input);
+            xml = out.toString();
+        }
+        return parseXml(xml);
+    }
+
+    /**
+     * Parse the given XML to a document in the Saxon configuration used by the stylesheet.
+     * @param xml an XML document.
+     * @return the parsed document.
+     * @throws SaxonApiException if the XML could not be parsed.
+     */
+    protected XdmNode parseXml(String xml) throws SaxonApiException {
+        return getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    /**
+     * @return the Saxon representation of the compiled stylesheet.
+     */
+    protected XsltExecutable getExecutable() {
+        return getSaxonTemplates().getImplementation();
+    }
+
+    /**
+     * Parse the given XML to a document in the Saxon configuration used by the stylesheet. The document can be
+     * passed to {@link #applyXdm(XdmValue, Map)} without further conversion and can also be queried with XPaths
+     * compiled by {@link #getProcessor()}.
+     * @param xml an XML document.
+     * @return the parsed document.
+     * @throws SaxonApiException if the XML could not be parsed.
+     */
+    public XdmNode buildDocument(String xml) throws SaxonApiException {
+        return parseXml(xml);
+    }
+
+    /**
+     * @return the Saxon processor for the compiled stylesheet.
+     */
+    public Processor getProcessor() {
+        return getExecutable().getProcessor();
+    }
+
+    private TemplatesImpl getSaxonTemplates() {
+        if (!(templates instanceof TemplatesImpl)) {
+            throw new IllegalStateException(
+                    "XDM based transformations requires Saxon, but the stylesheet '" + stylesheet + "' was compiled " +
+                    "to " + templates.getClass().getName());
         }
+        return (TemplatesImpl) templates;
     }
 
     @Override
     public String toString() {
-        return "XSLTTransformer(stylesheet='" + stylesheet + "', fixedInjections='" + fixedInjections + "'.)";
+        return "XSLTTransformer(stylesheet='" + stylesheet + "', fixedInjections='" + fixedInjections + "'" +
+               (profile == null ? "" : ", profiling") + ".)";
     }
 
 }
@@ -0,0 +1,274 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits a stream of records into batches for access filtering and transformation, with a batch size that is
+ * adjusted from the observed latency of the access check and the size of the records.
+ * <p>
+ * The latency per record and the payload per record are tracked as exponential moving averages. After each batch,
+ * the size is moved towards the number of records that would take {@code targetLatencyMS} to check and the number
+ * of records that would hold {@code targetBytes} of payload, whichever is smaller. The size is kept between
+ * {@code minSize} and {@code maxSize} and grows at most by a factor {@link #MAX_GROWTH} per batch.
+ * <p>
+ * Independently of the size, a batch is closed when its payload reaches {@code targetBytes}, so that a run of large
+ * records does not result in a large batch before the averages have adjusted. The payload of a record is
+ * approximated by the number of characters in {@link DsRecordDto#getData()}.
+ */
+public class AdaptiveBatchSizer {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    public static final String CONF = "records.batch";
+    // Keys below CONF
+    public static final String ADAPTIVE_KEY = ".adaptive";
+    public static final boolean DEFAULT_ADAPTIVE = true;
+    public static final String INITIAL_SIZE_KEY = ".initialSize";
+    public static final int DEFAULT_INITIAL_SIZE = 500;
+    public static final String MIN_SIZE_KEY = ".minSize";
+    public static final int DEFAULT_MIN_SIZE = 50;
+    public static final String MAX_SIZE_KEY = ".maxSize";
+    public static final int DEFAULT_MAX_SIZE = 2000;
+    public static final String TARGET_LATENCY_KEY = ".targetLatencyMS";
+    public static final int DEFAULT_TARGET_LATENCY_MS = 1000;
+    public static final String TARGET_BYTES_KEY = ".targetBytes";
+    public static final long DEFAULT_TARGET_BYTES = 10_000_000L;
+
+    // Weight of a new batch for the averages
+    static final double ALPHA = 0.3;
+    // Weight of the desired size compared to the current size
+    static final double SMOOTHING = 0.5;
+    // The maximum factor the size can grow with after a single batch
+    static final double MAX_GROWTH = 2.0;
+
+    private static final List<AdaptiveBatchSizer> sizers = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final boolean adaptive;
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyNS;
+    private final long targetBytes;
+
+    private double size;
+    private double nsPerRecord = -1;
+    private double bytesPerRecord = -1;
+    private long batches = 0;
+    private int lastRecords = 0;
+    private long lastBytes = 0;
+    private long lastNS = 0;
+    private int smallestSize;
+    private int largestSize;
+
+    /**
+     * Create a sizer configured from {@link #CONF} in the setup and register it for {@link #getStatus()}.
+     * If {@code records.batch.adaptive} is false, all batches have {@code records.batch.initialSize} records.
+     * @param name the name of the sizer, used for logging and status.
+     * @return a sizer.
+     */
+    public static AdaptiveBatchSizer create(String name) {
+        boolean adaptive = ServiceConfig.getConfig().getBoolean(CONF + ADAPTIVE_KEY, DEFAULT_ADAPTIVE);
+        int initialSize = ServiceConfig.getConfig().getInteger(CONF + INITIAL_SIZE_KEY, DEFAULT_INITIAL_SIZE);
+        int maxSize = ServiceConfig.getConfig().getInteger(CONF + MAX_SIZE_KEY, DEFAULT_MAX_SIZE);
+        int minSize = Math.min(maxSize, ServiceConfig.getConfig().getInteger(CONF + MIN_SIZE_KEY, DEFAULT_MIN_SIZE));
+        AdaptiveBatchSizer sizer = adaptive ?
+                new AdaptiveBatchSizer(
+                        name, initialSize, minSize, maxSize,
+                        ServiceConfig.getConfig().getInteger(CONF + TARGET_LATENCY_KEY, DEFAULT_TARGET_LATENCY_MS),
+                        ServiceConfig.getConfig().getLong(CONF + TARGET_BYTES_KEY, DEFAULT_TARGET_BYTES)) :
+                new AdaptiveBatchSizer(name, initialSize);
+        sizers.add(sizer);
+        return sizer;
+    }
+
+    /**
+     * Create a sizer that adjusts the batch size.
+     * @param name            the name of the sizer, used for logging and status.
+     * @param initialSize     the batch size before any batches have been observed.
+     * @param minSize         the smallest allowed batch size. Must be at least 1.
+     * @param maxSize         the largest allowed batch size.
+     * @param targetLatencyMS the wanted time for checking access for a batch.
+     * @param targetBytes     the wanted maximum payload for a batch. A batch is closed when this is reached.
+     */
+    public AdaptiveBatchSizer(String name, int initialSize, int minSize, int maxSize,
+                              int targetLatencyMS, long targetBytes) {
+        this(name, true, initialSize, minSize, maxSize, targetLatencyMS, targetBytes);
+    }
+
+    /**
+     * Create a sizer with a fixed batch size.
+     * @param name the name of the sizer, used for logging and status.
+     * @param size the number of records in each batch. Must be at least 1.
+     */
+    public AdaptiveBatchSizer(String name, int size) {
+        this(name, false, size, size, size, 0, Long.MAX_VALUE);
+    }
+
+    private AdaptiveBatchSizer(String name, boolean adaptive, int initialSize, int minSize, int maxSize,
+                               int targetLatencyMS, long targetBytes) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException(
+                    "minSize must be at least 1 and maxSize at least minSize, but minSize=" + minSize +
+                    " and maxSize=" + maxSize + " for batch sizer '" + name + "'");
+        }
+        if (adaptive && (targetLatencyMS <= 0 || targetBytes <= 0)) {
+            throw new IllegalArgumentException(
+                    "targetLatencyMS and targetBytes must be positive, but targetLatencyMS=" + targetLatencyMS +
+                    " and targetBytes=" + targetBytes + " for batch sizer '" + name + "'");
+        }
+        this.name = name;
+        this.adaptive = adaptive;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetLatencyNS = targetLatencyMS * 1000000L;
+        this.targetBytes = targetBytes;
+        this.size = Math.max(minSize, Math.min(maxSize, initialSize));
+        this.smallestSize = (int) size;
+        this.largestSize = (int) size;
+        log.debug("Created " + this);
+    }
+
+    /**
+     * Split the given records into batches. The size of each batch is decided when the batch is created, using the
+     * current {@link #getSize()}. Closing the returned stream closes {@code records}.
+     * @param records the records to split.
+     * @return a stream of batches of records, in the same order as {@code records}.
+     */
+    public Stream<List<DsRecordDto>> split(Stream<DsRecordDto> records) {
+        Iterator<DsRecordDto> source = records.iterator();
+        Iterator<List<DsRecordDto>> batchIterator = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public List<DsRecordDto> next() {
+                if (!source.hasNext()) {
+                    throw new NoSuchElementException("No more records");
+                }
+                int batchSize = getSize();
+                List<DsRecordDto> batch = new ArrayList<>(batchSize);
+                long bytes = 0;
+                while (batch.size() < batchSize && bytes < targetBytes && source.hasNext()) {
+                    DsRecordDto record = source.next();
+                    batch.add(record);
+                    bytes += getBytes(record);
+                }
+                return batch;
+            }
+        };
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(batchIterator, Spliterator.ORDERED | Spliterator.NONNULL),
+                false)
+                .onClose(records::close);
+    }
+
+    /**
+     * Run the access check for the given batch and adjust the batch size from the time it takes.
+     * @param batch the batch to check.
+     * @param check the access check for the batch.
+     * @return the result of the check.
+     */
+    public <T> T measure(List<DsRecordDto> batch, Supplier<T> check) {
+        long startNS = System.nanoTime();
+        T result = check.get();
+        update(batch.size(), batch.stream().mapToLong(AdaptiveBatchSizer::getBytes).sum(),
+               System.nanoTime() - startNS);
+        return result;
+    }
+
+    /**
+     * Update the averages and the batch size from an observed batch.
+     * @param records   the number of records in the batch.
+     * @param bytes     the payload of the records in the batch.
+     * @param latencyNS the time spent checking access for the batch.
+     */
+    synchronized void update(int records, long bytes, long latencyNS) {
+        batches++;
+        lastRecords = records;
+        lastBytes = bytes;
+        lastNS = latencyNS;
+        if (!adaptive || records == 0) {
+            return;
+        }
+        double batchNSPerRecord = (double) latencyNS / records;
+        double batchBytesPerRecord = (double) bytes / records;
+        nsPerRecord = nsPerRecord < 0 ? batchNSPerRecord : nsPerRecord + ALPHA * (batchNSPerRecord - nsPerRecord);
+        bytesPerRecord = bytesPerRecord < 0 ?
+                batchBytesPerRecord :
+                bytesPerRecord + ALPHA * (batchBytesPerRecord - bytesPerRecord);
+
+        double desired = Math.min(nsPerRecord <= 0 ? maxSize : targetLatencyNS / nsPerRecord,
+                                  bytesPerRecord <= 0 ? maxSize : targetBytes / bytesPerRecord);
+        double newSize = Math.min(size * MAX_GROWTH, size + SMOOTHING * (desired - size));
+        size = Math.max(minSize, Math.min(maxSize, newSize));
+        smallestSize = Math.min(smallestSize, (int) size);
+        largestSize = Math.max(largestSize, (int) size);
+    }
+
+    /**
+     * @return the number of records for the next batch.
+     */
+    public synchronized int getSize() {
+        return (int) size;
+    }
+
+    /**
+     * @return the approximated payload of the record.
+     */
+    static long getBytes(DsRecordDto record) {
+        return record.getData() == null ? 0 : record.getData().length();
+    }
+
+    /**
+     * @return the state of all sizers created with {@link #create(String)} in human readable form, used
+     *         by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        if (sizers.isEmpty()) {
+            return "batchSizers(none)";
+        }
+        return sizers.stream()
+                .map(AdaptiveBatchSizer::toString)
+                .collect(Collectors.joining("\n", "batchSizers(\n", "\n)"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "AdaptiveBatchSizer(name='%s', adaptive=%b, size=%d, min=%d, max=%d, " +
+                                          "sizeRange=%d-%d, batches=%d, last=%d records/%d bytes/%.1fms, " +
+                                          "msPerRecord=%.3f, bytesPerRecord=%.0f)",
+                             name, adaptive, (int) size, minSize, maxSize, smallestSize, largestSize, batches,
+                             lastRecords, lastBytes, lastNS/1000000.0, nsPerRecord/1000000, bytesPerRecord);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.util.Timing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Limits the number of concurrent executions of a task, such as the transformations of a
+ * {@link dk.kb.present.View} or calls to ds-license, with a limit that is adjusted from observed latency and CPU load.
+ * <p>
+ * The latency of each execution is tracked as a short term and a long term exponential moving average. When the
+ * short term latency rises above {@code tolerance} times the long term latency, the limit is reduced proportionally
+ * (the gradient). When latency is stable and the current limit is in use, the limit grows by the square root of the
+ * limit. No growth is allowed while the limit is reduced. If the CPU load of the machine is above
+ * {@code maxCpuLoad}, the limit is reduced multiplicatively. Changes are smoothed and the limit is kept between
+ * {@code minLimit} and {@code maxLimit}.
+ * <p>
+ * Callers state a {@link Lane}. Callers in the {@link Lane#INTERACTIVE} lane are given permits before callers in
+ * the {@link Lane#BULK} lane, except that {@code bulkMinShare} of the limit is reserved for the bulk lane when it
+ * has waiting callers, so that bulk work is not starved. The time spent waiting is added to the {@code queueTimer},
+ * with a child per lane.
+ */
+public class AdaptiveLimiter {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+    /**
+     * Configuration path for the limiters for the views. See {@link dk.kb.present.View}.
+     */
+    public static final String TRANSFORMATIONS_CONF = "transformations.limiter";
+    /**
+     * Configuration path for the limiter for calls to ds-license. See {@link dk.kb.present.RightsCalculator}.
+     */
+    public static final String LICENSE_CONF = "licensemodule.limiter";
+
+    // Keys below the configuration path for a limiter
+    public static final String ENABLED_KEY = ".enabled";
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final String INITIAL_LIMIT_KEY = ".initialLimit";
+    public static final String MIN_LIMIT_KEY = ".minLimit";
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final String MAX_LIMIT_KEY = ".maxLimit";
+    public static final String TOLERANCE_KEY = ".tolerance";
+    public static final double DEFAULT_TOLERANCE = 1.5;
+    public static final String MAX_CPU_LOAD_KEY = ".maxCpuLoad";
+    public static final String BULK_MIN_SHARE_KEY = ".bulkMinShare";
+    public static final double DEFAULT_BULK_MIN_SHARE = 0.2;
+
+    /**
+     * Deprecated fixed limit for all transformations. Used as default for {@link #MAX_LIMIT_KEY} for
+     * {@link #TRANSFORMATIONS_CONF} if present.
+     */
+    public static final String LEGACY_THREADS_KEY = "transformations.threads";
+
+    // Weight of a new sample for the short term (roughly the last 10 samples) and long term latency
+    static final double SHORT_ALPHA = 0.1;
+    static final double LONG_ALPHA = 0.01;
+    // Weight of a new limit compared to the current limit
+    static final double SMOOTHING = 0.2;
+    // Multiplicative decrease when the CPU is saturated
+    static final double CPU_BACKOFF = 0.9;
+    static final long CPU_SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * Priority classes for callers.
+     */
+    public enum Lane {
+        /**
+         * Single record requests from users, e.g. {@code /record/{id}}.
+         */
+        INTERACTIVE,
+        /**
+         * Streaming exports, e.g. {@code /records} for Solr indexing, and other background work.
+         */
+        BULK
+    }
+
+    private static final List<AdaptiveLimiter> limiters = new CopyOnWriteArrayList<>();
+    private static volatile long lastCpuSampleMS = 0;
+    private static volatile double lastCpuLoad = -1;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double maxCpuLoad;
+    private final double bulkMinShare;
+    private final DoubleSupplier cpuLoad;
+    private final Timing queueTimer;
+    private final Map<Lane, Timing> laneQueueTimers = new EnumMap<>(Lane.class);
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private final int[] laneInFlight = new int[Lane.values().length];
+    private final int[] laneWaiting = new int[Lane.values().length];
+    private double shortRttNS = -1;
+    private double longRttNS = -1;
+
+    /**
+     * Create a limiter configured from the given path in the setup and register it for {@link #getStatus()}.
+     * @param conf              the configuration path for the limiter, e.g. {@link #TRANSFORMATIONS_CONF}.
+     * @param name              the name of the limiter, used for logging and status.
+     * @param defaultMaxLimit   the maximum limit if it is not stated in the configuration.
+     * @param defaultMaxCpuLoad the maximum CPU load if it is not stated in the configuration.
+     * @param queueTimer        receives the time spent waiting for a permit.
+     * @return a limiter or null if limiting is disabled.
+     */
+    public static AdaptiveLimiter create(String conf, String name, int defaultMaxLimit, double defaultMaxCpuLoad,
+                                         Timing queueTimer) {
+        if (!ServiceConfig.getConfig().getBoolean(conf + ENABLED_KEY, DEFAULT_ENABLED)) {
+            return null;
+        }
+        int maxLimit = ServiceConfig.getConfig().getInteger(conf + MAX_LIMIT_KEY, defaultMaxLimit);
+        int minLimit = Math.min(maxLimit, ServiceConfig.getConfig().getInteger(conf + MIN_LIMIT_KEY, DEFAULT_MIN_LIMIT));
+        int initialLimit = ServiceConfig.getConfig().getInteger(
+                conf + INITIAL_LIMIT_KEY, Math.min(Runtime.getRuntime().availableProcessors(), maxLimit));
+        AdaptiveLimiter limiter = new AdaptiveLimiter(
+                name, initialLimit, minLimit, maxLimit,
+                ServiceConfig.getConfig().getDouble(conf + TOLERANCE_KEY, DEFAULT_TOLERANCE),
+                ServiceConfig.getConfig().getDouble(conf + MAX_CPU_LOAD_KEY, defaultMaxCpuLoad),
+                ServiceConfig.getConfig().getDouble(conf + BULK_MIN_SHARE_KEY, DEFAULT_BULK_MIN_SHARE),
+                AdaptiveLimiter::getSystemCpuLoad, queueTimer);
+        limiters.add(limiter);
+        return limiter;
+    }
+
+    /**
+     * Create a limiter for the transformations of a view, configured from {@link #TRANSFORMATIONS_CONF}.
+     * @param name       the name of the limiter, used for logging and status.
+     * @param queueTimer receives the time spent waiting for a permit.
+     * @return a limiter or null if limiting is disabled.
+     */
+    public static AdaptiveLimiter createForTransformations(String name, Timing queueTimer) {
+        int legacyThreads = ServiceConfig.getConfig().getInteger(LEGACY_THREADS_KEY, 0);
+        return create(TRANSFORMATIONS_CONF, name,
+                      legacyThreads > 0 ? legacyThreads : Runtime.getRuntime().availableProcessors() * 4,
+                      0.9, queueTimer);
+    }
+
+    /**
+     * @param name         the name of the limiter, used for logging and status.
+     * @param initialLimit the limit before any executions has been observed.
+     * @param minLimit     the lowest allowed limit. Must be at least 1.
+     * @param maxLimit     the highest allowed limit.
+     * @param tolerance    the limit is reduced when short term latency is above this multiple of long term latency.
+     * @param maxCpuLoad   the limit is reduced when {@code cpuLoad} is above this. 1.0 or more disables the check.
+     * @param bulkMinShare the fraction of the limit reserved for {@link Lane#BULK} when it has waiting callers.
+     *                     At least 1 permit is reserved if this is above 0 and the limit is at least 2.
+     * @param cpuLoad      delivers the current CPU load as a fraction between 0 and 1, negative if unknown.
+     * @param queueTimer   if not null, receives the time spent waiting for a permit.
+     */
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, double tolerance,
+                           double maxCpuLoad, double bulkMinShare, DoubleSupplier cpuLoad, Timing queueTimer) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(
+                    "minLimit must be at least 1 and maxLimit at least minLimit, but minLimit=" + minLimit +
+                    " and maxLimit=" + maxLimit + " for limiter '" + name + "'");
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.maxCpuLoad = maxCpuLoad;
+        this.bulkMinShare = bulkMinShare;
+        this.cpuLoad = cpuLoad;
+        this.queueTimer = queueTimer;
+        if (queueTimer != null) {
+            for (Lane lane: Lane.values()) {
+                laneQueueTimers.put(lane, queueTimer.getChild(lane.name().toLowerCase(Locale.ROOT)));
+            }
+        }
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        log.debug("Created " + this);
+    }
+
+    /**
+     * Run the given task when a permit is available for the lane and adjust the limit from the time it takes to run
+     * the task.
+     * @param lane the priority class for the task.
+     * @param task the task to run.
+     * @throws IllegalStateException if the thread was interrupted while waiting for a permit.
+     */
+    public void execute(Lane lane, Runnable task) {
+        execute(lane, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run the given task when a permit is available for the lane and adjust the limit from the time it takes to run
+     * the task.
+     * @param lane the priority class for the task.
+     * @param task the task to run.
+     * @return the result of the task.
+     * @throws IllegalStateException if the thread was interrupted while waiting for a permit.
+     */
+    public <T> T execute(Lane lane, Supplier<T> task) {
+        try {
+            acquire(lane);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a permit from limiter '" + name + "'", e);
+        }
+        long startNS = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            release(lane, System.nanoTime() - startNS);
+        }
+    }
+
+    /**
+     * Wait until a permit is available for the lane, then register a new task as in flight.
+     * Every call must be followed by a call to {@link #release(Lane, long)}.
+     * @param lane the priority class for the task.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void acquire(Lane lane) throws InterruptedException {
+        long startNS = System.nanoTime();
+        lock.lock();
+        try {
+            waiting++;
+            laneWaiting[lane.ordinal()]++;
+            try {
+                while (!mayStart(lane)) {
+                    available.await();
+                }
+            } finally {
+                waiting--;
+                laneWaiting[lane.ordinal()]--;
+            }
+            inFlight++;
+            laneInFlight[lane.ordinal()]++;
+        } finally {
+            lock.unlock();
+        }
+        if (queueTimer != null) {
+            long waitNS = System.nanoTime() - startNS;
+            queueTimer.addNS(waitNS);
+            laneQueueTimers.get(lane).addNS(waitNS);
+        }
+    }
+
+    /**
+     * Decide if a task in the given lane may start. Must be called while holding {@link #lock}.
+     */
+    private boolean mayStart(Lane lane) {
+        int free = (int) limit - inFlight;
+        if (free <= 0) {
+            return false;
+        }
+        int bulkInFlight = laneInFlight[Lane.BULK.ordinal()];
+        int bulkReserved = bulkMinShare <= 0 || limit < 2 ? 0 : Math.max(1, (int) (limit * bulkMinShare));
+        if (lane == Lane.INTERACTIVE) {
+            // Leave the reserved permits for waiting bulk tasks
+            int reserved = laneWaiting[Lane.BULK.ordinal()] > 0 ? Math.max(0, bulkReserved - bulkInFlight) : 0;
+            return free > reserved;
+        }
+        return laneWaiting[Lane.INTERACTIVE.ordinal()] == 0 || bulkInFlight < bulkReserved;
+    }
+
+    /**
+     * Register a task as finished and adjust the limit from the time it took.
+     * @param lane  the priority class for the task, as given to {@link #acquire(Lane)}.
+     * @param rttNS the time spent running the task, not including the time spent waiting for a permit.
+     */
+    public void release(Lane lane, long rttNS) {
+        boolean cpuSaturated = maxCpuLoad < 1.0 && cpuLoad.getAsDouble() > maxCpuLoad;
+        lock.lock();
+        try {
+            updateLimit(rttNS, cpuSaturated);
+            inFlight--;
+            laneInFlight[lane.ordinal()]--;
+            if (waiting > 0) {
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Update the latency averages and the limit. Must be called while holding {@link #lock} and before
+     * {@link #inFlight} is decremented for the finished task.
+     */
+    private void updateLimit(long rttNS, boolean cpuSaturated) {
+        shortRttNS = shortRttNS < 0 ? rttNS : shortRttNS + SHORT_ALPHA * (rttNS - shortRttNS);
+        longRttNS = longRttNS < 0 ? rttNS : longRttNS + LONG_ALPHA * (rttNS - longRttNS);
+
+        double newLimit;
+        if (cpuSaturated) {
+            newLimit = limit * CPU_BACKOFF;
+        } else {
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNS / shortRttNS));
+            if (gradient == 1.0 && inFlight < limit / 2 && waiting == 0) {
+                // The current limit is not in use, so there is no evidence that a higher limit would work
+                return;
+            }
+            // Growth is only allowed without signs of queueing, as the allowance would otherwise outweigh the
+            // reduction for small limits
+            newLimit = gradient < 1.0 ? limit * gradient : limit + Math.sqrt(limit);
+            newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    /**
+     * @return the current limit, rounded down.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks currently running in all lanes.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks currently waiting for a permit in all lanes.
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the state of all limiters created with {@link #create} in human readable form, used
+     *         by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        if (limiters.isEmpty()) {
+            return "limiters(none)";
+        }
+        return limiters.stream()
+                .map(AdaptiveLimiter::toString)
+                .collect(Collectors.joining("\n", "limiters(\n", "\n)"));
+    }
+
+    /**
+     * @return the CPU load for the whole machine as a fraction between 0 and 1, or -1 if it is not available.
+     *         The value is sampled at most once every {@link #CPU_SAMPLE_INTERVAL_MS}.
+     */
+    private static double getSystemCpuLoad() {
+        long now = System.currentTimeMillis();
+        if (now - lastCpuSampleMS >= CPU_SAMPLE_INTERVAL_MS) {
+            lastCpuSampleMS = now;
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            lastCpuLoad = os instanceof com.sun.management.OperatingSystemMXBean ?
+                    ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad() :
+                    -1;
+        }
+        return lastCpuLoad;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format(Locale.ROOT, "AdaptiveLimiter(name='%s', limit=%.1f, min=%d, max=%d, " +
+                                              "inFlight=%d/%d, waiting=%d/%d, shortRttMS=%.1f, longRttMS=%.1f)",
+                                 name, limit, minLimit, maxLimit,
+                                 laneInFlight[Lane.INTERACTIVE.ordinal()], laneInFlight[Lane.BULK.ordinal()],
+                                 laneWaiting[Lane.INTERACTIVE.ordinal()], laneWaiting[Lane.BULK.ordinal()],
+                                 shortRttNS/1000000, longRttNS/1000000);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
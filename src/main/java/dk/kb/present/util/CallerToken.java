@@ -0,0 +1,96 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+import dk.kb.util.webservice.Service2ServiceRequest;
+
+import java.net.http.HttpRequest;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The OAuth2 token of the caller of the current request, for use in calls to other services.
+ * <p>
+ * {@link Service2ServiceRequest#getOAuth2Token()} resolves the token from the request being processed by the current
+ * thread, so it is not available when work for the request is performed by other threads. Tasks handed to other
+ * threads must be wrapped with {@link #propagate(Function)} or {@link #propagate(Supplier)}, which capture the token
+ * on the calling thread and make it available from {@link #get()} while the task runs.
+ */
+public class CallerToken {
+    private static final ThreadLocal<String> propagated = new ThreadLocal<>();
+
+    /**
+     * @return the token propagated to the current thread with {@link #propagate} or, if none, the token for the
+     *         request processed by the current thread. Null if there is no token.
+     */
+    public static String get() {
+        String token = propagated.get();
+        return token != null ? token : Service2ServiceRequest.getOAuth2Token();
+    }
+
+    /**
+     * Add the token from {@link #get()}, if any, as bearer authorization to the given request. Used as request
+     * interceptor for the OpenAPI clients for other services.
+     * @param request a request that is about to be sent.
+     */
+    public static void authorize(HttpRequest.Builder request) {
+        String token = get();
+        if (token != null) {
+            request.setHeader("Authorization", "Bearer " + token);
+        }
+    }
+
+    /**
+     * Capture the token on the calling thread and wrap the given task so that {@link #get()} delivers the token
+     * when the task is run by another thread.
+     * @param task the task to run on another thread.
+     * @return the task with the token of the caller.
+     */
+    public static <T, R> Function<T, R> propagate(Function<T, R> task) {
+        String token = get();
+        return argument -> withToken(token, () -> task.apply(argument));
+    }
+
+    /**
+     * Capture the token on the calling thread and wrap the given task so that {@link #get()} delivers the token
+     * when the task is run by another thread.
+     * @param task the task to run on another thread.
+     * @return the task with the token of the caller.
+     */
+    public static <R> Supplier<R> propagate(Supplier<R> task) {
+        String token = get();
+        return () -> withToken(token, task);
+    }
+
+    /**
+     * Run the given task with the given token available from {@link #get()}.
+     * @param token the token to use. If null, the token for the current thread is used.
+     * @param task  the task to run.
+     * @return the result from the task.
+     */
+    public static <R> R withToken(String token, Supplier<R> task) {
+        String previous = propagated.get();
+        propagated.set(token);
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                propagated.remove();
+            } else {
+                propagated.set(previous);
+            }
+        }
+    }
+}
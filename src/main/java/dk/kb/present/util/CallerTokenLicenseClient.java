@@ -0,0 +1,67 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+
+import dk.kb.license.client.v1.DsLicenseApi;
+import dk.kb.license.invoker.v1.ApiClient;
+import dk.kb.license.invoker.v1.ApiException;
+import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
+import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import dk.kb.license.util.DsLicenseClient;
+
+/**
+ * {@link DsLicenseClient} that sends the token from {@link CallerToken#get()} for access checks and rights
+ * calculations, so that calls performed by worker threads on behalf of a caller carry the token of the caller.
+ * {@link DsLicenseClient} only resolves the token for the request processed by the current thread.
+ */
+public class CallerTokenLicenseClient extends DsLicenseClient {
+    private final String licenseUrl;
+    private final DsLicenseApi api;
+
+    /**
+     * @param licenseUrl the full URL to the service, e.g. {@code http://localhost:9076/ds-license/v1/}.
+     */
+    public CallerTokenLicenseClient(String licenseUrl) {
+        super(licenseUrl);
+        this.licenseUrl = licenseUrl;
+        ApiClient apiClient = new ApiClient();
+        apiClient.updateBaseUri(licenseUrl.replaceAll("/+$", ""));
+        apiClient.setRequestInterceptor(CallerToken::authorize);
+        api = new DsLicenseApi(apiClient);
+    }
+
+    @Override
+    public CheckAccessForIdsOutputDto checkAccessForIds(CheckAccessForIdsInputDto input) {
+        try {
+            return api.checkAccessForIds(input);
+        } catch (ApiException e) {
+            throw ServiceExceptions.forStatus(e.getCode(), "Unable to check access at " + licenseUrl, e);
+        }
+    }
+
+    @Override
+    public RightsCalculationOutputDto calculateRights(RightsCalculationInputDto input) {
+        try {
+            return api.calculateRights(input);
+        } catch (ApiException e) {
+            throw ServiceExceptions.forStatus(
+                    e.getCode(), "Unable to calculate rights for record '" + input.getRecordId() + "' at " +
+                                 licenseUrl, e);
+        }
+    }
+}
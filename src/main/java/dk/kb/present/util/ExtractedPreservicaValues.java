@@ -5,16 +5,15 @@ import dk.kb.license.model.v1.PlatformEnumDto;
 import dk.kb.license.model.v1.RestrictionsCalculationInputDto;
 import dk.kb.license.model.v1.RightsCalculationInputDto;
 import dk.kb.present.util.saxhandlers.ElementsExtractionHandler;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,6 +27,11 @@ import java.util.Map;
  * Values for form, content and origin can come from either tvmeter or nielsen metadata fragments, but never from both of them at the same time.
  */
 public class ExtractedPreservicaValues {
+    private static final SAXParserFactory PARSER_FACTORY = createParserFactory();
+    // Parsers and handlers are reused for all records processed by the same thread
+    private static final ThreadLocal<SAXParser> PARSERS = new ThreadLocal<>();
+    private static final ThreadLocal<ElementsExtractionHandler> HANDLERS =
+            ThreadLocal.withInitial(() -> new ElementsExtractionHandler(null));
 
     public Map<String, String> values = new HashMap<>();
     public static final String RECORD_ID_KEY = "recordId";
@@ -49,21 +53,44 @@ public class ExtractedPreservicaValues {
     /**
      * Extract all needed values from a preservica record. These values are either tricky values such as dates, where we know that extra parsing is needed or values that are
      * used in multiple parts of the processing of the record.
+     * <p>
+     * The SAX parser and the {@link ElementsExtractionHandler} are reused for all calls from the same thread.
      * @param content of the record. i.e. the XML data.
      * @param recordId of the processed record. Used for logging and debugging.
      * @return a {@link ExtractedPreservicaValues}-object containing the extracted values.
      */
     public static ExtractedPreservicaValues extractValuesFromPreservicaContent(String content, String recordId) throws ParserConfigurationException, SAXException, IOException {
-        try (InputStream xml = IOUtils.toInputStream(content, StandardCharsets.UTF_8)) {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(false);
-            SAXParser saxParser = factory.newSAXParser();
-
-            ElementsExtractionHandler handler = new ElementsExtractionHandler(recordId);
-            saxParser.parse(xml, handler);
-
+        SAXParser saxParser = getParser();
+        ElementsExtractionHandler handler = HANDLERS.get();
+        handler.reset(recordId);
+        try {
+            // Parsing from a Reader avoids encoding the content to bytes
+            saxParser.parse(new InputSource(new StringReader(content)), handler);
             return handler.getDataValues();
+        } finally {
+            saxParser.reset();
+        }
+    }
+
+    /**
+     * @return the SAX parser for the current thread.
+     */
+    private static SAXParser getParser() throws ParserConfigurationException, SAXException {
+        SAXParser parser = PARSERS.get();
+        if (parser == null) {
+            // SAXParserFactory is not guaranteed to be thread safe
+            synchronized (PARSER_FACTORY) {
+                parser = PARSER_FACTORY.newSAXParser();
+            }
+            PARSERS.set(parser);
         }
+        return parser;
+    }
+
+    private static SAXParserFactory createParserFactory() {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(false);
+        return factory;
     }
 
     public String getStartTime() {
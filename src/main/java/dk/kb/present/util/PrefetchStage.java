@@ -0,0 +1,276 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+import dk.kb.util.Timing;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A stage in a pipeline of streams: The elements of an upstream {@link Stream} are pulled by a background thread
+ * and handed over to the consumer of the stage through a bounded queue. Any lazy operations on the upstream, such as
+ * {@code map}, are performed by the background thread, so that the upstream work overlaps with the work done by
+ * the consumer of the stage.
+ * <p>
+ * The upstream is not pulled before the first element is requested from the stage and at most {@code capacity}
+ * elements are held in the queue, so a slow consumer throttles the upstream.
+ * <p>
+ * Exceptions thrown by the upstream are re-thrown to the consumer at the position where they occurred.
+ * If the consumer stops requesting elements, without closing the stage, the background thread gives up when
+ * it has been unable to hand over an element for {@code idleTimeoutMS}. If the consumer resumes, it receives the
+ * elements that were handed over before that, followed by an {@link InternalServiceException}.
+ * @param <T> the type of the elements.
+ */
+public class PrefetchStage<T> implements Spliterator<T> {
+    private static final Logger log = LoggerFactory.getLogger(PrefetchStage.class);
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "prefetch-stage-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Object END = new Object();
+
+    private final Stream<T> upstream;
+    private final String name;
+    private final Timing produceTimer;
+    private final Timing waitTimer;
+    private final long idleTimeoutMS;
+    private final BlockingQueue<Object> queue;
+
+    private boolean started = false;
+    private boolean finished = false;
+    private volatile boolean closed = false;
+    private volatile boolean upstreamEmpty = false;
+    private volatile Failure failure = null;
+
+    /**
+     * Create a stream where the elements from {@code upstream} are prefetched by a background thread.
+     * @param upstream      the source of the elements.
+     * @param capacity      the maximum number of prefetched elements. If this is less than 1, {@code upstream}
+     *                      is returned unchanged.
+     * @param name          the name of the stage, used for logging.
+     * @param produceTimer  if not null, the time spent waiting for each element from {@code upstream} is added.
+     * @param waitTimer     if not null, the time the consumer spends waiting for each element is added.
+     * @param idleTimeoutMS the maximum time the background thread waits for the consumer to accept an element.
+     * @return a stream delivering the elements from {@code upstream} in the same order.
+     */
+    public static <T> Stream<T> prefetch(Stream<T> upstream, int capacity, String name,
+                                         Timing produceTimer, Timing waitTimer, long idleTimeoutMS) {
+        if (capacity < 1) {
+            return upstream;
+        }
+        PrefetchStage<T> stage = new PrefetchStage<>(upstream, capacity, name, produceTimer, waitTimer, idleTimeoutMS);
+        return StreamSupport.stream(stage, false).onClose(stage::close);
+    }
+
+    private PrefetchStage(Stream<T> upstream, int capacity, String name,
+                          Timing produceTimer, Timing waitTimer, long idleTimeoutMS) {
+        this.upstream = upstream;
+        this.name = name;
+        this.produceTimer = produceTimer;
+        this.waitTimer = waitTimer;
+        this.idleTimeoutMS = idleTimeoutMS;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (finished) {
+            return false;
+        }
+        if (!started) {
+            started = true;
+            executor.submit(this::produce);
+        }
+
+        Object element;
+        long startNS = System.nanoTime();
+        try {
+            element = take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finished = true;
+            close();
+            throw new InternalServiceException("Interrupted while waiting for elements from stage '" + name + "'");
+        }
+        if (waitTimer != null) {
+            waitTimer.addNS(System.nanoTime() - startNS);
+        }
+
+        if (element == END || (element == null && upstreamEmpty)) {
+            finished = true;
+            return false;
+        }
+        if (element == null) {
+            // The background thread stopped without handing over an end marker
+            finished = true;
+            Failure lost = failure;
+            if (lost != null) {
+                throw asRuntimeException(lost.cause);
+            }
+            throw new InternalServiceException(
+                    "Stage '" + name + "' stopped as its consumer did not request elements for " + idleTimeoutMS +
+                    " ms or the stage was closed");
+        }
+        if (element instanceof Failure) {
+            finished = true;
+            throw asRuntimeException(((Failure) element).cause);
+        }
+        action.accept((T) element);
+        return true;
+    }
+
+    /**
+     * Wait for the next element from the background thread.
+     * @return the next element or null if the stage has been stopped and no more elements will be handed over.
+     */
+    private Object take() throws InterruptedException {
+        while (true) {
+            // Read the flag before polling so that elements handed over before stopping are always delivered
+            boolean wasClosed = closed;
+            Object element = queue.poll(getPollIntervalMS(), TimeUnit.MILLISECONDS);
+            if (element != null || wasClosed) {
+                return element;
+            }
+        }
+    }
+
+    private RuntimeException asRuntimeException(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new InternalServiceException("Exception in stage '" + name + "'", cause);
+    }
+
+    /**
+     * @return the maximum time to wait between checks for the stage being stopped.
+     */
+    private long getPollIntervalMS() {
+        return Math.max(1, Math.min(1000, idleTimeoutMS));
+    }
+
+    /**
+     * Pull all elements from the upstream and put them in the queue. Run by the background thread.
+     */
+    private void produce() {
+        try {
+            Iterator<T> elements = upstream.iterator();
+            while (!closed) {
+                long startNS = System.nanoTime();
+                boolean hasNext = elements.hasNext();
+                T element = hasNext ? elements.next() : null;
+                if (produceTimer != null && hasNext) {
+                    produceTimer.addNS(System.nanoTime() - startNS);
+                }
+                if (!hasNext) {
+                    // All elements have been handed over, so the consumer can finish even if END is not
+                    upstreamEmpty = true;
+                    handOver(END);
+                    break;
+                }
+                if (!handOver(element)) {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            Failure failure = new Failure(e);
+            // Kept for the consumer in case the hand over fails
+            this.failure = failure;
+            handOver(failure);
+        } finally {
+            upstream.close();
+        }
+    }
+
+    /**
+     * Put the given element in the queue, waiting for free space if needed.
+     * @return true if the element was handed over, false if the stage was closed or the consumer was idle for too long.
+     */
+    private boolean handOver(Object element) {
+        long idleStart = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                if (queue.offer(element, getPollIntervalMS(), TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (System.currentTimeMillis() - idleStart > idleTimeoutMS) {
+                    log.warn("The consumer of stage '{}' did not request elements for {} ms. Stopping the stage",
+                             name, idleTimeoutMS);
+                    closed = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while handing over elements for stage '{}'", name);
+            closed = true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop the background thread and release prefetched elements. If the consumer requests further elements,
+     * an exception is thrown.
+     */
+    private void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.NONNULL;
+    }
+
+    /**
+     * Wrapper for exceptions from the upstream.
+     */
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
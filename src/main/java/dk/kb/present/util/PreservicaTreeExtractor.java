@@ -0,0 +1,246 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+import dk.kb.present.util.saxhandlers.ElementsExtractionHandler;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extract the same values as {@link ElementsExtractionHandler} from a Preservica record that has already been parsed
+ * to a Saxon tree, using XPaths that are compiled once. This allows the tree to be used both for the extraction and
+ * as input for an XSLT, so that the record is only parsed once.
+ * <p>
+ * The XPaths are derived from the paths in {@link ElementsExtractionHandler#getExtractPaths()} and match elements
+ * on local name only, like the handler. The precedence between the metadata types is the same as for the handler.
+ * <p>
+ * An extractor is thread safe. It can only be used for trees built with the {@link Processor} given to the
+ * constructor or a processor sharing its configuration.
+ */
+public class PreservicaTreeExtractor {
+    private static final QName SCHEMA_URI_ATTRIBUTE = new QName("schemaUri");
+
+    private final XPathExecutable metadataPath;
+    private final XPathExecutable titlePath;
+    private final XPathExecutable titleValuePath;
+    private final XPathExecutable titleTypePath;
+    // Relative to /XIP/Metadata
+    private final Map<String, List<ValuePath>> valuePaths = new HashMap<>();
+
+    /**
+     * Compile the XPaths for extraction.
+     * @param processor the processor used for building the trees that values will be extracted from.
+     * @throws IllegalStateException if the XPaths could not be compiled.
+     */
+    public PreservicaTreeExtractor(Processor processor) {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        try {
+            metadataPath = compiler.compile(toXPath(ElementsExtractionHandler.METADATA_PATH));
+            titlePath = compile(compiler, ElementsExtractionHandler.PBCORE_TITLE_PATH);
+            // Relative to pbcoreTitle
+            titleValuePath = compiler.compile(toXPath(StringUtils.removeStart(
+                    ElementsExtractionHandler.PBCORE_TITLE_VALUE_PATH, ElementsExtractionHandler.PBCORE_TITLE_PATH + "/")));
+            titleTypePath = compiler.compile(toXPath(StringUtils.removeStart(
+                    ElementsExtractionHandler.PBCORE_TITLE_TYPE_PATH, ElementsExtractionHandler.PBCORE_TITLE_PATH + "/")));
+            for (Map.Entry<String, Map<String, String>> schema :
+                    ElementsExtractionHandler.getExtractPaths().entrySet()) {
+                List<ValuePath> paths = new ArrayList<>(schema.getValue().size());
+                for (Map.Entry<String, String> path : schema.getValue().entrySet()) {
+                    paths.add(new ValuePath(path.getValue(), compile(compiler, path.getKey())));
+                }
+                valuePaths.put(schema.getKey(), paths);
+            }
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException("Unable to compile XPaths for Preservica extraction", e);
+        }
+    }
+
+    /**
+     * Extract values from the given Preservica record.
+     * @param document the Preservica record as a document node.
+     * @param recordId the ID of the record.
+     * @return the values extracted from the record.
+     * @throws SaxonApiException if an XPath could not be evaluated.
+     */
+    public ExtractedPreservicaValues extract(XdmNode document, String recordId) throws SaxonApiException {
+        Extraction extraction = new Extraction(recordId);
+        // The metadata types take precedence over each other depending on the order, so they are processed in
+        // document order
+        for (XdmItem item : evaluate(metadataPath, document)) {
+            XdmNode metadata = (XdmNode) item;
+            String schema = metadata.getAttributeValue(SCHEMA_URI_ATTRIBUTE);
+            List<ValuePath> paths = schema == null ? null : valuePaths.get(schema);
+            if (paths != null) {
+                for (ValuePath path : paths) {
+                    for (XdmItem value : evaluate(path.xpath, metadata)) {
+                        extraction.extractValue(schema, path.key, value.getStringValue().trim());
+                    }
+                }
+            }
+            extractTitles(extraction, metadata, ElementsExtractionHandler.PBCORE_SCHEMA.equals(schema));
+        }
+        return extraction.values;
+    }
+
+    /**
+     * Extract the PBCore titles from the given metadata. As for {@link ElementsExtractionHandler}, the type and the
+     * value of a title are kept until they are replaced by the next title with a type or value.
+     * @param isPbCore true if the metadata is PBCore. Types and values are only updated from PBCore metadata.
+     */
+    private void extractTitles(Extraction extraction, XdmNode metadata, boolean isPbCore) throws SaxonApiException {
+        for (XdmItem item : evaluate(titlePath, metadata)) {
+            XdmNode title = (XdmNode) item;
+            if (isPbCore) {
+                for (XdmItem value : evaluate(titleValuePath, title)) {
+                    extraction.titleValue = value.getStringValue().trim();
+                }
+                for (XdmItem type : evaluate(titleTypePath, title)) {
+                    extraction.titleType = type.getStringValue().trim();
+                }
+            }
+            extraction.storeTitle();
+        }
+    }
+
+    private static XPathSelector evaluate(XPathExecutable xpath, XdmItem context) throws SaxonApiException {
+        XPathSelector selector = xpath.load();
+        selector.setContextItem(context);
+        return selector;
+    }
+
+    /**
+     * Compile the part of the path below {@code /XIP/Metadata}.
+     */
+    private static XPathExecutable compile(XPathCompiler compiler, String path) throws SaxonApiException {
+        return compiler.compile(toXPath(
+                StringUtils.removeStart(path, ElementsExtractionHandler.METADATA_PATH + "/")));
+    }
+
+    /**
+     * Convert an element path to an XPath, where the elements are matched on local name only:
+     * {@code Content/record} becomes {@code *:Content/*:record}.
+     */
+    private static String toXPath(String path) {
+        StringBuilder xpath = new StringBuilder(path.length() * 2);
+        for (String element : path.split("/")) {
+            if (element.isEmpty()) {
+                if (xpath.length() == 0) {
+                    xpath.append('/');
+                }
+                continue;
+            }
+            if (xpath.length() > 0 && xpath.charAt(xpath.length() - 1) != '/') {
+                xpath.append('/');
+            }
+            xpath.append("*:").append(element);
+        }
+        return xpath.toString();
+    }
+
+    private static final class ValuePath {
+        final String key;
+        final XPathExecutable xpath;
+
+        ValuePath(String key, XPathExecutable xpath) {
+            this.key = key;
+            this.xpath = xpath;
+        }
+    }
+
+    /**
+     * The state for the extraction from a single record.
+     */
+    private static final class Extraction {
+        final ExtractedPreservicaValues values = new ExtractedPreservicaValues();
+        boolean hasNielsenData = false;
+        boolean hasTvMetadata = false;
+        boolean hasDrArchiveSupplementaryRightsMetadata = false;
+        String titleValue = null;
+        String titleType = null;
+
+        Extraction(String recordId) {
+            values.setValue(ExtractedPreservicaValues.RECORD_ID_KEY, recordId);
+        }
+
+        /**
+         * Store the value for the given key, taking precedence between the metadata types into account.
+         */
+        void extractValue(String schema, String key, String value) {
+            switch (schema) {
+                case ElementsExtractionHandler.PBCORE_SCHEMA:
+                    if (ExtractedPreservicaValues.STARTTIME_KEY.equals(key) ||
+                            ExtractedPreservicaValues.ENDTIME_KEY.equals(key)) {
+                        value = DataCleanup.standardizeDateTimeToUtc(value);
+                    }
+                    values.setValue(key, value);
+                    break;
+                case ElementsExtractionHandler.DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_SCHEMA:
+                    // We only want to map dr_archive_supplementary_rights_metadata fragment if it has values
+                    if (!StringUtils.isBlank(value)) {
+                        hasDrArchiveSupplementaryRightsMetadata = true;
+                        values.setValue(key, value);
+                    }
+                    break;
+                case ElementsExtractionHandler.TVMETER_SCHEMA:
+                    if (!hasDrArchiveSupplementaryRightsMetadata && !hasNielsenData) {
+                        hasTvMetadata = true;
+                        values.setValue(key, value);
+                    }
+                    break;
+                case ElementsExtractionHandler.NIELSEN_SCHEMA:
+                    if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata) {
+                        hasNielsenData = true;
+                        values.setValue(key, value);
+                    }
+                    break;
+                case ElementsExtractionHandler.FUZZY_SCHEMA:
+                    if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata && !hasNielsenData) {
+                        values.setValue(key, value);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown metadata schema '" + schema + "'");
+            }
+        }
+
+        void storeTitle() {
+            if (titleType == null) {
+                return;
+            }
+            switch (titleType) {
+                case "titel":
+                    values.setValue(ExtractedPreservicaValues.TITLE_KEY, titleValue);
+                    break;
+                case "originaltitel":
+                    values.setValue(ExtractedPreservicaValues.ORIGINAL_TITLE_KEY, titleValue);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
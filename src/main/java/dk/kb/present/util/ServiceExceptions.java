@@ -0,0 +1,46 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.util;
+
+
+import dk.kb.util.webservice.exception.ForbiddenServiceException;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.webservice.exception.ServiceException;
+
+/**
+ * Mapping of HTTP error responses from other services to {@link ServiceException}s, so that the reason for a
+ * failed call is passed on to the caller of ds-present.
+ */
+public class ServiceExceptions {
+
+    /**
+     * @param status  the HTTP status of the failed call.
+     * @param message description of the failed call.
+     * @param cause   the cause of the failure or null.
+     * @return an exception matching the status: 400 gives {@link InvalidArgumentServiceException}, 403 gives
+     *         {@link ForbiddenServiceException} and 404 gives {@link NotFoundServiceException}. All other statuses
+     *         give {@link InternalServiceException}.
+     */
+    public static ServiceException forStatus(int status, String message, Throwable cause) {
+        switch (status) {
+            case 400: return new InvalidArgumentServiceException(message, cause);
+            case 403: return new ForbiddenServiceException(message, cause);
+            case 404: return new NotFoundServiceException(message, cause);
+            default: return new InternalServiceException(message, cause);
+        }
+    }
+}
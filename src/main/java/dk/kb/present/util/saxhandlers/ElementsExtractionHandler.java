@@ -7,12 +7,22 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 /**
  * Extract multiple values from an XML stream to a {@link ExtractedPreservicaValues}-object.
+ * <p>
+ * The extraction paths are compiled to a trie of {@link PathNode}s, which is traversed as elements are encountered.
+ * Elements outside the trie are only counted, so non-matching elements do not cause any allocations. Characters
+ * are only collected for elements with values to extract.
+ * <p>
+ * A handler can be reused for multiple records by calling {@link #reset(String)} before each parse, but it is not
+ * thread safe.
  **/
 public class ElementsExtractionHandler extends DefaultHandler {
-    private static final String METADATA_PATH = "/XIP/Metadata";
+    public static final String METADATA_PATH = "/XIP/Metadata";
 
     private static final String START_TIME_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreInstantiation/pbcoreDateAvailable/dateAvailableStart";
     private static final String END_TIME_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreInstantiation/pbcoreDateAvailable/dateAvailableEnd";
@@ -32,9 +42,9 @@ public class ElementsExtractionHandler extends DefaultHandler {
     private static final String NIELSEN_PURPOSE_PATH = METADATA_PATH + "/Content/record/source/nielsen/purpose";
     private static final String NIELSEN_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/source/nielsen/internalidcode";
 
-    private static final String PBCORE_TITLE_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreTitle";
-    private static final String PBCORE_TITLE_VALUE_PATH = PBCORE_TITLE_PATH + "/title";
-    private static final String PBCORE_TITLE_TYPE_PATH = PBCORE_TITLE_PATH + "/titleType";
+    public static final String PBCORE_TITLE_PATH = METADATA_PATH + "/Content/PBCoreDescriptionDocument/pbcoreTitle";
+    public static final String PBCORE_TITLE_VALUE_PATH = PBCORE_TITLE_PATH + "/title";
+    public static final String PBCORE_TITLE_TYPE_PATH = PBCORE_TITLE_PATH + "/titleType";
 
     private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_PRODUCTION_ID_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/produktionsnummer";
     private static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_ORIGIN_PATH = METADATA_PATH + "/Content/record/dr_archive_supplementary_rights_metadata/egenproduktion_kode";
@@ -96,24 +106,67 @@ public class ElementsExtractionHandler extends DefaultHandler {
             FUZZY_HOLDBACK_CATEGORY_PATH,ExtractedPreservicaValues.HOLDBACK_CATEGORY_KEY
     );
 
-    private boolean hasNielsenData = false;
-    private boolean hasTvMetadata = false;
-    private boolean hasDrArchiveSupplementaryRightsMetadata = false;
-    private boolean hasFuzzyMetadata = false;
+    public static final String PBCORE_SCHEMA = "http://www.pbcore.org/PBCore/PBCoreNamespace.html";
+    public static final String DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_SCHEMA = "http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata";
+    public static final String TVMETER_SCHEMA = "http://id.kb.dk/schemas/supplementary_tvmeter_metadata";
+    public static final String NIELSEN_SCHEMA = "http://id.kb.dk/schemas/supplementary_nielsen_metadata";
+    public static final String FUZZY_SCHEMA = "http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata";
 
-    private boolean insideMetadata = false;
+    /**
+     * The value paths for each metadata type, in the order the types are checked.
+     */
+    private static final Map<String, Map<String, String>> EXTRACT_PATHS = createExtractPaths();
+
+    /**
+     * The root of the trie of all paths used by the handler.
+     */
+    private static final PathNode ROOT = createTrie();
+
+    private boolean hasNielsenData;
+    private boolean hasTvMetadata;
+    private boolean hasDrArchiveSupplementaryRightsMetadata;
+    private boolean hasFuzzyMetadata;
+
+    private boolean insideMetadata;
     private String metadataType;
 
-    private boolean inPbCoreTitle = false;
+    private boolean inPbCoreTitle;
     private String pbCoreTitleValue;
     private String pbCoreTitleType;
 
-    private String currentPath = "";
-    private StringBuilder capturedCharacters = new StringBuilder();
+    // The matched nodes from the root to the current element. Elements below the deepest matched node that are not
+    // part of the trie are counted by unmatchedDepth
+    private PathNode[] path = new PathNode[16];
+    private int depth;
+    private int unmatchedDepth;
+    private final StringBuilder capturedCharacters = new StringBuilder();
 
     private ExtractedPreservicaValues extractedPreservicaValues;
 
     public ElementsExtractionHandler(String recordId) {
+        reset(recordId);
+    }
+
+    /**
+     * Prepare the handler for a new record. This discards any state from previous parsing.
+     * @param recordId the ID of the record that will be parsed.
+     */
+    public void reset(String recordId) {
+        hasNielsenData = false;
+        hasTvMetadata = false;
+        hasDrArchiveSupplementaryRightsMetadata = false;
+        hasFuzzyMetadata = false;
+        insideMetadata = false;
+        metadataType = null;
+        inPbCoreTitle = false;
+        pbCoreTitleValue = null;
+        pbCoreTitleType = null;
+        Arrays.fill(path, null);
+        path[0] = ROOT;
+        depth = 0;
+        unmatchedDepth = 0;
+        capturedCharacters.setLength(0);
+
         extractedPreservicaValues = new ExtractedPreservicaValues();
         extractedPreservicaValues.setValue(ExtractedPreservicaValues.RECORD_ID_KEY, recordId);
     }
@@ -128,130 +181,266 @@ public class ElementsExtractionHandler extends DefaultHandler {
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-        String elementName = stripPrefix(qName);
-        // Update the current path
-        currentPath += "/" + elementName;
         capturedCharacters.setLength(0);
+        PathNode node = unmatchedDepth == 0 ? path[depth].getChild(qName) : null;
+        if (node == null) {
+            unmatchedDepth++;
+            return;
+        }
+        if (++depth == path.length) {
+            path = Arrays.copyOf(path, path.length * 2);
+        }
+        path[depth] = node;
 
-        if (!insideMetadata && METADATA_PATH.equals(currentPath)) {
+        if (!insideMetadata && node.type == NodeType.METADATA) {
             insideMetadata = true;
             metadataType = attributes.getValue("schemaUri");
         }
 
-        if (PBCORE_TITLE_PATH.equals(currentPath)) {
+        if (node.type == NodeType.PBCORE_TITLE) {
             inPbCoreTitle = true;
         }
     }
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (unmatchedDepth > 0) {
+            unmatchedDepth--;
+            return;
+        }
+        PathNode node = path[depth];
+        path[depth--] = null;
 
-        if (insideMetadata) {
-            if ("http://www.pbcore.org/PBCore/PBCoreNamespace.html".equals(metadataType)) {
-                if (PBCORE_EXTRACT_PATHS.containsKey(currentPath)) {
-                    String key = PBCORE_EXTRACT_PATHS.get(currentPath);
-                    if (ExtractedPreservicaValues.STARTTIME_KEY.equals(key) ||
-                            ExtractedPreservicaValues.ENDTIME_KEY.equals(key)) {
-                        String cleanedTime = DataCleanup.standardizeDateTimeToUtc(capturedCharacters.toString().trim());
-                        extractedPreservicaValues.setValue(key, cleanedTime);
-                    } else {
-                        extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
-                    }
+        if (!insideMetadata) {
+            return;
+        }
+        switch (node.type) {
+            case VALUE:
+                if (node.schema.equals(metadataType)) {
+                    extractValue(node);
                 }
-                if (PBCORE_TITLE_TYPE_PATH.equals(currentPath)) {
+                break;
+            case PBCORE_TITLE_TYPE:
+                if (PBCORE_SCHEMA.equals(metadataType)) {
                     pbCoreTitleType = capturedCharacters.toString().trim();
                 }
-                if (PBCORE_TITLE_VALUE_PATH.equals(currentPath)) {
+                break;
+            case PBCORE_TITLE_VALUE:
+                if (PBCORE_SCHEMA.equals(metadataType)) {
                     pbCoreTitleValue = capturedCharacters.toString().trim();
                 }
-            }
-            if ("http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata".equals(metadataType) && DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.containsKey(currentPath)) {
+                break;
+            case PBCORE_TITLE:
+                if (pbCoreTitleType != null) {
+                    switch (pbCoreTitleType) {
+                        case "titel" :
+                            extractedPreservicaValues.setValue(ExtractedPreservicaValues.TITLE_KEY, pbCoreTitleValue);
+                            break;
+                        case "originaltitel" :
+                            extractedPreservicaValues.setValue(ExtractedPreservicaValues.ORIGINAL_TITLE_KEY, pbCoreTitleValue);
+                            break;
+                    }
+                }
+                inPbCoreTitle = false;
+                break;
+            case METADATA:
+                insideMetadata = false;
+                metadataType = null;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Store the captured characters for the given value node, taking precedence between the metadata types into
+     * account.
+     */
+    private void extractValue(PathNode node) {
+        String value = capturedCharacters.toString().trim();
+        switch (node.schema) {
+            case PBCORE_SCHEMA:
+                if (ExtractedPreservicaValues.STARTTIME_KEY.equals(node.key) ||
+                        ExtractedPreservicaValues.ENDTIME_KEY.equals(node.key)) {
+                    value = DataCleanup.standardizeDateTimeToUtc(value);
+                }
+                extractedPreservicaValues.setValue(node.key, value);
+                break;
+            case DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_SCHEMA:
                 // We only want to map dr_archive_supplementary_rights_metadata fragment if it has values
-                if (!StringUtils.isBlank(capturedCharacters.toString().trim())) {
+                if (!StringUtils.isBlank(value)) {
                     hasDrArchiveSupplementaryRightsMetadata = true;
-                    String key = DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.get(currentPath);
-                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                    extractedPreservicaValues.setValue(node.key, value);
                 }
-            }
-            if ("http://id.kb.dk/schemas/supplementary_tvmeter_metadata".equals(metadataType) && TVMETER_EXTRACT_PATHS.containsKey(currentPath)) {
+                break;
+            case TVMETER_SCHEMA:
                 if (!hasDrArchiveSupplementaryRightsMetadata && !hasNielsenData) {
                     hasTvMetadata = true;
-                    String key = TVMETER_EXTRACT_PATHS.get(currentPath);
-                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                    extractedPreservicaValues.setValue(node.key, value);
                 }
-            }
-            if ("http://id.kb.dk/schemas/supplementary_nielsen_metadata".equals(metadataType) && NIELSEN_EXTRACT_PATHS.containsKey(currentPath)) {
+                break;
+            case NIELSEN_SCHEMA:
                 if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata) {
                     hasNielsenData = true;
-                    String key = NIELSEN_EXTRACT_PATHS.get(currentPath);
-                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
+                    extractedPreservicaValues.setValue(node.key, value);
                 }
-            }
-             if ("http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata".equals(metadataType) && FUZZY_EXTRACT_PATHS.containsKey(currentPath)) {
+                break;
+            case FUZZY_SCHEMA:
                 if (!hasDrArchiveSupplementaryRightsMetadata && !hasTvMetadata && !hasNielsenData) {
                     hasFuzzyMetadata = true;
-                    String key = FUZZY_EXTRACT_PATHS.get(currentPath);
-                    extractedPreservicaValues.setValue(key, capturedCharacters.toString().trim());
-                }
-             }
-
-            if (PBCORE_TITLE_PATH.equals(currentPath)) {
-                switch (pbCoreTitleType) {
-                    case "titel" :
-                        extractedPreservicaValues.setValue(ExtractedPreservicaValues.TITLE_KEY, pbCoreTitleValue);
-                        break;
-                    case "originaltitel" :
-                        extractedPreservicaValues.setValue(ExtractedPreservicaValues.ORIGINAL_TITLE_KEY, pbCoreTitleValue);
-                        break;
+                    extractedPreservicaValues.setValue(node.key, value);
                 }
-                inPbCoreTitle = false;
-            }
-
-            if (METADATA_PATH.equals(currentPath)) {
-                insideMetadata = false;
-                metadataType = null;
-            }
+                break;
+            default:
+                throw new IllegalStateException("Unknown metadata schema '" + node.schema + "'");
         }
-
-        // Update the current path to continue traversal
-        currentPath = currentPath.substring(0, currentPath.lastIndexOf('/'));
     }
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
         if (shouldValueBeCaptured()) {
-            capturedCharacters.append(new String(ch, start, length));
+            capturedCharacters.append(ch, start, length);
         }
     }
 
     private boolean shouldValueBeCaptured() {
-        if (insideMetadata) {
-            switch (metadataType) {
-                case "http://www.pbcore.org/PBCore/PBCoreNamespace.html":
-                    return PBCORE_EXTRACT_PATHS.containsKey(currentPath) ||
-                                    PBCORE_TITLE_TYPE_PATH.equals(currentPath) ||
-                                    PBCORE_TITLE_VALUE_PATH.equals(currentPath);
-                case "http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata":
-                    return DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS.containsKey(currentPath);
-                case "http://id.kb.dk/schemas/supplementary_tvmeter_metadata":
-                    return TVMETER_EXTRACT_PATHS.containsKey(currentPath);
-                case "http://id.kb.dk/schemas/supplementary_nielsen_metadata":
-                    return NIELSEN_EXTRACT_PATHS.containsKey(currentPath);
-                case "http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata":
-                    return FUZZY_EXTRACT_PATHS.containsKey(currentPath);
+        return insideMetadata && unmatchedDepth == 0 && path[depth].schema != null &&
+               path[depth].schema.equals(metadataType);
+    }
+
+    /**
+     * Build the trie from the path constants.
+     */
+    private static PathNode createTrie() {
+        PathNode root = new PathNode("");
+        root.add(METADATA_PATH).type = NodeType.METADATA;
+        PathNode title = root.add(PBCORE_TITLE_PATH);
+        title.type = NodeType.PBCORE_TITLE;
+        PathNode titleType = root.add(PBCORE_TITLE_TYPE_PATH);
+        titleType.type = NodeType.PBCORE_TITLE_TYPE;
+        titleType.schema = PBCORE_SCHEMA;
+        PathNode titleValue = root.add(PBCORE_TITLE_VALUE_PATH);
+        titleValue.type = NodeType.PBCORE_TITLE_VALUE;
+        titleValue.schema = PBCORE_SCHEMA;
+
+        EXTRACT_PATHS.forEach((schema, extractPaths) -> addValues(root, extractPaths, schema));
+        return root;
+    }
+
+    private static Map<String, Map<String, String>> createExtractPaths() {
+        Map<String, Map<String, String>> extractPaths = new LinkedHashMap<>();
+        extractPaths.put(PBCORE_SCHEMA, PBCORE_EXTRACT_PATHS);
+        extractPaths.put(DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_SCHEMA,
+                         DR_ARCHIVE_SUPPLEMENTARY_RIGHTS_METADATA_EXTRACT_PATHS);
+        extractPaths.put(TVMETER_SCHEMA, TVMETER_EXTRACT_PATHS);
+        extractPaths.put(NIELSEN_SCHEMA, NIELSEN_EXTRACT_PATHS);
+        extractPaths.put(FUZZY_SCHEMA, FUZZY_EXTRACT_PATHS);
+        return Collections.unmodifiableMap(extractPaths);
+    }
+
+    /**
+     * The paths for the values extracted by the handler, not including the PBCore titles. The paths are absolute
+     * element paths without namespace prefixes, starting with {@link #METADATA_PATH}.
+     * @return a map from {@code schemaUri} for {@code /XIP/Metadata} to a map from path to
+     *         {@link ExtractedPreservicaValues} key.
+     */
+    public static Map<String, Map<String, String>> getExtractPaths() {
+        return EXTRACT_PATHS;
+    }
+
+    private static void addValues(PathNode root, Map<String, String> extractPaths, String schema) {
+        extractPaths.forEach((path, key) -> {
+            PathNode node = root.add(path);
+            if (node.type != NodeType.NONE) {
+                throw new IllegalStateException("The path '" + path + "' is defined more than once");
             }
-        }
-        return false;
+            node.type = NodeType.VALUE;
+            node.schema = schema;
+            node.key = key;
+        });
     }
 
     /**
-     * Ignore namespace prefixes while traversing.
+     * The role of a node in the trie.
      */
-    private String stripPrefix(String qName) {
-        int colonIndex = qName.indexOf(':');
-        if (colonIndex != -1) {
-            return qName.substring(colonIndex + 1);
+    private enum NodeType {
+        /**
+         * Intermediate node, leading to other nodes.
+         */
+        NONE,
+        /**
+         * {@code /XIP/Metadata}, stating the metadata type with the {@code schemaUri} attribute.
+         */
+        METADATA,
+        PBCORE_TITLE,
+        PBCORE_TITLE_TYPE,
+        PBCORE_TITLE_VALUE,
+        /**
+         * A value to extract to {@link PathNode#key} if the metadata type is {@link PathNode#schema}.
+         */
+        VALUE
+    }
+
+    /**
+     * A node in the trie of paths. Element names are matched without namespace prefix.
+     */
+    private static final class PathNode {
+        private static final PathNode[] NO_CHILDREN = new PathNode[0];
+
+        final String name;
+        PathNode[] children = NO_CHILDREN;
+        NodeType type = NodeType.NONE;
+        // The metadata type for which characters are captured for the node
+        String schema;
+        String key;
+
+        PathNode(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add the given path below this node, creating intermediate nodes as needed.
+         * @param path a path of element names, such as {@code /XIP/Metadata}.
+         * @return the node for the last element in the path.
+         */
+        PathNode add(String path) {
+            PathNode node = this;
+            for (String element: path.split("/")) {
+                if (element.isEmpty()) {
+                    continue;
+                }
+                PathNode child = null;
+                for (PathNode candidate: node.children) {
+                    if (candidate.name.equals(element)) {
+                        child = candidate;
+                        break;
+                    }
+                }
+                if (child == null) {
+                    child = new PathNode(element);
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.children[node.children.length - 1] = child;
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        /**
+         * Locate the child matching the given qualified element name, ignoring any namespace prefix.
+         * This does not allocate any objects.
+         * @param qName the qualified name of an element.
+         * @return the matching child or null if there is no match.
+         */
+        PathNode getChild(String qName) {
+            int offset = qName.indexOf(':') + 1;
+            int length = qName.length() - offset;
+            for (PathNode child: children) {
+                if (child.name.length() == length && qName.regionMatches(offset, child.name, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
         }
-        return qName;
     }
 }
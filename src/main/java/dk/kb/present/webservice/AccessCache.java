@@ -0,0 +1,235 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.webservice;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import dk.kb.present.api.v1.impl.DsPresentApiServiceImpl;
+import dk.kb.present.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Process wide cache for access decisions from ds-license for single records, used by
+ * {@link AccessUtil#createAccessChecker(java.util.Set, String)}.
+ * <p>
+ * Entries are keyed by presentation type, user attributes and record ID. Each outcome has its own time to live, so
+ * that e.g. {@code not_exists} can be re-checked sooner than {@code ok}. Reads do not extend the lifetime.
+ * <p>
+ * Concurrent requests for the same key while it is not cached result in a single call to ds-license, with all
+ * requests receiving the result of that call. Failed calls are not cached.
+ * <p>
+ * When the restriction lists in ds-license are changed, the cache should be cleared with {@link #clear()}.
+ */
+public class AccessCache {
+    private static final Logger log = LoggerFactory.getLogger(AccessCache.class);
+
+    private static final String MAX_ENTRIES_KEY = "licensemodule.access.cache.maxEntries";
+    private static final long DEFAULT_MAX_ENTRIES = 100000;
+    private static final String OK_SECONDS_KEY = "licensemodule.access.cache.okSeconds";
+    private static final int DEFAULT_OK_SECONDS = 300;
+    private static final String NOT_ALLOWED_SECONDS_KEY = "licensemodule.access.cache.notAllowedSeconds";
+    private static final int DEFAULT_NOT_ALLOWED_SECONDS = 300;
+    private static final String NOT_EXISTS_SECONDS_KEY = "licensemodule.access.cache.notExistsSeconds";
+    private static final int DEFAULT_NOT_EXISTS_SECONDS = 60;
+
+    private static volatile boolean initialized = false;
+    private static AccessCache instance = null;
+
+    private final Cache<String, DsPresentApiServiceImpl.ACCESS> cache;
+    private final long maxEntries;
+    private final long okNS;
+    private final long notAllowedNS;
+    private final long notExistsNS;
+
+    /**
+     * Get the access decision for the given ID from the shared cache, resolving it with {@code resolver} if it is
+     * not cached. If caching is disabled, {@code resolver} is always used.
+     * @param presentationType as defined in ds-license, e.g. {@code Search}, {@code Stream}, {@code Thumbnails}...
+     * @param attributes       the user attributes used for the access check.
+     * @param id               the ID of the record.
+     * @param resolver         calls ds-license for the access decision.
+     * @return the access decision for the record.
+     */
+    public static DsPresentApiServiceImpl.ACCESS getAccess(
+            String presentationType, List<UserObjAttributeDto> attributes, String id,
+            Supplier<DsPresentApiServiceImpl.ACCESS> resolver) {
+        AccessCache cache = getInstance();
+        return cache == null ? resolver.get() : cache.get(createKey(presentationType, attributes, id), resolver);
+    }
+
+    /**
+     * Remove all entries from the shared cache. This should be called when the restriction lists in ds-license
+     * are changed.
+     * @return the number of entries removed (approximate).
+     */
+    public static long clear() {
+        AccessCache cache = getInstance();
+        if (cache == null) {
+            return 0;
+        }
+        long entries = cache.cache.estimatedSize();
+        cache.cache.invalidateAll();
+        log.info("Cleared access cache with approximately {} entries", entries);
+        return entries;
+    }
+
+    /**
+     * @return cache statistics in human readable form, used by {@code /monitor/status}.
+     */
+    public static String getStatus() {
+        AccessCache cache = getInstance();
+        return cache == null ? "accessCache(disabled)" : cache.toString();
+    }
+
+    /**
+     * @param maxEntries        the maximum number of entries in the cache.
+     * @param okSeconds         the number of seconds an {@code ok} decision is kept.
+     * @param notAllowedSeconds the number of seconds a {@code not_allowed} decision is kept.
+     * @param notExistsSeconds  the number of seconds a {@code not_exists} decision is kept.
+     * @param ticker            the time source for the cache.
+     */
+    AccessCache(long maxEntries, int okSeconds, int notAllowedSeconds, int notExistsSeconds, Ticker ticker) {
+        this.maxEntries = maxEntries;
+        okNS = TimeUnit.SECONDS.toNanos(okSeconds);
+        notAllowedNS = TimeUnit.SECONDS.toNanos(notAllowedSeconds);
+        notExistsNS = TimeUnit.SECONDS.toNanos(notExistsSeconds);
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new OutcomeExpiry())
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get the access decision for the given key, resolving it with {@code resolver} if it is not cached.
+     * Concurrent calls for the same key wait for a single call to {@code resolver}.
+     * @throws RuntimeException if thrown by the resolver. Nothing is cached in that case.
+     */
+    DsPresentApiServiceImpl.ACCESS get(String key, Supplier<DsPresentApiServiceImpl.ACCESS> resolver) {
+        return cache.get(key, k -> resolver.get());
+    }
+
+    /**
+     * @return the approximate number of entries in the cache.
+     */
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Create a canonical representation of the input for an access check. The attributes are ordered by name and
+     * fields are separated by characters that are not expected in the values.
+     */
+    static String createKey(String presentationType, List<UserObjAttributeDto> attributes, String id) {
+        StringBuilder key = new StringBuilder(100);
+        key.append(presentationType).append('\u001F').append(id);
+        List<UserObjAttributeDto> sorted = new ArrayList<>(attributes);
+        sorted.sort(Comparator.comparing(UserObjAttributeDto::getAttribute,
+                                         Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (UserObjAttributeDto attribute: sorted) {
+            key.append('\u001F').append(attribute.getAttribute()).append('=');
+            if (attribute.getValues() != null) {
+                key.append(String.join("\u001E", attribute.getValues()));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Entries expire after the time configured for their outcome. Reads do not extend the lifetime.
+     */
+    private class OutcomeExpiry implements Expiry<String, DsPresentApiServiceImpl.ACCESS> {
+        @Override
+        public long expireAfterCreate(String key, DsPresentApiServiceImpl.ACCESS access, long currentTime) {
+            switch (access) {
+                case ok: return okNS;
+                case not_allowed: return notAllowedNS;
+                case not_exists: return notExistsNS;
+                default: return 0;
+            }
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, DsPresentApiServiceImpl.ACCESS access, long currentTime,
+                                      long currentDuration) {
+            return expireAfterCreate(key, access, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, DsPresentApiServiceImpl.ACCESS access, long currentTime,
+                                    long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    /**
+     * Create the shared cache if it has not already been created.
+     * @return the cache or null if caching is disabled.
+     */
+    private static AccessCache getInstance() {
+        if (!initialized) {
+            synchronized (AccessCache.class) {
+                if (!initialized) {
+                    instance = createInstance();
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a new cache, configured from {@link ServiceConfig}, or null if caching is disabled.
+     */
+    private static AccessCache createInstance() {
+        long maxEntries = ServiceConfig.getConfig().getLong(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+        int okSeconds = ServiceConfig.getConfig().getInteger(OK_SECONDS_KEY, DEFAULT_OK_SECONDS);
+        int notAllowedSeconds =
+                ServiceConfig.getConfig().getInteger(NOT_ALLOWED_SECONDS_KEY, DEFAULT_NOT_ALLOWED_SECONDS);
+        int notExistsSeconds = ServiceConfig.getConfig().getInteger(NOT_EXISTS_SECONDS_KEY, DEFAULT_NOT_EXISTS_SECONDS);
+        if (maxEntries <= 0) {
+            log.info("Caching of access decisions is disabled as {}={}", MAX_ENTRIES_KEY, maxEntries);
+            return null;
+        }
+        log.info("Creating cache for access decisions with maxEntries={}, okSeconds={}, notAllowedSeconds={} " +
+                 "and notExistsSeconds={}", maxEntries, okSeconds, notAllowedSeconds, notExistsSeconds);
+        return new AccessCache(maxEntries, okSeconds, notAllowedSeconds, notExistsSeconds, Ticker.systemTicker());
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format(Locale.ROOT,
+                "accessCache(entries=%d, maxEntries=%d, okSeconds=%d, notAllowedSeconds=%d, notExistsSeconds=%d, " +
+                "hits=%d, misses=%d, hitRate=%.2f, failedLoads=%d)",
+                cache.estimatedSize(), maxEntries, TimeUnit.NANOSECONDS.toSeconds(okNS),
+                TimeUnit.NANOSECONDS.toSeconds(notAllowedNS), TimeUnit.NANOSECONDS.toSeconds(notExistsNS),
+                stats.hitCount(), stats.missCount(), stats.hitRate(), stats.loadFailureCount());
+    }
+}
@@ -19,8 +19,11 @@ import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
 import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
 import dk.kb.license.model.v1.UserObjAttributeDto;
 import dk.kb.license.util.DsLicenseClient;
+import dk.kb.present.RightsCalculator;
 import dk.kb.present.api.v1.impl.DsPresentApiServiceImpl;
 import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.util.AdaptiveLimiter;
+import dk.kb.present.util.CallerTokenLicenseClient;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +53,8 @@ public class AccessUtil {
     /**
      * Based on user credentials (not used yet as it requires pending OAuth2-integration) and ds-license setup,
      * the produced function return an {@link DsPresentApiServiceImpl.ACCESS} state for metadata for a given id.
+     * Decisions from ds-license are cached with {@link AccessCache}.
+     * Calls to ds-license are performed in the {@link AdaptiveLimiter.Lane#INTERACTIVE} lane.
      *
      * @param groups token derived user groups.
      * @param presentationType as defined in ds-license, e.g. {@code Search}, {@code Stream}, {@code Thumbnails}...
@@ -69,41 +74,58 @@ public class AccessUtil {
             UserObjAttributeDto everybody = new UserObjAttributeDto()
                     .attribute("everybody")
                     .values(List.of("yes"));
+            List<UserObjAttributeDto> attributes = List.of(everybody);
 
-            CheckAccessForIdsInputDto input = new CheckAccessForIdsInputDto()
-                    .accessIds(List.of(id))
-                    .presentationType(presentationType)
-                    .attributes(List.of(everybody));
-            CheckAccessForIdsOutputDto response;
-            try {
-                response = getLicenseClient().checkAccessForIds(input);
-            } catch (Exception e) {
-                String message = String.format(Locale.ROOT,
-                        "Exception calling license server for ID '%s' with attributes %s",
-                        id, everybody);
-                log.warn(message, e);
-                throw new InternalServiceException(message + ". This error has been logged");
-            }
-            if (response.getAccessIds() != null && response.getAccessIds().contains(id)) {
-                log.debug("Access was resolved through DS-license and is 'ok'");
-                return DsPresentApiServiceImpl.ACCESS.ok;
-            }
-            if (response.getNonAccessIds() != null && response.getNonAccessIds().contains(id)) {
-                log.debug("Access was resolved through DS-license and is 'not_allowed'");
-                return DsPresentApiServiceImpl.ACCESS.not_allowed;
-            }
-            if (response.getNonExistingIds() != null && response.getNonExistingIds().contains(id)) {
-                log.debug("Access was resolved through DS-license and is 'not_exists'");
-                return DsPresentApiServiceImpl.ACCESS.not_exists;
-            }
-            throw new InternalServiceException("Unable to determine access for '" + id + "'");
+            return AccessCache.getAccess(presentationType, attributes, id,
+                                         () -> checkAccess(presentationType, attributes, id));
         };
     }
 
+    /**
+     * Call ds-license to determine access to metadata for the given id.
+     * @param presentationType as defined in ds-license, e.g. {@code Search}, {@code Stream}, {@code Thumbnails}...
+     * @param attributes the user attributes for the caller.
+     * @param id the ID of the record.
+     * @return the access state for the record.
+     * @throws InternalServiceException if ds-license could not be called or did not deliver a state for the id.
+     */
+    private static DsPresentApiServiceImpl.ACCESS checkAccess(
+            String presentationType, List<UserObjAttributeDto> attributes, String id) {
+        CheckAccessForIdsInputDto input = new CheckAccessForIdsInputDto()
+                .accessIds(List.of(id))
+                .presentationType(presentationType)
+                .attributes(attributes);
+        CheckAccessForIdsOutputDto response;
+        try {
+            response = RightsCalculator.callLicense(
+                    AdaptiveLimiter.Lane.INTERACTIVE, () -> getLicenseClient().checkAccessForIds(input));
+        } catch (Exception e) {
+            String message = String.format(Locale.ROOT,
+                    "Exception calling license server for ID '%s' with attributes %s",
+                    id, attributes);
+            log.warn(message, e);
+            throw new InternalServiceException(message + ". This error has been logged");
+        }
+        if (response.getAccessIds() != null && response.getAccessIds().contains(id)) {
+            log.debug("Access was resolved through DS-license and is 'ok'");
+            return DsPresentApiServiceImpl.ACCESS.ok;
+        }
+        if (response.getNonAccessIds() != null && response.getNonAccessIds().contains(id)) {
+            log.debug("Access was resolved through DS-license and is 'not_allowed'");
+            return DsPresentApiServiceImpl.ACCESS.not_allowed;
+        }
+        if (response.getNonExistingIds() != null && response.getNonExistingIds().contains(id)) {
+            log.debug("Access was resolved through DS-license and is 'not_exists'");
+            return DsPresentApiServiceImpl.ACCESS.not_exists;
+        }
+        throw new InternalServiceException("Unable to determine access for '" + id + "'");
+    }
+
     /**
      * Based on user credentials (not used yet as it requires pending OAuth2-integration) and ds-license setup,
      * the produced function isolate the IDs that the caller is allowed to see metadata for.
      * Order is preserved, input is never changed, output is always a new list.
+     * Calls to ds-license are performed in the {@link AdaptiveLimiter.Lane#BULK} lane.
      * @param groups token derived user groups.
      * @param presentationType as defined in ds-license, e.g. {@code Search}, {@code Stream}, {@code Thumbnails}...
      * @return function converting a list of IDs to allowed IDs.
@@ -129,7 +151,8 @@ public class AccessUtil {
                     .attributes(List.of(everybody));
             CheckAccessForIdsOutputDto response;
             try {
-                response = getLicenseClient().checkAccessForIds(input);
+                response = RightsCalculator.callLicense(
+                        AdaptiveLimiter.Lane.BULK, () -> getLicenseClient().checkAccessForIds(input));
             } catch (Exception e) {
                 String message = String.format(Locale.ROOT,
                         "Exception calling license server for %d IDs with attributes %s. First ID='%s'",
@@ -166,7 +189,7 @@ public class AccessUtil {
         if (dsLicenseUrl == null) {
             throw new IllegalStateException("No ds-license URL specified at " + LICENSE_URL_KEY);
         }
-        licenseClient = new DsLicenseClient(dsLicenseUrl);
+        licenseClient = new CallerTokenLicenseClient(dsLicenseUrl);
         log.info("Created client for ds-license at URL '{}' with allowall={}", dsLicenseUrl, licenseAllowAll);
         return licenseClient;
     }
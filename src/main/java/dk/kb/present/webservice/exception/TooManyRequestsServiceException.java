@@ -0,0 +1,41 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.present.webservice.exception;
+
+import dk.kb.util.webservice.exception.ServiceException;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * Signals that the service is too busy to accept the request (HTTP 429). The caller should retry after
+ * {@link #getRetryAfterSeconds()}, which should be delivered to the caller as the {@code Retry-After} header.
+ */
+public class TooManyRequestsServiceException extends ServiceException {
+    private static final long serialVersionUID = 4129847612083715127L;
+
+    private final long retryAfterSeconds;
+
+    public TooManyRequestsServiceException(String message, long retryAfterSeconds) {
+        super(message, Response.Status.TOO_MANY_REQUESTS);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return the number of seconds the caller should wait before retrying the request.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
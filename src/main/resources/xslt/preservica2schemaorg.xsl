@@ -15,6 +15,7 @@
                xmlns:program_structure="http://doms.statsbiblioteket.dk/types/program_structure/0/1/#"
                xmlns:err="http://www.w3.org/2005/xqt-errors"
                xmlns:transcoding="http://id.kb.dk/schemas/radiotv_access/transcoding_status"
+               xmlns:dsp="http://kb.dk/ds-present/functions"
                version="3.0">
 
   <xsl:output method="text"/>
@@ -48,8 +49,24 @@
   <xsl:param name="platform"/>
   <xsl:param name="transcription"/>
   <xsl:param name="has_transcription"/>
+  <!-- Reference ID used for resolving the transcription with dsp:transcription when it is not given as the
+       transcription parameter. Transcriptions can be large, so they are only resolved when used. -->
+  <xsl:param name="transcriptionReferenceId"/>
+  <!-- If true, the result is delivered as an XDM map instead of JSON text. Used when the result is handed directly
+       to the next transformer in a view, see the 'handoff' option for views. -->
+  <xsl:param name="deliverXdm" as="xs:boolean" select="false()"/>
   <xsl:include href="xslt/utils.xsl"/>
 
+  <!-- Global variables are evaluated at most once and only if used, so the transcription is resolved at most once -->
+  <xsl:variable name="transcriptionText" as="xs:string?"
+                use-when="function-available('dsp:transcription', 1)"
+                select="if ($transcription != '') then string($transcription)
+                        else if ($transcriptionReferenceId != '') then dsp:transcription($transcriptionReferenceId)
+                        else ()"/>
+  <xsl:variable name="transcriptionText" as="xs:string?"
+                use-when="not(function-available('dsp:transcription', 1))"
+                select="if ($transcription != '') then string($transcription) else ()"/>
+
   <xsl:variable name="InternalAccessionRef">
     <xsl:value-of select="/XIP/Metadata/Content/LegacyXIP/AccessionRef"/>
   </xsl:variable>
@@ -129,7 +146,14 @@
 
     <!-- Wrapping the xml-to-json function in a  -->
     <xsl:try>
-      <xsl:value-of select="f:xml-to-json($json)"/>
+      <xsl:choose>
+        <xsl:when test="$deliverXdm">
+          <xsl:sequence select="my:xml-to-map($json)"/>
+        </xsl:when>
+        <xsl:otherwise>
+          <xsl:value-of select="f:xml-to-json($json)"/>
+        </xsl:otherwise>
+      </xsl:choose>
       <xsl:catch errors="*">
         <xsl:variable name="errorDoc">
           <f:map>
@@ -156,7 +180,14 @@
             </f:map>
           </f:map>
         </xsl:variable>
-        <xsl:value-of select="f:xml-to-json($errorDoc)"/>
+        <xsl:choose>
+          <xsl:when test="$deliverXdm">
+            <xsl:sequence select="my:xml-to-map($errorDoc)"/>
+          </xsl:when>
+          <xsl:otherwise>
+            <xsl:value-of select="f:xml-to-json($errorDoc)"/>
+          </xsl:otherwise>
+        </xsl:choose>
       </xsl:catch>
     </xsl:try>
   </xsl:template>
@@ -1054,15 +1085,16 @@
       </f:string>
     </xsl:if>
 
-   <xsl:if test="$transcription != ''">
+   <xsl:if test="$transcriptionText != ''">
       <f:string key="kb:transcription">
-        <xsl:value-of select="$transcription"/>
+        <xsl:value-of select="$transcriptionText"/>
       </f:string>
     </xsl:if>
    
-   <xsl:if test="$has_transcription != ''">
+   <xsl:if test="$has_transcription != '' or $transcriptionReferenceId != ''">
       <f:string key="kb:has_transcription">
-        <xsl:value-of select="$has_transcription"/>
+        <xsl:value-of select="if ($has_transcription != '') then $has_transcription
+                              else exists($transcriptionText)"/>
       </f:string>
     </xsl:if>
     
@@ -12,12 +12,13 @@
                version="3.0">
   
   <xsl:output method="text" />
+  <!-- The schema.org representation of the record, either as JSON text or as an already parsed XDM map. -->
   <xsl:param name="schemaorgjson"/>
   <xsl:include href="xslt/utils.xsl"/>
 
-  <!--Saves the input JSON as an XDM object. -->
+  <!--Saves the input JSON as an XDM object. If the input is delivered as XDM, it is used directly. -->
   <xsl:variable name="schemaorg-xml" as="item()*">
-    <xsl:copy-of select="f:parse-json($schemaorgjson)"/>
+    <xsl:copy-of select="if ($schemaorgjson instance of map(*)) then $schemaorgjson else f:parse-json($schemaorgjson)"/>
   </xsl:variable>
 
   <!--Extract the array of identifiers to a variable, where the individual maps can be accessed. -->
@@ -299,4 +299,76 @@
     </xsl:choose>
   </xsl:function>
 
+  <!-- Convert the XML representation of JSON, as used by f:xml-to-json, directly to the corresponding XDM map or
+       array. The result is equal to f:parse-json(f:xml-to-json($json)), without serialising to JSON text and parsing
+       it again. Invalid input, such as malformed numbers or duplicate keys, raises an error like f:xml-to-json does. -->
+  <xsl:function name="my:xml-to-map" as="item()*">
+    <xsl:param name="json" as="node()"/>
+    <xsl:variable name="root" select="if ($json instance of document-node()) then $json/* else $json"/>
+    <xsl:sequence select="if (count($root) ne 1)
+                          then f:error(xs:QName('my:JSONXML0001'), 'Expected a single root element in the JSON XML')
+                          else my:json-xml-value($root)"/>
+  </xsl:function>
+
+  <!-- Convert a single element from the XML representation of JSON to the corresponding XDM value. -->
+  <xsl:function name="my:json-xml-value" as="item()*">
+    <xsl:param name="element" as="element()"/>
+    <xsl:choose>
+      <xsl:when test="$element/self::f:map">
+        <xsl:sequence select="map:merge(for $entry in $element/* return
+                                          map:entry(my:json-xml-key($entry), my:json-xml-value($entry)),
+                                        map{'duplicates': 'reject'})"/>
+      </xsl:when>
+      <xsl:when test="$element/self::f:array">
+        <!-- Square array constructors keep each member, also null (empty sequence) members -->
+        <xsl:sequence select="array:join(for $member in $element/* return [my:json-xml-value($member)])"/>
+      </xsl:when>
+      <xsl:when test="$element/self::f:string">
+        <xsl:sequence select="if (my:json-xml-flag($element/@escaped))
+                              then my:json-unescape(string($element))
+                              else string($element)"/>
+      </xsl:when>
+      <xsl:when test="$element/self::f:number">
+        <xsl:variable name="number" select="normalize-space($element)"/>
+        <xsl:sequence select="if (not($number castable as xs:double) or
+                                  xs:double($number) = (xs:double('INF'), xs:double('-INF')) or
+                                  xs:double($number) ne xs:double($number))
+                              then f:error(xs:QName('my:JSONXML0002'), 'Invalid JSON number: ' || $number)
+                              else xs:double($number)"/>
+      </xsl:when>
+      <xsl:when test="$element/self::f:boolean">
+        <xsl:sequence select="xs:boolean(normalize-space($element))"/>
+      </xsl:when>
+      <xsl:when test="$element/self::f:null">
+        <xsl:sequence select="()"/>
+      </xsl:when>
+      <xsl:otherwise>
+        <xsl:sequence select="f:error(xs:QName('my:JSONXML0003'),
+                                      'Unexpected element in JSON XML: ' || name($element))"/>
+      </xsl:otherwise>
+    </xsl:choose>
+  </xsl:function>
+
+  <!-- The key for an entry in a map from the XML representation of JSON. -->
+  <xsl:function name="my:json-xml-key" as="xs:string">
+    <xsl:param name="entry" as="element()"/>
+    <xsl:sequence select="if (f:empty($entry/@key))
+                          then f:error(xs:QName('my:JSONXML0004'), 'Missing key for map entry ' || name($entry))
+                          else if (my:json-xml-flag($entry/@escaped-key))
+                          then my:json-unescape(string($entry/@key))
+                          else string($entry/@key)"/>
+  </xsl:function>
+
+  <!-- Evaluate an optional boolean attribute, such as escaped or escaped-key, from the XML representation of JSON. -->
+  <xsl:function name="my:json-xml-flag" as="xs:boolean">
+    <xsl:param name="flag" as="attribute()?"/>
+    <xsl:sequence select="if (f:empty($flag)) then false() else xs:boolean(normalize-space($flag))"/>
+  </xsl:function>
+
+  <!-- Resolve JSON escape sequences, such as \n and \u00E6, in the given string. -->
+  <xsl:function name="my:json-unescape" as="xs:string">
+    <xsl:param name="escaped" as="xs:string"/>
+    <xsl:sequence select="f:parse-json('&quot;' || $escaped || '&quot;')"/>
+  </xsl:function>
+
 </xsl:stylesheet>
\ No newline at end of file
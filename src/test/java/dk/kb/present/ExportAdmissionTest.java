@@ -0,0 +1,166 @@
+package dk.kb.present;
+
+import dk.kb.present.webservice.exception.TooManyRequestsServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ExportAdmissionTest {
+
+    @Test
+    void globalLimit() {
+        ExportAdmission admission = new ExportAdmission(2, 2, 0, 0, 0.0, 30, () -> 1.0);
+        ExportAdmission.Permit first = admission.admit("a");
+        ExportAdmission.Permit second = admission.admit("b");
+        TooManyRequestsServiceException e = assertThrows(TooManyRequestsServiceException.class,
+                                                         () -> admission.admit("c"));
+        assertEquals(30, e.getRetryAfterSeconds());
+
+        first.close();
+        first.close(); // Closing twice should only release once
+        assertEquals(1, admission.getActive());
+        admission.admit("c").close();
+        second.close();
+        assertEquals(0, admission.getActive());
+    }
+
+    @Test
+    void originLimit() {
+        ExportAdmission admission = new ExportAdmission(10, 1, 0, 0, 0.0, 30, () -> 1.0);
+        ExportAdmission.Permit permit = admission.admit("a");
+        assertThrows(TooManyRequestsServiceException.class, () -> admission.admit("a"),
+                     "A second export for the same origin should be rejected");
+        admission.admit("b").close();
+        permit.close();
+        admission.admit("a").close();
+    }
+
+    @Test
+    void heapHeadroom() {
+        double[] headroom = new double[]{0.1};
+        ExportAdmission admission = new ExportAdmission(10, 10, 0, 0, 0.2, 30, () -> headroom[0]);
+        assertThrows(TooManyRequestsServiceException.class, () -> admission.admit("a"),
+                     "Exports should be rejected when heap headroom is low");
+        headroom[0] = 0.5;
+        admission.admit("a").close();
+    }
+
+    @Test
+    void heapHeadroomMeasured() {
+        System.gc();
+        double headroom = ExportAdmission.getHeapHeadroom();
+        assertTrue(headroom > 0.0 && headroom <= 1.0, "The heap headroom should be a fraction but was " + headroom);
+    }
+
+    @Test
+    void queued() throws Exception {
+        ExportAdmission admission = new ExportAdmission(1, 1, 1, 10000, 0.0, 30, () -> 1.0);
+        ExportAdmission.Permit permit = admission.admit("a");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ExportAdmission.Permit> queued = executor.submit(() -> admission.admit("a"));
+            long endMS = System.currentTimeMillis() + 10000;
+            while (admission.getWaiting() == 0 && System.currentTimeMillis() < endMS) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, admission.getWaiting(), "The second export should wait");
+            assertThrows(TooManyRequestsServiceException.class, () -> admission.admit("a"),
+                         "Exports beyond maxQueued should be rejected immediately");
+
+            permit.close();
+            queued.get(10, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, admission.getActive());
+    }
+
+    @Test
+    void orderOfArrival() throws Exception {
+        double[] headroom = new double[]{0.1};
+        ExportAdmission admission = new ExportAdmission(1, 1, 2, 10000, 0.2, 30, () -> headroom[0]);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = executor.submit(() -> {
+                try (ExportAdmission.Permit permit = admission.admit("a")) {
+                    order.add("a");
+                }
+            });
+            long endMS = System.currentTimeMillis() + 10000;
+            while (admission.getWaiting() == 0 && System.currentTimeMillis() < endMS) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, admission.getWaiting(), "The first export should wait for heap headroom");
+
+            // The first export has not yet noticed the headroom, but should still be admitted before this one
+            headroom[0] = 0.5;
+            try (ExportAdmission.Permit permit = admission.admit("b")) {
+                order.add("b");
+            }
+            first.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(List.of("a", "b"), order, "Exports should be admitted in order of arrival");
+    }
+
+    @Test
+    void otherOriginNotHeldBack() throws Exception {
+        ExportAdmission admission = new ExportAdmission(10, 1, 1, 10000, 0.0, 30, () -> 1.0);
+        ExportAdmission.Permit permit = admission.admit("a");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ExportAdmission.Permit> queued = executor.submit(() -> admission.admit("a"));
+            long endMS = System.currentTimeMillis() + 10000;
+            while (admission.getWaiting() == 0 && System.currentTimeMillis() < endMS) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, admission.getWaiting(), "The second export for the origin should wait");
+            admission.admit("b").close();
+
+            permit.close();
+            queued.get(10, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, admission.getActive());
+    }
+
+    @Test
+    void waitTimeout() {
+        ExportAdmission admission = new ExportAdmission(1, 1, 1, 50, 0.0, 30, () -> 1.0);
+        ExportAdmission.Permit permit = admission.admit("a");
+        long startNS = System.nanoTime();
+        assertThrows(TooManyRequestsServiceException.class, () -> admission.admit("a"));
+        assertTrue(System.nanoTime() - startNS >= TimeUnit.MILLISECONDS.toNanos(50),
+                   "The request should wait before being rejected");
+        assertEquals(0, admission.getWaiting());
+        permit.close();
+    }
+}
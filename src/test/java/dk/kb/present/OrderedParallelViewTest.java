@@ -0,0 +1,163 @@
+package dk.kb.present;
+
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.DsRecordDto;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class OrderedParallelViewTest {
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void order() {
+        List<DsRecordDto> batch = records(100);
+        Random random = new Random(87);
+        List<Integer> delays = batch.stream().map(record -> random.nextInt(5)).collect(Collectors.toList());
+        Function<DsRecordDto, String> view = record -> {
+            sleep(delays.get(Integer.parseInt(record.getData())));
+            return "transformed_" + record.getData();
+        };
+
+        OrderedParallelView parallel = new OrderedParallelView(batch, view, executor, 8);
+        List<String> results = batch.stream().map(parallel).collect(Collectors.toList());
+
+        for (int i = 0 ; i < batch.size() ; i++) {
+            assertEquals("transformed_" + i, results.get(i), "The result at index " + i + " should match the record");
+        }
+    }
+
+    @Test
+    void failurePosition() {
+        List<DsRecordDto> batch = records(10);
+        Function<DsRecordDto, String> view = record -> {
+            if ("5".equals(record.getData())) {
+                throw new IllegalStateException("Simulated failure");
+            }
+            return record.getData();
+        };
+
+        OrderedParallelView parallel = new OrderedParallelView(batch, view, executor, 4);
+        for (int i = 0 ; i < 5 ; i++) {
+            assertEquals(Integer.toString(i), parallel.apply(batch.get(i)));
+        }
+        assertThrows(IllegalStateException.class, () -> parallel.apply(batch.get(5)),
+                     "The exception should be thrown when the failing record is requested");
+        assertEquals("6", parallel.apply(batch.get(6)), "Records following a failed record should be available");
+    }
+
+    @Test
+    void failureCancelsPending() {
+        List<DsRecordDto> batch = records(10);
+        AtomicInteger interrupted = new AtomicInteger(0);
+        Function<DsRecordDto, String> view = record -> {
+            if ("0".equals(record.getData())) {
+                sleep(50); // Ensure that the following transformations are started
+                throw new IllegalStateException("Simulated failure");
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+            return record.getData();
+        };
+
+        OrderedParallelView parallel = new OrderedParallelView(batch, view, executor, 4);
+        assertThrows(IllegalStateException.class, () -> parallel.apply(batch.get(0)));
+        sleep(50);
+        assertEquals(3, interrupted.get(), "The transformations started ahead of the failure should be cancelled");
+    }
+
+    @Test
+    void callerToken() {
+        List<DsRecordDto> batch = records(10);
+        Set<String> tokens = ConcurrentHashMap.newKeySet();
+        Function<DsRecordDto, String> view = record -> {
+            tokens.add(String.valueOf(CallerToken.get()));
+            return record.getData();
+        };
+
+        OrderedParallelView parallel = new OrderedParallelView(batch, view, executor, 4);
+        CallerToken.withToken("caller-token", () -> batch.stream().map(parallel).collect(Collectors.toList()));
+        assertEquals(Set.of("caller-token"), tokens, "All transformations should be made with the token of the caller");
+    }
+
+    @Test
+    void lookahead() {
+        List<DsRecordDto> batch = records(20);
+        AtomicInteger started = new AtomicInteger(0);
+        Function<DsRecordDto, String> view = record -> {
+            started.incrementAndGet();
+            return record.getData();
+        };
+
+        OrderedParallelView parallel = new OrderedParallelView(batch, view, executor, 3);
+        assertEquals(0, started.get(), "No transformations should be started before records are requested");
+        parallel.apply(batch.get(0));
+        parallel.apply(batch.get(1));
+        sleep(50);
+        assertEquals(4, started.get(), "Transformations should only be started up to the lookahead");
+    }
+
+    @Test
+    void unknownRecord() {
+        List<DsRecordDto> batch = records(3);
+        OrderedParallelView parallel = new OrderedParallelView(batch, DsRecordDto::getData, executor, 2);
+        assertEquals("foo", parallel.apply(new DsRecordDto().data("foo")),
+                     "Records outside of the batch should be transformed directly");
+    }
+
+    private static List<DsRecordDto> records(int count) {
+        List<DsRecordDto> records = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            records.add(new DsRecordDto().id("id" + i).data(Integer.toString(i)));
+        }
+        return records;
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.yaml.YAML;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class RecordCacheTest {
+    private static View jsonldView;
+    private static View modsView;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        ServiceConfig.initialize("test_setup.yaml");
+        YAML dsflConf = ServiceConfig.getConfig().getYAMLList(".origins").get(0).getSubMap("dsfl");
+        modsView = new View(dsflConf.getYAMLList("views").get(0), dsflConf.getString("origin"));
+        jsonldView = new View(dsflConf.getYAMLList("views").get(1), dsflConf.getString("origin"));
+    }
+
+    @BeforeEach
+    void clearCache() {
+        RecordCache.clear();
+    }
+
+    @Test
+    void hit() {
+        AtomicInteger transformations = new AtomicInteger(0);
+        DsRecordDto record = new DsRecordDto().id("local.mods:cache1").mTime(1701261949625000L);
+
+        for (int i = 0 ; i < 3 ; i++) {
+            assertEquals("transformed", RecordCache.get("dsfl", record, jsonldView, () -> {
+                transformations.incrementAndGet();
+                return "transformed";
+            }));
+        }
+        assertEquals(1, transformations.get(), "The record should only be transformed once");
+    }
+
+    @Test
+    void clearedDuringTransformation() {
+        DsRecordDto record = new DsRecordDto().id("local.mods:cache6").mTime(1701261949625000L);
+        RecordCache.get("dsfl", record, jsonldView, () -> {
+            RecordCache.clear();
+            return "transformed before clear";
+        });
+        assertEquals("transformed after clear", RecordCache.get("dsfl", record, jsonldView,
+                                                                () -> "transformed after clear"),
+                     "Transformations started before clear should not be cached");
+    }
+
+    @Test
+    void changedRecord() {
+        DsRecordDto record = new DsRecordDto().id("local.mods:cache2").mTime(1701261949625000L);
+        assertEquals("first", RecordCache.get("dsfl", record, jsonldView, () -> "first"));
+
+        record.mTime(1701261949625001L);
+        assertEquals("second", RecordCache.get("dsfl", record, jsonldView, () -> "second"),
+                     "A record with changed mTime should be transformed again");
+    }
+
+    @Test
+    void notCached() {
+        DsRecordDto noMTime = new DsRecordDto().id("local.mods:cache3");
+        RecordCache.get("dsfl", noMTime, jsonldView, () -> "first");
+        assertEquals("second", RecordCache.get("dsfl", noMTime, jsonldView, () -> "second"),
+                     "Records without mTime should not be cached");
+
+        assertFalse(modsView.isCacheable(), "Views without stylesheets and strategy should not be cached");
+        DsRecordDto record = new DsRecordDto().id("local.mods:cache4").mTime(1701261949625000L);
+        RecordCache.get("dsfl", record, modsView, () -> "first");
+        assertEquals("second", RecordCache.get("dsfl", record, modsView, () -> "second"));
+    }
+
+    @Test
+    void viewVersion() {
+        YAML dsflConf = ServiceConfig.getConfig().getYAMLList(".origins").get(0).getSubMap("dsfl");
+        View sameSetup = new View(dsflConf.getYAMLList("views").get(1), dsflConf.getString("origin"));
+        View solrView = new View(dsflConf.getYAMLList("views").get(2), dsflConf.getString("origin"));
+
+        assertNotNull(jsonldView.getVersion());
+        assertEquals(jsonldView.getVersion(), sameSetup.getVersion(),
+                     "Views with the same setup should have the same version");
+        assertNotEquals(jsonldView.getVersion(), solrView.getVersion(),
+                        "Views with different stylesheets should have different versions");
+    }
+
+    @Test
+    void status() {
+        DsRecordDto record = new DsRecordDto().id("local.mods:cache5").mTime(1701261949625000L);
+        RecordCache.get("dsfl", record, jsonldView, () -> "transformed");
+        RecordCache.get("dsfl", record, jsonldView, () -> "transformed");
+        String status = RecordCache.getStatus();
+        assertTrue(status.startsWith("recordCache("), "Status should describe the cache but was " + status);
+        assertTrue(status.contains("hits="), "Status should contain hits but was " + status);
+    }
+}
@@ -0,0 +1,97 @@
+package dk.kb.present;
+
+import dk.kb.license.model.v1.DrRightsCalculationOutputDto;
+import dk.kb.license.model.v1.HoldbackCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class RightsCacheTest {
+    private static final long START_MS = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+
+    private final AtomicLong nowMS = new AtomicLong(START_MS);
+    private final RightsCache cache = new RightsCache(
+            100, 3600, nowMS::get, () -> TimeUnit.MILLISECONDS.toNanos(nowMS.get()));
+
+    @Test
+    void keyCoversInput() {
+        assertEquals(RightsCache.createKey(input("id1", 1000)), RightsCache.createKey(input("id1", 1000)));
+        assertNotEquals(RightsCache.createKey(input("id1", 1000)), RightsCache.createKey(input("id2", 1000)));
+        assertNotEquals(RightsCache.createKey(input("id1", 1000)), RightsCache.createKey(input("id1", 2000)));
+        assertNotEquals(RightsCache.createKey(input("id1", null)), RightsCache.createKey(input("id1", 1000)));
+    }
+
+    @Test
+    void expireSeconds() {
+        RightsCalculationOutputDto output = output(null);
+        cache.put(input("id1", 1000), output);
+        assertSame(output, cache.get(input("id1", 1000)));
+
+        nowMS.addAndGet(TimeUnit.SECONDS.toMillis(3599));
+        assertSame(output, cache.get(input("id1", 1000)), "Reads should not extend the lifetime");
+        nowMS.addAndGet(TimeUnit.SECONDS.toMillis(2));
+        assertNull(cache.get(input("id1", 1000)), "The entry should expire after expireSeconds");
+    }
+
+    @Test
+    void holdbackExpiry() {
+        cache.put(input("id1", 1000), output("2024-01-01T00:10:00Z"));
+        nowMS.addAndGet(TimeUnit.MINUTES.toMillis(9));
+        assertNotNull(cache.get(input("id1", 1000)));
+        nowMS.addAndGet(TimeUnit.MINUTES.toMillis(2));
+        assertNull(cache.get(input("id1", 1000)), "The entry should expire when the holdback expires");
+    }
+
+    @Test
+    void expiredHoldback() {
+        cache.put(input("id1", 1000), output("2020-01-01T00:00:00Z"));
+        nowMS.addAndGet(TimeUnit.MINUTES.toMillis(30));
+        assertNotNull(cache.get(input("id1", 1000)), "Holdbacks in the past should not affect expiry");
+    }
+
+    @Test
+    void parseHoldbackDate() {
+        assertEquals(START_MS, RightsCache.parseHoldbackDate("2024-01-01T00:00:00Z"));
+        assertEquals(START_MS, RightsCache.parseHoldbackDate("2024-01-01T01:00:00+01:00"));
+        assertEquals(START_MS, RightsCache.parseHoldbackDate("2024-01-01"));
+        assertNull(RightsCache.parseHoldbackDate("unknown"));
+        assertNull(RightsCache.parseHoldbackDate(null));
+    }
+
+    private static RightsCalculationInputDto input(String recordId, Integer form) {
+        RightsCalculationInputDto input = new RightsCalculationInputDto();
+        input.setRecordId(recordId);
+        HoldbackCalculationInputDto holdback = new HoldbackCalculationInputDto();
+        holdback.setForm(form);
+        input.setHoldbackInput(holdback);
+        return input;
+    }
+
+    private static RightsCalculationOutputDto output(String holdbackExpiredDate) {
+        DrRightsCalculationOutputDto dr = new DrRightsCalculationOutputDto();
+        dr.setHoldbackExpiredDate(holdbackExpiredDate);
+        RightsCalculationOutputDto output = new RightsCalculationOutputDto();
+        output.setDr(dr);
+        return output;
+    }
+}
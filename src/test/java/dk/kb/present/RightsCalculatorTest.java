@@ -0,0 +1,142 @@
+package dk.kb.present;
+
+import dk.kb.license.model.v1.RightsCalculationInputDto;
+import dk.kb.license.model.v1.RightsCalculationOutputDto;
+import dk.kb.license.util.DsLicenseClient;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.util.CallerToken;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class RightsCalculatorTest {
+    private static final Map<String, RightsCalculationOutputDto> OUTPUTS = new ConcurrentHashMap<>();
+    private static final Set<String> TOKENS = ConcurrentHashMap.newKeySet();
+
+    @BeforeAll
+    static void setup() throws IOException {
+        ServiceConfig.initialize("test_setup.yaml");
+    }
+
+    @BeforeEach
+    void mockClient() {
+        OUTPUTS.clear();
+        TOKENS.clear();
+        RightsCache.clear();
+        DsLicenseClient client = mock(DsLicenseClient.class);
+        when(client.calculateRights(any(RightsCalculationInputDto.class))).thenAnswer(invocation -> {
+            String id = ((RightsCalculationInputDto) invocation.getArgument(0)).getRecordId();
+            TOKENS.add(String.valueOf(CallerToken.get()));
+            if (id.startsWith("fail")) {
+                throw new RuntimeException("Simulated failure for " + id);
+            }
+            return OUTPUTS.computeIfAbsent(id, key -> new RightsCalculationOutputDto());
+        });
+        RightsCalculator.licenseClient = client;
+    }
+
+    @AfterAll
+    static void cleanup() {
+        RightsCalculator.licenseClient = null;
+    }
+
+    @Test
+    void single() {
+        RightsCalculationOutputDto output = RightsCalculator.calculateRights(input("id1"));
+        assertSame(OUTPUTS.get("id1"), output);
+    }
+
+    @Test
+    void cached() {
+        RightsCalculationOutputDto output = RightsCalculator.calculateRights(input("id1"));
+        assertSame(output, RightsCalculator.calculateRights(input("id1")), "Identical input should give cached rights");
+        List<RightsCalculationOutputDto> outputs = RightsCalculator.calculateRights(List.of(input("id1"), input("id2")));
+        assertSame(output, outputs.get(0));
+        verify(RightsCalculator.licenseClient, times(2)).calculateRights(any(RightsCalculationInputDto.class));
+    }
+
+    @Test
+    void singleFailure() {
+        assertThrows(InternalServiceException.class, () -> RightsCalculator.calculateRights(input("fail1")));
+    }
+
+    @Test
+    void batchOrder() {
+        List<RightsCalculationInputDto> inputs = new ArrayList<>();
+        for (int i = 0 ; i < 100 ; i++) {
+            inputs.add(input("id" + i));
+        }
+        List<RightsCalculationOutputDto> outputs = RightsCalculator.calculateRights(inputs);
+
+        assertEquals(inputs.size(), outputs.size());
+        for (int i = 0 ; i < inputs.size() ; i++) {
+            assertSame(OUTPUTS.get("id" + i), outputs.get(i), "The output at index " + i + " should match the input");
+        }
+        verify(RightsCalculator.licenseClient, times(100)).calculateRights(any(RightsCalculationInputDto.class));
+    }
+
+    @Test
+    void batchPartialFailure() {
+        List<RightsCalculationOutputDto> outputs = RightsCalculator.calculateRights(
+                List.of(input("id1"), input("fail2"), input("id3")));
+
+        assertEquals(3, outputs.size());
+        assertSame(OUTPUTS.get("id1"), outputs.get(0));
+        assertNull(outputs.get(1), "A failed calculation should be represented as null");
+        assertSame(OUTPUTS.get("id3"), outputs.get(2));
+    }
+
+    @Test
+    void batchCallerToken() {
+        List<RightsCalculationInputDto> inputs = new ArrayList<>();
+        for (int i = 0 ; i < 20 ; i++) {
+            inputs.add(input("id" + i));
+        }
+        List<RightsCalculationOutputDto> outputs =
+                CallerToken.withToken("caller-token", () -> RightsCalculator.calculateRights(inputs));
+
+        assertEquals(inputs.size(), outputs.size());
+        assertEquals(Set.of("caller-token"), TOKENS, "All calculations should be made with the token of the caller");
+    }
+
+    @Test
+    void batchEmpty() {
+        assertTrue(RightsCalculator.calculateRights(List.of()).isEmpty());
+    }
+
+    private static RightsCalculationInputDto input(String recordId) {
+        RightsCalculationInputDto input = new RightsCalculationInputDto();
+        input.setRecordId(recordId);
+        return input;
+    }
+}
@@ -0,0 +1,95 @@
+package dk.kb.present;
+
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class SpeculativeRetrievalTest {
+
+    @Test
+    void get() {
+        SpeculativeRetrieval speculative = new SpeculativeRetrieval(2);
+        SpeculativeRetrieval.Retrieval retrieval = speculative.start("id1", id -> new DsRecordDto().id(id));
+        assertNotNull(retrieval);
+        assertEquals("id1", retrieval.get().getId());
+        retrieval.discard();
+        assertTrue(speculative.toString().contains("used=1, discarded=0"),
+                   "Discarding after get should have no effect, but status was " + speculative);
+    }
+
+    @Test
+    void callerTokenPropagated() {
+        SpeculativeRetrieval.Retrieval retrieval = CallerToken.withToken("caller_token", () ->
+                new SpeculativeRetrieval(2).start("id1", id -> new DsRecordDto().id(id).data(CallerToken.get())));
+        assertEquals("caller_token", retrieval.get().getData(),
+                     "The retrieval should be performed with the token of the caller");
+    }
+
+    @Test
+    void exceptionsPassedOn() {
+        SpeculativeRetrieval.Retrieval retrieval = new SpeculativeRetrieval(2).start("id1", id -> {
+            throw new NotFoundServiceException("No record with ID '" + id + "'");
+        });
+        assertThrows(NotFoundServiceException.class, retrieval::get);
+    }
+
+    @Test
+    void discardCancels() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        SpeculativeRetrieval speculative = new SpeculativeRetrieval(1);
+        SpeculativeRetrieval.Retrieval retrieval = speculative.start("id1", id -> {
+            running.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return new DsRecordDto().id(id);
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        retrieval.discard();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "The retrieval in progress should be interrupted");
+        assertTrue(speculative.toString().contains("discarded=1"), "Status was " + speculative);
+    }
+
+    @Test
+    void rejectWhenBusy() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        SpeculativeRetrieval speculative = new SpeculativeRetrieval(1);
+        SpeculativeRetrieval.Retrieval first = speculative.start("id1", id -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new DsRecordDto().id(id);
+        });
+        assertNotNull(first);
+        assertNull(speculative.start("id2", id -> new DsRecordDto().id(id)),
+                   "No retrieval should be started when all threads are busy");
+        release.countDown();
+        assertEquals("id1", first.get().getId());
+        assertTrue(speculative.toString().contains("rejected=1"), "Status was " + speculative);
+    }
+}
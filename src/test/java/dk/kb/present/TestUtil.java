@@ -14,9 +14,12 @@ import com.google.gson.JsonParser;
 import dk.kb.present.copyright.XsltCopyrightMapper;
 import dk.kb.present.transform.DSTransformer;
 import dk.kb.present.transform.XSLTFactory;
+import dk.kb.present.transform.XSLTSolrFromSchemaTransformer;
 import dk.kb.present.transform.XSLTTransformer;
 import dk.kb.util.Resolver;
 import dk.kb.util.yaml.YAML;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,6 +117,38 @@ public class TestUtil {
 		return solrJson;
 	}
 
+	/**
+	 * Performs the same transformations as {@link #getTransformedToSolrJsonThroughSchemaJsonWithPreservica7File},
+	 * but passes the schema.org representation between the two XSLTs as XDM instead of JSON text.
+	 * @param schemaOrgTransformer used to transform from origin specific format to general schema.org json.
+	 * @param record the record to transform.
+	 * @return a solr document ready for indexing, created from the XDM schema.org representation of the inputted XML.
+	 */
+	public static String getTransformedToSolrJsonThroughXdmWithPreservica7File(String schemaOrgTransformer, String record) throws IOException {
+		Map<String, String> injections = new HashMap<>();
+		injections.put("imageserver", "https://example.com/imageserver/");
+		injections.put("holdbackDate", "2026-01-17T09:34:42Z");
+		injections.put("holdbackPurposeName", "Aktualitet og debat");
+		injections.put("kalturaID", "aVeryTrueKalturaID");
+		injections.put("startTime", "1987-05-04T14:45:00Z");
+		injections.put("endTime", "1987-05-04T16:45:00Z");
+		injections.put("productionCodeAllowed", "true");
+		injections.put("productionCodeValue", "1000");
+		XSLTTransformer schemaOrg = new XSLTTransformer(schemaOrgTransformer, injections);
+		XSLTSolrFromSchemaTransformer solr = new XSLTSolrFromSchemaTransformer(SCHEMA2SOLR, null);
+
+		String xml = Resolver.resolveUTF8String(record);
+		HashMap<String, String> metadata = XsltCopyrightMapper.applyXsltCopyrightTransformer(xml);
+		metadata.put("recordID", "ds.test:" + Path.of(record).getFileName().toString());
+		metadata.put("origin", "ds.test");
+		metadata.put("mTime", "1701261949625000");
+		metadata.put("startTime", "1987-05-04T14:45:00Z");
+		metadata.put("endTime", "1987-05-04T16:45:00Z");
+
+		XdmValue schemaOrgXdm = schemaOrg.applyXdm(new XdmAtomicValue(xml), metadata);
+		return solr.applyXdmToString(schemaOrgXdm, metadata);
+	}
+
 	public static String transformWithInjections(String record, Map<String, String> injections) throws IOException {
 		String schemaOrgJson = TestUtil.getTransformedWithMinimumFields(PRESERVICA2SCHEMAORG, record, injections);
 
@@ -0,0 +1,112 @@
+package dk.kb.present;
+
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.TranscriptionDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class TranscriptionLookupTest {
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    // Only reference IDs starting with "t" have a transcription
+    private final Function<String, TranscriptionDto> fetcher = referenceId -> {
+        calls.computeIfAbsent(referenceId, id -> new AtomicInteger()).incrementAndGet();
+        return referenceId.startsWith("t") ?
+                new TranscriptionDto().transcription("Text for " + referenceId) :
+                new TranscriptionDto();
+    };
+
+    @Test
+    void negativeCache() {
+        TranscriptionLookup lookup = lookup(fetcher, 100);
+        assertEquals("Text for t1", lookup.getText("t1"));
+        assertEquals("Text for t1", lookup.getText("t1"));
+        assertNull(lookup.getText("n1"));
+        assertNull(lookup.getText("n1"));
+
+        assertEquals(2, calls.get("t1").get(), "Transcriptions should not be cached");
+        assertEquals(1, calls.get("n1").get(), "Reference IDs without transcription should only be looked up once");
+    }
+
+    @Test
+    void negativeCacheDisabled() {
+        TranscriptionLookup lookup = lookup(fetcher, 0);
+        assertNull(lookup.getText("n1"));
+        assertNull(lookup.getText("n1"));
+        assertEquals(2, calls.get("n1").get());
+    }
+
+    @Test
+    void prefetch() {
+        TranscriptionLookup lookup = lookup(fetcher, 100);
+        assertNull(lookup.getText("n1"));
+
+        assertEquals(2, lookup.prefetch(Arrays.asList("t1", "n1", "n2", null, "t2", "t1")));
+        assertEquals(1, calls.get("n1").get(), "Known reference IDs without transcription should be skipped");
+        assertEquals(1, calls.get("t1").get(), "Duplicate reference IDs should only be looked up once");
+
+        assertEquals("Text for t1", lookup.getText("t1"));
+        assertNull(lookup.getText("n2"));
+        assertEquals(1, calls.get("t1").get(), "Prefetched transcriptions should be delivered without lookup");
+        assertEquals(1, calls.get("n2").get());
+
+        assertEquals("Text for t1", lookup.getText("t1"));
+        assertEquals(2, calls.get("t1").get(), "Prefetched transcriptions should only be delivered once");
+    }
+
+    @Test
+    void maxChars() {
+        TranscriptionLookup lookup = new TranscriptionLookup(fetcher, 2, 100, 3600, 1000, 60, 8);
+        assertEquals("Text for", lookup.getText("t1"));
+    }
+
+    @Test
+    void prefetchCallerToken() {
+        Set<String> tokens = ConcurrentHashMap.newKeySet();
+        TranscriptionLookup lookup = lookup(referenceId -> {
+            tokens.add(String.valueOf(CallerToken.get()));
+            return fetcher.apply(referenceId);
+        }, 100);
+        assertEquals(2, (int) CallerToken.withToken("caller-token", () -> lookup.prefetch(List.of("t1", "t2", "n1"))));
+        assertEquals(Set.of("caller-token"), tokens, "All lookups should be made with the token of the caller");
+    }
+
+    @Test
+    void batchFailure() {
+        TranscriptionLookup lookup = lookup(referenceId -> {
+            if ("bad".equals(referenceId)) {
+                throw new IllegalStateException("Storage unavailable");
+            }
+            return fetcher.apply(referenceId);
+        }, 100);
+        assertThrows(InternalServiceException.class, () -> lookup.prefetch(List.of("t1", "bad", "n1")));
+    }
+
+    private static TranscriptionLookup lookup(Function<String, TranscriptionDto> fetcher, long negativeMaxEntries) {
+        return new TranscriptionLookup(fetcher, 3, negativeMaxEntries, 3600, 1000000, 60, 1000000);
+    }
+}
@@ -0,0 +1,139 @@
+package dk.kb.present;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class TransformedRecordStoreTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void putGet() throws IOException {
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            assertNull(store.get("id1"), "Nothing should be returned from an empty store");
+            store.put("id1", "{\"title\":\"Første\"}");
+            store.put("id2", "second");
+            assertEquals("{\"title\":\"Første\"}", store.get("id1"));
+            assertEquals("second", store.get("id2"));
+            assertTrue(store.contains("id2"));
+            assertFalse(store.contains("id3"));
+
+            store.put("id1", "replaced");
+            assertEquals("replaced", store.get("id1"), "The newest entry for a key should be returned");
+        }
+    }
+
+    @Test
+    void invalidateAll() throws IOException, InterruptedException {
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            store.put("id1", "first");
+            store.invalidateAll();
+            assertNull(store.get("id1"), "Entries should not be returned after invalidation");
+            assertFalse(store.contains("id1"));
+
+            Thread.sleep(5);
+            store.put("id2", "second");
+            assertEquals("second", store.get("id2"), "Entries written after invalidation should be returned");
+        }
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            assertNull(store.get("id1"), "The invalidation should persist when reopening");
+            assertEquals("second", store.get("id2"));
+        }
+    }
+
+    @Test
+    void invalidatedDuringTransformation() throws IOException {
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            long generation = store.getGeneration();
+            store.invalidateAll();
+            store.put("id1", "transformed before invalidation", generation);
+            assertNull(store.get("id1"), "Transformations started before invalidation should not be stored");
+
+            store.put("id1", "transformed after invalidation", store.getGeneration());
+            assertEquals("transformed after invalidation", store.get("id1"));
+        }
+    }
+
+    @Test
+    void persistence() throws IOException {
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            for (int i = 0 ; i < 50 ; i++) {
+                store.put("id" + i, "value" + i);
+            }
+        }
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, 3600)) {
+            for (int i = 0 ; i < 50 ; i++) {
+                assertEquals("value" + i, store.get("id" + i), "Entries should be available after reopening");
+            }
+            assertTrue(store.getStatus().contains("entries=50"), "Status should contain the number of entries " +
+                                                                 "but was " + store.getStatus());
+        }
+    }
+
+    @Test
+    void segments() throws IOException {
+        String value = "x".repeat(1000);
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 200, 3600)) {
+            for (int i = 0 ; i < 10 ; i++) {
+                store.put("id" + i, value + i);
+            }
+            for (int i = 0 ; i < 10 ; i++) {
+                assertEquals(value + i, store.get("id" + i));
+            }
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            assertTrue(files.filter(file -> file.getFileName().toString().startsWith("segment-")).count() > 1,
+                       "Multiple segments should be created when the segment size is exceeded");
+        }
+    }
+
+    @Test
+    void expired() throws IOException {
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 100, 1024 * 1024, -1)) {
+            store.put("id1", "value");
+            assertNull(store.get("id1"), "Expired entries should not be returned");
+            assertFalse(store.contains("id1"), "Expired entries should not be reported as present");
+        }
+    }
+
+    @Test
+    void full() throws IOException {
+        // 16 slots is the minimum
+        try (TransformedRecordStore store = new TransformedRecordStore(folder, 1, 1024 * 1024, 3600)) {
+            for (int i = 0 ; i < 20 ; i++) {
+                store.put("id" + i, "value" + i);
+            }
+            int present = 0;
+            for (int i = 0 ; i < 20 ; i++) {
+                String value = store.get("id" + i);
+                if (value != null) {
+                    assertEquals("value" + i, value);
+                    present++;
+                }
+            }
+            assertEquals(16, present, "Only as many entries as there are slots should be stored");
+        }
+    }
+}
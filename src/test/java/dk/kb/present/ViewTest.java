@@ -1,8 +1,10 @@
 package dk.kb.present;
 
 import dk.kb.present.config.ServiceConfig;
+import dk.kb.present.transform.XSLTProfile;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.util.Resolver;
+import dk.kb.util.Timing;
 import dk.kb.util.yaml.YAML;
 
 import org.junit.jupiter.api.BeforeAll;
@@ -72,6 +74,41 @@ class ViewTest {
         assertTrue(jsonld.contains("\"headline\":[{\"value\":\"Christian VIII\",\"@language\":\"da\"}]"));
     }
 
+    @Test
+    void stepTimings() throws Exception {
+        YAML conf = YAML.resolveLayeredConfigs("test_setup.yaml");
+        YAML dsflConf = conf.getYAMLList(".origins").get(0);
+        View jsonldView = new View(dsflConf.getSubMap("dsfl").getYAMLList("views").get(1), dsflConf.getSubMap("dsfl").getString("origin"));
+        String mods = Resolver.resolveUTF8String(TestFiles.CUMULUS_RECORD_40221e30);
+
+        DsRecordDto recordDto = new DsRecordDto().data(mods).id("test.id").mTimeHuman("2023-11-29 13:45:49+0100")
+                .mTime(1701261949625000L);
+        jsonldView.apply(recordDto);
+
+        String stats = Stats.VIEWS.toString((Timing.STATS[])null, true);
+        assertTrue(stats.contains("step1_"), "Stats should contain timings for the first transformer but was " + stats);
+        assertTrue(stats.contains("mods2schemaorg.xsl"),
+                   "Stats should contain the stylesheet for XSLT transformers but was " + stats);
+    }
+
+    @Test
+    void forProfiling() throws Exception {
+        YAML conf = YAML.resolveLayeredConfigs("test_setup.yaml");
+        YAML dsflConf = conf.getYAMLList(".origins").get(0);
+        View jsonldView = new View(dsflConf.getSubMap("dsfl").getYAMLList("views").get(1), dsflConf.getSubMap("dsfl").getString("origin"));
+        String mods = Resolver.resolveUTF8String(TestFiles.CUMULUS_RECORD_40221e30);
+        DsRecordDto recordDto = new DsRecordDto().data(mods).id("test.id").mTimeHuman("2023-11-29 13:45:49+0100")
+                .mTime(1701261949625000L);
+
+        XSLTProfile profile = new XSLTProfile();
+        View profilingView = jsonldView.forProfiling(profile);
+        assertEquals(jsonldView.getId(), profilingView.getId());
+        assertEquals(jsonldView.apply(recordDto), profilingView.apply(recordDto),
+                     "Profiling should not change the result of the view");
+        assertEquals(1, profile.getTransformations(), "The XSLT transformer of the view should be profiled");
+        assertFalse(profile.getRanked().isEmpty(), "Templates for the view should be measured");
+    }
+
     @Test
     @Tag("integration")
     void jsonldPvica() throws Exception {
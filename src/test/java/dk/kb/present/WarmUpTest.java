@@ -0,0 +1,42 @@
+package dk.kb.present;
+
+import dk.kb.present.config.ServiceConfig;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class WarmUpTest {
+
+    @BeforeAll
+    static void setup() throws IOException {
+        ServiceConfig.initialize("test_setup.yaml");
+    }
+
+    @Test
+    void noSamples() {
+        OriginHandler originHandler = Mockito.mock(OriginHandler.class);
+        WarmUp.start(originHandler);
+        assertTrue(WarmUp.isReady(), "Without sample records, warm-up should be done immediately");
+        assertTrue(WarmUp.getStatus().contains("state=done"),
+                   "Status should state that warm-up is done but was " + WarmUp.getStatus());
+        Mockito.verifyNoInteractions(originHandler);
+    }
+}
@@ -21,6 +21,8 @@ import dk.kb.present.PresentFacade;
 import dk.kb.present.PresentFacadeTest;
 import dk.kb.present.config.ServiceConfig;
 import dk.kb.present.model.v1.FormatDto;
+import dk.kb.present.util.CallerToken;
+import dk.kb.present.webservice.AccessCache;
 import dk.kb.present.webservice.AccessUtil;
 import dk.kb.util.webservice.exception.ForbiddenServiceException;
 import dk.kb.util.Resolver;
@@ -28,6 +30,7 @@ import dk.kb.util.webservice.exception.NotFoundServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
 
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.Executable;
@@ -39,6 +42,8 @@ import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static dk.kb.present.util.ReflectUtils.setField;
 import static org.junit.jupiter.api.Assertions.*;
@@ -58,6 +63,11 @@ public class DsPresentApiServiceImplTest {
         }
     }
 
+    @BeforeEach
+    void clearAccessCache() {
+        AccessCache.clear();
+    }
+
     @Test
     
     public void testSingleRecordLicense() throws NoSuchFieldException, ServiceException {
@@ -72,15 +82,17 @@ public class DsPresentApiServiceImplTest {
         String record = presentAPI.getRecord(RECORD_ID, FormatDto.MODS);
         assertTrue(record.contains("<mets:mets "), "Extraction with accepting license client should work");
 
-        // Change the mock to not allow the record
+        // Change the mock to not allow the record. Cached access decisions must be cleared for the change to apply
         CheckAccessForIdsOutputDto noAccessResponse = new CheckAccessForIdsOutputDto().nonAccessIds(List.of(RECORD_ID));
         doReturn(noAccessResponse).when(mockedLicenseClient).checkAccessForIds(any(CheckAccessForIdsInputDto.class));
+        AccessCache.clear();
         assertThrowsInner(ForbiddenServiceException.class, () -> presentAPI.getRecord(RECORD_ID, FormatDto.MODS),
                 "Calling getRecord should raise a forbidden exception");
 
         // Change the mock to not have the record
         CheckAccessForIdsOutputDto noRecordResponse = new CheckAccessForIdsOutputDto().nonExistingIds(List.of(RECORD_ID));
         doReturn(noRecordResponse).when(mockedLicenseClient).checkAccessForIds(any(CheckAccessForIdsInputDto.class));
+        AccessCache.clear();
         assertThrowsInner(NotFoundServiceException.class, () -> presentAPI.getRecord(RECORD_ID, FormatDto.MODS),
                 "Calling getRecord should raise a not found exception");
     }
@@ -192,6 +204,35 @@ public class DsPresentApiServiceImplTest {
         }
     }
 
+    @Test
+    @Tag("integration")
+    public void testMultiRecordsCallerToken() throws NoSuchFieldException, ServiceException, IOException {
+        if (Resolver.getPathFromClasspath("internal_test_files") == null){
+            fail("Missing internal_test_files");
+        }
+        // Access checks for exports are performed by background threads, which must use the token of the caller
+        DsPresentApiServiceImpl presentAPI = getMockedPresentAPI();
+        DsLicenseClient mockedLicenseClient = mock(DsLicenseClient.class);
+        Set<String> licenseTokens = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            licenseTokens.add(String.valueOf(CallerToken.get()));
+            CheckAccessForIdsInputDto input = invocation.getArgument(0);
+            return new CheckAccessForIdsOutputDto().accessIds(input.getAccessIds());
+        }).when(mockedLicenseClient).checkAccessForIds(any(CheckAccessForIdsInputDto.class));
+        AccessUtil.licenseClient = mockedLicenseClient;
+
+        long records = CallerToken.withToken("caller-token", () -> {
+            try {
+                return PresentFacadeTest.countMETS(presentAPI.getRecords("dsfl", 0L, 1000L, FormatDto.MODS));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(records > 0, "Records should be delivered");
+        assertEquals(Set.of("caller-token"), licenseTokens,
+                "All calls to ds-license should be made with the token of the caller");
+    }
+
     /**
      * Basic mocking of the {@link DsPresentApiServiceImpl}. Callers should add further mocking.
      * @return a Mochito mock of {@code } DsPresentApiServiceImpl with {@code httpServletRequest}.
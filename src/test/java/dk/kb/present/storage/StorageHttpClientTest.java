@@ -0,0 +1,188 @@
+package dk.kb.present.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.present.util.CallerToken;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.util.webservice.exception.ForbiddenServiceException;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.webservice.stream.ContinuationStream;
+import dk.kb.util.webservice.stream.ContinuationUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class StorageHttpClientTest {
+    private HttpServer server;
+    private String url;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ds-storage/v1/record/", exchange -> {
+            requests.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getRawQuery());
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization != null) {
+                authorizations.add(authorization);
+            }
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String id = exchange.getRequestURI().getPath().replaceFirst(".*/", "");
+            int status = id.startsWith("missing") ? 404 : id.startsWith("invalid") ? 400 :
+                    id.startsWith("forbidden") ? 403 : 200;
+            if (status != 200) {
+                byte[] message = ("Record '" + id + "' not delivered").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, message.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(message);
+                }
+                return;
+            }
+            sendJSON(exchange, recordJSON(id));
+        });
+        server.createContext("/ds-storage/v1/records", exchange -> {
+            requests.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getRawQuery());
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String json = "[" + recordJSON("id_1") + "," + recordJSON("id_2") + "]";
+            exchange.getResponseHeaders().add(ContinuationUtil.HEADER_PAGING_CONTINUATION_TOKEN, "1234");
+            exchange.getResponseHeaders().add(ContinuationUtil.HEADER_PAGING_HAS_MORE, "true");
+            sendJSON(exchange, json);
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/ds-storage/v1/";
+    }
+
+    private static String recordJSON(String id) {
+        return "{\"id\":\"" + id + "\",\"data\":\"" + "<xml/>".repeat(1000) + "\",\"unknownField\":1}";
+    }
+
+    private static void sendJSON(HttpExchange exchange, String content) throws IOException {
+        byte[] json = content.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(json);
+            }
+            json = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+        }
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void compressedRecord() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        DsRecordDto record = client.getRecord("ds.test:id_1", true);
+        assertEquals("ds.test:id_1", record.getId());
+        assertEquals("<xml/>".repeat(1000), record.getData());
+        assertEquals("/ds-storage/v1/record/ds.test:id_1?includeLocalTree=true", requests.get(0));
+    }
+
+    @Test
+    void uncompressedRecord() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, false);
+        assertEquals("<xml/>".repeat(1000), client.getRecord("id_2", false).getData());
+    }
+
+    @Test
+    void callerToken() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        client.getRecord("id_1", false);
+        assertTrue(authorizations.isEmpty(), "No token should be sent without a caller token");
+        CallerToken.withToken("caller_token", () -> client.getRecord("id_2", false));
+        assertEquals(List.of("Bearer caller_token"), authorizations);
+    }
+
+    @Test
+    void notFound() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        assertThrows(NotFoundServiceException.class, () -> client.getRecord("missing_1", false));
+        assertEquals("id_3", client.getRecord("id_3", false).getId(),
+                     "The client should work after a missing record");
+    }
+
+    @Test
+    void errorStatus() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        assertThrows(InvalidArgumentServiceException.class, () -> client.getRecord("invalid_1", false));
+        assertThrows(ForbiddenServiceException.class, () -> client.getRecord("forbidden_1", false));
+    }
+
+    @Test
+    void records() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        for (int i = 0 ; i < 3 ; i++) {
+            try (ContinuationStream<DsRecordDto, Long> records =
+                         client.getRecords("ds.test", RecordTypeDto.DELIVERABLEUNIT, 0L, 2L)) {
+                assertEquals(1234L, records.getContinuationToken());
+                assertTrue(records.hasMore());
+                assertEquals("id_1,id_2", records.map(DsRecordDto::getId).collect(Collectors.joining(",")));
+            }
+        }
+        assertEquals("/ds-storage/v1/recordsByRecordTypeLocalTree?" +
+                     "origin=ds.test&recordType=DELIVERABLEUNIT&mTime=0&maxRecords=2", requests.get(0));
+        assertEquals(1, clientPorts.size(), "Sequential exports should use a single connection");
+    }
+
+    @Test
+    void connectionsReused() {
+        StorageHttpClient client = new StorageHttpClient(url, 2, 60, 1000, 5000, true);
+        for (int i = 0 ; i < 10 ; i++) {
+            client.getRecord("id_" + i, false);
+        }
+        client.getRecord("id_" + 1, false);
+        assertThrows(NotFoundServiceException.class, () -> client.getRecord("missing_2", false));
+        client.getRecord("id_" + 2, false);
+        assertEquals(1, clientPorts.size(), "Sequential requests should use a single connection");
+        assertEquals(1, client.getPoolStats().getAvailable(), "The connection should be kept alive in the pool");
+    }
+
+    @Test
+    void clientPerUrl() {
+        String otherUrl = "http://localhost:1/ds-storage/v1/";
+        assertSame(StorageHttpClient.getClient(url), StorageHttpClient.getClient(url));
+        assertNotSame(StorageHttpClient.getClient(url), StorageHttpClient.getClient(otherUrl));
+    }
+}
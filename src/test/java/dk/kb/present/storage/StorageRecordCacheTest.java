@@ -0,0 +1,212 @@
+package dk.kb.present.storage;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class StorageRecordCacheTest {
+    private HttpServer server;
+    private StorageHttpClient client;
+    private final AtomicLong now = new AtomicLong(0);
+    // Behaviour of the server
+    private final AtomicLong mTime = new AtomicLong(1000);
+    private volatile boolean useEtag = false;
+    private volatile int failStatus = 0;
+    private volatile boolean slow = false;
+    // Requests received by the server
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final List<String> ifNoneMatch = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ds-storage/v1/record/", exchange -> {
+            requests.incrementAndGet();
+            String id = exchange.getRequestURI().getPath().replaceFirst(".*/", "");
+            String etag = "\"" + mTime.get() + "\"";
+            String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (condition != null) {
+                ifNoneMatch.add(condition);
+            }
+            int status;
+            byte[] body;
+            if (failStatus != 0) {
+                status = failStatus;
+                body = "Failed".getBytes(StandardCharsets.UTF_8);
+            } else if (id.startsWith("missing")) {
+                status = 404;
+                body = "Not found".getBytes(StandardCharsets.UTF_8);
+            } else if (useEtag && etag.equals(condition)) {
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            } else {
+                status = 200;
+                body = ("{\"id\":\"" + id + "\",\"mTime\":" + mTime.get() + ",\"data\":\"data_" + mTime.get() + "\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+                if (useEtag) {
+                    exchange.getResponseHeaders().add("ETag", etag);
+                }
+            }
+            if (slow) {
+                // Deliver the body in small parts, each well within the timeout for packets
+                exchange.sendResponseHeaders(status, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (byte b: body) {
+                        out.write(b);
+                        out.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // The client aborted the request
+                }
+                return;
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        client = new StorageHttpClient("http://localhost:" + server.getAddress().getPort() + "/ds-storage/v1/",
+                                       2, 60, 1000, 5000, true);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void freshHit() {
+        StorageRecordCache cache = createCache();
+        DsRecordDto first = cache.getRecord("id_1", false);
+        advanceMS(500);
+        assertSame(first, cache.getRecord("id_1", false));
+        assertEquals(1, requests.get(), "The second lookup should be served from the cache");
+
+        cache.getRecord("id_1", true);
+        assertEquals(2, requests.get(), "Records with and without local tree should be cached separately");
+    }
+
+    @Test
+    void revalidateConditional() {
+        useEtag = true;
+        StorageRecordCache cache = createCache();
+        DsRecordDto first = cache.getRecord("id_1", false);
+        advanceMS(1500);
+        assertSame(first, cache.getRecord("id_1", false), "An unmodified record should be served from the cache");
+        assertEquals(List.of("\"1000\""), ifNoneMatch);
+
+        mTime.set(2000);
+        advanceMS(1500);
+        assertEquals("data_2000", cache.getRecord("id_1", false).getData());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    void revalidateByMTime() {
+        StorageRecordCache cache = createCache();
+        DsRecordDto first = cache.getRecord("id_1", false);
+        advanceMS(1500);
+        assertSame(first, cache.getRecord("id_1", false), "A record with unchanged mTime should be kept");
+        assertTrue(ifNoneMatch.isEmpty(), "No conditional request should be made without validators");
+
+        mTime.set(2000);
+        advanceMS(1500);
+        assertEquals("data_2000", cache.getRecord("id_1", false).getData());
+    }
+
+    @Test
+    void staleOnFailure() {
+        StorageRecordCache cache = createCache();
+        DsRecordDto first = cache.getRecord("id_1", false);
+
+        failStatus = 500;
+        advanceMS(1500);
+        assertSame(first, cache.getRecord("id_1", false), "The stale record should be served when storage fails");
+
+        advanceMS(TimeUnit.SECONDS.toMillis(60));
+        assertThrows(InternalServiceException.class, () -> cache.getRecord("id_1", false),
+                     "The stale record should not be served after the grace period");
+
+        failStatus = 0;
+        assertEquals("data_1000", cache.getRecord("id_1", false).getData());
+    }
+
+    @Test
+    void staleOnSlowRevalidation() {
+        StorageRecordCache cache = createCache();
+        DsRecordDto first = cache.getRecord("id_1", false);
+
+        slow = true;
+        advanceMS(1500);
+        long startNS = System.nanoTime();
+        assertSame(first, cache.getRecord("id_1", false),
+                   "The stale record should be served when revalidation exceeds the deadline");
+        long spentMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNS);
+        assertTrue(spentMS < 3000,
+                   "Revalidation should be aborted after revalidateTimeoutMS but took " + spentMS + " ms");
+    }
+
+    @Test
+    void notFoundRemoves() {
+        StorageRecordCache cache = createCache();
+        assertThrows(NotFoundServiceException.class, () -> cache.getRecord("missing_1", false));
+        cache.getRecord("id_1", false);
+        assertEquals(1, cache.size());
+
+        failStatus = 404;
+        advanceMS(1500);
+        assertThrows(NotFoundServiceException.class, () -> cache.getRecord("id_1", false));
+        assertEquals(0, cache.size(), "A deleted record should be removed from the cache");
+    }
+
+    @Test
+    void boundedBySize() {
+        StorageRecordCache cache = new StorageRecordCache(client, 1000, 1000, 1000, 30, now::get);
+        for (int i = 0 ; i < 20 ; i++) {
+            cache.getRecord("id_" + i, false);
+        }
+        assertTrue(cache.size() < 20, "Entries should be evicted when maxBytes is exceeded");
+    }
+
+    private StorageRecordCache createCache() {
+        return new StorageRecordCache(client, 1_000_000, 1000, 1000, 30, now::get);
+    }
+
+    private void advanceMS(long ms) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+}
@@ -0,0 +1,73 @@
+package dk.kb.present.transform;
+
+import dk.kb.present.config.ServiceConfig;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.Templates;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class StylesheetRegistryTest {
+
+    @BeforeAll
+    public static void fixConfiguration() throws IOException {
+        ServiceConfig.initialize("conf/ds-present-behaviour.yaml");
+    }
+
+    @Test
+    void sharedTemplates() throws IOException {
+        XSLTTransformer first = new XSLTTransformer(XSLTTransformerTest.MODS2JSONLD, Map.of("imageserver", "a"));
+        XSLTTransformer second = new XSLTTransformer(XSLTTransformerTest.MODS2JSONLD, Map.of("imageserver", "b"));
+        assertSame(first.templates, second.templates,
+                   "Transformers for the same stylesheet should share the compiled stylesheet");
+        assertEquals(Map.of("imageserver", "b"), second.fixedInjections,
+                     "Injections should still be specific to the transformer");
+    }
+
+    @Test
+    void precompile() throws IOException {
+        StylesheetRegistry.precompile(List.of(XSLTTransformerTest.MODS2SOLR, "id_inject.xsl"));
+        Templates templates = StylesheetRegistry.getTemplates(XSLTTransformerTest.MODS2SOLR);
+        assertSame(templates, new XSLTTransformer(XSLTTransformerTest.MODS2SOLR, null).templates);
+    }
+
+    @Test
+    void unknownStylesheet() {
+        assertThrows(FileNotFoundException.class, () -> StylesheetRegistry.getTemplates("xslt/nonexisting.xsl"));
+    }
+
+    @Test
+    void findStylesheets() {
+        List<Object> origins = List.of(
+                Map.of("o1", Map.of("views", List.of(
+                        Map.of("raw", Map.of("transformers", List.of(Map.of("identity", "")))),
+                        Map.of("JSON-LD", Map.of("transformers", List.of(
+                                Map.of("xslt", Map.of("stylesheet", "a.xsl")))))))),
+                Map.of("o2", Map.of("views", List.of(
+                        Map.of("SolrJSON", Map.of("transformers", List.of(
+                                Map.of("xslt", Map.of("stylesheet", "a.xsl")),
+                                Map.of("xsltsolr", Map.of("stylesheet", "b.xsl")))))))));
+
+        assertEquals(Set.of("a.xsl", "b.xsl"), StylesheetRegistry.findStylesheets(origins));
+    }
+}
@@ -0,0 +1,76 @@
+package dk.kb.present.transform;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class TranscriptionFunctionTest {
+    private static final String STYLESHEET =
+            "<xsl:transform xmlns:xsl='http://www.w3.org/1999/XSL/Transform'\n" +
+            "               xmlns:dsp='" + TranscriptionFunction.NAMESPACE + "' version='3.0'>\n" +
+            "  <xsl:output method='text'/>\n" +
+            "  <xsl:param name='referenceId'/>\n" +
+            "  <xsl:param name='use' select='true()'/>\n" +
+            "  <xsl:variable name='text' select='dsp:transcription($referenceId)'/>\n" +
+            "  <xsl:template match='/'>\n" +
+            "    <xsl:if test='$use'><xsl:value-of select=\"exists($text), $text, string-length($text)\"/></xsl:if>\n" +
+            "  </xsl:template>\n" +
+            "</xsl:transform>";
+
+    private final AtomicInteger calls = new AtomicInteger(0);
+    private final Map<String, String> transcriptions = Map.of("t1", "Transcribed text");
+
+    @Test
+    void resolve() throws Exception {
+        assertEquals("true Transcribed text 16", transform("t1", true));
+        assertEquals(1, calls.get(), "The transcription should be resolved once");
+        assertEquals("false 0", transform("n1", true));
+        assertEquals("false 0", transform("", true));
+        assertEquals(2, calls.get(), "Empty reference IDs should not be resolved");
+    }
+
+    @Test
+    void onlyWhenUsed() throws Exception {
+        assertEquals("", transform("t1", false));
+        assertEquals(0, calls.get(), "The transcription should not be resolved when it is not used");
+    }
+
+    private String transform(String referenceId, boolean use) throws Exception {
+        Processor processor = new Processor(false);
+        processor.registerExtensionFunction(new TranscriptionFunction(id -> {
+            calls.incrementAndGet();
+            return transcriptions.get(id);
+        }));
+        Xslt30Transformer transformer = processor.newXsltCompiler()
+                .compile(new StreamSource(new StringReader(STYLESHEET))).load30();
+        transformer.setStylesheetParameters(Map.of(new QName("referenceId"), new XdmAtomicValue(referenceId),
+                                                   new QName("use"), new XdmAtomicValue(use)));
+        StringWriter out = new StringWriter();
+        transformer.applyTemplates(new StreamSource(new StringReader("<record/>")), processor.newSerializer(out));
+        return out.toString();
+    }
+}
@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -21,6 +22,7 @@ import static dk.kb.present.TestUtil.transformWithInjections;
 import static dk.kb.present.TestUtil.prettyPrintJson;
 import static dk.kb.present.transform.XSLTPreservicaSchemaOrgTransformerTest.PRESERVICA2SCHEMAORG;
 import static org.junit.Assert.fail;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -53,6 +55,16 @@ public class XSLTPreservicaToSolrTransformerTest extends XSLTTransformerTestBase
         assertPvicaContains(TestFiles.PVICA_RECORD_e683b0b8, "\"id\":\"ds.test:e683b0b8-425b-45aa-be86-78ac2b4ef0ca.xml\"");
     }
 
+    @Test
+    public void testXdmHandoff() throws IOException {
+        for (String record: List.of(TestFiles.PVICA_RECORD_e683b0b8, TestFiles.PVICA_RECORD_df3dc9cf,
+                                    TestFiles.PVICA_RECORD_a8aafb121)) {
+            assertEquals(TestUtil.getTransformedToSolrJsonThroughSchemaJsonWithPreservica7File(PRESERVICA2SCHEMAORG, record),
+                         TestUtil.getTransformedToSolrJsonThroughXdmWithPreservica7File(PRESERVICA2SCHEMAORG, record),
+                         "Passing schema.org as XDM should give the same result as passing JSON for '" + record + "'");
+        }
+    }
+
     @Test
     public void testTitles() {
         assertPvicaContains(TestFiles.PVICA_RECORD_e683b0b8, "\"title\":\"Ugen der gik\"");
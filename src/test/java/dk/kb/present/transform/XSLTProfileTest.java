@@ -0,0 +1,94 @@
+package dk.kb.present.transform;
+
+import dk.kb.present.TestFiles;
+import dk.kb.present.config.ServiceConfig;
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class XSLTProfileTest {
+    public static final String MODS2SCHEMAORG = "xslt/mods2schemaorg.xsl";
+    public static final String SCHEMAORG2SOLR = "xslt/schemaorg2solr.xsl";
+
+    @BeforeAll
+    public static void fixConfiguration() throws IOException {
+        ServiceConfig.initialize("conf/ds-present-behaviour.yaml");
+    }
+
+    @Test
+    void profiledTransformation() throws IOException {
+        XSLTTransformer toSchemaOrg = new XSLTTransformer(MODS2SCHEMAORG, Map.of("imageserver", "https://example.com/"));
+        XSLTTransformer toSolr = new XSLTSolrFromSchemaTransformer(SCHEMAORG2SOLR, null);
+        XSLTProfile profile = new XSLTProfile();
+        XSLTTransformer profiledToSchemaOrg = toSchemaOrg.profiled(profile);
+        XSLTTransformer profiledToSolr = toSolr.profiled(profile);
+
+        assertNotSame(toSchemaOrg.templates, profiledToSchemaOrg.templates,
+                      "The profiled transformer should use a separately compiled stylesheet");
+        assertTrue(profiledToSolr instanceof XSLTSolrFromSchemaTransformer,
+                   "The profiled transformer should be of the same type as the original");
+
+        String mods = Resolver.resolveUTF8String(TestFiles.CUMULUS_RECORD_05fea810);
+        String schemaOrg = toSchemaOrg.apply(mods, metadata());
+        assertEquals(schemaOrg, profiledToSchemaOrg.apply(mods, metadata()),
+                     "Profiling should not change the result of the transformation");
+        assertEquals(toSolr.apply(schemaOrg, metadata()), profiledToSolr.apply(schemaOrg, metadata()),
+                     "Profiling should not change the result of the transformation");
+
+        assertEquals(2, profile.getTransformations());
+        List<XSLTProfile.ComponentStats> ranked = profile.getRanked();
+        assertFalse(ranked.isEmpty(), "Templates and functions should be measured");
+        for (int i = 1 ; i < ranked.size() ; i++) {
+            assertTrue(ranked.get(i-1).getNetNS() >= ranked.get(i).getNetNS(),
+                       "Components should be ordered by net time");
+        }
+        assertTrue(ranked.stream().anyMatch(stats -> stats.getComponent().startsWith("xsl:template")),
+                   "Templates should be measured, but got " + ranked);
+        assertTrue(ranked.stream().anyMatch(stats -> stats.getComponent().startsWith("xsl:function my:") &&
+                                                     stats.getComponent().contains("utils.xsl")),
+                   "Functions from included stylesheets should be measured, but got " + ranked);
+
+        String report = profile.getReport(3);
+        assertTrue(report.contains("net_ms"), "The report should have a header, but was\n" + report);
+        assertTrue(report.contains("more components not shown"),
+                   "The report should be limited to 3 components, but was\n" + report);
+    }
+
+    @Test
+    void notProfiled() throws IOException {
+        XSLTTransformer toSchemaOrg = new XSLTTransformer(MODS2SCHEMAORG, Map.of("imageserver", "https://example.com/"));
+        XSLTProfile profile = new XSLTProfile();
+        toSchemaOrg.profiled(profile);
+        toSchemaOrg.apply(Resolver.resolveUTF8String(TestFiles.CUMULUS_RECORD_05fea810), metadata());
+        assertEquals(0, profile.getTransformations(), "The original transformer should not be profiled");
+    }
+
+    private static Map<String, String> metadata() {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("recordID", "ds.samlingsbilleder:test");
+        metadata.put("origin", "ds.samlingsbilleder");
+        metadata.put("mTime", "1701261949625000");
+        return metadata;
+    }
+}
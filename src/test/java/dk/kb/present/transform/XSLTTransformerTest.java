@@ -2,12 +2,15 @@ package dk.kb.present.transform;
 
 import dk.kb.present.TestUtil;
 import dk.kb.present.config.ServiceConfig;
+import dk.kb.util.Resolver;
+import net.sf.saxon.s9api.XdmAtomicValue;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import com.google.gson.*;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -90,4 +93,36 @@ class XSLTTransformerTest {
 
 
 
+    @Test
+    void testXdmInjection() throws IOException {
+        Map<String, String>  fixed = Map.of("external_parameter1" , "defaultValueSomething",
+                                            "external_parameter2" , "value2");
+        Map<String, String>  metadata = Map.of("external_parameter1" , "value1");
+
+        XSLTTransformer transformer = new XSLTTransformer("id_inject.xsl", fixed);
+        String xml = Resolver.resolveUTF8String("id_inject.xml");
+
+        assertEquals(transformer.apply(xml, metadata),
+                     transformer.applyXdmToString(new XdmAtomicValue(xml), metadata),
+                     "Transforming through XDM should give the same result as transforming through JAXP");
+    }
+
+    @Test
+    void testWriterOutput() throws IOException {
+        Map<String, String>  metadata = Map.of("external_parameter1" , "value1");
+        XSLTTransformer transformer = new XSLTTransformer("id_inject.xsl", null);
+        String xml = Resolver.resolveUTF8String("id_inject.xml");
+
+        StringWriter out = new StringWriter();
+        transformer.apply(xml, metadata, out);
+        assertEquals(transformer.apply(xml, metadata), out.toString(),
+                     "Writing the result directly should give the same result as returning it");
+    }
+
+    @Test
+    void testXmlToMap() throws IOException {
+        String result = TestUtil.getTransformed("xml_to_map.xsl", "id_inject.xml");
+        assertEquals("equal:true duplicate:error invalidNumber:error", result);
+    }
+
 }
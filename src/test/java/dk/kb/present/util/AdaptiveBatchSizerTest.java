@@ -0,0 +1,94 @@
+package dk.kb.present.util;
+
+import dk.kb.storage.model.v1.DsRecordDto;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class AdaptiveBatchSizerTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    void fixedSize() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 3);
+        List<Integer> sizes = sizer.split(records(10, 1000)).map(List::size).collect(Collectors.toList());
+        assertEquals(List.of(3, 3, 3, 1), sizes);
+
+        sizer.update(3, 3000, 10000 * MS);
+        assertEquals(3, sizer.getSize(), "A fixed size should not be adjusted");
+    }
+
+    @Test
+    void closeOnBytes() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 100, 1, 100, 1000, 2500);
+        List<Integer> sizes = sizer.split(records(7, 1000)).map(List::size).collect(Collectors.toList());
+        assertEquals(List.of(3, 3, 1), sizes, "Batches should be closed when their payload reaches targetBytes");
+    }
+
+    @Test
+    void shrinkOnLatency() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 500, 50, 2000, 1000, Long.MAX_VALUE);
+        for (int i = 0 ; i < 20 ; i++) {
+            // 10ms per record, so 100 records should take 1 second
+            sizer.update(sizer.getSize(), 0, sizer.getSize() * 10 * MS);
+        }
+        assertTrue(sizer.getSize() >= 95 && sizer.getSize() <= 105,
+                   "The size should approach 100 but was " + sizer.getSize());
+    }
+
+    @Test
+    void shrinkOnBytes() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 500, 50, 2000, 1000, 1_000_000);
+        for (int i = 0 ; i < 20 ; i++) {
+            // Fast access checks but 100KB records
+            sizer.update(sizer.getSize(), sizer.getSize() * 100_000L, MS);
+        }
+        assertEquals(50, sizer.getSize(), "The size should be kept at minSize");
+    }
+
+    @Test
+    void growBounded() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 500, 50, 2000, 1000, 10_000_000);
+        sizer.update(500, 500 * 100L, MS);
+        assertEquals(1000, sizer.getSize(), "The size should at most double for a single batch");
+        for (int i = 0 ; i < 10 ; i++) {
+            sizer.update(sizer.getSize(), sizer.getSize() * 100L, MS);
+        }
+        assertEquals(2000, sizer.getSize(), "The size should be kept at maxSize");
+    }
+
+    @Test
+    void closePropagated() {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer("test", 2);
+        try (Stream<List<DsRecordDto>> batches = sizer.split(records(5, 10).onClose(() -> closed.set(true)))) {
+            assertEquals(2, batches.findFirst().orElseThrow().size());
+        }
+        assertTrue(closed.get(), "Closing the batches should close the records");
+    }
+
+    private static Stream<DsRecordDto> records(int count, int length) {
+        String data = "x".repeat(length);
+        return IntStream.range(0, count).mapToObj(i -> new DsRecordDto().id("id_" + i).data(data));
+    }
+}
@@ -0,0 +1,212 @@
+package dk.kb.present.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class AdaptiveLimiterTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    void limitEnforced() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 2, 2, 1.5, 1.0, 0.0, () -> 0.0, null);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch proceed = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int i = 0 ; i < 6 ; i++) {
+                jobs.add(executor.submit(() -> limiter.execute(AdaptiveLimiter.Lane.BULK, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    started.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                })));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Two tasks should be started");
+            Thread.sleep(50);
+            assertEquals(2, limiter.getInFlight(), "Only the limit of tasks should be in flight");
+            proceed.countDown();
+            for (Future<?> job: jobs) {
+                job.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, maxRunning.get(), "No more than the limit of tasks should run at the same time");
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void growWhenUsed() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 1, 50, 1.5, 1.0, 0.0, () -> 0.0, null);
+        for (int i = 0 ; i < 100 ; i++) {
+            // Keep the limit in use, so that it is allowed to grow
+            int inFlight = limiter.getLimit();
+            for (int j = 0 ; j < inFlight ; j++) {
+                limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            }
+            for (int j = 0 ; j < inFlight ; j++) {
+                limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+            }
+        }
+        assertTrue(limiter.getLimit() > 2, "The limit should grow under stable latency, but was " + limiter);
+    }
+
+    @Test
+    void noGrowthWhenUnused() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 10, 1, 50, 1.5, 1.0, 0.0, () -> 0.0, null);
+        for (int i = 0 ; i < 100 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+        }
+        assertEquals(10, limiter.getLimit(), "The limit should not grow when it is not in use");
+    }
+
+    @Test
+    void shrinkOnLatencyIncrease() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 20, 1, 50, 1.5, 1.0, 0.0, () -> 0.0, null);
+        for (int i = 0 ; i < 100 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+        }
+        for (int i = 0 ; i < 20 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, 20 * MS);
+        }
+        assertTrue(limiter.getLimit() < 20, "The limit should shrink when latency increases, but was " + limiter);
+    }
+
+    @Test
+    void shrinkSmallLimit() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 1, 50, 1.5, 1.0, 0.0, () -> 0.0, null);
+        for (int i = 0 ; i < 100 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+        }
+        for (int i = 1 ; i <= 20 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, i * 10 * MS);
+        }
+        assertTrue(limiter.getLimit() < 3, "A small limit should shrink when latency rises, but was " + limiter);
+    }
+
+    @Test
+    void shrinkOnCpuSaturation() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 20, 3, 50, 1.5, 0.9, 0.0, () -> 0.95, null);
+        for (int i = 0 ; i < 100 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.BULK);
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+        }
+        assertEquals(3, limiter.getLimit(), "The limit should shrink to the minimum when the CPU is saturated");
+    }
+
+    @Test
+    void interactiveFirst() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 2, 2, 1.5, 1.0, 0.0, () -> 0.0, null);
+        limiter.acquire(AdaptiveLimiter.Lane.BULK);
+        limiter.acquire(AdaptiveLimiter.Lane.BULK);
+
+        List<AdaptiveLimiter.Lane> order = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> bulk = executor.submit(() -> acquireAndRecord(limiter, AdaptiveLimiter.Lane.BULK, order));
+            waitForWaiting(limiter, 1);
+            Future<?> interactive = executor.submit(
+                    () -> acquireAndRecord(limiter, AdaptiveLimiter.Lane.INTERACTIVE, order));
+            waitForWaiting(limiter, 2);
+
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+            interactive.get(10, TimeUnit.SECONDS);
+            assertEquals(List.of(AdaptiveLimiter.Lane.INTERACTIVE), order,
+                         "The interactive task should get the free permit before the bulk task that waited first");
+            limiter.release(AdaptiveLimiter.Lane.BULK, MS);
+            bulk.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(List.of(AdaptiveLimiter.Lane.INTERACTIVE, AdaptiveLimiter.Lane.BULK), order);
+    }
+
+    @Test
+    void bulkMinShare() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 4, 4, 1.5, 1.0, 0.25, () -> 0.0, null);
+        for (int i = 0 ; i < 4 ; i++) {
+            limiter.acquire(AdaptiveLimiter.Lane.INTERACTIVE);
+        }
+
+        List<AdaptiveLimiter.Lane> order = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> bulk = executor.submit(() -> acquireAndRecord(limiter, AdaptiveLimiter.Lane.BULK, order));
+            waitForWaiting(limiter, 1);
+            Future<?> interactive = executor.submit(
+                    () -> acquireAndRecord(limiter, AdaptiveLimiter.Lane.INTERACTIVE, order));
+            waitForWaiting(limiter, 2);
+
+            limiter.release(AdaptiveLimiter.Lane.INTERACTIVE, MS);
+            bulk.get(10, TimeUnit.SECONDS);
+            assertEquals(List.of(AdaptiveLimiter.Lane.BULK), order,
+                         "The bulk task should get the permit reserved for the bulk lane");
+            limiter.release(AdaptiveLimiter.Lane.INTERACTIVE, MS);
+            interactive.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(List.of(AdaptiveLimiter.Lane.BULK, AdaptiveLimiter.Lane.INTERACTIVE), order);
+    }
+
+    @Test
+    void invalidLimits() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> new AdaptiveLimiter("test", 2, 0, 2, 1.5, 1.0, 0.0, () -> 0.0, null));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new AdaptiveLimiter("test", 2, 3, 2, 1.5, 1.0, 0.0, () -> 0.0, null));
+    }
+
+    private static Void acquireAndRecord(
+            AdaptiveLimiter limiter, AdaptiveLimiter.Lane lane, List<AdaptiveLimiter.Lane> order) throws Exception {
+        limiter.acquire(lane);
+        order.add(lane);
+        return null;
+    }
+
+    private static void waitForWaiting(AdaptiveLimiter limiter, int waiting) throws InterruptedException {
+        long endMS = System.currentTimeMillis() + 10000;
+        while (limiter.getWaiting() < waiting && System.currentTimeMillis() < endMS) {
+            Thread.sleep(5);
+        }
+        assertEquals(waiting, limiter.getWaiting(), "The expected number of tasks should be waiting");
+    }
+}
@@ -0,0 +1,63 @@
+package dk.kb.present.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class CallerTokenTest {
+
+    @Test
+    void propagated() throws ExecutionException, InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Supplier<String> task = CallerToken.withToken(
+                    "caller-token", () -> CallerToken.propagate(CallerToken::get));
+            assertEquals("caller-token", executor.submit(task::get).get(),
+                         "The token should be available to the task on the other thread");
+            assertNull(executor.submit(CallerToken::get).get(),
+                       "The token should not remain on the other thread after the task");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void authorize() {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost/record"));
+        CallerToken.withToken("caller-token", () -> {
+            CallerToken.authorize(request);
+            return null;
+        });
+        assertEquals(Optional.of("Bearer caller-token"), request.build().headers().firstValue("Authorization"));
+    }
+
+    @Test
+    void authorizeWithoutToken() {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost/record"));
+        CallerToken.authorize(request);
+        assertTrue(request.build().headers().firstValue("Authorization").isEmpty(),
+                   "There should be no authorization without a token");
+    }
+}
@@ -0,0 +1,119 @@
+package dk.kb.present.util;
+
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class PrefetchStageTest {
+
+    @Test
+    void order() {
+        Stream<Integer> stage = PrefetchStage.prefetch(
+                IntStream.range(0, 1000).boxed(), 3, "test", null, null, 10000);
+        assertEquals(IntStream.range(0, 1000).boxed().collect(Collectors.toList()),
+                     stage.collect(Collectors.toList()));
+    }
+
+    @Test
+    void chained() {
+        Stream<Integer> first = PrefetchStage.prefetch(
+                IntStream.range(0, 100).boxed(), 1, "first", null, null, 10000);
+        Stream<Integer> second = PrefetchStage.prefetch(
+                first.map(i -> i * 2), 1, "second", null, null, 10000);
+        assertEquals(IntStream.range(0, 100).map(i -> i * 2).boxed().collect(Collectors.toList()),
+                     second.collect(Collectors.toList()));
+    }
+
+    @Test
+    void disabled() {
+        Stream<Integer> upstream = Stream.of(1, 2, 3);
+        assertSame(upstream, PrefetchStage.prefetch(upstream, 0, "test", null, null, 10000),
+                   "With capacity 0 the upstream should be returned directly");
+    }
+
+    @Test
+    void failure() {
+        Stream<Integer> upstream = IntStream.range(0, 10).boxed().map(i -> {
+            if (i == 5) {
+                throw new IllegalStateException("Simulated failure");
+            }
+            return i;
+        });
+        List<Integer> received = new ArrayList<>();
+        Stream<Integer> stage = PrefetchStage.prefetch(upstream, 2, "test", null, null, 10000);
+        assertThrows(IllegalStateException.class, () -> stage.forEach(received::add));
+        assertEquals(List.of(0, 1, 2, 3, 4), received,
+                     "The elements before the failing element should be delivered");
+    }
+
+    @Test
+    void bounded() throws InterruptedException {
+        AtomicInteger pulled = new AtomicInteger(0);
+        Stream<Integer> upstream = IntStream.range(0, 100).boxed().peek(i -> pulled.incrementAndGet());
+        Stream<Integer> stage = PrefetchStage.prefetch(upstream, 2, "test", null, null, 10000);
+
+        Thread.sleep(50);
+        assertEquals(0, pulled.get(), "Nothing should be pulled before the first element is requested");
+
+        assertEquals(0, stage.iterator().next());
+        Thread.sleep(100);
+        // The delivered element, 2 in the queue and 1 waiting to be handed over
+        assertTrue(pulled.get() <= 4, "At most 4 elements should be pulled, but got " + pulled.get());
+        stage.close();
+    }
+
+    @Test
+    void idleConsumer() throws InterruptedException {
+        AtomicInteger closed = new AtomicInteger(0);
+        Stream<Integer> upstream = IntStream.range(0, 100).boxed().onClose(closed::incrementAndGet);
+        Stream<Integer> stage = PrefetchStage.prefetch(upstream, 2, "test", null, null, 100);
+        Iterator<Integer> elements = stage.iterator();
+        assertEquals(0, elements.next());
+
+        // Idle past the timeout, so that the background thread gives up
+        Thread.sleep(500);
+        assertEquals(1, closed.get(), "The upstream should be closed when the stage gives up");
+
+        // The elements handed over before giving up are delivered, then the consumer is told the stage stopped
+        List<Integer> received = new ArrayList<>();
+        assertThrows(InternalServiceException.class, () -> elements.forEachRemaining(received::add));
+        assertEquals(List.of(1, 2), received);
+    }
+
+    @Test
+    void idleConsumerAfterEnd() throws InterruptedException {
+        Stream<Integer> stage = PrefetchStage.prefetch(
+                IntStream.range(0, 3).boxed(), 2, "test", null, null, 100);
+        Iterator<Integer> elements = stage.iterator();
+        assertEquals(0, elements.next());
+
+        // The end marker cannot be handed over, but all elements were
+        Thread.sleep(500);
+        List<Integer> received = new ArrayList<>();
+        elements.forEachRemaining(received::add);
+        assertEquals(List.of(1, 2), received);
+    }
+}
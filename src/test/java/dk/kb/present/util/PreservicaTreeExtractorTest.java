@@ -0,0 +1,133 @@
+package dk.kb.present.util;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class PreservicaTreeExtractorTest {
+    private static final Processor PROCESSOR = new Processor(false);
+    private static final PreservicaTreeExtractor EXTRACTOR = new PreservicaTreeExtractor(PROCESSOR);
+
+    private static final String PBCORE =
+            "  <xip:Metadata schemaUri=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n" +
+            "    <xip:Content>\n" +
+            "      <PBCoreDescriptionDocument xmlns=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n" +
+            "        <pbcoreTitle><title>Søren Ryge</title><titleType>titel</titleType></pbcoreTitle>\n" +
+            "        <pbcoreTitle><title> Original </title><titleType>originaltitel</titleType></pbcoreTitle>\n" +
+            "        <pbcoreInstantiation>\n" +
+            "          <pbcoreDateAvailable>\n" +
+            "            <dateAvailableStart>2022-02-28T06:30:07+01:00</dateAvailableStart>\n" +
+            "            <dateAvailableEnd>2022-02-28T06:58:01+01:00</dateAvailableEnd>\n" +
+            "          </pbcoreDateAvailable>\n" +
+            "        </pbcoreInstantiation>\n" +
+            "      </PBCoreDescriptionDocument>\n" +
+            "    </xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String NIELSEN =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_nielsen_metadata\">\n" +
+            "    <xip:Content><record><source><nielsen>\n" +
+            "      <form>1100</form><typology>2200</typology><origin>3300</origin>\n" +
+            "      <origincountry>4400</origincountry><purpose>5500</purpose>\n" +
+            "      <internalidcode>12345678900</internalidcode>\n" +
+            "    </nielsen></source></record></xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String TVMETER =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_tvmeter_metadata\">\n" +
+            "    <xip:Content><record><source><tvmeter>\n" +
+            "      <form>9999</form><contentsitem>9998</contentsitem><origin>9997</origin>\n" +
+            "      <productioncountry>9996</productioncountry><intent>9995</intent>\n" +
+            "    </tvmeter></source></record></xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String DR_ARCHIVE =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata\">\n" +
+            "    <xip:Content><record><dr_archive_supplementary_rights_metadata>\n" +
+            "      <produktionsnummer>11109009013</produktionsnummer>\n" +
+            "      <holdback_kategori>Dansk Dramatik &amp; Film</holdback_kategori>\n" +
+            "      <form>  </form>\n" +
+            "    </dr_archive_supplementary_rights_metadata></record></xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String FUZZY =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_dr_tv_1973_2005_metadata\">\n" +
+            "    <xip:Content><record><source><Tv_Internt_Digitaliseret_program_table_1973_2005>\n" +
+            "      <tpro_pnr>7777</tpro_pnr><tpro_holdback>Fuzzy</tpro_holdback><form>7000</form>\n" +
+            "    </Tv_Internt_Digitaliseret_program_table_1973_2005></source></record></xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    @Test
+    void pbcoreAndNielsen() throws Exception {
+        ExtractedPreservicaValues values = EXTRACTOR.extract(parse(xip(PBCORE + NIELSEN + TVMETER)), "id1");
+        assertEquals("id1", values.getId());
+        assertEquals("Søren Ryge", values.getTitle());
+        assertEquals("Original", values.getOriginalTitle());
+        assertEquals("2022-02-28T05:30:07Z", values.getStartTime());
+        assertEquals("2022-02-28T05:58:01Z", values.getEndTime());
+        // Nielsen comes before tvmeter, so tvmeter values should be ignored
+        assertEquals("1100", values.getFormValue());
+        assertEquals("12345678900", values.getProductionId());
+    }
+
+    @Test
+    void drArchiveTakesPrecedence() throws Exception {
+        ExtractedPreservicaValues values = EXTRACTOR.extract(parse(xip(DR_ARCHIVE + NIELSEN)), "id2");
+        assertEquals("11109009013", values.getProductionId());
+        assertEquals("Dansk Dramatik & Film", values.getHoldbackCategory());
+        assertNull(values.getFormValue());
+    }
+
+    @Test
+    void sameAsSaxExtraction() throws Exception {
+        List<String> fragments = List.of(PBCORE, NIELSEN, TVMETER, DR_ARCHIVE, FUZZY);
+        // All ordered combinations of up to 3 different fragments
+        for (String first : fragments) {
+            for (String second : fragments) {
+                for (String third : fragments) {
+                    if (first.equals(second) || first.equals(third) || second.equals(third)) {
+                        continue;
+                    }
+                    for (String metadata : List.of(first, first + second, first + second + third)) {
+                        String xml = xip(metadata);
+                        assertEquals(ExtractedPreservicaValues.extractValuesFromPreservicaContent(xml, "id").values,
+                                     EXTRACTOR.extract(parse(xml), "id").values,
+                                     "Extraction from the tree should match SAX extraction for\n" + xml);
+                    }
+                }
+            }
+        }
+    }
+
+    private static XdmNode parse(String xml) throws Exception {
+        return PROCESSOR.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    private static String xip(String metadata) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+               "<xip:XIP xmlns:xip=\"http://preservica.com/XIP/v7.0\">\n" +
+               "  <xip:InformationObject><xip:Title>Not extracted</xip:Title></xip:InformationObject>\n" +
+               metadata +
+               "</xip:XIP>\n";
+    }
+}
@@ -0,0 +1,163 @@
+package dk.kb.present.util.saxhandlers;
+
+import dk.kb.present.util.ExtractedPreservicaValues;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class ElementsExtractionHandlerTest {
+    private static final String PBCORE =
+            "  <xip:Metadata schemaUri=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n" +
+            "    <xip:Ref>pbcore</xip:Ref>\n" +
+            "    <xip:Content>\n" +
+            "      <PBCoreDescriptionDocument xmlns=\"http://www.pbcore.org/PBCore/PBCoreNamespace.html\">\n" +
+            "        <pbcoreTitle><title>Søren Ryge</title><titleType>titel</titleType></pbcoreTitle>\n" +
+            "        <pbcoreTitle><title> Original </title><titleType>originaltitel</titleType></pbcoreTitle>\n" +
+            "        <pbcoreDescription><description>Not extracted</description></pbcoreDescription>\n" +
+            "        <pbcoreInstantiation>\n" +
+            "          <pbcoreDateAvailable>\n" +
+            "            <dateAvailableStart>2022-02-28T06:30:07+01:00</dateAvailableStart>\n" +
+            "            <dateAvailableEnd>2022-02-28T06:58:01+01:00</dateAvailableEnd>\n" +
+            "          </pbcoreDateAvailable>\n" +
+            "        </pbcoreInstantiation>\n" +
+            "      </PBCoreDescriptionDocument>\n" +
+            "    </xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String NIELSEN =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_nielsen_metadata\">\n" +
+            "    <xip:Content>\n" +
+            "      <record><source><nielsen>\n" +
+            "        <form>1100</form><typology>2200</typology><origin>3300</origin>\n" +
+            "        <origincountry>4400</origincountry><purpose>5500</purpose>\n" +
+            "        <internalidcode>12345678900</internalidcode>\n" +
+            "      </nielsen></source></record>\n" +
+            "    </xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String TVMETER =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/supplementary_tvmeter_metadata\">\n" +
+            "    <xip:Content>\n" +
+            "      <record><source><tvmeter>\n" +
+            "        <form>9999</form><contentsitem>9999</contentsitem><origin>9999</origin>\n" +
+            "      </tvmeter></source></record>\n" +
+            "    </xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    private static final String DR_ARCHIVE =
+            "  <xip:Metadata schemaUri=\"http://id.kb.dk/schemas/dr_archive_supplementary_rights_metadata\">\n" +
+            "    <xip:Content>\n" +
+            "      <record><dr_archive_supplementary_rights_metadata>\n" +
+            "        <produktionsnummer>11109009013</produktionsnummer>\n" +
+            "        <holdback_kategori>Dansk Dramatik &amp; Film</holdback_kategori>\n" +
+            "        <form>  </form>\n" +
+            "      </dr_archive_supplementary_rights_metadata></record>\n" +
+            "    </xip:Content>\n" +
+            "  </xip:Metadata>\n";
+
+    @Test
+    void pbcoreAndNielsen() throws Exception {
+        ExtractedPreservicaValues values = ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                xip(PBCORE + NIELSEN + TVMETER), "id1");
+        assertEquals("id1", values.getId());
+        assertEquals("Søren Ryge", values.getTitle());
+        assertEquals("Original", values.getOriginalTitle());
+        assertEquals("2022-02-28T05:30:07Z", values.getStartTime());
+        assertEquals("2022-02-28T05:58:01Z", values.getEndTime());
+        // Nielsen comes before tvmeter, so tvmeter values should be ignored
+        assertEquals("1100", values.getFormValue());
+        assertEquals("2200", values.getContent());
+        assertEquals("3300", values.getOrigin());
+        assertEquals("4400", values.getOriginCountry());
+        assertEquals("5500", values.getPurpose());
+        assertEquals("12345678900", values.getProductionId());
+        assertNull(values.getHoldbackCategory());
+    }
+
+    @Test
+    void drArchiveTakesPrecedence() throws Exception {
+        ExtractedPreservicaValues values = ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                xip(DR_ARCHIVE + NIELSEN), "id2");
+        assertEquals("11109009013", values.getProductionId());
+        assertEquals("Dansk Dramatik & Film", values.getHoldbackCategory());
+        assertNull(values.getFormValue(), "Blank values from dr_archive_supplementary_rights_metadata and " +
+                                          "values from nielsen after it should not be extracted");
+        assertNull(values.getTitle());
+    }
+
+    @Test
+    void reuseForMultipleRecords() throws Exception {
+        ExtractedPreservicaValues first = ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                xip(PBCORE + NIELSEN), "first");
+        ExtractedPreservicaValues second = ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                xip(TVMETER), "second");
+        assertEquals("1100", first.getFormValue(), "The first result should not be changed by later extractions");
+        assertEquals("second", second.getId());
+        assertEquals("9999", second.getFormValue(), "State from the first record should not block tvmeter values");
+        assertNull(second.getTitle());
+        assertNull(second.getProductionId());
+    }
+
+    @Test
+    void recoverAfterFailure() throws Exception {
+        assertThrows(Exception.class, () -> ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                "<xip:XIP><xip:Metadata schemaUri=\"x\"><unclosed>", "broken"));
+        ExtractedPreservicaValues values = ExtractedPreservicaValues.extractValuesFromPreservicaContent(
+                xip(PBCORE), "id3");
+        assertEquals("Søren Ryge", values.getTitle(), "Extraction should work after a failed parse");
+    }
+
+    @Test
+    void multipleThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] jobs = new Future<?>[8];
+            for (int i = 0 ; i < jobs.length ; i++) {
+                String id = "id" + i;
+                String xml = xip(i % 2 == 0 ? PBCORE + NIELSEN : DR_ARCHIVE);
+                jobs[i] = executor.submit(() -> {
+                    for (int j = 0 ; j < 50 ; j++) {
+                        ExtractedPreservicaValues values =
+                                ExtractedPreservicaValues.extractValuesFromPreservicaContent(xml, id);
+                        assertEquals(id, values.getId());
+                        assertEquals(xml.contains("nielsen") ? "12345678900" : "11109009013",
+                                     values.getProductionId());
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> job: jobs) {
+                job.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String xip(String metadata) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+               "<xip:XIP xmlns:xip=\"http://preservica.com/XIP/v7.0\">\n" +
+               "  <xip:InformationObject><xip:Ref>ref</xip:Ref><xip:Title>Not extracted</xip:Title></xip:InformationObject>\n" +
+               metadata +
+               "</xip:XIP>\n";
+    }
+}
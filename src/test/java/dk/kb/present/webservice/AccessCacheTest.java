@@ -0,0 +1,134 @@
+package dk.kb.present.webservice;
+
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import dk.kb.present.api.v1.impl.DsPresentApiServiceImpl.ACCESS;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+class AccessCacheTest {
+    private final AtomicLong nowNS = new AtomicLong(0);
+    private final AtomicInteger calls = new AtomicInteger(0);
+    private final AccessCache cache = new AccessCache(100, 300, 200, 60, nowNS::get);
+
+    @Test
+    void keyCoversInput() {
+        List<UserObjAttributeDto> everybody = List.of(attribute("everybody", "yes"));
+        assertEquals(AccessCache.createKey("Search", everybody, "id1"),
+                     AccessCache.createKey("Search", List.of(attribute("everybody", "yes")), "id1"));
+        assertNotEquals(AccessCache.createKey("Search", everybody, "id1"),
+                        AccessCache.createKey("Search", everybody, "id2"));
+        assertNotEquals(AccessCache.createKey("Search", everybody, "id1"),
+                        AccessCache.createKey("Stream", everybody, "id1"));
+        assertNotEquals(AccessCache.createKey("Search", everybody, "id1"),
+                        AccessCache.createKey("Search", List.of(attribute("everybody", "no")), "id1"));
+        assertEquals(AccessCache.createKey("Search", List.of(attribute("a", "1"), attribute("b", "2")), "id1"),
+                     AccessCache.createKey("Search", List.of(attribute("b", "2"), attribute("a", "1")), "id1"),
+                     "The order of attributes should not matter");
+    }
+
+    @Test
+    void expiryPerOutcome() {
+        assertEquals(ACCESS.ok, get("ok", ACCESS.ok));
+        assertEquals(ACCESS.not_allowed, get("not_allowed", ACCESS.not_allowed));
+        assertEquals(ACCESS.not_exists, get("not_exists", ACCESS.not_exists));
+        assertEquals(3, calls.get());
+
+        advanceSeconds(59);
+        get("ok", ACCESS.ok);
+        get("not_allowed", ACCESS.not_allowed);
+        get("not_exists", ACCESS.not_exists);
+        assertEquals(3, calls.get(), "All outcomes should be cached");
+
+        advanceSeconds(2);
+        get("not_exists", ACCESS.not_exists);
+        assertEquals(4, calls.get(), "not_exists should expire after 60 seconds");
+
+        advanceSeconds(140);
+        get("ok", ACCESS.ok);
+        get("not_allowed", ACCESS.not_allowed);
+        assertEquals(5, calls.get(), "not_allowed should expire after 200 seconds");
+
+        advanceSeconds(100);
+        get("ok", ACCESS.ok);
+        assertEquals(6, calls.get(), "ok should expire after 300 seconds");
+    }
+
+    @Test
+    void failuresNotCached() {
+        assertThrows(IllegalStateException.class, () -> cache.get("id1", () -> {
+            throw new IllegalStateException("License unavailable");
+        }));
+        assertEquals(ACCESS.ok, get("id1", ACCESS.ok));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void coalescing() throws Exception {
+        int threads = 8;
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ACCESS>> results = new ArrayList<>();
+            for (int i = 0 ; i < threads ; i++) {
+                results.add(executor.submit(() -> cache.get("id1", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return ACCESS.not_allowed;
+                })));
+            }
+            // Give the threads time to reach the cache
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<ACCESS> result : results) {
+                assertEquals(ACCESS.not_allowed, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get(), "Concurrent misses for the same key should result in a single call");
+    }
+
+    private ACCESS get(String key, ACCESS access) {
+        return cache.get(key, () -> {
+            calls.incrementAndGet();
+            return access;
+        });
+    }
+
+    private void advanceSeconds(long seconds) {
+        nowNS.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private static UserObjAttributeDto attribute(String name, String value) {
+        return new UserObjAttributeDto().attribute(name).values(List.of(value));
+    }
+}
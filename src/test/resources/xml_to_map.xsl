@@ -0,0 +1,61 @@
+<?xml version="1.0" encoding="UTF-8" ?>
+<xsl:transform xmlns:f="http://www.w3.org/2005/xpath-functions"
+               xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+               xmlns:err="http://www.w3.org/2005/xqt-errors"
+               xmlns:my="urn:my"
+               version="3.0">
+  <xsl:output method="text" />
+  <xsl:include href="xslt/utils.xsl"/>
+
+  <!-- Verifies that my:xml-to-map gives the same result as parsing the output from f:xml-to-json -->
+  <xsl:template match="/">
+    <xsl:variable name="json">
+      <f:map>
+        <f:string key="@context">http://schema.org/</f:string>
+        <f:string key="title"><xsl:value-of select="/item/title"/></f:string>
+        <f:string key="quotes">Text with "quotes", \ and
+newline</f:string>
+        <f:string key="escaped" escaped="true">a\nb\/cæ</f:string>
+        <f:string key="a\tb" escaped-key="true">escaped key</f:string>
+        <f:number key="number">1.50</f:number>
+        <f:number key="exponent">-3e2</f:number>
+        <f:boolean key="boolean">true</f:boolean>
+        <f:null key="null"/>
+        <f:array key="array">
+          <f:string>s</f:string>
+          <f:null/>
+          <f:number>2</f:number>
+          <f:array/>
+          <f:map/>
+        </f:array>
+        <f:map key="nested">
+          <f:boolean key="flag">0</f:boolean>
+        </f:map>
+      </f:map>
+    </xsl:variable>
+    <xsl:variable name="duplicate">
+      <f:map>
+        <f:string key="a">1</f:string>
+        <f:string key="a">2</f:string>
+      </f:map>
+    </xsl:variable>
+    <xsl:variable name="invalidNumber">
+      <f:map>
+        <f:number key="a">NaN</f:number>
+      </f:map>
+    </xsl:variable>
+
+    <xsl:text>equal:</xsl:text>
+    <xsl:value-of select="deep-equal(my:xml-to-map($json), f:parse-json(f:xml-to-json($json)))"/>
+    <xsl:text> duplicate:</xsl:text>
+    <xsl:try>
+      <xsl:sequence select="exists(my:xml-to-map($duplicate))"/>
+      <xsl:catch errors="*">error</xsl:catch>
+    </xsl:try>
+    <xsl:text> invalidNumber:</xsl:text>
+    <xsl:try>
+      <xsl:sequence select="exists(my:xml-to-map($invalidNumber))"/>
+      <xsl:catch errors="*">error</xsl:catch>
+    </xsl:try>
+  </xsl:template>
+</xsl:transform>